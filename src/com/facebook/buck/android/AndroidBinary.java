@@ -77,6 +77,7 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
@@ -678,7 +679,12 @@ public class AndroidBinary
     // Returning our RuleKey has this effect because we will never get an ABI match after a
     // RuleKey miss.
     if (exopackageModes.isEmpty()) {
-      return Sha1HashCode.of(defaultRuleKeyBuilderFactory.build(this).toString());
+      HashCode ruleKeyHash = defaultRuleKeyBuilderFactory.build(this).getHashCode();
+      // Rule keys are only SHA-1s when they are computed with the default hash function.
+      if (ruleKeyHash.bits() != Hashing.sha1().bits()) {
+        ruleKeyHash = Hashing.sha1().hashBytes(ruleKeyHash.asBytes());
+      }
+      return Sha1HashCode.fromHashCode(ruleKeyHash);
     }
     return enhancementResult.getComputeExopackageDepsAbi().get().getAndroidBinaryAbiHash();
   }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+
+import org.immutables.value.Value;
+
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * A single entry of an artifact whose contents are already on disk, such as in a local cache, so
+ * that it can be put in place without going through a zip file.
+ */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractArtifactEntry {
+
+  /**
+   * @return the path of the entry relative to the project root, named as it would be in the
+   *     artifact's zip file, i.e. with a trailing slash for directories.
+   */
+  public abstract String getName();
+
+  /**
+   * @return the unix mode of the entry, as stored in the upper half of a zip entry's external
+   *     attributes.
+   */
+  public abstract long getMode();
+
+  /**
+   * @return the modification time of the entry, in milliseconds since the epoch.
+   */
+  public abstract long getTime();
+
+  /**
+   * @return the file holding the contents of the entry, or for a symlink its target. Absent for
+   *     directories.
+   */
+  public abstract Optional<Path> getSource();
+}
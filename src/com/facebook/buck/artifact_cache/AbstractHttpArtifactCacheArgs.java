@@ -38,7 +38,11 @@ interface AbstractNetworkCacheArgs {
   ProjectFilesystem getProjectFilesystem();
   BuckEventBus getBuckEventBus();
   ListeningExecutorService getHttpWriteExecutorService();
+  ListeningExecutorService getHttpFetchExecutorService();
+  boolean getMultiFetchEnabled();
   String getErrorTextTemplate();
   Optional<Long> getMaxStoreSizeBytes();
+  Optional<Long> getMaxUploadQueueBytes();
+  Optional<ArtifactMissCache> getMissCache();
   Optional<String> getThriftEndpointPath();
 }
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.artifact_cache;
 
+import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.BorrowablePath;
@@ -24,6 +25,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpService;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -33,8 +35,11 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 
 public abstract class AbstractNetworkCache implements ArtifactCache {
@@ -50,8 +55,12 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
   protected final ProjectFilesystem projectFilesystem;
   private final BuckEventBus buckEventBus;
   private final ListeningExecutorService httpWriteExecutorService;
+  private final ListeningExecutorService httpFetchExecutorService;
+  private final boolean multiFetchEnabled;
   private final String errorTextTemplate;
   private final Optional<Long> maxStoreSize;
+  private final UploadQueue uploadQueue;
+  private final Optional<ArtifactMissCache> missCache;
 
   private final Set<String> seenErrors = Sets.newConcurrentHashSet();
 
@@ -65,8 +74,16 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     this.projectFilesystem = args.getProjectFilesystem();
     this.buckEventBus = args.getBuckEventBus();
     this.httpWriteExecutorService = args.getHttpWriteExecutorService();
+    this.httpFetchExecutorService = args.getHttpFetchExecutorService();
+    this.multiFetchEnabled = args.getMultiFetchEnabled();
     this.errorTextTemplate = args.getErrorTextTemplate();
     this.maxStoreSize = args.getMaxStoreSizeBytes();
+    this.uploadQueue = new UploadQueue(
+        name,
+        httpWriteExecutorService,
+        args.getMaxUploadQueueBytes(),
+        buckEventBus);
+    this.missCache = args.getMissCache();
   }
 
   protected abstract CacheResult fetchImpl(
@@ -74,6 +91,17 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       LazyPath output,
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException;
 
+  /**
+   * Fetches all of {@code requests} in a single round trip. Only called on caches that were
+   * created with multi-fetch enabled, which must override it.
+   */
+  protected ImmutableList<CacheResult> multiFetchImpl(
+      ImmutableList<FetchRequest> requests,
+      ImmutableList<HttpArtifactCacheEvent.Finished.Builder> eventBuilders) throws IOException {
+    throw new UnsupportedOperationException(
+        String.format("%s does not support multi-fetch.", getClass().getSimpleName()));
+  }
+
   protected abstract void storeImpl(ArtifactInfo info,
       final Path file,
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder)
@@ -81,6 +109,14 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    if (missCache.isPresent()) {
+      boolean knownMiss = missCache.get().isKnownMiss(name, ruleKey);
+      buckEventBus.post(ArtifactMissCacheEvent.lookup(name, knownMiss));
+      if (knownMiss) {
+        return CacheResult.miss();
+      }
+    }
+
     HttpArtifactCacheEvent.Started startedEvent = HttpArtifactCacheEvent.newFetchStartedEvent(
         ImmutableSet.of(ruleKey));
     buckEventBus.post(startedEvent);
@@ -90,6 +126,9 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
 
     try {
       CacheResult result = fetchImpl(ruleKey, output, eventBuilder);
+      if (missCache.isPresent() && result.getType() == CacheResultType.MISS) {
+        missCache.get().recordMiss(name, ruleKey);
+      }
       buckEventBus.post(
           eventBuilder
               .setFetchResult(result)
@@ -107,6 +146,84 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Each fetch costs a round trip to the server, so the fetches in a batch are sent in a single
+   * request if the cache supports it, or else issued concurrently on the fetch executor instead of
+   * one after the other.
+   */
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    if (multiFetchEnabled && requests.size() > 1) {
+      return batchedMultiFetch(requests);
+    }
+    List<ListenableFuture<CacheResult>> results =
+        Lists.newArrayListWithExpectedSize(requests.size());
+    for (final FetchRequest request : requests) {
+      results.add(
+          httpFetchExecutorService.submit(
+              () -> fetch(request.getRuleKey(), request.getOutput())));
+    }
+    return ImmutableList.copyOf(Futures.getUnchecked(Futures.allAsList(results)));
+  }
+
+  private ImmutableList<CacheResult> batchedMultiFetch(ImmutableList<FetchRequest> requests) {
+    CacheResult[] results = new CacheResult[requests.size()];
+    List<Integer> pending = Lists.newArrayListWithExpectedSize(requests.size());
+    ImmutableList.Builder<FetchRequest> pendingRequests = ImmutableList.builder();
+    ImmutableList.Builder<HttpArtifactCacheEvent.Finished.Builder> eventBuilders =
+        ImmutableList.builder();
+    for (int i = 0; i < requests.size(); i++) {
+      RuleKey ruleKey = requests.get(i).getRuleKey();
+      if (missCache.isPresent()) {
+        boolean knownMiss = missCache.get().isKnownMiss(name, ruleKey);
+        buckEventBus.post(ArtifactMissCacheEvent.lookup(name, knownMiss));
+        if (knownMiss) {
+          results[i] = CacheResult.miss();
+          continue;
+        }
+      }
+      HttpArtifactCacheEvent.Started startedEvent = HttpArtifactCacheEvent.newFetchStartedEvent(
+          ImmutableSet.of(ruleKey));
+      buckEventBus.post(startedEvent);
+      eventBuilders.add(
+          HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent)
+              .setRuleKeys(Lists.newArrayList(ruleKey)));
+      pendingRequests.add(requests.get(i));
+      pending.add(i);
+    }
+    if (pending.isEmpty()) {
+      return ImmutableList.copyOf(results);
+    }
+
+    ImmutableList<HttpArtifactCacheEvent.Finished.Builder> builders = eventBuilders.build();
+    ImmutableList<CacheResult> batchResults;
+    Optional<String> errorMessage = Optional.empty();
+    try {
+      batchResults = multiFetchImpl(pendingRequests.build(), builders);
+    } catch (IOException e) {
+      String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+      reportFailure(e, "multiFetch(%d rule keys): %s", pending.size(), msg);
+      batchResults = ImmutableList.copyOf(
+          Collections.nCopies(pending.size(), CacheResult.error(name, msg)));
+      errorMessage = Optional.of(msg);
+    }
+
+    for (int i = 0; i < pending.size(); i++) {
+      int index = pending.get(i);
+      CacheResult result = batchResults.get(i);
+      results[index] = result;
+      if (missCache.isPresent() && result.getType() == CacheResultType.MISS) {
+        missCache.get().recordMiss(name, requests.get(index).getRuleKey());
+      }
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder = builders.get(i).setFetchResult(result);
+      if (errorMessage.isPresent()) {
+        eventBuilder.setErrorMessage(errorMessage.get());
+      }
+      buckEventBus.post(eventBuilder.build());
+    }
+    return ImmutableList.copyOf(results);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       final ArtifactInfo info,
@@ -115,62 +232,99 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    if (missCache.isPresent()) {
+      missCache.get().forget(name, info.getRuleKeys());
+    }
+
+    Optional<ListenableFuture<Void>> upload;
+    try {
+      upload = uploadQueue.submit(
+          info.getRuleKeys(),
+          projectFilesystem.getFileSize(output.getPath()),
+          () -> prepareUpload(info, output));
+    } catch (IOException e) {
+      LOG.error(e, "Failed to store artifact in temp file: " + output.getPath().toString());
+      return Futures.immediateFuture(null);
+    }
+    return upload.orElse(Futures.immediateFuture(null));
+  }
+
+  private Runnable prepareUpload(
+      final ArtifactInfo info,
+      final BorrowablePath output) throws IOException {
+    final Path tmp = getPathForArtifact(output);
+
     final HttpArtifactCacheEvent.Scheduled scheduled =
         HttpArtifactCacheEvent.newStoreScheduledEvent(
             ArtifactCacheEvent.getTarget(info.getMetadata()), info.getRuleKeys());
     buckEventBus.post(scheduled);
 
-    final Path tmp;
+    // HTTP Store operations are asynchronous.
+    return () -> {
+      try {
+        upload(info, tmp, scheduled);
+      } finally {
+        try {
+          projectFilesystem.deleteFileAtPathIfExists(tmp);
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to delete file %s", tmp);
+        }
+      }
+    };
+  }
+
+  private void upload(
+      ArtifactInfo info,
+      Path tmp,
+      HttpArtifactCacheEvent.Scheduled scheduled) {
+    HttpArtifactCacheEvent.Started startedEvent =
+        HttpArtifactCacheEvent.newStoreStartedEvent(scheduled);
+    postUnlessClosed(startedEvent);
+    HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
+        HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent)
+            .setRuleKeys(info.getRuleKeys());
+
     try {
-      tmp = getPathForArtifact(output);
+      if (!isArtefactTooBigToBeStored(tmp, maxStoreSize, projectFilesystem)) {
+        storeImpl(info, tmp, finishedEventBuilder);
+        if (missCache.isPresent()) {
+          // Fetches made while the upload was in progress may have missed again.
+          missCache.get().forget(name, info.getRuleKeys());
+        }
+      } else {
+        LOG.info("Artifact too big so not storing it in the distributed cache. " +
+            "file=[%s] buildTarget=[%s]",
+            tmp,
+            info.getBuildTarget());
+      }
+      postUnlessClosed(finishedEventBuilder.build());
+
     } catch (IOException e) {
-      LOG.error(e, "Failed to store artifact in temp file: " + output.getPath().toString());
-      return Futures.immediateFuture(null);
+      reportFailure(
+          e,
+          "store(%s): %s: %s",
+          info.getRuleKeys(),
+          e.getClass().getName(),
+          e.getMessage());
+
+      postUnlessClosed(
+          finishedEventBuilder
+              .setWasUploadSuccessful(false)
+              .setErrorMessage(e.toString())
+              .build());
     }
+  }
 
-    // HTTP Store operations are asynchronous.
-    return httpWriteExecutorService.submit(
-        () -> {
-          HttpArtifactCacheEvent.Started startedEvent =
-              HttpArtifactCacheEvent.newStoreStartedEvent(scheduled);
-          buckEventBus.post(startedEvent);
-          HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
-              HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent)
-                  .setRuleKeys(info.getRuleKeys());
-
-          try {
-            if (!isArtefactTooBigToBeStored(tmp, maxStoreSize, projectFilesystem)) {
-              storeImpl(info, tmp, finishedEventBuilder);
-            } else {
-              LOG.info("Artifact too big so not storing it in the distributed cache. " +
-                  "file=[%s] buildTarget=[%s]",
-                  tmp,
-                  info.getBuildTarget());
-            }
-            buckEventBus.post(finishedEventBuilder.build());
-
-          } catch (IOException e) {
-            reportFailure(
-                e,
-                "store(%s): %s: %s",
-                info.getRuleKeys(),
-                e.getClass().getName(),
-                e.getMessage());
-
-            buckEventBus.post(
-                finishedEventBuilder
-                    .setWasUploadSuccessful(false)
-                    .setErrorMessage(e.toString())
-                    .build());
-          }
-          try {
-            projectFilesystem.deleteFileAtPathIfExists(tmp);
-          } catch (IOException e) {
-            LOG.warn(e, "Failed to delete file %s", tmp);
-          }
-        },
-        /* result */ null
-    );
+  /**
+   * Uploads left to drain in the background may still be running after the command that stored
+   * them has closed its event bus, in which case their events are dropped.
+   */
+  private void postUnlessClosed(BuckEvent event) {
+    try {
+      buckEventBus.post(event);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Dropping %s, the event bus has been closed.", event);
+    }
   }
 
   @Override
@@ -181,7 +335,13 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
   @Override
   public void close() {
     fetchClient.close();
-    storeClient.close();
+    if (httpWriteExecutorService.isTerminated()) {
+      // Uploads that were still waiting when the executor was shut down will never run.
+      storeClient.close();
+    } else {
+      // Uploads may still be draining after the command has returned.
+      uploadQueue.runWhenDrained(storeClient::close);
+    }
   }
 
   /// depending on if we can borrow the output or not, we will either use output directly or
@@ -209,7 +369,7 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
 
   private void reportFailureToEvenBus(String format, Object... args) {
     if (seenErrors.add(format)) {
-      buckEventBus.post(ConsoleEvent.warning(
+      postUnlessClosed(ConsoleEvent.warning(
           errorTextTemplate
               .replaceAll("\\{cache_name}",
                   Matcher.quoteReplacement(name))
@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 
 public interface ArtifactCache extends AutoCloseable {
@@ -34,6 +35,16 @@ public interface ArtifactCache extends AutoCloseable {
    */
   CacheResult fetch(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch a batch of cached artifacts. This behaves like calling {@link #fetch(RuleKey, LazyPath)}
+   * for every request, but lets caches that pay a round trip per lookup answer the whole batch at
+   * once.
+   *
+   * @param requests the keys to fetch, and the paths to store each artifact to.
+   * @return one result per request, in the same order as {@code requests}.
+   */
+  ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests);
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
@@ -55,6 +55,7 @@ public class ArtifactCacheBuckConfig {
   private static final String HTTP_WRITE_HEADERS_FIELD_NAME = "http_write_headers";
   private static final String HTTP_CACHE_ERROR_MESSAGE_NAME = "http_error_message_format";
   private static final String HTTP_MAX_STORE_SIZE = "http_max_store_size";
+  private static final String HTTP_MULTI_FETCH_FIELD_NAME = "http_multi_fetch";
   private static final String HTTP_THREAD_POOL_SIZE = "http_thread_pool_size";
   private static final String HTTP_THREAD_POOL_KEEP_ALIVE_DURATION_MILLIS =
       "http_thread_pool_keep_alive_duration_millis";
@@ -66,8 +67,12 @@ public class ArtifactCacheBuckConfig {
       HTTP_READ_HEADERS_FIELD_NAME,
       HTTP_WRITE_HEADERS_FIELD_NAME,
       HTTP_CACHE_ERROR_MESSAGE_NAME,
-      HTTP_MAX_STORE_SIZE);
+      HTTP_MAX_STORE_SIZE,
+      HTTP_MULTI_FETCH_FIELD_NAME);
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
+  private static final String MAX_FETCH_BATCH_SIZE = "max_fetch_batch_size";
+  private static final String HEDGED_FETCHES_ENABLED = "hedged_fetches";
+  private static final String HEDGED_FETCH_DELAY_PERCENTILE = "hedged_fetch_delay_percentile";
 
   // List of names of cache-* sections that contain the fields above. This is used to emulate
   // dicts, essentially.
@@ -81,6 +86,7 @@ public class ArtifactCacheBuckConfig {
   private static final String DEFAULT_HTTP_CACHE_ERROR_MESSAGE =
       "{cache_name} cache encountered an error: {error_message}";
   private static final int DEFAULT_HTTP_MAX_FETCH_RETRIES = 2;
+  private static final int DEFAULT_MAX_FETCH_BATCH_SIZE = 1;
 
   private static final String SERVED_CACHE_ENABLED_FIELD_NAME = "serve_local_cache";
   private static final String DEFAULT_SERVED_CACHE_MODE = CacheReadMode.readonly.name();
@@ -150,12 +156,67 @@ public class ArtifactCacheBuckConfig {
             DEFAULT_HTTP_MAX_CONCURRENT_WRITES));
   }
 
+  public Optional<Long> getHttpMaxUploadQueueBytes() {
+    return buckConfig.getValue(CACHE_SECTION_NAME, "http_max_upload_queue_size")
+        .map(SizeUnit::parseBytes);
+  }
+
+  public boolean getHttpDrainUploadsInBackground() {
+    return buckConfig.getBooleanValue(
+        CACHE_SECTION_NAME,
+        "http_drain_uploads_in_background",
+        false);
+  }
+
+  public long getHttpMissCacheTtlSeconds() {
+    return buckConfig.getLong(CACHE_SECTION_NAME, "http_miss_cache_ttl_seconds").orElse(0L);
+  }
+
+  public boolean getHttpMissCacheOnDisk() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, "http_miss_cache_on_disk", false);
+  }
+
   public int getHttpWriterShutdownTimeout() {
     return Integer.valueOf(
         buckConfig.getValue(CACHE_SECTION_NAME, "http_writer_shutdown_timeout_seconds").orElse(
             DEFAULT_HTTP_WRITE_SHUTDOWN_TIMEOUT_SECONDS));
   }
 
+  /**
+   * @return the maximum number of rule key lookups the build engine should send to the cache in a
+   *     single {@link ArtifactCache#multiFetch} call. A value of 1 disables batching.
+   */
+  public int getMaxFetchBatchSize() {
+    return Math.max(
+        1,
+        buckConfig.getInteger(CACHE_SECTION_NAME, MAX_FETCH_BATCH_SIZE)
+            .orElse(DEFAULT_MAX_FETCH_BATCH_SIZE));
+  }
+
+  /**
+   * @return whether a fetch may query the next cache before the ones ahead of it have answered.
+   */
+  public boolean getHedgedFetchesEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, HEDGED_FETCHES_ENABLED, false);
+  }
+
+  /**
+   * @return the percentile of a cache's fetch latencies after which a hedged fetch also queries
+   *     the next cache. 0 queries all of them at once.
+   */
+  public int getHedgedFetchDelayPercentile() {
+    int percentile =
+        buckConfig.getInteger(CACHE_SECTION_NAME, HEDGED_FETCH_DELAY_PERCENTILE).orElse(0);
+    if (percentile < 0 || percentile > 100) {
+      throw new HumanReadableException(
+          "%s.%s must be between 0 and 100, got %d.",
+          CACHE_SECTION_NAME,
+          HEDGED_FETCH_DELAY_PERCENTILE,
+          percentile);
+    }
+    return percentile;
+  }
+
   public int getMaxFetchRetries() {
     return buckConfig.getInteger(CACHE_SECTION_NAME, HTTP_MAX_FETCH_RETRIES).orElse(
         DEFAULT_HTTP_MAX_FETCH_RETRIES);
@@ -207,6 +268,10 @@ public class ArtifactCacheBuckConfig {
         .setCacheDir(getCacheDir())
         .setCacheReadMode(getDirCacheReadMode())
         .setMaxSizeBytes(getCacheDirMaxSizeBytes())
+        .setContentAddressed(getDirCacheContentAddressed())
+        .setHardlinkHits(getDirCacheHardlinkHits())
+        .setTrimHighWatermark(getDirCacheTrimHighWatermark())
+        .setTrimLowWatermark(getDirCacheTrimLowWatermark())
         .build();
   }
 
@@ -280,6 +345,31 @@ public class ArtifactCacheBuckConfig {
     return buckConfig.getValue(CACHE_SECTION_NAME, "dir_max_size").map(SizeUnit::parseBytes);
   }
 
+  private boolean getDirCacheContentAddressed() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, "dir_content_addressed", false);
+  }
+
+  private boolean getDirCacheHardlinkHits() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, "dir_hardlink_hits", false);
+  }
+
+  private float getDirCacheTrimHighWatermark() {
+    return buckConfig.getFloat(CACHE_SECTION_NAME, "dir_trim_high_watermark")
+        .orElse(DirArtifactCache.DEFAULT_TRIM_HIGH_WATERMARK);
+  }
+
+  private float getDirCacheTrimLowWatermark() {
+    float lowWatermark = buckConfig.getFloat(CACHE_SECTION_NAME, "dir_trim_low_watermark")
+        .orElse(DirArtifactCache.DEFAULT_TRIM_LOW_WATERMARK);
+    if (lowWatermark > getDirCacheTrimHighWatermark()) {
+      throw new HumanReadableException(
+          "%s.dir_trim_low_watermark must not be greater than %s.dir_trim_high_watermark",
+          CACHE_SECTION_NAME,
+          CACHE_SECTION_NAME);
+    }
+    return lowWatermark;
+  }
+
   private boolean getServingLocalCacheEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, SERVED_CACHE_ENABLED_FIELD_NAME, false);
   }
@@ -352,6 +442,8 @@ public class ArtifactCacheBuckConfig {
             HTTP_CACHE_ERROR_MESSAGE_NAME,
             DEFAULT_HTTP_CACHE_ERROR_MESSAGE));
     builder.setMaxStoreSize(buckConfig.getLong(section, HTTP_MAX_STORE_SIZE));
+    builder.setMultiFetch(
+        buckConfig.getBooleanValue(section, HTTP_MULTI_FETCH_FIELD_NAME, false));
     return builder.build();
   }
 
@@ -392,6 +484,26 @@ public class ArtifactCacheBuckConfig {
     public abstract Path getCacheDir();
     public abstract Optional<Long> getMaxSizeBytes();
     public abstract CacheReadMode getCacheReadMode();
+
+    @Value.Default
+    public boolean isContentAddressed() {
+      return false;
+    }
+
+    @Value.Default
+    public boolean isHardlinkHits() {
+      return false;
+    }
+
+    @Value.Default
+    public float getTrimHighWatermark() {
+      return DirArtifactCache.DEFAULT_TRIM_HIGH_WATERMARK;
+    }
+
+    @Value.Default
+    public float getTrimLowWatermark() {
+      return DirArtifactCache.DEFAULT_TRIM_LOW_WATERMARK;
+    }
   }
 
   @Value.Immutable
@@ -406,6 +518,7 @@ public class ArtifactCacheBuckConfig {
     protected abstract ImmutableSet<String> getBlacklistedWifiSsids();
     public abstract String getErrorMessageFormat();
     public abstract Optional<Long> getMaxStoreSize();
+    public abstract boolean getMultiFetch();
 
     public boolean isWifiUsableForDistributedCache(Optional<String> currentWifiSsid) {
       if (currentWifiSsid.isPresent() &&
@@ -27,16 +27,22 @@ import com.facebook.buck.slb.RetryingHttpService;
 import com.facebook.buck.slb.SingleUriService;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.ConnectionPool;
@@ -66,6 +72,17 @@ public class ArtifactCaches {
 
   private static final NetworkCacheFactory THRIFT_PROTOCOL = ThriftArtifactCache::new;
 
+  // Each hedged fetch blocks a thread on the cache it asks. The threads are shared by every
+  // MultiArtifactCache in the process, rather than started again for each command.
+  private static final Supplier<ListeningExecutorService> HEDGED_FETCH_EXECUTOR =
+      Suppliers.memoize(
+          () -> MoreExecutors.listeningDecorator(
+              Executors.newCachedThreadPool(
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("MultiArtifactCache.HedgedFetch-%d")
+                      .setDaemon(true)
+                      .build())));
+
   private ArtifactCaches() {
   }
 
@@ -93,7 +110,32 @@ public class ArtifactCaches {
       BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
-      ListeningExecutorService httpWriteExecutorService) {
+      ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService) {
+    return newInstance(
+        buckConfig,
+        buckEventBus,
+        projectFilesystem,
+        wifiSsid,
+        httpWriteExecutorService,
+        httpFetchExecutorService,
+        /* missCache */ Optional.empty());
+  }
+
+  /**
+   * Creates a new instance of the cache for use during a build.
+   *
+   * @param missCache remembers the recent misses of the network caches, typically across builds.
+   * @return a cache
+   */
+  public static ArtifactCache newInstance(
+      ArtifactCacheBuckConfig buckConfig,
+      BuckEventBus buckEventBus,
+      ProjectFilesystem projectFilesystem,
+      Optional<String> wifiSsid,
+      ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService,
+      Optional<ArtifactMissCache> missCache) {
     ArtifactCacheConnectEvent.Started started = ArtifactCacheConnectEvent.started();
     buckEventBus.post(started);
     ArtifactCache artifactCache = newInstanceInternal(
@@ -101,7 +143,9 @@ public class ArtifactCaches {
         buckEventBus,
         projectFilesystem,
         wifiSsid,
-        httpWriteExecutorService);
+        httpWriteExecutorService,
+        httpFetchExecutorService,
+        missCache);
     buckEventBus.post(ArtifactCacheConnectEvent.finished(started));
     return artifactCache;
   }
@@ -116,18 +160,42 @@ public class ArtifactCaches {
   public static Optional<ArtifactCache> newServedCache(
       ArtifactCacheBuckConfig buckConfig,
       final ProjectFilesystem projectFilesystem) {
+    // The server only reads what it fetches before deleting it, so linking hits is always safe.
     return buckConfig.getServedLocalCache().map(input -> createDirArtifactCache(
         Optional.empty(),
-        input,
+        input.withHardlinkHits(true),
         projectFilesystem));
   }
 
+  /**
+   * Creates the cache of network cache misses described by the config, if it enables one.
+   */
+  public static Optional<ArtifactMissCache> newMissCache(
+      ArtifactCacheBuckConfig buckConfig,
+      ProjectFilesystem projectFilesystem) {
+    long ttlMillis = TimeUnit.SECONDS.toMillis(buckConfig.getHttpMissCacheTtlSeconds());
+    if (ttlMillis <= 0) {
+      return Optional.empty();
+    }
+    if (!buckConfig.getHttpMissCacheOnDisk()) {
+      return Optional.of(new ArtifactMissCache(new DefaultClock(), ttlMillis, Optional.empty()));
+    }
+    return Optional.of(
+        ArtifactMissCache.load(
+            new DefaultClock(),
+            ttlMillis,
+            projectFilesystem.resolve(
+                projectFilesystem.getBuckPaths().getRemoteCacheMissesFile())));
+  }
+
   private static ArtifactCache newInstanceInternal(
       ArtifactCacheBuckConfig buckConfig,
       BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
-      ListeningExecutorService httpWriteExecutorService) {
+      ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService,
+      Optional<ArtifactMissCache> missCache) {
     ImmutableSet<ArtifactCacheBuckConfig.ArtifactCacheMode> modes =
         buckConfig.getArtifactCacheModes();
     if (modes.isEmpty()) {
@@ -150,6 +218,8 @@ public class ArtifactCaches {
               projectFilesystem,
               wifiSsid,
               httpWriteExecutorService,
+              httpFetchExecutorService,
+              missCache,
               builder,
               HTTP_PROTOCOL);
           break;
@@ -161,6 +231,8 @@ public class ArtifactCaches {
               projectFilesystem,
               wifiSsid,
               httpWriteExecutorService,
+              httpFetchExecutorService,
+              missCache,
               builder,
               THRIFT_PROTOCOL);
           break;
@@ -173,7 +245,12 @@ public class ArtifactCaches {
       // Don't bother wrapping a single artifact cache in MultiArtifactCache.
       result = artifactCaches.get(0);
     } else {
-      result = new MultiArtifactCache(artifactCaches);
+      result = new MultiArtifactCache(
+          artifactCaches,
+          buckConfig.getHedgedFetchesEnabled() ?
+              Optional.of(HEDGED_FETCH_EXECUTOR.get()) :
+              Optional.empty(),
+          buckConfig.getHedgedFetchDelayPercentile());
     }
 
     // Always support reading two-level cache stores (in case we performed any in the past).
@@ -194,6 +271,8 @@ public class ArtifactCaches {
       ProjectFilesystem projectFilesystem,
       Optional<String> wifiSsid,
       ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService,
+      Optional<ArtifactMissCache> missCache,
       ImmutableList.Builder<ArtifactCache> builder,
       NetworkCacheFactory factory) {
     for (HttpCacheEntry cacheEntry : buckConfig.getHttpCaches()) {
@@ -208,6 +287,8 @@ public class ArtifactCaches {
               buckEventBus,
               projectFilesystem,
               httpWriteExecutorService,
+              httpFetchExecutorService,
+              missCache,
               buckConfig,
               factory));
     }
@@ -224,7 +305,13 @@ public class ArtifactCaches {
           projectFilesystem,
           cacheDir,
           dirCacheConfig.getCacheReadMode().isDoStore(),
-          dirCacheConfig.getMaxSizeBytes());
+          dirCacheConfig.getMaxSizeBytes(),
+          dirCacheConfig.isContentAddressed(),
+          dirCacheConfig.isHardlinkHits(),
+          dirCacheConfig.getTrimHighWatermark(),
+          dirCacheConfig.getTrimLowWatermark(),
+          MostExecutors.newSingleThreadExecutor(
+              new CommandThreadFactory("DirArtifactCache.Trim")));
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -248,6 +335,8 @@ public class ArtifactCaches {
       final BuckEventBus buckEventBus,
       ProjectFilesystem projectFilesystem,
       ListeningExecutorService httpWriteExecutorService,
+      ListeningExecutorService httpFetchExecutorService,
+      Optional<ArtifactMissCache> missCache,
       ArtifactCacheBuckConfig config,
       NetworkCacheFactory factory) {
 
@@ -342,7 +431,12 @@ public class ArtifactCaches {
             .setProjectFilesystem(projectFilesystem)
             .setBuckEventBus(buckEventBus)
             .setHttpWriteExecutorService(httpWriteExecutorService)
+            .setHttpFetchExecutorService(httpFetchExecutorService)
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
+            .setMaxUploadQueueBytes(config.getHttpMaxUploadQueueBytes())
+            .setMissCache(missCache)
+            // Only the http protocol defines a batched fetch.
+            .setMultiFetchEnabled(cacheDescription.getMultiFetch() && factory == HTTP_PROTOCOL)
             .build());
   }
 
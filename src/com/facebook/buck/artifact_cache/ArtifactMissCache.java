@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.timing.Clock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which rule keys network caches recently didn't have, so that they aren't asked for
+ * them again until a while later. The rule keys of rules that were just changed locally miss on
+ * every build until they get uploaded, and each of those misses costs a round trip.
+ * <p>
+ * An instance is meant to be kept by the daemon across commands, and can be saved to disk for the
+ * next process to pick up. A rule key is forgotten as soon as it is stored to the cache it missed
+ * in. At most {@link #DEFAULT_MAX_ENTRIES} misses are kept, and expired ones are dropped on every
+ * {@link #save()}.
+ */
+public class ArtifactMissCache {
+
+  private static final Logger LOG = Logger.get(ArtifactMissCache.class);
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').limit(3);
+  // Each miss takes about a hundred bytes, so this bounds the daemon's memory to a few megabytes.
+  private static final long DEFAULT_MAX_ENTRIES = 50000;
+
+  private final Clock clock;
+  private final long ttlMillis;
+  private final Optional<Path> savePath;
+  // Keyed by rule key and cache name, to the time at which the miss should be forgotten.
+  private final ConcurrentMap<String, Long> expirationMillis;
+
+  /**
+   * @param ttlMillis how long a miss is remembered for.
+   * @param savePath absolute path of the file to {@link #save()} misses to, if any.
+   */
+  public ArtifactMissCache(Clock clock, long ttlMillis, Optional<Path> savePath) {
+    this(clock, ttlMillis, savePath, DEFAULT_MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  ArtifactMissCache(Clock clock, long ttlMillis, Optional<Path> savePath, long maxEntries) {
+    this.clock = clock;
+    this.ttlMillis = ttlMillis;
+    this.savePath = savePath;
+    this.expirationMillis = CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .<String, Long>build()
+        .asMap();
+  }
+
+  /**
+   * Creates an instance holding the misses that were saved to {@code savePath} and haven't expired
+   * since.
+   */
+  public static ArtifactMissCache load(Clock clock, long ttlMillis, Path savePath) {
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, ttlMillis, Optional.of(savePath));
+    long now = clock.currentTimeMillis();
+    try (BufferedReader reader = Files.newBufferedReader(savePath, Charsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> fields = FIELD_SPLITTER.splitToList(line);
+        if (fields.size() != 3) {
+          continue;
+        }
+        long expiration = Long.parseLong(fields.get(0));
+        // Never trust an expiration further out than the current TTL allows.
+        if (expiration > now && expiration <= now + ttlMillis) {
+          missCache.expirationMillis.put(key(fields.get(2), fields.get(1)), expiration);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing was saved yet.
+    } catch (IOException | NumberFormatException e) {
+      LOG.warn(e, "Failed to load remote cache misses from %s.", savePath);
+      missCache.expirationMillis.clear();
+    }
+    return missCache;
+  }
+
+  /**
+   * @return whether {@code ruleKey} missed in the cache named {@code cacheName} recently.
+   */
+  public boolean isKnownMiss(String cacheName, RuleKey ruleKey) {
+    String key = key(cacheName, ruleKey.toString());
+    Long expiration = expirationMillis.get(key);
+    if (expiration == null) {
+      return false;
+    }
+    if (expiration <= clock.currentTimeMillis()) {
+      expirationMillis.remove(key, expiration);
+      return false;
+    }
+    return true;
+  }
+
+  public void recordMiss(String cacheName, RuleKey ruleKey) {
+    expirationMillis.put(key(cacheName, ruleKey.toString()), clock.currentTimeMillis() + ttlMillis);
+  }
+
+  /**
+   * Forgets that {@code ruleKeys} missed in the cache named {@code cacheName}, as they are being
+   * stored to it.
+   */
+  public void forget(String cacheName, Iterable<RuleKey> ruleKeys) {
+    for (RuleKey ruleKey : ruleKeys) {
+      expirationMillis.remove(key(cacheName, ruleKey.toString()));
+    }
+  }
+
+  /**
+   * Drops the misses that have expired, then writes the rest to the save path, if there is one.
+   */
+  public void save() throws IOException {
+    long now = clock.currentTimeMillis();
+    expirationMillis.values().removeIf(expiration -> expiration <= now);
+    if (!savePath.isPresent()) {
+      return;
+    }
+
+    Path tmp = savePath.get().resolveSibling(savePath.get().getFileName() + ".tmp");
+    Files.createDirectories(savePath.get().getParent());
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, Charsets.UTF_8)) {
+      for (Map.Entry<String, Long> entry : expirationMillis.entrySet()) {
+        writer.write(entry.getValue() + " " + entry.getKey());
+        writer.newLine();
+      }
+    }
+    Files.move(tmp, savePath.get(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return expirationMillis.size();
+  }
+
+  private static String key(String cacheName, String ruleKey) {
+    // Rule keys never contain spaces, unlike cache names, so they go first.
+    return ruleKey + " " + cacheName;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.EventKey;
+
+/**
+ * Posted each time a network cache consults its {@link ArtifactMissCache} before a fetch.
+ */
+public class ArtifactMissCacheEvent extends AbstractBuckEvent {
+
+  private final String cacheName;
+  private final boolean knownMiss;
+
+  private ArtifactMissCacheEvent(String cacheName, boolean knownMiss) {
+    super(EventKey.unique());
+    this.cacheName = cacheName;
+    this.knownMiss = knownMiss;
+  }
+
+  public static ArtifactMissCacheEvent lookup(String cacheName, boolean knownMiss) {
+    return new ArtifactMissCacheEvent(cacheName, knownMiss);
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return whether the rule key was a known miss, in which case the cache wasn't asked for it.
+   */
+  public boolean isKnownMiss() {
+    return knownMiss;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format("%s: %s", cacheName, knownMiss ? "known miss" : "lookup");
+  }
+
+  @Override
+  public String getEventName() {
+    return "ArtifactMissCacheLookup";
+  }
+}
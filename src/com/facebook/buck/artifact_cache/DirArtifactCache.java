@@ -18,24 +18,38 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.MorePosixFilePermissions;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.DirectoryCleaner;
-import com.facebook.buck.util.DirectoryCleanerArgs;
+import com.facebook.buck.zip.CustomZipEntry;
+import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -43,27 +57,42 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DirArtifactCache implements ArtifactCache {
 
   private static final Logger LOG = Logger.get(DirArtifactCache.class);
-  // Ratio of bytes stored to max size that expresses how many bytes need to be stored after we
-  // attempt to delete old files.
-  private static final float STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER = 0.5f;
-  // How much of the max size to leave if we decide to delete old files.
-  private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
+  // How much of the max size the cache may take up before old files get deleted.
+  public static final float DEFAULT_TRIM_HIGH_WATERMARK = 1f;
+  // How much of the max size to leave when deleting old files.
+  public static final float DEFAULT_TRIM_LOW_WATERMARK = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String INDEX_FILE = "index";
+  private static final String ENTRIES_EXTENSION = ".entries";
+  private static final String BLOBS_DIR = "cas";
+  private static final String EXECUTABLE_BLOB_SUFFIX = "x";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final boolean doStore;
-  private long bytesSinceLastDeleteOldFiles;
+  private final boolean contentAddressed;
+  private final boolean hardlinkHits;
+  private final float trimHighWatermark;
+  private final float trimLowWatermark;
+  private final ExecutorService trimExecutor;
+  private final Optional<DirArtifactCacheIndex> index;
+  private final AtomicBoolean trimScheduled;
 
   public DirArtifactCache(
       String name,
@@ -72,17 +101,87 @@ public class DirArtifactCache implements ArtifactCache {
       boolean doStore,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        doStore,
+        maxCacheSizeBytes,
+        /* contentAddressed */ false,
+        /* hardlinkHits */ false);
+  }
+
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      boolean contentAddressed,
+      boolean hardlinkHits)
+      throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        doStore,
+        maxCacheSizeBytes,
+        contentAddressed,
+        hardlinkHits,
+        DEFAULT_TRIM_HIGH_WATERMARK,
+        DEFAULT_TRIM_LOW_WATERMARK,
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * @param contentAddressed store the files of each artifact once per distinct content, under
+   *     their hash, and only a list of its entries per rule key, rather than a zip per rule key.
+   * @param hardlinkHits hard link cached files into place on a hit rather than copying them. When
+   *     content addressed, this links build outputs, so it is only safe if nothing modifies them in
+   *     place. Otherwise only the fetched zip is linked.
+   * @param trimHighWatermark the fraction of {@code maxCacheSizeBytes} the cache may take up before
+   *     old files get deleted.
+   * @param trimLowWatermark the fraction of {@code maxCacheSizeBytes} to leave when deleting old
+   *     files.
+   * @param trimExecutor runs the deletion of old files. Owned by the cache, which shuts it down
+   *     when closed.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      boolean contentAddressed,
+      boolean hardlinkHits,
+      float trimHighWatermark,
+      float trimLowWatermark,
+      ExecutorService trimExecutor)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.doStore = doStore;
-    this.bytesSinceLastDeleteOldFiles = 0L;
+    this.contentAddressed = contentAddressed;
+    this.hardlinkHits = hardlinkHits;
+    this.trimHighWatermark = trimHighWatermark;
+    this.trimLowWatermark = trimLowWatermark;
+    this.trimExecutor = trimExecutor;
+    this.trimScheduled = new AtomicBoolean(false);
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
       filesystem.mkdirs(cacheDir);
     }
+
+    // Only a cache with a size limit ever needs to find its least recently used files.
+    this.index = maxCacheSizeBytes.isPresent() ?
+        Optional.of(
+            DirArtifactCacheIndex.load(
+                filesystem.resolve(getPathToIndex()),
+                filesystem.resolve(getPathToTempFolder()))) :
+        Optional.empty();
   }
 
   @Override
@@ -105,10 +204,20 @@ public class DirArtifactCache implements ArtifactCache {
         }
       }
 
-      // Now copy the artifact out.
-      filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      if (contentAddressed) {
+        result = CacheResult.hit(name, metadata.build(), fetchEntries(ruleKey, output));
+        recordAccess(getPathForRuleKey(ruleKey, Optional.of(ENTRIES_EXTENSION)));
+      } else {
+        // Now copy the artifact out.
+        Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+        if (!hardlinkHits || !tryLinkArtifact(artifactPath, output.get())) {
+          filesystem.copyFile(artifactPath, output.get());
+        }
 
-      result = CacheResult.hit(name, metadata.build(), filesystem.getFileSize(output.get()));
+        result = CacheResult.hit(name, metadata.build(), filesystem.getFileSize(output.get()));
+        recordAccess(getPathForRuleKey(ruleKey, Optional.empty()));
+      }
+      recordAccess(getPathForRuleKey(ruleKey, Optional.of(".metadata")));
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -128,6 +237,15 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      results.add(fetch(request.getRuleKey(), request.getOutput()));
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -139,8 +257,11 @@ public class DirArtifactCache implements ArtifactCache {
 
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
+      Optional<ImmutableList<ArtifactEntry>> storedEntries = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
-        Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+        Path artifactPath = getPathForRuleKey(
+            ruleKey,
+            contentAddressed ? Optional.of(ENTRIES_EXTENSION) : Optional.empty());
         Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
@@ -149,7 +270,12 @@ public class DirArtifactCache implements ArtifactCache {
 
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
-        if (!output.canBorrow()) {
+        if (contentAddressed) {
+          if (!storedEntries.isPresent()) {
+            storedEntries = Optional.of(storeBlobs(output.getPath()));
+          }
+          storeEntries(storedEntries.get(), artifactPath);
+        } else if (!output.canBorrow()) {
           storeArtifactOutput(output.getPath(), artifactPath);
         } else {
           // This branch means that we are apparently the only users of the `output`, so instead
@@ -157,12 +283,12 @@ public class DirArtifactCache implements ArtifactCache {
           // move it without copying.  This significantly optimizes the Disk I/O.
           if (!borrowedAndStoredArtifactPath.isPresent()) {
             borrowedAndStoredArtifactPath = Optional.of(artifactPath);
-            filesystem.move(output.getPath(), artifactPath, StandardCopyOption.REPLACE_EXISTING);
+            moveArtifactOutput(output.getPath(), artifactPath);
           } else {
             storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
           }
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+        recordStore(artifactPath);
 
         // Now, write the meta data artifact.
         Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
@@ -177,7 +303,7 @@ public class DirArtifactCache implements ArtifactCache {
             }
           }
           filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
+          recordStore(metadataPath);
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
@@ -191,20 +317,46 @@ public class DirArtifactCache implements ArtifactCache {
           output);
     }
 
-    if (maxCacheSizeBytes.isPresent() &&
-        bytesSinceLastDeleteOldFiles >
-            (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
-      bytesSinceLastDeleteOldFiles = 0L;
-      deleteOldFiles();
+    if (index.isPresent() &&
+        (!index.get().isComplete() || isOverHighWatermark()) &&
+        trimScheduled.compareAndSet(false, true)) {
+      trimExecutor.execute(
+          () -> {
+            try {
+              deleteOldFiles();
+            } finally {
+              trimScheduled.set(false);
+            }
+          });
     }
 
     return Futures.immediateFuture(null);
   }
 
+  private void recordStore(Path path) throws IOException {
+    if (index.isPresent()) {
+      index.get().recordStore(cacheDir.relativize(path), filesystem.getFileSize(path));
+    }
+  }
+
+  private void recordAccess(Path path) {
+    if (index.isPresent()) {
+      index.get().recordAccess(cacheDir.relativize(path));
+    }
+  }
+
+  private boolean isOverHighWatermark() {
+    return index.get().getTotalSizeBytes() > maxCacheSizeBytes.get() * trimHighWatermark;
+  }
+
   private Path getPathToTempFolder() {
     return cacheDir.resolve("tmp");
   }
 
+  private Path getPathToIndex() {
+    return cacheDir.resolve(INDEX_FILE);
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -237,6 +389,168 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  private Path getPathForBlob(String blobName) {
+    return cacheDir
+        .resolve(BLOBS_DIR)
+        .resolve(blobName.substring(0, 2))
+        .resolve(blobName.substring(2, 4))
+        .resolve(blobName);
+  }
+
+  /**
+   * Stores each file in the artifact zip under the hash of its contents, unless a file with the
+   * same contents is already stored.
+   *
+   * @return the entries of the artifact, pointing at the stored files.
+   */
+  private ImmutableList<ArtifactEntry> storeBlobs(Path artifactZip) throws IOException {
+    ImmutableList.Builder<ArtifactEntry> entries = ImmutableList.builder();
+    try (ZipFile zip = new ZipFile(filesystem.resolve(artifactZip).toFile())) {
+      Enumeration<ZipArchiveEntry> zipEntries = zip.getEntries();
+      while (zipEntries.hasMoreElements()) {
+        ZipArchiveEntry zipEntry = zipEntries.nextElement();
+        long mode = zipEntry.getExternalAttributes() >> 16;
+        if (zipEntry.isDirectory()) {
+          entries.add(
+              ArtifactEntry.of(zipEntry.getName(), mode, zipEntry.getTime(), Optional.empty()));
+          continue;
+        }
+
+        boolean isExecutable = MorePosixFilePermissions.fromMode(mode)
+            .contains(PosixFilePermission.OWNER_EXECUTE);
+        Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "blob", TMP_EXTENSION);
+        try {
+          HashCode hashCode;
+          try (InputStream in = zip.getInputStream(zipEntry);
+               HashingOutputStream out =
+                   new HashingOutputStream(Hashing.sha1(), filesystem.newFileOutputStream(tmp))) {
+            ByteStreams.copy(in, out);
+            hashCode = out.hash();
+          }
+          Path blobPath = getPathForBlob(
+              hashCode.toString() + (isExecutable ? EXECUTABLE_BLOB_SUFFIX : ""));
+          if (!filesystem.exists(blobPath)) {
+            // Blobs may be hard linked into place on a hit, so they are given the attributes the
+            // extracted file would have had.
+            filesystem.resolve(tmp).toFile().setLastModified(zipEntry.getTime());
+            if (isExecutable) {
+              MoreFiles.makeExecutable(filesystem.resolve(tmp));
+            }
+            filesystem.mkdirs(blobPath.getParent());
+            try {
+              filesystem.move(tmp, blobPath);
+            } catch (FileAlreadyExistsException e) {
+              // Another process stored the same contents first.
+            }
+          }
+          // A blob shared with earlier artifacts is now used by this one too, so it must not be
+          // the first to be evicted. Storing it again also indexes blobs stored by other processes.
+          recordStore(blobPath);
+          entries.add(
+              ArtifactEntry.of(
+                  zipEntry.getName(),
+                  mode,
+                  zipEntry.getTime(),
+                  Optional.of(filesystem.resolve(blobPath))));
+        } finally {
+          filesystem.deleteFileAtPathIfExists(tmp);
+        }
+      }
+    }
+    return entries.build();
+  }
+
+  private void storeEntries(
+      ImmutableList<ArtifactEntry> entries,
+      Path entriesPath) throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "entries", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(entries.size());
+        for (ArtifactEntry entry : entries) {
+          out.writeUTF(entry.getName());
+          out.writeLong(entry.getMode());
+          out.writeLong(entry.getTime());
+          out.writeUTF(entry.getSource().map(path -> path.getFileName().toString()).orElse(""));
+        }
+      }
+      filesystem.move(tmp, entriesPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /**
+   * Puts the entries stored for {@code ruleKey} in place, by staging them directly if the output
+   * allows it, or by rebuilding the artifact zip otherwise.
+   *
+   * @return the total size of the files in the artifact.
+   */
+  private long fetchEntries(RuleKey ruleKey, LazyPath output) throws IOException {
+    ImmutableList.Builder<ArtifactEntry> builder = ImmutableList.builder();
+    try (DataInputStream in =
+             new DataInputStream(
+                 filesystem.newFileInputStream(
+                     getPathForRuleKey(ruleKey, Optional.of(ENTRIES_EXTENSION))))) {
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        String entryName = in.readUTF();
+        long mode = in.readLong();
+        long time = in.readLong();
+        String blobName = in.readUTF();
+        builder.add(
+            ArtifactEntry.of(
+                entryName,
+                mode,
+                time,
+                blobName.isEmpty() ?
+                    Optional.empty() :
+                    Optional.of(filesystem.resolve(getPathForBlob(blobName)))));
+      }
+    }
+    ImmutableList<ArtifactEntry> entries = builder.build();
+
+    // Blobs are shared between rule keys, so one may have been cleaned up along with another key.
+    // Checking for all of them first turns that into a miss rather than a partial artifact.
+    long artifactSize = 0;
+    for (ArtifactEntry entry : entries) {
+      if (entry.getSource().isPresent()) {
+        artifactSize += Files.size(entry.getSource().get());
+      }
+    }
+
+    if (output instanceof StreamableLazyPath) {
+      StreamableLazyPath streamableOutput = (StreamableLazyPath) output;
+      try {
+        streamableOutput.stage(entries, hardlinkHits);
+        streamableOutput.commit();
+      } catch (IOException e) {
+        streamableOutput.discard();
+        throw e;
+      }
+    } else {
+      try (CustomZipOutputStream zip =
+               ZipOutputStreams.newOutputStream(filesystem.resolve(output.get()))) {
+        for (ArtifactEntry entry : entries) {
+          CustomZipEntry zipEntry = new CustomZipEntry(entry.getName());
+          zipEntry.setTime(entry.getTime());
+          zipEntry.setExternalAttributes(entry.getMode() << 16);
+          zip.putNextEntry(zipEntry);
+          if (entry.getSource().isPresent()) {
+            Files.copy(entry.getSource().get(), zip);
+          }
+          zip.closeEntry();
+        }
+      }
+    }
+    for (ArtifactEntry entry : entries) {
+      if (entry.getSource().isPresent()) {
+        recordAccess(getPathForBlob(entry.getSource().get().getFileName().toString()));
+      }
+    }
+    return artifactSize;
+  }
+
   private void storeArtifactOutput(Path output, Path artifactPath) throws IOException {
     // Write to a temporary file and move the file to its final location atomically to protect
     // against partial artifacts (whether due to buck interruption or filesystem failure) posing
@@ -245,12 +559,33 @@ public class DirArtifactCache implements ArtifactCache {
     try {
       filesystem.copyFile(output, tmp);
       filesystem.move(tmp, artifactPath);
-      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
     } finally {
       filesystem.deleteFileAtPathIfExists(tmp);
     }
   }
 
+  private void moveArtifactOutput(Path output, Path artifactPath) throws IOException {
+    try {
+      // Concurrent fetches must only ever see the previous artifact or the whole new one.
+      filesystem.move(output, artifactPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      // E.g. the output is on another device, where a move degrades to a visible copy.
+      storeArtifactOutput(output, artifactPath);
+    }
+  }
+
+  private boolean tryLinkArtifact(Path artifactPath, Path output) {
+    try {
+      filesystem.deleteFileAtPathIfExists(output);
+      Files.createLink(filesystem.resolve(output), filesystem.resolve(artifactPath));
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      // E.g. the cache is on a different device, or the filesystem doesn't support hard links.
+      LOG.debug(e, "Could not link %s to %s, copying it instead", output, artifactPath);
+      return false;
+    }
+  }
+
   /**
    * @return {@code true}: storing artifacts is always supported by this class.
    */
@@ -261,27 +596,81 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
-    // Do a cache clean up on exit only if cache was written to.
-    if (bytesSinceLastDeleteOldFiles > 0) {
+    trimExecutor.shutdown();
+    try {
+      trimExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (!index.isPresent()) {
+      return;
+    }
+    // Do a cache clean up on exit only if it is needed, but always keep the index up to date.
+    if (index.get().isComplete() && isOverHighWatermark()) {
       deleteOldFiles();
+    } else {
+      try {
+        index.get().flush();
+      } catch (IOException e) {
+        LOG.error(e, "Failed to write the index of [%s].", cacheDir);
+      }
     }
   }
 
   /**
-   * Deletes files that haven't been accessed recently from the directory cache.
+   * Deletes the least recently used files from the directory cache, if it has grown over its high
+   * watermark, until it is down to its low watermark.
    */
   @VisibleForTesting
   void deleteOldFiles() {
-    if (!maxCacheSizeBytes.isPresent()) {
+    if (!index.isPresent()) {
       return;
     }
 
-    Path cacheDirInFs = filesystem.resolve(cacheDir);
     try {
-      newDirectoryCleaner().clean(cacheDirInFs);
+      if (!index.get().isComplete()) {
+        // The only time the whole cache is walked: to index what was stored before the index.
+        indexUntrackedFiles();
+      }
+      if (isOverHighWatermark()) {
+        long maxBytesAfterDeletion = (long) (maxCacheSizeBytes.get() * trimLowWatermark);
+        ImmutableList<Path> evicted = index.get().evict(maxBytesAfterDeletion);
+        for (Path path : evicted) {
+          filesystem.deleteFileAtPathIfExists(cacheDir.resolve(path));
+        }
+        LOG.debug("Deleted %d old files from [%s].", evicted.size(), cacheDir);
+      }
+      index.get().flush();
     } catch (IOException e) {
-      LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
+      LOG.error(e, "Failed to clean path [%s].", cacheDir);
+    }
+  }
+
+  private void indexUntrackedFiles() throws IOException {
+    Path cacheDirInFs = filesystem.resolve(cacheDir);
+    List<DirectoryCleaner.PathStats> allStats = new ArrayList<>();
+    for (Path file : getAllFilesInCache()) {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        continue;
+      }
+      allStats.add(
+          new DirectoryCleaner.PathStats(
+              cacheDirInFs.relativize(file),
+              attributes.size(),
+              attributes.creationTime().toMillis(),
+              attributes.lastAccessTime().toMillis()));
+    }
+    allStats.sort(getDirectoryCleanerPathSelector()::comparePaths);
+
+    Map<Path, Long> filesToSizes = new LinkedHashMap<>();
+    for (DirectoryCleaner.PathStats stats : allStats) {
+      filesToSizes.put(stats.getPath(), stats.getTotalSizeBytes());
     }
+    index.get().addUntrackedFiles(filesToSizes);
   }
 
   @VisibleForTesting
@@ -297,7 +686,7 @@ public class DirArtifactCache implements ArtifactCache {
           public FileVisitResult preVisitDirectory(
               Path dir, BasicFileAttributes attrs) throws IOException {
             // do not work with files in temp folder as they will be moved later
-            if (dir.equals(getPathToTempFolder())) {
+            if (dir.equals(filesystem.resolve(getPathToTempFolder()))) {
               return FileVisitResult.SKIP_SUBTREE;
             }
             return super.preVisitDirectory(dir, attrs);
@@ -307,6 +696,9 @@ public class DirArtifactCache implements ArtifactCache {
           public FileVisitResult visitFile(
               Path file,
               BasicFileAttributes attrs) throws IOException {
+            if (file.equals(filesystem.resolve(getPathToIndex()))) {
+              return FileVisitResult.CONTINUE;
+            }
             allFiles.add(file);
             return super.visitFile(file, attrs);
           }
@@ -315,18 +707,6 @@ public class DirArtifactCache implements ArtifactCache {
     return allFiles;
   }
 
-  private DirectoryCleaner newDirectoryCleaner() {
-    DirectoryCleanerArgs cleanerArgs = DirectoryCleanerArgs.builder()
-        .setPathSelector(
-            getDirectoryCleanerPathSelector())
-        .setMaxTotalSizeBytes(maxCacheSizeBytes.get())
-        .setMaxBytesAfterDeletion((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO))
-        .setMinAmountOfEntriesToKeep(0)
-        .build();
-
-    return new DirectoryCleaner(cleanerArgs);
-  }
-
   @VisibleForTesting
   DirectoryCleaner.PathSelector getDirectoryCleanerPathSelector() {
     return new DirectoryCleaner.PathSelector() {
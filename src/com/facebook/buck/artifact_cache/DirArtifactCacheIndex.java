@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the size and last use of every file in a {@link DirArtifactCache}, so that the cache can
+ * be trimmed without walking its whole directory.
+ * <p>
+ * Files are kept in memory in least recently used order, which makes both recording a use and
+ * picking the files to delete cheap. The index is persisted as a log of changes, which is appended
+ * to as the cache is used and rewritten once it holds many more records than there are files.
+ * Each line of the log is one of:
+ * <ul>
+ *   <li>{@code A <size> <path>}: the file was stored.</li>
+ *   <li>{@code T <path>}: the file was used.</li>
+ *   <li>{@code D <path>}: the file was deleted.</li>
+ * </ul>
+ * Several processes may share a cache directory and so append to the same log. Each of them only
+ * sees what the others did up to the point it loaded the log, which at worst makes it delete
+ * files slightly out of order.
+ */
+class DirArtifactCacheIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+  // The log is rewritten once it holds this many records per file in the index.
+  private static final int RECORDS_PER_FILE_COMPACTION_TRIGGER = 4;
+  private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+  private final Path logPath;
+  private final Path tmpDir;
+  private final Object flushLock = new Object();
+
+  // In access order, so iterating starts from the least recently used file.
+  private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+  private List<String> pendingRecords = new ArrayList<>();
+  private long totalSizeBytes;
+  private long recordsInLog;
+  private boolean complete;
+  private boolean needsCompaction;
+
+  private DirArtifactCacheIndex(Path logPath, Path tmpDir, boolean complete) {
+    this.logPath = logPath;
+    this.tmpDir = tmpDir;
+    this.complete = complete;
+  }
+
+  /**
+   * @param logPath absolute path of the log of the index.
+   * @param tmpDir absolute path of a directory in which to rewrite the log.
+   */
+  public static DirArtifactCacheIndex load(Path logPath, Path tmpDir) throws IOException {
+    if (!Files.exists(logPath)) {
+      return new DirArtifactCacheIndex(logPath, tmpDir, /* complete */ false);
+    }
+
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(logPath, tmpDir, /* complete */ true);
+    try (BufferedReader reader = Files.newBufferedReader(logPath, Charsets.UTF_8)) {
+      String record;
+      while ((record = reader.readLine()) != null) {
+        index.apply(record);
+        index.recordsInLog++;
+      }
+    }
+    LOG.debug("Loaded %d files from %s.", index.sizes.size(), logPath);
+    return index;
+  }
+
+  /**
+   * @return whether the index knows about the files stored before it was created. Until it does,
+   *     {@link #addUntrackedFiles} should be called with the files already in the cache.
+   */
+  public synchronized boolean isComplete() {
+    return complete;
+  }
+
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  /**
+   * Adds the files the index doesn't know about yet, as less recently used than all the others.
+   *
+   * @param filesToSizes the files in the cache, relative to its directory, from the least recently
+   *     used.
+   */
+  public synchronized void addUntrackedFiles(Map<Path, Long> filesToSizes) {
+    LinkedHashMap<String, Long> known = new LinkedHashMap<>(sizes);
+    sizes.clear();
+    totalSizeBytes = 0;
+    for (Map.Entry<Path, Long> entry : filesToSizes.entrySet()) {
+      String path = entry.getKey().toString();
+      if (!known.containsKey(path)) {
+        add(path, entry.getValue());
+      }
+    }
+    for (Map.Entry<String, Long> entry : known.entrySet()) {
+      add(entry.getKey(), entry.getValue());
+    }
+    complete = true;
+    needsCompaction = true;
+  }
+
+  /**
+   * Records that a file, relative to the directory of the cache, was stored.
+   */
+  public synchronized void recordStore(Path file, long sizeBytes) {
+    String path = file.toString();
+    add(path, sizeBytes);
+    pendingRecords.add("A " + sizeBytes + " " + path);
+  }
+
+  /**
+   * Records that a file, relative to the directory of the cache, was used.
+   */
+  public synchronized void recordAccess(Path file) {
+    String path = file.toString();
+    if (sizes.get(path) != null) {
+      pendingRecords.add("T " + path);
+    }
+  }
+
+  /**
+   * Removes the least recently used files from the index until the files left in it take up no
+   * more than {@code maxSizeBytes}.
+   *
+   * @return the removed files, relative to the directory of the cache, which the caller should
+   *     delete.
+   */
+  public synchronized ImmutableList<Path> evict(long maxSizeBytes) {
+    ImmutableList.Builder<Path> evicted = ImmutableList.builder();
+    Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+      iterator.remove();
+      totalSizeBytes -= entry.getValue();
+      evicted.add(Paths.get(entry.getKey()));
+      pendingRecords.add("D " + entry.getKey());
+    }
+    return evicted.build();
+  }
+
+  /**
+   * Writes out the changes recorded since the last flush, rewriting the whole log instead if it
+   * has grown too large.
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      List<String> records;
+      boolean compact;
+      synchronized (this) {
+        if (!complete) {
+          // Writing a log would make the next load assume it covers every file in the cache.
+          pendingRecords.clear();
+          return;
+        }
+        recordsInLog += pendingRecords.size();
+        compact = needsCompaction ||
+            recordsInLog > Math.max(
+                MIN_RECORDS_BEFORE_COMPACTION,
+                (long) sizes.size() * RECORDS_PER_FILE_COMPACTION_TRIGGER);
+        if (compact) {
+          records = new ArrayList<>(sizes.size());
+          for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            records.add("A " + entry.getValue() + " " + entry.getKey());
+          }
+          recordsInLog = records.size();
+          needsCompaction = false;
+        } else {
+          records = pendingRecords;
+        }
+        pendingRecords = new ArrayList<>();
+      }
+
+      if (compact) {
+        Files.createDirectories(tmpDir);
+        Path tmp = Files.createTempFile(tmpDir, "index", ".tmp");
+        try {
+          write(tmp, records);
+          Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+          Files.deleteIfExists(tmp);
+        }
+      } else if (!records.isEmpty()) {
+        write(logPath, records, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      }
+    }
+  }
+
+  private static void write(
+      Path path,
+      List<String> records,
+      StandardOpenOption... options) throws IOException {
+    // Each batch of records goes out in one write, to keep it from being interleaved with those
+    // of other processes.
+    StringBuilder builder = new StringBuilder();
+    for (String record : records) {
+      builder.append(record).append('\n');
+    }
+    try (BufferedWriter writer = Files.newBufferedWriter(path, Charsets.UTF_8, options)) {
+      writer.write(builder.toString());
+    }
+  }
+
+  private void apply(String record) {
+    // Records cut short by a crash are skipped, which at worst leaves a file out of the index.
+    // The path comes last and takes up the rest of the record, as it may contain spaces.
+    int typeEnd = record.indexOf(' ');
+    if (typeEnd == -1) {
+      LOG.debug("Skipping malformed record in %s: %s", logPath, record);
+      return;
+    }
+    String rest = record.substring(typeEnd + 1);
+    switch (record.substring(0, typeEnd)) {
+      case "A":
+        int sizeEnd = rest.indexOf(' ');
+        if (sizeEnd != -1) {
+          try {
+            add(rest.substring(sizeEnd + 1), Long.parseLong(rest.substring(0, sizeEnd)));
+          } catch (NumberFormatException e) {
+            LOG.debug("Skipping malformed record in %s: %s", logPath, record);
+          }
+        }
+        break;
+      case "T":
+        sizes.get(rest);
+        break;
+      case "D":
+        Long size = sizes.remove(rest);
+        if (size != null) {
+          totalSizeBytes -= size;
+        }
+        break;
+      default:
+        LOG.debug("Skipping malformed record in %s: %s", logPath, record);
+    }
+  }
+
+  private void add(String path, long sizeBytes) {
+    // Removing first moves a stored file to the end even if it was already in the index.
+    Long previousSize = sizes.remove(path);
+    if (previousSize != null) {
+      totalSizeBytes -= previousSize;
+    }
+    sizes.put(path, sizeBytes);
+    totalSizeBytes += sizeBytes;
+  }
+}
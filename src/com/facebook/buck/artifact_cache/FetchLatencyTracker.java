@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+/**
+ * Keeps the latencies of a cache's most recent fetches to estimate their percentiles.
+ */
+class FetchLatencyTracker {
+
+  static final int MIN_SAMPLES = 20;
+  private static final int MAX_SAMPLES = 1000;
+  // Sorting the samples on every fetch would be wasteful, and the percentiles move slowly anyway.
+  private static final int SAMPLES_PER_UPDATE = 20;
+
+  private final int percentile;
+  private final long[] samples = new long[MAX_SAMPLES];
+  private int sampleCount = 0;
+  private int nextSample = 0;
+  private int samplesSinceUpdate = 0;
+  private OptionalLong percentileMillis = OptionalLong.empty();
+
+  /**
+   * @param percentile the percentile, between 0 and 100, returned by
+   *     {@link #getPercentileMillis()}.
+   */
+  FetchLatencyTracker(int percentile) {
+    this.percentile = percentile;
+  }
+
+  synchronized void record(long latencyMillis) {
+    samples[nextSample] = latencyMillis;
+    nextSample = (nextSample + 1) % MAX_SAMPLES;
+    sampleCount = Math.min(sampleCount + 1, MAX_SAMPLES);
+    samplesSinceUpdate++;
+    if (sampleCount >= MIN_SAMPLES &&
+        (!percentileMillis.isPresent() || samplesSinceUpdate >= SAMPLES_PER_UPDATE)) {
+      long[] sorted = Arrays.copyOf(samples, sampleCount);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100.0 * sampleCount) - 1;
+      percentileMillis = OptionalLong.of(sorted[Math.max(0, index)]);
+      samplesSinceUpdate = 0;
+    }
+  }
+
+  /**
+   * @return the latency under which the configured percentile of recent fetches completed, or
+   *     nothing until enough fetches have been recorded.
+   */
+  synchronized OptionalLong getPercentileMillis() {
+    return percentileMillis;
+  }
+}
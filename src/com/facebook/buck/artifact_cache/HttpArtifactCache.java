@@ -21,15 +21,19 @@ import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpResponse;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 
 import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Optional;
 
 import okhttp3.MediaType;
 import okhttp3.Request;
@@ -81,52 +85,186 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return CacheResult.error(name, msg);
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        projectFilesystem.createParentDirs(file);
-        Path temp = projectFilesystem.createTempFile(
-            file.getParent(),
-            file.getFileName().toString(),
-            ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
-          fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
-              input,
-              tempFileOutputStream);
-        }
+        return readFetchResponse(ruleKey, output, eventBuilder, response, input);
+      }
+    }
+  }
 
-        eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
-        eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+  /**
+   * Asks for all of {@code requests} in a single POST. The response holds, for each of them in
+   * order, the length of a fetch response followed by it, or
+   * {@link HttpArtifactCacheBinaryProtocol#MULTI_FETCH_MISS}.
+   */
+  @Override
+  protected ImmutableList<CacheResult> multiFetchImpl(
+      ImmutableList<FetchRequest> requests,
+      ImmutableList<Finished.Builder> eventBuilders) throws IOException {
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      ruleKeys.add(request.getRuleKey());
+    }
+    Request.Builder requestBuilder =
+        new Request.Builder()
+            .post(
+                RequestBody.create(
+                    OCTET_STREAM_CONTENT_TYPE,
+                    HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(ruleKeys.build())));
+    try (HttpResponse response = fetchClient.makeRequest(
+        "/artifacts/multifetch",
+        requestBuilder)) {
+      try (DataInputStream input =
+               new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
 
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
+        if (response.code() != HttpURLConnection.HTTP_OK) {
+          String msg = String.format("unexpected response: %d", response.code());
+          reportFailure("multiFetch(%s): %s", response.requestUrl(), msg);
+          ImmutableList.Builder<CacheResult> errors = ImmutableList.builder();
+          for (Finished.Builder eventBuilder : eventBuilders) {
+            eventBuilder.setErrorMessage(msg);
+            errors.add(CacheResult.error(name, msg));
+          }
+          return errors.build();
         }
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          projectFilesystem.deleteFileAtPath(temp);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
+        ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+        for (int i = 0; i < requests.size(); i++) {
+          RuleKey ruleKey = requests.get(i).getRuleKey();
+          long length = input.readLong();
+          if (length == HttpArtifactCacheBinaryProtocol.MULTI_FETCH_MISS) {
+            LOG.info("multiFetch(%s, %s): cache miss", response.requestUrl(), ruleKey);
+            results.add(CacheResult.miss());
+            continue;
+          }
+          // Closing an entry skips whatever is left of it, but leaves the response open for the
+          // entries that follow.
+          try (DataInputStream entryInput = new DataInputStream(
+              new FilterInputStream(ByteStreams.limit(input, length)) {
+                @Override
+                public void close() throws IOException {
+                  ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                }
+              })) {
+            results.add(
+                readFetchResponse(
+                    ruleKey,
+                    requests.get(i).getOutput(),
+                    eventBuilders.get(i),
+                    response,
+                    entryInput));
+          }
         }
+        return results.build();
+      }
+    }
+  }
+
+  private CacheResult readFetchResponse(
+      RuleKey ruleKey,
+      LazyPath output,
+      Finished.Builder eventBuilder,
+      HttpResponse response,
+      DataInputStream input) throws IOException {
+    if (output instanceof StreamableLazyPath) {
+      return fetchStreaming(
+          ruleKey,
+          (StreamableLazyPath) output,
+          eventBuilder,
+          response,
+          input);
+    }
+
+    // Setup a temporary file, which sits next to the destination, to write to and
+    // make sure all parent dirs exist.
+    Path file = output.get();
+    projectFilesystem.createParentDirs(file);
+    Path temp = projectFilesystem.createTempFile(
+        file.getParent(),
+        file.getFileName().toString(),
+        ".tmp");
+
+    FetchResponseReadResult fetchedData;
+    try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+      fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
+          input,
+          tempFileOutputStream);
+    }
+
+    Optional<CacheResult> failure =
+        verifyFetchedData(ruleKey, eventBuilder, response, fetchedData);
+    if (failure.isPresent()) {
+      projectFilesystem.deleteFileAtPath(temp);
+      return failure.get();
+    }
 
-        // Finally, move the temp file into it's final place.
-        projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    // Finally, move the temp file into it's final place.
+    projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
 
-        LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
+    LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
+    return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
+  }
+
+  /**
+   * Hands the payload to {@code output} as it comes off the wire, so that the artifact never has
+   * to be written to, and read back from, a temporary file. What was staged is only committed once
+   * the response has been verified.
+   */
+  private CacheResult fetchStreaming(
+      RuleKey ruleKey,
+      StreamableLazyPath output,
+      Finished.Builder eventBuilder,
+      HttpResponse response,
+      DataInputStream input) throws IOException {
+    boolean committed = false;
+    try {
+      FetchResponseReadResult fetchedData =
+          HttpArtifactCacheBinaryProtocol.readFetchResponse(input, output::stage);
+
+      Optional<CacheResult> failure =
+          verifyFetchedData(ruleKey, eventBuilder, response, fetchedData);
+      if (failure.isPresent()) {
+        return failure.get();
+      }
+
+      output.commit();
+      committed = true;
+
+      LOG.info("fetch(%s, %s): cache hit, streamed", response.requestUrl(), ruleKey);
+      return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
+    } finally {
+      if (!committed) {
+        output.discard();
       }
     }
   }
 
+  private Optional<CacheResult> verifyFetchedData(
+      RuleKey ruleKey,
+      Finished.Builder eventBuilder,
+      HttpResponse response,
+      FetchResponseReadResult fetchedData) {
+    eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
+    eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
+      eventBuilder.setErrorMessage(msg);
+      return Optional.of(CacheResult.error(name, msg));
+    }
+
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
+      eventBuilder.setErrorMessage(msg);
+      return Optional.of(CacheResult.error(name, msg));
+    }
+
+    return Optional.empty();
+  }
+
   @Override
   protected void storeImpl(
       ArtifactInfo info,
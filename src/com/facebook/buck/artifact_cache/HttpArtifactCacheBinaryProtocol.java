@@ -22,6 +22,7 @@ import com.facebook.buck.util.hash.HasherOutputStream;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -30,6 +31,7 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 import org.immutables.value.Value;
 
@@ -40,6 +42,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -50,6 +53,9 @@ public class HttpArtifactCacheBinaryProtocol {
   private static final HashFunction HASH_FUNCTION = Hashing.crc32();
   // 64MB should be enough for everyone.
   private static final long MAX_METADATA_HEADER_SIZE = 64 * 1024 * 1024;
+  // Sent instead of the length of a fetch response for rule keys that missed in a multi-fetch.
+  public static final long MULTI_FETCH_MISS = -1;
+  private static final int MAX_MULTI_FETCH_KEYS = 10000;
 
   private HttpArtifactCacheBinaryProtocol() {
     // Utility class, don't instantiate.
@@ -58,10 +64,22 @@ public class HttpArtifactCacheBinaryProtocol {
   public static FetchResponseReadResult readFetchResponse(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
+    return readFetchResponse(input, payload -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  /**
+   * Like {@link #readFetchResponse(DataInputStream, OutputStream)}, but hands the payload to
+   * {@code payloadReader} as it is read off the wire. The checksums in the result are only known
+   * once the reader returns, so the reader must not treat what it read as trusted until the caller
+   * has verified them.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input,
+      PayloadReader payloadReader) throws IOException {
 
     MetadataAndPayloadReadResultInternal resultInternal = readMetadataAndPayload(
         input,
-        payloadSink);
+        payloadReader);
 
     FetchResponseReadResult.Builder result = FetchResponseReadResult.builder().from(resultInternal);
     return result.build();
@@ -89,6 +107,12 @@ public class HttpArtifactCacheBinaryProtocol {
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(input, payload -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input,
+      PayloadReader payloadReader) throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -137,9 +161,12 @@ public class HttpArtifactCacheBinaryProtocol {
     // The remaining data is the payload, which we write to the created file, and also include
     // in our verification checksum.
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
-    try (InputStream payload = new HasherInputStream(artifactOnlyHasher,
-        new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+    try (CountingInputStream payload = new CountingInputStream(
+        new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input)))) {
+      payloadReader.read(payload);
+      // Whatever the reader left unread still counts towards the checksums.
+      ByteStreams.copy(payload, ByteStreams.nullOutputStream());
+      result.setResponseSizeBytes(payload.getCount());
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
@@ -148,8 +175,31 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * Creates the body of a multi-fetch request. The response has an entry for each of
+   * {@code ruleKeys}, in order: the length of a fetch response, which follows, or
+   * {@link #MULTI_FETCH_MISS}.
+   */
+  public static byte[] createMultiFetchRequest(ImmutableList<RuleKey> ruleKeys) throws IOException {
+    return createKeysHeader(ruleKeys);
+  }
+
+  public static ImmutableList<RuleKey> readMultiFetchRequest(DataInputStream input)
+      throws IOException {
+    int ruleKeysCount = input.readInt();
+    if (ruleKeysCount < 0 || ruleKeysCount > MAX_MULTI_FETCH_KEYS) {
+      throw new IOException(
+          String.format("Multi-fetch of %d rule keys is not supported.", ruleKeysCount));
+    }
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
   @VisibleForTesting
-  static byte[] createKeysHeader(ImmutableSet<RuleKey> ruleKeys) throws IOException {
+  static byte[] createKeysHeader(Collection<RuleKey> ruleKeys) throws IOException {
     try (ByteArrayOutputStream out = new ByteArrayOutputStream();
          DataOutputStream data = new DataOutputStream(out)) {
       data.writeInt(ruleKeys.size());
@@ -203,6 +253,13 @@ public class HttpArtifactCacheBinaryProtocol {
     return bytes;
   }
 
+  /**
+   * Consumes the payload of a response as it is read.
+   */
+  public interface PayloadReader {
+    void read(InputStream payload) throws IOException;
+  }
+
   public static class StoreRequest {
     private final ByteSource payloadSource;
     private final byte[] rawKeys;
@@ -271,11 +328,21 @@ public class HttpArtifactCacheBinaryProtocol {
 
     public void write(OutputStream responseSink) throws IOException {
       try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
-        dataOutputStream.writeInt(rawMetadata.length);
-        dataOutputStream.write(rawMetadata);
+        writeHeader(dataOutputStream);
         ByteStreams.copy(payloadSource.openStream(), responseSink);
       }
     }
+
+    /**
+     * Writes everything but the payload, for callers that send the payload themselves. Unlike
+     * {@link #write(OutputStream)}, this leaves {@code responseSink} open.
+     */
+    public void writeHeader(OutputStream responseSink) throws IOException {
+      DataOutputStream dataOutputStream = new DataOutputStream(responseSink);
+      dataOutputStream.writeInt(rawMetadata.length);
+      dataOutputStream.write(rawMetadata);
+      dataOutputStream.flush();
+    }
   }
 
   abstract static class MetadataAndPayloadReadResult {
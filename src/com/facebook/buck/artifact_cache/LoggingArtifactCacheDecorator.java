@@ -20,6 +20,7 @@ import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 
@@ -54,6 +55,15 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache {
     return fetchResult;
   }
 
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      results.add(fetch(request.getRuleKey(), request.getOutput()));
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -18,36 +18,84 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
  * any of the ArtifactCaches contain the desired artifact, and store() applies to all
  * ArtifactCaches.
+ * <p>
+ * Caches are normally asked one after the other. With hedged fetches, the next cache is also asked
+ * once the ones ahead of it have taken longer than usual to answer, and the first hit wins. That
+ * way a single slow cache doesn't hold up every lookup.
  */
 public class MultiArtifactCache implements ArtifactCache {
 
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
+
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final ImmutableList<ArtifactCache> writableArtifactCaches;
   private final boolean isStoreSupported;
+  private final Optional<ListeningExecutorService> hedgedFetchExecutor;
+  private final int hedgedFetchDelayPercentile;
+  private final ImmutableList<FetchLatencyTracker> fetchLatencies;
   private static final Predicate<ArtifactCache> WRITABLE_CACHES_ONLY =
       ArtifactCache::isStoreSupported;
 
   public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches) {
+    this(artifactCaches, Optional.empty(), 0);
+  }
+
+  /**
+   * @param hedgedFetchExecutor if present, fetches from the caches run on it so that they can
+   *     overlap. It may be shared, so it is left running when this cache is closed.
+   * @param hedgedFetchDelayPercentile the percentile of a cache's recent fetch latencies after
+   *     which the next cache is asked as well. 0 asks all of the caches at once.
+   */
+  public MultiArtifactCache(
+      ImmutableList<ArtifactCache> artifactCaches,
+      Optional<ListeningExecutorService> hedgedFetchExecutor,
+      int hedgedFetchDelayPercentile) {
+    Preconditions.checkArgument(
+        hedgedFetchDelayPercentile >= 0 && hedgedFetchDelayPercentile <= 100);
     this.artifactCaches = artifactCaches;
     this.writableArtifactCaches = ImmutableList.copyOf(
         Iterables.filter(artifactCaches, WRITABLE_CACHES_ONLY));
     this.isStoreSupported = this.writableArtifactCaches.size() > 0;
+    this.hedgedFetchExecutor = hedgedFetchExecutor;
+    this.hedgedFetchDelayPercentile = hedgedFetchDelayPercentile;
+    ImmutableList.Builder<FetchLatencyTracker> fetchLatencies = ImmutableList.builder();
+    for (int i = 0; i < artifactCaches.size(); i++) {
+      fetchLatencies.add(new FetchLatencyTracker(hedgedFetchDelayPercentile));
+    }
+    this.fetchLatencies = fetchLatencies.build();
   }
 
   /**
@@ -57,35 +105,401 @@ public class MultiArtifactCache implements ArtifactCache {
    */
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    if (hedgedFetchExecutor.isPresent() && artifactCaches.size() > 1) {
+      return hedgedFetch(ruleKey, output);
+    }
     CacheResult cacheResult = CacheResult.miss();
     for (ArtifactCache artifactCache : artifactCaches) {
-      cacheResult = artifactCache.fetch(ruleKey, output);
+      cacheResult = artifactCache.fetch(ruleKey, getOutputFor(artifactCache, output));
       if (cacheResult.getType().isSuccess()) {
         // Success; terminate search for a cached artifact, and propagate artifact to caches
         // earlier in the search order so that subsequent searches terminate earlier.
-        for (ArtifactCache priorArtifactCache : artifactCaches) {
-          if (priorArtifactCache.equals(artifactCache)) {
-            break;
+        storeToPriorArtifactCaches(artifactCache, ruleKey, output, cacheResult);
+        return cacheResult;
+      }
+    }
+    return cacheResult;
+  }
+
+  /**
+   * Fetches from the caches concurrently on the hedged fetch executor. The first fetch to write
+   * anything gets {@code output} itself, so a hit can still be streamed into place, and the others
+   * write to files of their own. The first hit wins once the others have been cancelled.
+   */
+  private CacheResult hedgedFetch(RuleKey ruleKey, LazyPath output) {
+    AtomicReference<HedgedFetch> outputOwner = new AtomicReference<>();
+    BlockingQueue<HedgedFetch> completed = new LinkedBlockingQueue<>();
+    List<HedgedFetch> fetches = Lists.newArrayListWithExpectedSize(artifactCaches.size());
+    CacheResult[] results = new CacheResult[artifactCaches.size()];
+    Optional<HedgedFetch> winner = Optional.empty();
+    int running = 0;
+    try {
+      while (fetches.size() < artifactCaches.size() || running > 0) {
+        HedgedFetch done;
+        if (running == 0) {
+          done = null;
+        } else if (fetches.size() == artifactCaches.size()) {
+          done = completed.take();
+        } else {
+          HedgedFetch last = fetches.get(fetches.size() - 1);
+          OptionalLong delayMillis = getHedgeDelayMillis(last.index);
+          if (delayMillis.isPresent()) {
+            long elapsedMillis =
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last.startNanos);
+            done = completed.poll(delayMillis.getAsLong() - elapsedMillis, TimeUnit.MILLISECONDS);
+          } else {
+            done = completed.take();
           }
-          // since cache fetch finished, it should be fine to get the path
-          BorrowablePath outputPath;
-          // allow borrowing the path if no other caches are expected to use it
-          if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
-            outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
+        }
+
+        if (done == null) {
+          // Nothing is running, or the last cache asked is slower than usual: ask the next one.
+          int index = fetches.size();
+          HedgedFetch fetch = new HedgedFetch(
+              index,
+              getOutputFor(artifactCaches.get(index), output),
+              outputOwner);
+          fetches.add(fetch);
+          fetch.start(ruleKey, completed);
+          running++;
+          continue;
+        }
+
+        running--;
+        results[done.index] = done.getResult();
+        if (results[done.index].getType().isSuccess()) {
+          winner = Optional.of(done);
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CacheResult.miss();
+    } finally {
+      for (HedgedFetch fetch : fetches) {
+        if (!winner.isPresent() || fetch != winner.get()) {
+          fetch.abandon();
+        }
+      }
+    }
+
+    if (!winner.isPresent()) {
+      return results[results.length - 1];
+    }
+
+    HedgedFetch fetch = winner.get();
+    HedgedFetch owner = outputOwner.get();
+    if (owner != null && owner != fetch) {
+      // The fetch writing to the output was cancelled, but has to stop before anything else is
+      // put there. It may have got the whole artifact in the meantime, in which case it is kept.
+      CacheResult ownerResult;
+      try {
+        ownerResult = owner.awaitResult();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fetch.abandon();
+        return CacheResult.miss();
+      }
+      if (ownerResult.getType().isSuccess()) {
+        fetch.abandon();
+        fetch = owner;
+        results[fetch.index] = ownerResult;
+      } else if (output instanceof StreamableLazyPath) {
+        ((StreamableLazyPath) output).discard();
+      }
+    }
+
+    int index = fetch.index;
+    if (fetch != owner) {
+      try {
+        fetch.moveOwnOutputTo(output.get());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to move fetched artifact into place.");
+        return CacheResult.error("multi", e.getMessage());
+      }
+    }
+    LOG.verbose(
+        "Hedged fetch of %s hit in cache %d after asking %d.",
+        ruleKey,
+        index,
+        fetches.size());
+    storeToPriorArtifactCaches(artifactCaches.get(index), ruleKey, output, results[index]);
+    return results[index];
+  }
+
+  /**
+   * @return how long to wait for the cache at {@code index} before asking the next one as well, or
+   *     nothing if it has to answer first.
+   */
+  private OptionalLong getHedgeDelayMillis(int index) {
+    if (hedgedFetchDelayPercentile == 0) {
+      return OptionalLong.of(0);
+    }
+    return fetchLatencies.get(index).getPercentileMillis();
+  }
+
+  /**
+   * A fetch from one of the caches. It writes to the shared output if it is the first to write
+   * anything, and otherwise to a temporary file of its own, which it cleans up once abandoned.
+   */
+  private class HedgedFetch {
+    private final int index;
+    private final LazyPath target;
+    private final AtomicReference<HedgedFetch> outputOwner;
+    private long startNanos;
+    @Nullable
+    private Path ownOutput;
+    @Nullable
+    private Future<?> future;
+    @Nullable
+    private CacheResult result;
+    @Nullable
+    private RuntimeException exception;
+    private boolean finished = false;
+    private boolean abandoned = false;
+
+    HedgedFetch(int index, LazyPath target, AtomicReference<HedgedFetch> outputOwner) {
+      this.index = index;
+      this.target = target;
+      this.outputOwner = outputOwner;
+    }
+
+    void start(RuleKey ruleKey, BlockingQueue<HedgedFetch> completed) {
+      startNanos = System.nanoTime();
+      LazyPath output = createOutput();
+      future = hedgedFetchExecutor.get().submit(
+          () -> {
+            try {
+              finish(artifactCaches.get(index).fetch(ruleKey, output), null);
+            } catch (RuntimeException e) {
+              finish(null, e);
+            }
+            completed.add(this);
+          });
+    }
+
+    private boolean ownsTarget() {
+      return outputOwner.compareAndSet(null, this) || outputOwner.get() == this;
+    }
+
+    private synchronized Path getOwnOutput() throws IOException {
+      if (ownOutput == null) {
+        ownOutput = Files.createTempFile("buck_hedged_fetch", ".zip");
+      }
+      return ownOutput;
+    }
+
+    /**
+     * @return the output to hand to the cache. It is streamable if {@link #target} is, so that the
+     *     fetch owning the target can stream into it. The others take a stream as a zip file.
+     */
+    private LazyPath createOutput() {
+      if (!(target instanceof StreamableLazyPath)) {
+        return new LazyPath() {
+          @Override
+          protected Path create() throws IOException {
+            return ownsTarget() ? target.get() : getOwnOutput();
+          }
+        };
+      }
+      final StreamableLazyPath streamableTarget = (StreamableLazyPath) target;
+      return new StreamableLazyPath() {
+        @Override
+        protected Path create() throws IOException {
+          return ownsTarget() ? target.get() : getOwnOutput();
+        }
+
+        @Override
+        public void stage(InputStream payload) throws IOException {
+          if (ownsTarget()) {
+            streamableTarget.stage(payload);
           } else {
-            outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
+            Files.copy(payload, getOwnOutput(), StandardCopyOption.REPLACE_EXISTING);
           }
-          priorArtifactCache.store(
-              ArtifactInfo.builder()
-                  .addRuleKeys(ruleKey)
-                  .setMetadata(cacheResult.getMetadata())
-                  .build(),
-              outputPath);
         }
-        return cacheResult;
+
+        @Override
+        public void stage(ImmutableList<ArtifactEntry> entries, boolean linkFiles)
+            throws IOException {
+          if (!ownsTarget()) {
+            throw new IOException("Another cache is already writing the artifact.");
+          }
+          streamableTarget.stage(entries, linkFiles);
+        }
+
+        @Override
+        public void commit() throws IOException {
+          // What others staged is already in their own file, and is moved into place if it wins.
+          if (outputOwner.get() == HedgedFetch.this) {
+            streamableTarget.commit();
+          }
+        }
+
+        @Override
+        public void discard() {
+          if (outputOwner.get() == HedgedFetch.this) {
+            streamableTarget.discard();
+          }
+        }
+
+        @Override
+        public boolean isCommitted() {
+          return outputOwner.get() == HedgedFetch.this && streamableTarget.isCommitted();
+        }
+      };
+    }
+
+    private synchronized void finish(
+        @Nullable CacheResult result,
+        @Nullable RuntimeException exception) {
+      this.result = result;
+      this.exception = exception;
+      finished = true;
+      notifyAll();
+      if (abandoned) {
+        deleteOwnOutput();
+      } else {
+        fetchLatencies.get(index).record(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
       }
     }
-    return cacheResult;
+
+    synchronized CacheResult getResult() {
+      if (exception != null) {
+        throw exception;
+      }
+      return Preconditions.checkNotNull(result);
+    }
+
+    /**
+     * Waits for a fetch that was already running to finish, even if it was abandoned.
+     */
+    synchronized CacheResult awaitResult() throws InterruptedException {
+      while (!finished) {
+        wait();
+      }
+      return exception != null ?
+          CacheResult.error("multi", String.valueOf(exception.getMessage())) :
+          Preconditions.checkNotNull(result);
+    }
+
+    synchronized void moveOwnOutputTo(Path path) throws IOException {
+      if (ownOutput != null) {
+        Files.move(ownOutput, path, StandardCopyOption.REPLACE_EXISTING);
+        ownOutput = null;
+      }
+    }
+
+    synchronized void abandon() {
+      abandoned = true;
+      if (finished) {
+        deleteOwnOutput();
+      } else {
+        Preconditions.checkNotNull(future).cancel(true);
+      }
+    }
+
+    private void deleteOwnOutput() {
+      if (ownOutput == null) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(ownOutput);
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to delete %s.", ownOutput);
+      }
+    }
+  }
+
+  /**
+   * Fetch a batch of artifacts. Each encapsulated ArtifactCache is asked, in order, for all of the
+   * artifacts that none of the caches before it had, so every cache sees at most one batch.
+   */
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    CacheResult[] results = new CacheResult[requests.size()];
+    Arrays.fill(results, CacheResult.miss());
+    List<Integer> pending = Lists.newArrayListWithExpectedSize(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      pending.add(i);
+    }
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (pending.isEmpty()) {
+        break;
+      }
+      ImmutableList.Builder<FetchRequest> batch = ImmutableList.builder();
+      for (int index : pending) {
+        FetchRequest request = requests.get(index);
+        batch.add(
+            FetchRequest.of(
+                request.getRuleKey(),
+                getOutputFor(artifactCache, request.getOutput())));
+      }
+      ImmutableList<CacheResult> batchResults = artifactCache.multiFetch(batch.build());
+      List<Integer> misses = Lists.newArrayListWithExpectedSize(pending.size());
+      for (int i = 0; i < pending.size(); i++) {
+        int index = pending.get(i);
+        FetchRequest request = requests.get(index);
+        results[index] = batchResults.get(i);
+        if (results[index].getType().isSuccess()) {
+          storeToPriorArtifactCaches(
+              artifactCache,
+              request.getRuleKey(),
+              request.getOutput(),
+              results[index]);
+        } else {
+          misses.add(index);
+        }
+      }
+      pending = misses;
+    }
+    return ImmutableList.copyOf(results);
+  }
+
+  /**
+   * An artifact fetched from {@code artifactCache} is stored to the writable caches before it, and
+   * that needs it as a file, so it can only be streamed if there are none.
+   */
+  private LazyPath getOutputFor(ArtifactCache artifactCache, LazyPath output) {
+    for (ArtifactCache priorArtifactCache : artifactCaches) {
+      if (priorArtifactCache.equals(artifactCache)) {
+        break;
+      }
+      if (priorArtifactCache.isStoreSupported()) {
+        return StreamableLazyPath.fileOnly(output);
+      }
+    }
+    return output;
+  }
+
+  private void storeToPriorArtifactCaches(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      LazyPath output,
+      CacheResult cacheResult) {
+    for (ArtifactCache priorArtifactCache : artifactCaches) {
+      if (priorArtifactCache.equals(artifactCache)) {
+        break;
+      }
+      if (!priorArtifactCache.isStoreSupported()) {
+        // Storing is a noop, and the artifact may not have been written to the path at all.
+        continue;
+      }
+      // since cache fetch finished, it should be fine to get the path
+      BorrowablePath outputPath;
+      // allow borrowing the path if no other caches are expected to use it
+      if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
+        outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
+      } else {
+        outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
+      }
+      priorArtifactCache.store(
+          ArtifactInfo.builder()
+              .addRuleKeys(ruleKey)
+              .setMetadata(cacheResult.getMetadata())
+              .build(),
+          outputPath);
+    }
   }
 
   /**
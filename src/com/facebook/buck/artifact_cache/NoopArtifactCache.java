@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
@@ -30,6 +31,15 @@ public class NoopArtifactCache implements ArtifactCache {
     return CacheResult.miss();
   }
 
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      results.add(fetch(request.getRuleKey(), request.getOutput()));
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ArtifactInfo info,
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.LazyPath;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * The output of a fetch that can also take the artifact as a stream. Caches that read an artifact
+ * off the network may hand it to {@link #stage(InputStream)} as it arrives rather than writing it
+ * to {@link #get()}, and then {@link #commit()} it once they have verified what they received.
+ * Caches that don't support this, or that need the artifact as a file, just use the path.
+ */
+public abstract class StreamableLazyPath extends LazyPath {
+
+  /**
+   * Reads the artifact from {@code payload} into a staging area. Nothing staged is visible outside
+   * of it until {@link #commit()} is called. Staging again replaces anything staged before.
+   */
+  public abstract void stage(InputStream payload) throws IOException;
+
+  /**
+   * Stages the artifact from entries whose contents are already on disk. Files are hard linked into
+   * the staging area when {@code linkFiles} is set and the filesystem allows it, and copied
+   * otherwise. Staging again replaces anything staged before.
+   */
+  public abstract void stage(
+      ImmutableList<ArtifactEntry> entries,
+      boolean linkFiles) throws IOException;
+
+  /**
+   * Makes the staged artifact visible. Must only be called once the cache has verified the bytes
+   * that were staged.
+   */
+  public abstract void commit() throws IOException;
+
+  /**
+   * Throws away anything staged.
+   */
+  public abstract void discard();
+
+  /**
+   * @return whether the artifact was delivered through {@link #commit()} rather than as a file.
+   */
+  public abstract boolean isCommitted();
+
+  /**
+   * @return a view of {@code output} that only exposes the path, for when the artifact must end up
+   *     in a file, e.g. because it will be stored to another cache.
+   */
+  public static LazyPath fileOnly(final LazyPath output) {
+    if (!(output instanceof StreamableLazyPath)) {
+      return output;
+    }
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return output.get();
+      }
+    };
+  }
+}
@@ -29,14 +29,17 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -124,14 +127,67 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache {
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
-    CacheResult fetchResult = delegate.fetch(ruleKey, output);
-    if (!fetchResult.getType().isSuccess() ||
-        !fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+    // Whether the first level holds the artifact itself or only points at it is only known from
+    // its metadata, so it is always fetched as a file.
+    CacheResult fetchResult = delegate.fetch(ruleKey, StreamableLazyPath.fileOnly(output));
+    if (!isFirstLevelHit(fetchResult)) {
       return fetchResult;
     }
     CacheResult outputFileFetchResult = delegate.fetch(
         new RuleKey(fetchResult.getMetadata().get(METADATA_KEY)),
         output);
+    return processSecondLevelFetch(fetchResult, outputFileFetchResult);
+  }
+
+  /**
+   * Fetches the first level of every request in one batch, and then the contents of all of the
+   * two-level hits in a second batch.
+   */
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    ImmutableList.Builder<FetchRequest> firstLevelRequests = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      firstLevelRequests.add(
+          FetchRequest.of(request.getRuleKey(), StreamableLazyPath.fileOnly(request.getOutput())));
+    }
+    ImmutableList<CacheResult> fetchResults = delegate.multiFetch(firstLevelRequests.build());
+
+    List<Integer> secondLevelIndices = Lists.newArrayList();
+    ImmutableList.Builder<FetchRequest> secondLevelRequests = ImmutableList.builder();
+    for (int i = 0; i < fetchResults.size(); i++) {
+      CacheResult fetchResult = fetchResults.get(i);
+      if (isFirstLevelHit(fetchResult)) {
+        secondLevelIndices.add(i);
+        secondLevelRequests.add(
+            FetchRequest.of(
+                new RuleKey(fetchResult.getMetadata().get(METADATA_KEY)),
+                requests.get(i).getOutput()));
+      }
+    }
+    if (secondLevelIndices.isEmpty()) {
+      return fetchResults;
+    }
+
+    ImmutableList<CacheResult> outputFileFetchResults =
+        delegate.multiFetch(secondLevelRequests.build());
+    List<CacheResult> results = Lists.newArrayList(fetchResults);
+    for (int i = 0; i < secondLevelIndices.size(); i++) {
+      int index = secondLevelIndices.get(i);
+      results.set(
+          index,
+          processSecondLevelFetch(fetchResults.get(index), outputFileFetchResults.get(i)));
+    }
+    return ImmutableList.copyOf(results);
+  }
+
+  private static boolean isFirstLevelHit(CacheResult fetchResult) {
+    return fetchResult.getType().isSuccess() &&
+        fetchResult.getMetadata().containsKey(METADATA_KEY);
+  }
+
+  private CacheResult processSecondLevelFetch(
+      CacheResult fetchResult,
+      CacheResult outputFileFetchResult) {
     if (!outputFileFetchResult.getType().isSuccess()) {
       secondLevelCacheMisses.inc();
       return outputFileFetchResult;
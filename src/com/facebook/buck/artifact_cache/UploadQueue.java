@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the uploads of a network cache on its write executor, keeping the bytes waiting to be
+ * uploaded within a budget.
+ * <p>
+ * Uploads wait in a queue ordered by size, so that small artifacts, which are the cheapest to make
+ * available to other builds, don't wait behind large ones. Each upload submits one task to the
+ * executor, which runs whichever upload is first in the queue when it gets to run: the number of
+ * uploads in progress is bounded by the size of the executor, and waiting for it to terminate
+ * still waits for every upload. An upload for rule keys that are all already waiting or being
+ * uploaded is coalesced with the earlier ones, and one that would take the queue over its budget
+ * is dropped.
+ */
+class UploadQueue {
+
+  private static final Logger LOG = Logger.get(UploadQueue.class);
+  private static final String COUNTER_CATEGORY = "buck_network_cache_upload_stats";
+
+  /**
+   * Prepares an upload once it has been accepted by the queue.
+   */
+  interface UploadPreparer {
+    /**
+     * @return the upload to run on the executor.
+     */
+    Runnable prepare() throws IOException;
+  }
+
+  private final String cacheName;
+  private final ExecutorService executor;
+  private final Optional<Long> maxPendingBytes;
+
+  private final PriorityQueue<PendingUpload> queue;
+  private final Multiset<RuleKey> pendingRuleKeys;
+  private final List<Runnable> onDrained;
+  private long sequence;
+  private int pendingUploads;
+  private long pendingBytes;
+  private long bytesInFlight;
+
+  private final SamplingCounter queueDepth;
+  private final SamplingCounter bytesInFlightSamples;
+  private final IntegerCounter coalescedUploads;
+  private final IntegerCounter droppedUploads;
+
+  /**
+   * @param maxPendingBytes how many bytes may be waiting or being uploaded at any time. An upload
+   *     is always accepted when nothing else is pending, so that it is never dropped for being
+   *     larger than the budget on its own.
+   */
+  public UploadQueue(
+      String cacheName,
+      ExecutorService executor,
+      Optional<Long> maxPendingBytes,
+      BuckEventBus buckEventBus) {
+    this.cacheName = cacheName;
+    this.executor = executor;
+    this.maxPendingBytes = maxPendingBytes;
+    this.queue = new PriorityQueue<>(
+        Comparator.<PendingUpload>comparingLong(upload -> upload.sizeBytes)
+            .thenComparingLong(upload -> upload.sequence));
+    this.pendingRuleKeys = HashMultiset.create();
+    this.onDrained = new ArrayList<>();
+
+    ImmutableMap<String, String> tags = ImmutableMap.of("cache_name", cacheName);
+    queueDepth = new SamplingCounter(COUNTER_CATEGORY, "upload_queue_depth", tags);
+    bytesInFlightSamples = new SamplingCounter(COUNTER_CATEGORY, "upload_bytes_in_flight", tags);
+    coalescedUploads = new IntegerCounter(COUNTER_CATEGORY, "coalesced_uploads", tags);
+    droppedUploads = new IntegerCounter(COUNTER_CATEGORY, "dropped_uploads", tags);
+    buckEventBus.post(new CounterRegistry.AsyncCounterRegistrationEvent(
+        ImmutableSet.of(queueDepth, bytesInFlightSamples, coalescedUploads, droppedUploads)));
+  }
+
+  /**
+   * Queues an upload of {@code sizeBytes} for {@code ruleKeys}, unless it is coalesced or dropped.
+   *
+   * @param preparer called before returning if the upload is accepted. If it fails, the upload is
+   *     dropped.
+   * @return the future of the upload, or empty if it was not accepted.
+   */
+  public Optional<ListenableFuture<Void>> submit(
+      ImmutableSet<RuleKey> ruleKeys,
+      long sizeBytes,
+      UploadPreparer preparer) throws IOException {
+    synchronized (this) {
+      if (!ruleKeys.isEmpty() && pendingRuleKeys.elementSet().containsAll(ruleKeys)) {
+        LOG.debug("%s: coalescing upload of %s with an earlier one.", cacheName, ruleKeys);
+        coalescedUploads.inc();
+        return Optional.empty();
+      }
+      if (maxPendingBytes.isPresent() &&
+          pendingUploads > 0 &&
+          pendingBytes + sizeBytes > maxPendingBytes.get()) {
+        LOG.info(
+            "%s: dropping upload of %s, %d bytes are already waiting to be uploaded.",
+            cacheName,
+            ruleKeys,
+            pendingBytes);
+        droppedUploads.inc();
+        return Optional.empty();
+      }
+      // Reserve the space and rule keys while the upload is being prepared.
+      pendingRuleKeys.addAll(ruleKeys);
+      pendingUploads++;
+      pendingBytes += sizeBytes;
+    }
+
+    Runnable upload;
+    try {
+      upload = preparer.prepare();
+    } catch (IOException | RuntimeException e) {
+      finished(ruleKeys, sizeBytes, /* started */ false);
+      throw e;
+    }
+
+    PendingUpload pending;
+    synchronized (this) {
+      pending = new PendingUpload(ruleKeys, sizeBytes, sequence++, upload);
+      queue.add(pending);
+      queueDepth.addSample(queue.size());
+    }
+    try {
+      executor.execute(this::runNext);
+    } catch (RejectedExecutionException e) {
+      // The executor has been shut down. Every queued upload needs a task to run it, so one has
+      // to come out of the queue again: this one, unless an earlier task already took it.
+      PendingUpload rejected;
+      synchronized (this) {
+        rejected = queue.remove(pending) ? pending : queue.poll();
+      }
+      if (rejected != null) {
+        LOG.info(e, "%s: could not schedule upload of %s.", cacheName, rejected.ruleKeys);
+        rejected.future.setException(e);
+        finished(rejected.ruleKeys, rejected.sizeBytes, /* started */ false);
+      }
+    }
+    return Optional.of(pending.future);
+  }
+
+  /**
+   * Runs {@code callback} once no uploads are pending, right away if none are.
+   */
+  public void runWhenDrained(Runnable callback) {
+    synchronized (this) {
+      if (pendingUploads > 0) {
+        onDrained.add(callback);
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  @VisibleForTesting
+  synchronized int getPendingUploads() {
+    return pendingUploads;
+  }
+
+  @VisibleForTesting
+  synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  private void runNext() {
+    PendingUpload next;
+    synchronized (this) {
+      next = queue.poll();
+      if (next == null) {
+        return;
+      }
+      bytesInFlight += next.sizeBytes;
+      bytesInFlightSamples.addSample(bytesInFlight);
+    }
+
+    try {
+      next.upload.run();
+      next.future.set(null);
+    } catch (RuntimeException e) {
+      next.future.setException(e);
+      throw e;
+    } finally {
+      finished(next.ruleKeys, next.sizeBytes, /* started */ true);
+    }
+  }
+
+  private void finished(ImmutableSet<RuleKey> ruleKeys, long sizeBytes, boolean started) {
+    List<Runnable> callbacks = new ArrayList<>();
+    synchronized (this) {
+      for (RuleKey ruleKey : ruleKeys) {
+        pendingRuleKeys.remove(ruleKey);
+      }
+      pendingUploads--;
+      pendingBytes -= sizeBytes;
+      if (started) {
+        bytesInFlight -= sizeBytes;
+      }
+      if (pendingUploads == 0) {
+        callbacks.addAll(onDrained);
+        onDrained.clear();
+      }
+    }
+    for (Runnable callback : callbacks) {
+      callback.run();
+    }
+  }
+
+  private static class PendingUpload {
+    private final ImmutableSet<RuleKey> ruleKeys;
+    private final long sizeBytes;
+    private final long sequence;
+    private final Runnable upload;
+    private final SettableFuture<Void> future;
+
+    private PendingUpload(
+        ImmutableSet<RuleKey> ruleKeys,
+        long sizeBytes,
+        long sequence,
+        Runnable upload) {
+      this.ruleKeys = ruleKeys;
+      this.sizeBytes = sizeBytes;
+      this.sequence = sequence;
+      this.upload = upload;
+      this.future = SettableFuture.create();
+    }
+  }
+}
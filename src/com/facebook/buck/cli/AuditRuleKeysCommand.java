@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.kohsuke.args4j.Argument;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Explains the differences between the rule keys of two builds, from the rule key diagnostics
+ * logs that they left in their log directories.
+ */
+public class AuditRuleKeysCommand extends AbstractCommand {
+
+  @Argument
+  private List<String> arguments = Lists.newArrayList();
+
+  public List<String> getArguments() {
+    return arguments;
+  }
+
+  @Override
+  public int runWithoutHelp(CommandRunnerParams params) throws IOException, InterruptedException {
+    if (getArguments().size() < 2) {
+      params.getBuckEventBus().post(
+          ConsoleEvent.severe(
+              "Must specify the %s of two builds, optionally followed by build targets.",
+              BuckConstant.RULE_KEY_DIAGNOSTICS_LOG_FILE_NAME));
+      return 1;
+    }
+
+    Path root = params.getCell().getFilesystem().getRootPath();
+    RuleKeyDiagnostics before = RuleKeyDiagnostics.read(root.resolve(getArguments().get(0)));
+    RuleKeyDiagnostics after = RuleKeyDiagnostics.read(root.resolve(getArguments().get(1)));
+    List<String> targets = getArguments().subList(2, getArguments().size());
+
+    ImmutableList.Builder<String> differences = ImmutableList.builder();
+    if (targets.isEmpty()) {
+      differences.addAll(RuleKeyDiagnostics.explainAll(before, after));
+    } else {
+      for (String target : targets) {
+        differences.addAll(RuleKeyDiagnostics.explain(before, after, target));
+      }
+    }
+
+    PrintStream out = params.getConsole().getStdOut();
+    for (String difference : differences.build()) {
+      out.println(difference);
+    }
+    return 0;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public String getShortDescription() {
+    return "Explain why rule keys changed between the rule key diagnostics logs of two builds.";
+  }
+}
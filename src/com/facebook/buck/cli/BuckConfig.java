@@ -35,12 +35,16 @@ import com.facebook.buck.rules.BuildTargetSourcePath;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.rules.ConstantToolProvider;
+import com.facebook.buck.rules.CriticalPathScheduler;
 import com.facebook.buck.rules.HashedFileTool;
 import com.facebook.buck.rules.PathSourcePath;
 import com.facebook.buck.rules.ResourceAwareSchedulingInfo;
+import com.facebook.buck.rules.RuleDurationHistory;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.Tool;
 import com.facebook.buck.rules.ToolProvider;
+import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.AnsiEnvironmentChecking;
 import com.facebook.buck.util.BuckConstant;
@@ -53,6 +57,7 @@ import com.facebook.buck.util.environment.Architecture;
 import com.facebook.buck.util.environment.EnvironmentFilter;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.network.hostname.HostnameFetching;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
@@ -487,6 +492,14 @@ public class BuckConfig {
     return getBooleanValue(LOG_SECTION, "rule_key_logger_enabled", false);
   }
 
+  /**
+   * @return whether to write the structure of every rule key to a compact binary log, which can
+   *     be diffed with {@code buck audit rulekeys}.
+   */
+  public boolean isRuleKeyDiagnosticsLogEnabled() {
+    return getBooleanValue(LOG_SECTION, "rule_key_diagnostics_log_enabled", true);
+  }
+
   public boolean isMachineReadableLoggerEnabled() {
     return getBooleanValue(LOG_SECTION, "machine_readable_logger_enabled", true);
   }
@@ -714,6 +727,47 @@ public class BuckConfig {
     return getLong("build", "max_depfile_cache_entries").orElse(256L);
   }
 
+  /**
+   * @return whether the hashes of source files are saved to disk, for later processes to reuse.
+   */
+  public boolean getFileHashCacheOnDisk() {
+    return getBooleanValue("build", "file_hash_cache_on_disk", false);
+  }
+
+  /**
+   * @return whether the hashes of source files are taken from Watchman, where it has them.
+   */
+  public boolean getFileHashesFromWatchman() {
+    return getBooleanValue("build", "watchman_file_hashes", false);
+  }
+
+  /**
+   * @return whether the daemon keeps rule keys between builds that reuse the action graph.
+   */
+  public boolean getRuleKeyCacheInDaemon() {
+    return getBooleanValue("build", "daemon_rule_key_cache", false);
+  }
+
+  /**
+   * @return whether the build engine should start rules with the longest remaining critical path
+   *     first, based on how long rules took to build in previous builds.
+   */
+  public boolean isCriticalPathSchedulingEnabled() {
+    return getBooleanValue("build", "critical_path_scheduling", false);
+  }
+
+  public Optional<CriticalPathScheduler> getCriticalPathScheduler(
+      ObjectMapper objectMapper,
+      Clock clock) {
+    if (!isCriticalPathSchedulingEnabled()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new CriticalPathScheduler(
+            RuleDurationHistory.load(projectFilesystem, objectMapper),
+            clock));
+  }
+
   /**
    * @return the maximum size an artifact can be for the build engine to cache it.
    */
@@ -739,6 +793,14 @@ public class BuckConfig {
     return parseInt(getValue("cache", "key_seed").orElse("0"));
   }
 
+  /**
+   * @return the hash function rule keys are computed with.
+   */
+  public RuleKeyHashFunction getRuleKeyHashFunction() {
+    return getEnum("cache", "rule_key_hash_function", RuleKeyHashFunction.class)
+        .orElse(RuleKeyHashFunction.SHA1);
+  }
+
   /**
    * @return the path for the given section and property.
    */
@@ -18,6 +18,7 @@ package com.facebook.buck.cli;
 
 import com.facebook.buck.android.AndroidPlatformTarget;
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.distributed.BuckVersionUtil;
@@ -414,7 +415,8 @@ public class BuildCommand extends AbstractCommand {
         params.getFileHashCache(),
         cellIndexer,
         executorService,
-        params.getBuckConfig().getKeySeed());
+        params.getBuckConfig().getKeySeed(),
+        params.getBuckConfig().getRuleKeyHashFunction());
 
     return DistBuildState.dump(
         cellIndexer,
@@ -528,7 +530,8 @@ public class BuildCommand extends AbstractCommand {
           new DefaultRuleKeyBuilderFactory(
               params.getBuckConfig().getKeySeed(),
               params.getFileHashCache(),
-              new SourcePathResolver(actionGraphAndResolver.getResolver())));
+              new SourcePathResolver(actionGraphAndResolver.getResolver()),
+              params.getBuckConfig().getRuleKeyHashFunction()));
     }
     params.getConsole().getStdOut().println("The outputs are:");
     for (BuildTarget buildTarget : buildTargets) {
@@ -672,11 +675,18 @@ public class BuildCommand extends AbstractCommand {
             rootCellBuckConfig.getBuildDepFiles(),
             rootCellBuckConfig.getBuildMaxDepFileCacheEntries(),
             rootCellBuckConfig.getBuildArtifactCacheSizeLimit(),
+            new ArtifactCacheBuckConfig(rootCellBuckConfig).getMaxFetchBatchSize(),
             rootCellBuckConfig.getBuildInputRuleKeyFileSizeLimit(),
             params.getObjectMapper(),
             actionGraphAndResolver.getResolver(),
             rootCellBuckConfig.getKeySeed(),
-            rootCellBuckConfig.getResourceAwareSchedulingInfo()),
+            rootCellBuckConfig.getRuleKeyHashFunction(),
+            params.getActionGraphCache().getRuleKeyCache(),
+            params.getRuleKeyDiagnosticsLog(),
+            rootCellBuckConfig.getResourceAwareSchedulingInfo(),
+            rootCellBuckConfig.getCriticalPathScheduler(
+                params.getObjectMapper(),
+                params.getClock())),
         artifactCache,
         params.getConsole(),
         params.getBuckEventBus(),
@@ -24,6 +24,7 @@ import com.facebook.buck.jvm.core.JavaPackageFinder;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.keys.RuleKeyDiagnosticsLog;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.Console;
@@ -64,6 +65,7 @@ class CommandRunnerParams {
   private final Map<ExecutorPool, ListeningExecutorService> executors;
   private final BuildEnvironmentDescription buildEnvironmentDescription;
   private final ActionGraphCache actionGraphCache;
+  private final Optional<RuleKeyDiagnosticsLog> ruleKeyDiagnosticsLog;
 
   public CommandRunnerParams(
       Console console,
@@ -84,7 +86,8 @@ class CommandRunnerParams {
       FileHashCache fileHashCache,
       Map<ExecutorPool, ListeningExecutorService> executors,
       BuildEnvironmentDescription buildEnvironmentDescription,
-      ActionGraphCache actionGraphCache) {
+      ActionGraphCache actionGraphCache,
+      Optional<RuleKeyDiagnosticsLog> ruleKeyDiagnosticsLog) {
     this.console = console;
     this.stdIn = stdIn;
     this.cell = cell;
@@ -104,6 +107,7 @@ class CommandRunnerParams {
     this.executors = executors;
     this.buildEnvironmentDescription = buildEnvironmentDescription;
     this.actionGraphCache = actionGraphCache;
+    this.ruleKeyDiagnosticsLog = ruleKeyDiagnosticsLog;
   }
 
   public Console getConsole() {
@@ -182,4 +186,8 @@ class CommandRunnerParams {
     return actionGraphCache;
   }
 
+  public Optional<RuleKeyDiagnosticsLog> getRuleKeyDiagnosticsLog() {
+    return ruleKeyDiagnosticsLog;
+  }
+
 }
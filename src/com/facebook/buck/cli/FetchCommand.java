@@ -17,6 +17,7 @@
 package com.facebook.buck.cli;
 
 import com.facebook.buck.android.DefaultAndroidDirectoryResolver;
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.file.Downloader;
@@ -109,11 +110,16 @@ public class FetchCommand extends BuildCommand {
               params.getBuckConfig().getBuildDepFiles(),
               params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
               params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+              new ArtifactCacheBuckConfig(params.getBuckConfig()).getMaxFetchBatchSize(),
               params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
               params.getObjectMapper(),
               actionGraphAndResolver.getResolver(),
               params.getBuckConfig().getKeySeed(),
-              params.getBuckConfig().getResourceAwareSchedulingInfo()),
+              params.getBuckConfig().getRuleKeyHashFunction(),
+              Optional.empty(),
+              params.getRuleKeyDiagnosticsLog(),
+              params.getBuckConfig().getResourceAwareSchedulingInfo(),
+              Optional.empty()),
           params.getArtifactCache(),
           params.getConsole(),
           params.getBuckEventBus(),
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.json.BuildFileParseException;
@@ -45,6 +46,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Optional;
 
 /**
  * Utility that aids in creating the objects necessary to traverse the target graph with special
@@ -134,11 +136,16 @@ final class JavaBuildGraphProcessor {
           params.getBuckConfig().getBuildDepFiles(),
           params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
           params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+          new ArtifactCacheBuckConfig(params.getBuckConfig()).getMaxFetchBatchSize(),
           params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
           params.getObjectMapper(),
           buildRuleResolver,
           params.getBuckConfig().getKeySeed(),
-          params.getBuckConfig().getResourceAwareSchedulingInfo());
+          params.getBuckConfig().getRuleKeyHashFunction(),
+          Optional.empty(),
+          Optional.empty(),
+          params.getBuckConfig().getResourceAwareSchedulingInfo(),
+          Optional.empty());
 
       // Create a BuildEngine because we store symbol information as build artifacts.
       BuckEventBus eventBus = params.getBuckEventBus();
@@ -27,6 +27,7 @@ import com.facebook.buck.android.NoAndroidSdkException;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.ArtifactCaches;
+import com.facebook.buck.artifact_cache.ArtifactMissCache;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.config.Config;
 import com.facebook.buck.config.Configs;
@@ -71,6 +72,7 @@ import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
+import com.facebook.buck.parser.RawNodeSnapshot;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellProvider;
@@ -81,6 +83,8 @@ import com.facebook.buck.rules.KnownBuildRuleTypesFactory;
 import com.facebook.buck.rules.RelativeCellName;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.RuleKeyDiagnosticsLog;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.test.TestConfig;
 import com.facebook.buck.test.TestResultSummaryVerbosity;
@@ -107,8 +111,10 @@ import com.facebook.buck.util.WatchmanWatcher;
 import com.facebook.buck.util.WatchmanWatcherException;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.PersistentFileHashStore;
 import com.facebook.buck.util.cache.StackedFileHashCache;
 import com.facebook.buck.util.cache.WatchedFileHashCache;
+import com.facebook.buck.util.cache.WatchmanFileHashPreloader;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.concurrent.TimeSpan;
 import com.facebook.buck.util.environment.Architecture;
@@ -326,13 +332,17 @@ public final class Main {
     private final Optional<UUID> watchmanQueryUUID;
     private final ActionGraphCache actionGraphCache;
     private final BroadcastEventListener broadcastEventListener;
+    private final Optional<ArtifactMissCache> artifactMissCache;
+    private final Optional<PersistentFileHashStore> fileHashStore;
+    private final Optional<RawNodeSnapshot> rawNodeSnapshot;
 
     public Daemon(
         Cell cell,
         ObjectMapper objectMapper,
         Optional<WebServer> webServerToReuse) {
       this.cell = cell;
-      this.hashCache = new WatchedFileHashCache(cell.getFilesystem());
+      this.fileHashStore = newFileHashStore(cell);
+      this.hashCache = new WatchedFileHashCache(cell.getFilesystem(), fileHashStore);
         this.buckOutHashCache =
             DefaultFileHashCache.createBuckOutFileHashCache(
                 createProjectFilesystem(cell.getFilesystem().getRootPath()),
@@ -340,14 +350,24 @@ public final class Main {
       this.fileEventBus = new EventBus("file-change-events");
 
       this.broadcastEventListener = new BroadcastEventListener();
-      this.actionGraphCache = new ActionGraphCache(broadcastEventListener);
-
+      this.actionGraphCache = new ActionGraphCache(
+          broadcastEventListener,
+          cell.getBuckConfig().getRuleKeyCacheInDaemon() ?
+              getWatchedPathRoot(cell.getWatchman())
+                  .map(watchedRoot -> new DefaultRuleKeyCache(cell.getFilesystem(), watchedRoot)) :
+              Optional.empty());
+      this.artifactMissCache = ArtifactCaches.newMissCache(
+          new ArtifactCacheBuckConfig(cell.getBuckConfig()),
+          cell.getFilesystem());
+
+      this.rawNodeSnapshot = newRawNodeSnapshot(cell);
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory(objectMapper);
       this.parser = new Parser(
           this.broadcastEventListener,
           cell.getBuckConfig().getView(ParserConfig.class),
           typeCoercerFactory,
-          new ConstructorArgMarshaller(typeCoercerFactory));
+          new ConstructorArgMarshaller(typeCoercerFactory),
+          rawNodeSnapshot);
       fileEventBus.register(parser);
       fileEventBus.register(actionGraphCache);
       fileEventBus.register(hashCache);
@@ -433,6 +453,18 @@ public final class Main {
       return actionGraphCache;
     }
 
+    private Optional<ArtifactMissCache> getArtifactMissCache() {
+      return artifactMissCache;
+    }
+
+    private Optional<PersistentFileHashStore> getFileHashStore() {
+      return fileHashStore;
+    }
+
+    private Optional<RawNodeSnapshot> getRawNodeSnapshot() {
+      return rawNodeSnapshot;
+    }
+
     private BroadcastEventListener getBroadcastEventListener() {
       return broadcastEventListener;
     }
@@ -441,6 +473,33 @@ public final class Main {
       return hashCache;
     }
 
+    /**
+     * @return the directory that the paths of Watchman's file change events are relative to, or
+     *     nothing if there is no Watchman to report changes.
+     */
+    private static Optional<Path> getWatchedPathRoot(Watchman watchman) {
+      if (!watchman.getWatchRoot().isPresent()) {
+        return Optional.empty();
+      }
+      Path watchRoot = Paths.get(watchman.getWatchRoot().get());
+      return Optional.of(watchman.getProjectPrefix().map(watchRoot::resolve).orElse(watchRoot));
+    }
+
+    /**
+     * Fills the file hash cache with the hashes Watchman has, if it is empty because the daemon
+     * is new or all hashes were dropped after missing file change events.
+     */
+    private void preloadFileHashes(Watchman watchman) throws InterruptedException {
+      if (!cell.getBuckConfig().getFileHashesFromWatchman() || !hashCache.isEmpty()) {
+        return;
+      }
+      try {
+        WatchmanFileHashPreloader.preload(watchman, cell.getFilesystem(), hashCache);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to preload file hashes from Watchman.");
+      }
+    }
+
     private FileHashCache getBuckOutHashCache() {
       return buckOutHashCache;
     }
@@ -939,11 +998,16 @@ public final class Main {
         // uses the defaults.
         ProjectFilesystem rootCellProjectFilesystem =
             createProjectFilesystem(rootCell.getFilesystem().getRootPath());
+        Optional<PersistentFileHashStore> fileHashStore;
         if (isDaemon) {
           cellHashCache = getFileHashCacheFromDaemon(rootCell);
           buckOutHashCache = getBuckOutFileHashCacheFromDaemon(rootCell);
+          fileHashStore = getDaemon(rootCell, objectMapper).getFileHashStore();
         } else {
-          cellHashCache = DefaultFileHashCache.createDefaultFileHashCache(rootCell.getFilesystem());
+          fileHashStore = newFileHashStore(rootCell);
+          cellHashCache = DefaultFileHashCache.createDefaultFileHashCache(
+              rootCell.getFilesystem(),
+              fileHashStore);
           buckOutHashCache =
               DefaultFileHashCache.createBuckOutFileHashCache(
                   rootCellProjectFilesystem,
@@ -986,6 +1050,8 @@ public final class Main {
         ExecutorService diskIoExecutorService = MostExecutors.newSingleThreadExecutor("Disk I/O");
         ListeningExecutorService httpWriteExecutorService =
             getHttpWriteExecutorService(cacheBuckConfig);
+        ListeningExecutorService httpFetchExecutorService =
+            getHttpFetchExecutorService(cacheBuckConfig);
         ScheduledExecutorService counterAggregatorExecutor =
             Executors.newSingleThreadScheduledExecutor(new CommandThreadFactory(
                 "CounterAggregatorThread"));
@@ -1020,6 +1086,13 @@ public final class Main {
             buildId,
             command.getSubCommandNameForLogging(),
             filesystem.getBuckPaths().getLogDir());
+        Optional<RuleKeyDiagnosticsLog> ruleKeyDiagnosticsLog =
+            buckConfig.isRuleKeyDiagnosticsLogEnabled() ?
+                Optional.of(
+                    new RuleKeyDiagnosticsLog(
+                        filesystem.resolve(invocationInfo.getLogDirectoryPath())
+                            .resolve(BuckConstant.RULE_KEY_DIAGNOSTICS_LOG_FILE_NAME))) :
+                Optional.empty();
         try (
             GlobalStateManager.LoggerIsMappedToThreadScope loggerThreadMappingScope =
                 GlobalStateManager.singleton().setupLoggers(
@@ -1038,6 +1111,8 @@ public final class Main {
                     locale,
                     filesystem.getBuckPaths().getLogDir().resolve("test.log"));
             AsyncCloseable asyncCloseable = new AsyncCloseable(diskIoExecutorService);
+            Closeable closeRuleKeyDiagnosticsLog =
+                () -> ruleKeyDiagnosticsLog.ifPresent(RuleKeyDiagnosticsLog::close);
             BuckEventBus buildEventBus = new BuckEventBus(clock, buildId);
             BroadcastEventListener.BroadcastEventBusClosable broadcastEventBusClosable =
                 broadcastEventListener.addEventBus(buildEventBus);
@@ -1063,13 +1138,19 @@ public final class Main {
 
           buildEventBus.register(HANG_MONITOR.getHangMonitor());
 
+          // The daemon remembers network cache misses across commands.
+          Optional<ArtifactMissCache> artifactMissCache = isDaemon ?
+              getDaemon(rootCell, objectMapper).getArtifactMissCache() :
+              ArtifactCaches.newMissCache(cacheBuckConfig, filesystem);
           ArtifactCache artifactCache = asyncCloseable.closeAsync(
               ArtifactCaches.newInstance(
                   cacheBuckConfig,
                   buildEventBus,
                   filesystem,
                   executionEnvironment.getWifiSsid(),
-                  httpWriteExecutorService));
+                  httpWriteExecutorService,
+                  httpFetchExecutorService,
+                  artifactMissCache));
 
           ProgressEstimator progressEstimator =
               new ProgressEstimator(
@@ -1144,6 +1225,7 @@ public final class Main {
           // Create or get Parser and invalidate cached command parameters.
           Parser parser = null;
           ActionGraphCache actionGraphCache = null;
+          Optional<RawNodeSnapshot> rawNodeSnapshot = Optional.empty();
 
           if (isDaemon) {
             try {
@@ -1165,7 +1247,11 @@ public final class Main {
                   watchmanWatcher,
                   watchmanFreshInstanceAction,
                   watchmanDiagnosticCache);
+              // This comes after posting file change events, since an overflow event would drop
+              // the preloaded hashes again.
+              daemon.preloadFileHashes(watchman);
               actionGraphCache = daemon.getActionGraphCache();
+              rawNodeSnapshot = daemon.getRawNodeSnapshot();
             } catch (WatchmanWatcherException | IOException e) {
               buildEventBus.post(
                   ConsoleEvent.warning(
@@ -1179,12 +1265,14 @@ public final class Main {
           }
 
           if (parser == null) {
+            rawNodeSnapshot = newRawNodeSnapshot(rootCell);
             TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory(objectMapper);
             parser = new Parser(
                 broadcastEventListener,
                 rootCell.getBuckConfig().getView(ParserConfig.class),
                 typeCoercerFactory,
-                new ConstructorArgMarshaller(typeCoercerFactory));
+                new ConstructorArgMarshaller(typeCoercerFactory),
+                rawNodeSnapshot);
           }
 
           // Because the Parser is potentially constructed before the CounterRegistry,
@@ -1241,10 +1329,18 @@ public final class Main {
                   fileHashCache,
                   executors,
                   buildEnvironmentDescription,
-                  actionGraphCache));
+                  actionGraphCache,
+                  ruleKeyDiagnosticsLog));
           // Wait for HTTP writes to complete.
           closeHttpExecutorService(
-              cacheBuckConfig, Optional.of(buildEventBus), httpWriteExecutorService);
+              cacheBuckConfig, Optional.of(buildEventBus), httpWriteExecutorService, isDaemon);
+          saveArtifactMissCache(artifactMissCache);
+          saveFileHashStore(fileHashStore);
+          saveRawNodeSnapshot(rawNodeSnapshot, rootCell.getWatchman().getClockId());
+          closeExecutorService(
+              "HTTP Fetch",
+              httpFetchExecutorService,
+              EXECUTOR_SERVICES_TIMEOUT_SECONDS);
           closeExecutorService(
               "CounterAggregatorExecutor",
               counterAggregatorExecutor,
@@ -1253,7 +1349,11 @@ public final class Main {
         } catch (Throwable t) {
           LOG.debug(t, "Failing build on exception.");
           closeHttpExecutorService(
-              cacheBuckConfig, Optional.empty(), httpWriteExecutorService);
+              cacheBuckConfig, Optional.empty(), httpWriteExecutorService, isDaemon);
+          closeExecutorService(
+              "HTTP Fetch",
+              httpFetchExecutorService,
+              EXECUTOR_SERVICES_TIMEOUT_SECONDS);
           closeDiskIoExecutorService(diskIoExecutorService);
           flushEventListeners(console, buildId, eventListeners);
           throw t;
@@ -1396,14 +1496,81 @@ public final class Main {
     closeExecutorService("Disk IO", diskIoExecutorService, DISK_IO_STATS_TIMEOUT_SECONDS);
   }
 
+  private static Optional<PersistentFileHashStore> newFileHashStore(Cell cell) {
+    if (!cell.getBuckConfig().getFileHashCacheOnDisk()) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        PersistentFileHashStore.load(
+            cell.getFilesystem().resolve(cell.getFilesystem().getBuckPaths().getFileHashesFile())));
+  }
+
+  private static void saveFileHashStore(Optional<PersistentFileHashStore> fileHashStore) {
+    if (fileHashStore.isPresent()) {
+      try {
+        fileHashStore.get().save();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save file hashes.");
+      }
+    }
+  }
+
+  /**
+   * Loads the raw nodes saved by an earlier process, dropping those of build files that may have
+   * changed since.
+   */
+  private static Optional<RawNodeSnapshot> newRawNodeSnapshot(Cell cell) {
+    if (!cell.getBuckConfig().getView(ParserConfig.class).getPersistRawNodes()) {
+      return Optional.empty();
+    }
+    RawNodeSnapshot rawNodeSnapshot = RawNodeSnapshot.load(
+        cell.getFilesystem().resolve(cell.getFilesystem().getBuckPaths().getRawNodeSnapshotFile()));
+    try {
+      rawNodeSnapshot.invalidateChangesSince(cell.getWatchman());
+    } catch (InterruptedException e) {
+      rawNodeSnapshot.invalidateAll();
+      Thread.currentThread().interrupt();
+    }
+    return Optional.of(rawNodeSnapshot);
+  }
+
+  private static void saveRawNodeSnapshot(
+      Optional<RawNodeSnapshot> rawNodeSnapshot,
+      Optional<String> watchmanClock) {
+    if (rawNodeSnapshot.isPresent()) {
+      try {
+        rawNodeSnapshot.get().save(watchmanClock);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save raw nodes.");
+      }
+    }
+  }
+
+  private static void saveArtifactMissCache(Optional<ArtifactMissCache> artifactMissCache) {
+    if (artifactMissCache.isPresent()) {
+      try {
+        artifactMissCache.get().save();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to save network cache misses.");
+      }
+    }
+  }
+
   private static void closeHttpExecutorService(
       ArtifactCacheBuckConfig buckConfig,
       Optional<BuckEventBus> eventBus,
-      ListeningExecutorService httpWriteExecutorService) throws InterruptedException {
-    closeExecutorService(
-        "HTTP Write",
-        httpWriteExecutorService,
-        buckConfig.getHttpWriterShutdownTimeout());
+      ListeningExecutorService httpWriteExecutorService,
+      boolean isDaemon) throws InterruptedException {
+    if (isDaemon && buckConfig.getHttpDrainUploadsInBackground()) {
+      // The daemon outlives the command, so let it finish the uploads in the meantime.
+      LOG.info("Leaving the HTTP Write executor service to drain in the background.");
+      httpWriteExecutorService.shutdown();
+    } else {
+      closeExecutorService(
+          "HTTP Write",
+          httpWriteExecutorService,
+          buckConfig.getHttpWriterShutdownTimeout());
+    }
 
     if (eventBus.isPresent()) {
       eventBus.get().post(HttpArtifactCacheEvent.newShutdownEvent());
@@ -1423,6 +1590,19 @@ public final class Main {
     }
   }
 
+  private static ListeningExecutorService getHttpFetchExecutorService(
+      ArtifactCacheBuckConfig buckConfig) {
+    if (buckConfig.getMaxFetchBatchSize() > 1) {
+      ExecutorService executorService = MostExecutors.newMultiThreadExecutor(
+          "HTTP Fetch",
+          buckConfig.getMaxFetchBatchSize());
+
+      return listeningDecorator(executorService);
+    } else {
+      return newDirectExecutorService();
+    }
+  }
+
   @VisibleForTesting
   static Supplier<AndroidPlatformTarget> createAndroidPlatformTargetSupplier(
       final AndroidDirectoryResolver androidDirectoryResolver,
@@ -33,7 +33,9 @@ import com.facebook.buck.model.HasTests;
 import com.facebook.buck.model.InMemoryBuildFileTree;
 import com.facebook.buck.parser.BuildFileSpec;
 import com.facebook.buck.parser.ParserConfig;
+import com.facebook.buck.parser.SpeculativeParsing;
 import com.facebook.buck.parser.TargetNodePredicateSpec;
+import com.facebook.buck.parser.TargetNodeSpec;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.ActionGraphAndResolver;
 import com.facebook.buck.rules.ActionGraphCache;
@@ -69,6 +71,7 @@ import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
@@ -343,6 +346,10 @@ public class TargetsCommand extends AbstractCommand {
       return 0;
     }
 
+    if (canListTargetNamesWithoutNodes(params)) {
+      return printTargetNames(params, executor);
+    }
+
     return printResults(
         params,
         executor,
@@ -352,6 +359,59 @@ public class TargetsCommand extends AbstractCommand {
             buildRuleTypes));
   }
 
+  /**
+   * @return whether the targets to print are all the targets matching some build target patterns,
+   *     so that their names can be listed from the build files without creating their nodes or
+   *     parsing their dependencies.
+   */
+  private boolean canListTargetNamesWithoutNodes(CommandRunnerParams params) {
+    if (getArguments().isEmpty() ||
+        shouldUseJsonFormat() ||
+        isDetectTestChanges() ||
+        !referencedFiles.get().isEmpty() ||
+        !getTypes().isEmpty()) {
+      return false;
+    }
+    // A single target has to be checked to exist, which needs its node.
+    for (TargetNodeSpec spec :
+         parseArgumentsAsTargetNodeSpecs(params.getBuckConfig(), getArguments())) {
+      if (!(spec instanceof TargetNodePredicateSpec)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int printTargetNames(
+      CommandRunnerParams params,
+      ListeningExecutorService executor)
+      throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
+    ParserConfig parserConfig = params.getBuckConfig().getView(ParserConfig.class);
+    ImmutableList<ImmutableSet<BuildTarget>> buildTargets = params.getParser()
+        .resolveTargetSpecs(
+            params.getBuckEventBus(),
+            params.getCell(),
+            getEnableParserProfiling(),
+            executor,
+            parseArgumentsAsTargetNodeSpecs(
+                params.getBuckConfig(),
+                getArguments()),
+            SpeculativeParsing.of(false),
+            parserConfig.getDefaultFlavorsMode());
+    ImmutableSortedSet.Builder<String> targetNames = ImmutableSortedSet.naturalOrder();
+    for (BuildTarget buildTarget : Iterables.concat(buildTargets)) {
+      targetNames.add(buildTarget.getFullyQualifiedName());
+    }
+    if (isPrint0()) {
+      printNullDelimitedTargets(targetNames.build(), params.getConsole().getStdOut());
+    } else {
+      for (String target : targetNames.build()) {
+        params.getConsole().getStdOut().println(target);
+      }
+    }
+    return 0;
+  }
+
   private TargetGraphAndBuildTargets buildTargetGraphAndTargetsForShowRules(
       CommandRunnerParams params,
       ListeningExecutorService executor,
@@ -806,7 +866,8 @@ public class TargetsCommand extends AbstractCommand {
             new DefaultRuleKeyBuilderFactory(
                 params.getBuckConfig().getKeySeed(),
                 params.getFileHashCache(),
-                new SourcePathResolver(result.getResolver())));
+                new SourcePathResolver(result.getResolver()),
+                params.getBuckConfig().getRuleKeyHashFunction()));
       }
     }
 
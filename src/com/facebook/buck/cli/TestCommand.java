@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.json.BuildFileParseException;
@@ -509,11 +510,18 @@ public class TestCommand extends BuildCommand {
               params.getBuckConfig().getBuildDepFiles(),
               params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
               params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+              new ArtifactCacheBuckConfig(params.getBuckConfig()).getMaxFetchBatchSize(),
               params.getBuckConfig().getBuildInputRuleKeyFileSizeLimit(),
               params.getObjectMapper(),
               actionGraphAndResolver.getResolver(),
               params.getBuckConfig().getKeySeed(),
-              params.getBuckConfig().getResourceAwareSchedulingInfo());
+              params.getBuckConfig().getRuleKeyHashFunction(),
+              params.getActionGraphCache().getRuleKeyCache(),
+              params.getRuleKeyDiagnosticsLog(),
+              params.getBuckConfig().getResourceAwareSchedulingInfo(),
+              params.getBuckConfig().getCriticalPathScheduler(
+                  params.getObjectMapper(),
+                  params.getClock()));
       try (Build build = createBuild(
           params.getBuckConfig(),
           actionGraphAndResolver.getActionGraph(),
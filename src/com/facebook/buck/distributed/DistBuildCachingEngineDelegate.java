@@ -20,6 +20,7 @@ import com.facebook.buck.hashing.FileHashLoader;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.CachingBuildEngineDelegate;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
@@ -46,7 +47,8 @@ public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegat
   public DistBuildCachingEngineDelegate(
       SourcePathResolver sourcePathResolver,
       final DistBuildState remoteState,
-      final LoadingCache<ProjectFilesystem, ? extends FileHashLoader> fileHashLoaders) {
+      final LoadingCache<ProjectFilesystem, ? extends FileHashLoader> fileHashLoaders,
+      RuleKeyHashFunction ruleKeyHashFunction) {
     this.fileHashCacheLoader = CacheBuilder.newBuilder()
         .build(new CacheLoader<ProjectFilesystem, FileHashCache>() {
           @Override
@@ -65,7 +67,8 @@ public class DistBuildCachingEngineDelegate implements CachingBuildEngineDelegat
     ruleKeyFactories = DistBuildFileHashes.createRuleKeyFactories(
         sourcePathResolver,
         fileHashLoaders,
-        /* keySeed */ 0);
+        /* keySeed */ 0,
+        ruleKeyHashFunction);
   }
 
   @Override
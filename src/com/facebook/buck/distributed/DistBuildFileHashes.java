@@ -25,6 +25,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
@@ -71,7 +72,8 @@ public class DistBuildFileHashes {
       final FileHashCache rootCellFileHashCache,
       final Function<? super Path, Integer> cellIndexer,
       ListeningExecutorService executorService,
-      final int keySeed) {
+      final int keySeed,
+      final RuleKeyHashFunction ruleKeyHashFunction) {
 
     this.remoteFileHashes = CacheBuilder.newBuilder().build(
         new CacheLoader<ProjectFilesystem, BuildJobStateFileHashes>() {
@@ -94,7 +96,11 @@ public class DistBuildFileHashes {
                 remoteFileHashes.get(key));
           }
         });
-    this.ruleKeyFactories = createRuleKeyFactories(sourcePathResolver, fileHashLoaders, keySeed);
+    this.ruleKeyFactories = createRuleKeyFactories(
+        sourcePathResolver,
+        fileHashLoaders,
+        keySeed,
+        ruleKeyHashFunction);
     this.ruleKeys = ruleKeyComputation(actionGraph, this.ruleKeyFactories, executorService);
     this.fileHashes = fileHashesComputation(
         Futures.transform(this.ruleKeys, Functions.constant(null)),
@@ -106,7 +112,8 @@ public class DistBuildFileHashes {
   createRuleKeyFactories(
       final SourcePathResolver sourcePathResolver,
       final LoadingCache<ProjectFilesystem, ? extends FileHashLoader> fileHashLoaders,
-      final int keySeed) {
+      final int keySeed,
+      final RuleKeyHashFunction ruleKeyHashFunction) {
     return CacheBuilder.newBuilder().build(
         new CacheLoader<ProjectFilesystem, DefaultRuleKeyBuilderFactory>() {
           @Override
@@ -114,8 +121,8 @@ public class DistBuildFileHashes {
             return new DefaultRuleKeyBuilderFactory(
                 /* seed */ keySeed,
                 fileHashLoaders.get(key),
-                sourcePathResolver
-            );
+                sourcePathResolver,
+                ruleKeyHashFunction);
           }
         });
   }
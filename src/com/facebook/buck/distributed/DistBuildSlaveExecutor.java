@@ -82,11 +82,18 @@ public class DistBuildSlaveExecutor {
         config.getBuildDepFiles(),
         config.getBuildMaxDepFileCacheEntries(),
         config.getBuildArtifactCacheSizeLimit(),
+        /* maxArtifactFetchBatchSize */ 1,
         config.getBuildInputRuleKeyFileSizeLimit(),
         args.getObjectMapper(),
         Preconditions.checkNotNull(actionGraphAndResolver).getResolver(),
         config.getKeySeed(),
-        config.getResourceAwareSchedulingInfo());
+        // The client's configuration comes with the build state, so this is the hash function it
+        // computed its rule keys with.
+        config.getRuleKeyHashFunction(),
+        /* defaultRuleKeyCache */ Optional.empty(),
+        /* ruleKeyDiagnosticsLog */ Optional.empty(),
+        config.getResourceAwareSchedulingInfo(),
+        Optional.empty());
 
     // TODO(ruibm): Fix this to work with Android.
     try (Build build = new Build(
@@ -193,7 +200,8 @@ public class DistBuildSlaveExecutor {
             new SourcePathResolver(
                 Preconditions.checkNotNull(actionGraphAndResolver).getResolver()),
             args.getState(),
-            fileHashLoaders);
+            fileHashLoaders,
+            args.getRemoteRootCellConfig().getRuleKeyHashFunction());
     return cachingBuildEngineDelegate;
   }
 
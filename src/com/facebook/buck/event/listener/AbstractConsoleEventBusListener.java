@@ -16,6 +16,7 @@
 package com.facebook.buck.event.listener;
 
 import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
+import com.facebook.buck.artifact_cache.ArtifactMissCacheEvent;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.cli.CommandEvent;
 import com.facebook.buck.distributed.DistBuildStatusEvent;
@@ -608,6 +609,11 @@ public abstract class AbstractConsoleEventBusListener implements BuckEventListen
     cacheRateStatsKeeper.buildRuleFinished(finished);
   }
 
+  @Subscribe
+  public void artifactMissCacheLookup(ArtifactMissCacheEvent lookup) {
+    cacheRateStatsKeeper.artifactMissCacheLookup(lookup);
+  }
+
   @Subscribe
   public void buildFinished(BuildEvent.Finished finished) {
     buildFinished = finished;
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.event.listener;
 
+import com.facebook.buck.artifact_cache.ArtifactMissCacheEvent;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.event.AbstractBuckEvent;
@@ -48,6 +49,10 @@ public class CacheRateStatsKeeper {
   private final AtomicInteger cacheErrors = new AtomicInteger(0);
   private final AtomicInteger cacheHits = new AtomicInteger(0);
 
+  // Counts the fetches that consulted the cache of network cache misses, and those it answered.
+  private final AtomicInteger missCacheLookups = new AtomicInteger(0);
+  private final AtomicInteger missCacheHits = new AtomicInteger(0);
+
   protected volatile Optional<Integer> ruleCount = Optional.empty();
 
   public void buildRuleFinished(BuildRuleEvent.Finished finished) {
@@ -74,6 +79,13 @@ public class CacheRateStatsKeeper {
     }
   }
 
+  public void artifactMissCacheLookup(ArtifactMissCacheEvent lookup) {
+    missCacheLookups.incrementAndGet();
+    if (lookup.isKnownMiss()) {
+      missCacheHits.incrementAndGet();
+    }
+  }
+
   public void ruleCountCalculated(BuildEvent.RuleCountCalculated calculated) {
     ruleCount = Optional.of(calculated.getNumRules());
   }
@@ -88,7 +100,9 @@ public class CacheRateStatsKeeper {
         cacheErrors.get(),
         cacheHits.get(),
         ruleCount.orElse(0),
-        updated.get());
+        updated.get(),
+        missCacheLookups.get(),
+        missCacheHits.get());
   }
 
   public static class CacheRateStatsUpdateEvent
@@ -100,19 +114,25 @@ public class CacheRateStatsKeeper {
     private final int cacheHitCount;
     private final int ruleCount;
     private final int updated;
+    private final int missCacheLookupCount;
+    private final int missCacheHitCount;
 
     public CacheRateStatsUpdateEvent(
         int cacheMissCount,
         int cacheErrorCount,
         int cacheHitCount,
         int ruleCount,
-        int updated) {
+        int updated,
+        int missCacheLookupCount,
+        int missCacheHitCount) {
       super(EventKey.unique());
       this.cacheMissCount = cacheMissCount;
       this.cacheErrorCount = cacheErrorCount;
       this.cacheHitCount = cacheHitCount;
       this.ruleCount = ruleCount;
       this.updated = updated;
+      this.missCacheLookupCount = missCacheLookupCount;
+      this.missCacheHitCount = missCacheHitCount;
     }
 
     @Override
@@ -125,6 +145,8 @@ public class CacheRateStatsKeeper {
           .add("cacheErrorCount", cacheErrorCount)
           .add("cacheErrorRate", getCacheErrorRate())
           .add("cacheHitCount", cacheHitCount)
+          .add("missCacheLookupCount", missCacheLookupCount)
+          .add("missCacheHitCount", missCacheHitCount)
           .toString();
     }
 
@@ -162,6 +184,20 @@ public class CacheRateStatsKeeper {
       return updated;
     }
 
+    /**
+     * @return number of network cache fetches that first consulted the cache of recent misses.
+     */
+    public int getMissCacheLookupCount() {
+      return missCacheLookupCount;
+    }
+
+    /**
+     * @return number of network cache fetches skipped because they were known to miss.
+     */
+    public int getMissCacheHitCount() {
+      return missCacheHitCount;
+    }
+
     @Override
     public String getEventName() {
       return CacheRateStatsUpdateExternalEventInterface.EVENT_NAME;
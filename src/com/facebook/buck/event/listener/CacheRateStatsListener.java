@@ -16,6 +16,7 @@
 
 package com.facebook.buck.event.listener;
 
+import com.facebook.buck.artifact_cache.ArtifactMissCacheEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.model.BuildId;
@@ -54,6 +55,11 @@ public class CacheRateStatsListener implements BuckEventListener {
     postRateLimitedCacheStatsUpdate();
   }
 
+  @Subscribe
+  public void artifactMissCacheLookup(ArtifactMissCacheEvent lookup) {
+    cacheRateStatsKeeper.artifactMissCacheLookup(lookup);
+  }
+
   @Subscribe
   public void buildFinished(@SuppressWarnings("unused") BuildEvent.Finished finished) {
     postCacheStatsUpdate();
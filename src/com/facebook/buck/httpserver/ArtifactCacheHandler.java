@@ -19,6 +19,7 @@ package com.facebook.buck.httpserver;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.FetchRequest;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheBinaryProtocol;
 import com.facebook.buck.artifact_cache.StoreResponseReadResult;
 import com.facebook.buck.io.BorrowablePath;
@@ -26,18 +27,33 @@ import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.environment.Platform;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.net.MediaType;
 
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -45,17 +61,30 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Implements a really simple cache server on top of the local dircache.
+ * <p>
+ * Besides fetching and storing single artifacts, it answers batches of fetches in one response
+ * and reports the latency and throughput of each of those endpoints at {@code /artifacts/stats}.
  */
 public class ArtifactCacheHandler extends AbstractHandler {
   private static final Logger LOG = Logger.get(ArtifactCacheHandler.class);
 
+  private static final String MULTI_FETCH_PATH = "/artifacts/multifetch";
+  private static final String STATS_PATH = "/artifacts/stats";
+
   private final ProjectFilesystem projectFilesystem;
+  private final ObjectMapper objectMapper;
   private Optional<ArtifactCache> artifactCache;
 
+  private final EndpointStats fetchStats = new EndpointStats();
+  private final EndpointStats multiFetchStats = new EndpointStats();
+  private final EndpointStats storeStats = new EndpointStats();
+
   public ArtifactCacheHandler(
-      ProjectFilesystem projectFilesystem) {
+      ProjectFilesystem projectFilesystem,
+      ObjectMapper objectMapper) {
     this.artifactCache = Optional.empty();
     this.projectFilesystem = projectFilesystem;
+    this.objectMapper = objectMapper;
   }
 
   public void setArtifactCache(Optional<ArtifactCache> artifactCache) {
@@ -68,20 +97,41 @@ public class ArtifactCacheHandler extends AbstractHandler {
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException, ServletException {
+    long startNanos = System.nanoTime();
+    Optional<EndpointStats> endpointStats = Optional.empty();
+    int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
     try {
-      int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
       String method = baseRequest.getMethod();
-      if (method.equals("GET")) {
+      String path = baseRequest.getUri().getPath();
+      if (method.equals("GET") && path.equals(STATS_PATH)) {
+        status = handleStats(response);
+      } else if (method.equals("GET")) {
+        endpointStats = Optional.of(fetchStats);
         status = handleGet(baseRequest, response);
+      } else if (method.equals("POST") && path.equals(MULTI_FETCH_PATH)) {
+        endpointStats = Optional.of(multiFetchStats);
+        status = handleMultiFetch(baseRequest, response);
       } else if (method.equals("PUT")) {
+        endpointStats = Optional.of(storeStats);
         status = handlePut(baseRequest, response);
       }
       response.setStatus(status);
     } catch (Exception e) {
       LOG.error(e, "Exception when handling request %s", target);
       e.printStackTrace(response.getWriter());
-      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+      response.setStatus(status);
     } finally {
+      // Recorded before the response is flushed, so that the stats are up to date by the time the
+      // client has it.
+      if (endpointStats.isPresent()) {
+        endpointStats.get().record(
+            System.nanoTime() - startNanos,
+            baseRequest.getHttpInput().getContentRead() +
+                baseRequest.getResponse().getContentCount(),
+            status < HttpServletResponse.SC_BAD_REQUEST ||
+                status == HttpServletResponse.SC_NOT_FOUND);
+      }
       response.flushBuffer();
       baseRequest.setHandled(true);
     }
@@ -104,29 +154,17 @@ public class ArtifactCacheHandler extends AbstractHandler {
 
     Path temp = null;
     try {
-      projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
-      temp = projectFilesystem.createTempFile(
-          projectFilesystem.getBuckPaths().getScratchDir(),
-          "outgoing_rulekey",
-          ".tmp");
+      temp = createTempFile("outgoing_rulekey");
       CacheResult fetchResult = artifactCache.get().fetch(ruleKey, LazyPath.ofInstance(temp));
       if (!fetchResult.getType().isSuccess()) {
         return HttpServletResponse.SC_NOT_FOUND;
       }
 
-      final Path tempFinal = temp;
       HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
-          new HttpArtifactCacheBinaryProtocol.FetchResponse(
-              ImmutableSet.of(ruleKey),
-              fetchResult.getMetadata(),
-              new ByteSource() {
-                @Override
-                public InputStream openStream() throws IOException {
-                  return projectFilesystem.newFileInputStream(tempFinal);
-                }
-              });
-      fetchResponse.write(response.getOutputStream());
+          newFetchResponse(ruleKey, fetchResult, temp);
       response.setContentLengthLong(fetchResponse.getContentLength());
+      fetchResponse.writeHeader(response.getOutputStream());
+      writePayload(temp, response.getOutputStream());
       return HttpServletResponse.SC_OK;
     } finally {
       if (temp != null) {
@@ -135,6 +173,57 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  /**
+   * Fetches a batch of rule keys. For each of them, in order, the response holds the length of a
+   * fetch response followed by it, or {@link HttpArtifactCacheBinaryProtocol#MULTI_FETCH_MISS}.
+   */
+  private int handleMultiFetch(
+      Request baseRequest,
+      HttpServletResponse response) throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(requestInputData);
+    }
+
+    List<Path> temps = new ArrayList<>(ruleKeys.size());
+    try {
+      ImmutableList.Builder<FetchRequest> requests = ImmutableList.builder();
+      for (RuleKey ruleKey : ruleKeys) {
+        Path temp = createTempFile("outgoing_rulekey");
+        temps.add(temp);
+        requests.add(FetchRequest.of(ruleKey, LazyPath.ofInstance(temp)));
+      }
+      ImmutableList<CacheResult> fetchResults = artifactCache.get().multiFetch(requests.build());
+
+      // The status has to be set before the body is written, which commits it.
+      response.setStatus(HttpServletResponse.SC_OK);
+      OutputStream responseOutput = response.getOutputStream();
+      DataOutputStream responseOutputData = new DataOutputStream(responseOutput);
+      for (int i = 0; i < ruleKeys.size(); i++) {
+        CacheResult fetchResult = fetchResults.get(i);
+        if (!fetchResult.getType().isSuccess()) {
+          responseOutputData.writeLong(HttpArtifactCacheBinaryProtocol.MULTI_FETCH_MISS);
+          continue;
+        }
+        HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
+            newFetchResponse(ruleKeys.get(i), fetchResult, temps.get(i));
+        responseOutputData.writeLong(fetchResponse.getContentLength());
+        fetchResponse.writeHeader(responseOutput);
+        writePayload(temps.get(i), responseOutput);
+      }
+      return HttpServletResponse.SC_OK;
+    } finally {
+      for (Path temp : temps) {
+        projectFilesystem.deleteFileAtPathIfExists(temp);
+      }
+    }
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
@@ -143,11 +232,7 @@ public class ArtifactCacheHandler extends AbstractHandler {
 
     Path temp = null;
     try {
-      projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
-      temp = projectFilesystem.createTempFile(
-          projectFilesystem.getBuckPaths().getScratchDir(),
-          "incoming_upload",
-          ".tmp");
+      temp = createTempFile("incoming_upload");
 
       StoreResponseReadResult storeRequest;
       try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream());
@@ -162,12 +247,14 @@ public class ArtifactCacheHandler extends AbstractHandler {
         return HttpServletResponse.SC_NOT_ACCEPTABLE;
       }
 
+      // Each upload has a temp file of its own, which the cache can move into place rather than
+      // copy, so concurrent uploads never see each other's partial files.
       artifactCache.get().store(
           ArtifactInfo.builder()
               .setRuleKeys(storeRequest.getRuleKeys())
               .setMetadata(storeRequest.getMetadata())
               .build(),
-          BorrowablePath.notBorrowablePath(temp));
+          BorrowablePath.borrowablePath(temp));
       return HttpServletResponse.SC_ACCEPTED;
     } finally {
       if (temp != null) {
@@ -176,4 +263,96 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
 
   }
+
+  private int handleStats(HttpServletResponse response) throws IOException {
+    response.setContentType(MediaType.JSON_UTF_8.toString());
+    objectMapper.writeValue(
+        response.getWriter(),
+        ImmutableMap.of(
+            "fetch", fetchStats.toMap(),
+            "multifetch", multiFetchStats.toMap(),
+            "store", storeStats.toMap()));
+    return HttpServletResponse.SC_OK;
+  }
+
+  private Path createTempFile(String prefix) throws IOException {
+    projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
+    return projectFilesystem.createTempFile(
+        projectFilesystem.getBuckPaths().getScratchDir(),
+        prefix,
+        ".tmp");
+  }
+
+  private HttpArtifactCacheBinaryProtocol.FetchResponse newFetchResponse(
+      RuleKey ruleKey,
+      CacheResult fetchResult,
+      final Path payload) throws IOException {
+    return new HttpArtifactCacheBinaryProtocol.FetchResponse(
+        ImmutableSet.of(ruleKey),
+        fetchResult.getMetadata(),
+        new ByteSource() {
+          @Override
+          public InputStream openStream() throws IOException {
+            return projectFilesystem.newFileInputStream(payload);
+          }
+        });
+  }
+
+  /**
+   * Sends the payload without copying it through the heap: Jetty writes a mapped buffer straight
+   * to the socket, and anything else gets it through {@link FileChannel#transferTo}.
+   */
+  private void writePayload(Path payload, OutputStream output) throws IOException {
+    try (FileChannel channel =
+             FileChannel.open(projectFilesystem.resolve(payload), StandardOpenOption.READ)) {
+      long size = channel.size();
+      // Windows can't delete a file while it is mapped, and the mapping outlives the request.
+      if (output instanceof HttpOutput &&
+          size <= Integer.MAX_VALUE &&
+          Platform.detect() != Platform.WINDOWS) {
+        ((HttpOutput) output).write(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        return;
+      }
+      WritableByteChannel target = Channels.newChannel(output);
+      long position = 0;
+      while (position < size) {
+        position += channel.transferTo(position, size - position, target);
+      }
+    }
+  }
+
+  /**
+   * Request counts, latencies and bytes transferred by one of the endpoints.
+   */
+  private static class EndpointStats {
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long elapsedNanos, long transferredBytes, boolean success) {
+      requests.incrementAndGet();
+      if (!success) {
+        errors.incrementAndGet();
+      }
+      bytes.addAndGet(transferredBytes);
+      totalNanos.addAndGet(elapsedNanos);
+      maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+    }
+
+    ImmutableMap<String, Long> toMap() {
+      long requestCount = requests.get();
+      long totalMillis = TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+      long byteCount = bytes.get();
+      return ImmutableMap.<String, Long>builder()
+          .put("requests", requestCount)
+          .put("errors", errors.get())
+          .put("bytes", byteCount)
+          .put("meanLatencyMillis", requestCount == 0 ? 0 : totalMillis / requestCount)
+          .put("maxLatencyMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()))
+          .put("bytesPerSecond", totalMillis == 0 ? 0 : byteCount * 1000 / totalMillis)
+          .build();
+    }
+  }
 }
@@ -81,7 +81,7 @@ public class WebServer {
     this.port = Optional.empty();
     this.server = new Server(port);
     this.streamingWebSocketServlet = new StreamingWebSocketServlet(objectMapper);
-    this.artifactCacheHandler = new ArtifactCacheHandler(projectFilesystem);
+    this.artifactCacheHandler = new ArtifactCacheHandler(projectFilesystem, objectMapper);
   }
 
   public Optional<Integer> getPort() {
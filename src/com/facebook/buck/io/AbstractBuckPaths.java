@@ -51,6 +51,46 @@ abstract class AbstractBuckPaths {
     return getBuckOut().resolve(".currentversion");
   }
 
+  /**
+   * Where the build engine keeps how long each rule took to build locally in previous builds.
+   */
+  @Value.Derived
+  public Path getRuleDurationsFile() {
+    return getBuckOut().resolve(".ruledurations");
+  }
+
+  /**
+   * Where the rule keys that recently missed in network caches are saved between processes.
+   */
+  @Value.Derived
+  public Path getRemoteCacheMissesFile() {
+    return getBuckOut().resolve(".remotecachemisses");
+  }
+
+  /**
+   * Where the hashes of source files are saved between processes.
+   */
+  @Value.Derived
+  public Path getFileHashesFile() {
+    return getBuckOut().resolve(".filehashes");
+  }
+
+  /**
+   * Where the raw nodes of parsed build files are saved between processes.
+   */
+  @Value.Derived
+  public Path getRawNodeSnapshotFile() {
+    return getBuckOut().resolve(".rawnodes");
+  }
+
+  /**
+   * Where the member hashes of prebuilt jars are kept, in files named after the jar's hash.
+   */
+  @Value.Derived
+  public Path getJarMemberHashesDir() {
+    return getBuckOut().resolve(".jarmemberhashes");
+  }
+
   @Value.Derived
   public Path getGenDir() {
     return getConfiguredBuckOut().resolve("gen");
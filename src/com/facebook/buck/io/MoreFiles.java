@@ -58,6 +58,8 @@ public final class MoreFiles {
   public static final long S_IFDIR = 0040000;
   @SuppressWarnings("PMD.AvoidUsingOctalValues")
   public static final long S_IFLNK = 0120000;
+  @SuppressWarnings("PMD.AvoidUsingOctalValues")
+  public static final long S_IFMT = 0170000;
 
   public enum DeleteRecursivelyOptions {
       IGNORE_NO_SUCH_FILE_EXCEPTION,
@@ -52,7 +52,8 @@ public class Watchman implements AutoCloseable {
     WILDMATCH_GLOB,
     WILDMATCH_MULTISLASH,
     GLOB_GENERATOR,
-    CLOCK_SYNC_TIMEOUT
+    CLOCK_SYNC_TIMEOUT,
+    CONTENT_SHA1HEX
   }
 
   public static final String NULL_CLOCK = "c:0:0";
@@ -71,6 +72,7 @@ public class Watchman implements AutoCloseable {
           .put("wildmatch_multislash", Capability.WILDMATCH_MULTISLASH)
           .put("glob_generator", Capability.GLOB_GENERATOR)
           .put("clock-sync-timeout", Capability.CLOCK_SYNC_TIMEOUT)
+          .put("field-content.sha1hex", Capability.CONTENT_SHA1HEX)
           .build();
 
   private static final Logger LOG = Logger.get(Watchman.class);
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.google.common.collect.ImmutableList;
+
+import org.immutables.value.Value;
+
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of the {@code glob()} calls in the build files of a cell, so that a build file that is
+ * parsed again doesn't have to walk the file system for them.
+ *
+ * Results are kept per package, for globs relative to it. What a glob matches can only change
+ * when a file is added or removed under the package, so {@link #invalidate(Path)} drops the globs
+ * of the packages above the path (globs aren't bounded by nested packages) and below it (in case
+ * it was a directory).
+ */
+public class GlobCache {
+  private static final Logger LOG = Logger.get(GlobCache.class);
+
+  // Keyed by the package's path relative to the cell root, with '/' as separator. Sorted, so the
+  // packages under a directory are next to each other.
+  private final ConcurrentNavigableMap<String, ConcurrentMap<GlobSpec, ImmutableList<String>>>
+      packageGlobs;
+  private final AtomicLong generation;
+
+  public GlobCache() {
+    this.packageGlobs = new ConcurrentSkipListMap<>();
+    this.generation = new AtomicLong(0);
+  }
+
+  public Optional<ImmutableList<String>> lookup(
+      String basePath,
+      Iterable<String> includes,
+      Iterable<String> excludes,
+      boolean includeDotfiles) {
+    ConcurrentMap<GlobSpec, ImmutableList<String>> globs = packageGlobs.get(basePath);
+    if (globs == null) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(globs.get(GlobSpec.of(includes, excludes, includeDotfiles)));
+  }
+
+  /**
+   * @return a value to pass to {@link #put}, taken before evaluating the glob.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Stores the results of a glob, unless anything was invalidated since {@code generation} was
+   * taken, as they may be out of date.
+   */
+  public void put(
+      long generation,
+      String basePath,
+      Iterable<String> includes,
+      Iterable<String> excludes,
+      boolean includeDotfiles,
+      ImmutableList<String> results) {
+    if (this.generation.get() != generation) {
+      return;
+    }
+    ConcurrentMap<GlobSpec, ImmutableList<String>> globs = packageGlobs.get(basePath);
+    if (globs == null) {
+      globs = new ConcurrentHashMap<>();
+      ConcurrentMap<GlobSpec, ImmutableList<String>> existing =
+          packageGlobs.putIfAbsent(basePath, globs);
+      if (existing != null) {
+        globs = existing;
+      }
+    }
+    GlobSpec spec = GlobSpec.of(includes, excludes, includeDotfiles);
+    globs.put(spec, results);
+    // An invalidation may have come in while we were storing the results, after it dropped
+    // what it had to.
+    if (this.generation.get() != generation) {
+      globs.remove(spec, results);
+    }
+  }
+
+  /**
+   * Drops the globs that could match {@code path}, which was added or removed.
+   *
+   * @param path relative to the cell root.
+   */
+  public void invalidate(Path path) {
+    generation.incrementAndGet();
+
+    String changed = MorePaths.pathWithUnixSeparators(path);
+    if (changed.isEmpty()) {
+      invalidateAll();
+      return;
+    }
+
+    int invalidated = 0;
+    // The packages the path is in.
+    String basePath = changed;
+    while (true) {
+      if (packageGlobs.remove(basePath) != null) {
+        invalidated++;
+      }
+      if (basePath.isEmpty()) {
+        break;
+      }
+      int slash = basePath.lastIndexOf('/');
+      basePath = slash == -1 ? "" : basePath.substring(0, slash);
+    }
+    // The packages under the path, if it's a directory. '0' comes right after '/'.
+    ConcurrentNavigableMap<String, ?> below = packageGlobs.subMap(changed + "/", changed + "0");
+    invalidated += below.size();
+    below.clear();
+
+    if (invalidated > 0) {
+      LOG.verbose("Invalidated globs of %d packages affected by %s", invalidated, changed);
+    }
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    packageGlobs.clear();
+  }
+
+  @Value.Immutable
+  @BuckStyleTuple
+  interface AbstractGlobSpec {
+    ImmutableList<String> getIncludes();
+    ImmutableList<String> getExcludes();
+    boolean getIncludeDotfiles();
+  }
+}
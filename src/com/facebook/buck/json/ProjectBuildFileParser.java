@@ -55,6 +55,7 @@ import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 
@@ -91,6 +92,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private boolean isClosed;
 
   private boolean enableProfiling;
+  private Optional<GlobCache> globCache;
   @Nullable private FutureTask<Void> stderrConsumerTerminationFuture;
   @Nullable private Thread stderrConsumerThread;
   @Nullable private ProjectBuildFileParseEvents.Started projectBuildFileParseEventStarted;
@@ -114,6 +116,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.assertSingleThreadedParsing = new AssertScopeExclusiveAccess();
     this.ignoreBuckAutodepsFiles = ignoreBuckAutodepsFiles;
     this.watchmanDiagnosticCache = watchmanDiagnosticCache;
+    this.globCache = Optional.empty();
 
     this.rawConfigJson =
         Suppliers.memoize(
@@ -157,6 +160,16 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.enableProfiling = enableProfiling;
   }
 
+  /**
+   * Makes buck.py look up the results of globs in {@code globCache} before evaluating them, and
+   * store the results of those it had to evaluate.
+   */
+  public void setGlobCache(GlobCache globCache) {
+    ensureNotClosed();
+    ensureNotInitialized();
+    this.globCache = Optional.of(globCache);
+  }
+
   @VisibleForTesting
   public boolean isClosed() {
     return isClosed;
@@ -275,6 +288,10 @@ public class ProjectBuildFileParser implements AutoCloseable {
       argBuilder.add("--use_mercurial_glob");
     }
 
+    if (globCache.isPresent()) {
+      argBuilder.add("--use_parent_glob_cache");
+    }
+
     if (options.getEnableBuildFileSandboxing()) {
       argBuilder.add("--enable_build_file_sandboxing");
     }
@@ -359,6 +376,9 @@ public class ProjectBuildFileParser implements AutoCloseable {
 
     ImmutableList<Map<String, Object>> values = ImmutableList.of();
     String profile = "";
+    // Taken before buck.py evaluates any glob, so that we don't store results that file system
+    // changes seen in the meantime made out of date.
+    long globCacheGeneration = globCache.map(GlobCache::getGeneration).orElse(0L);
     try (AssertScopeExclusiveAccess.Scope scope = assertSingleThreadedParsing.scope()) {
       bserSerializer.serializeToStream(
           ImmutableMap.of(
@@ -369,15 +389,13 @@ public class ProjectBuildFileParser implements AutoCloseable {
       buckPyStdinWriter.flush();
 
       LOG.debug("Parsing output of process %s...", buckPyProcess);
-      Object deserializedValue;
-      try {
-        deserializedValue = bserDeserializer.deserializeBserValue(
-            buckPyProcess.getInputStream());
-      } catch (BserDeserializer.BserEofException e) {
-        LOG.warn(e, "Parser exited while decoding BSER data");
-        throw new IOException("Parser exited unexpectedly", e);
+      Object deserializedValue = readFromBuckPy(buckPyProcess);
+      while (isGlobLookup(deserializedValue)) {
+        answerGlobLookup(deserializedValue, buckPyStdinWriter);
+        deserializedValue = readFromBuckPy(buckPyProcess);
       }
       BuildFilePythonResult resultObject = handleDeserializedValue(deserializedValue);
+      storeGlobs(resultObject.getGlobs(), globCacheGeneration);
       handleDiagnostics(
           buildFile,
           resultObject.getDiagnostics(),
@@ -396,6 +414,69 @@ public class ProjectBuildFileParser implements AutoCloseable {
     }
   }
 
+  @Nullable
+  private Object readFromBuckPy(ProcessExecutor.LaunchedProcess buckPyProcess)
+      throws IOException {
+    try {
+      return bserDeserializer.deserializeBserValue(buckPyProcess.getInputStream());
+    } catch (BserDeserializer.BserEofException e) {
+      LOG.warn(e, "Parser exited while decoding BSER data");
+      throw new IOException("Parser exited unexpectedly", e);
+    }
+  }
+
+  private static boolean isGlobLookup(@Nullable Object deserializedValue) {
+    return deserializedValue instanceof Map<?, ?> &&
+        ((Map<?, ?>) deserializedValue).containsKey("globLookup");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void answerGlobLookup(Object deserializedValue, OutputStream buckPyStdinWriter)
+      throws IOException {
+    Optional<ImmutableList<String>> results = Optional.empty();
+    if (globCache.isPresent()) {
+      Map<String, Object> lookup;
+      try {
+        lookup = (Map<String, Object>) ((Map<String, Object>) deserializedValue).get("globLookup");
+        results = globCache.get().lookup(
+            (String) lookup.get("basePath"),
+            (List<String>) lookup.get("includes"),
+            (List<String>) lookup.get("excludes"),
+            (Boolean) lookup.get("includeDotfiles"));
+      } catch (ClassCastException | NullPointerException e) {
+        throw new IOException("Invalid parser glob lookup", e);
+      }
+    }
+    // An empty reply tells buck.py to evaluate the glob itself.
+    bserSerializer.serializeToStream(
+        results.isPresent() ?
+            ImmutableMap.of("results", results.get()) :
+            ImmutableMap.of(),
+        buckPyStdinWriter);
+    buckPyStdinWriter.flush();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void storeGlobs(List<Map<String, Object>> globs, long globCacheGeneration)
+      throws IOException {
+    if (!globCache.isPresent()) {
+      return;
+    }
+    for (Map<String, Object> glob : globs) {
+      try {
+        globCache.get().put(
+            globCacheGeneration,
+            (String) glob.get("basePath"),
+            (List<String>) glob.get("includes"),
+            (List<String>) glob.get("excludes"),
+            (Boolean) glob.get("includeDotfiles"),
+            ImmutableList.copyOf((List<String>) glob.get("results")));
+      } catch (ClassCastException | NullPointerException e) {
+        throw new IOException("Invalid parser glob results", e);
+      }
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private static BuildFilePythonResult handleDeserializedValue(@Nullable Object deserializedValue)
       throws IOException {
@@ -422,10 +503,17 @@ public class ProjectBuildFileParser implements AutoCloseable {
     } catch (ClassCastException e) {
       throw new IOException("Invalid parser profile", e);
     }
+    List<Map<String, Object>> globs;
+    try {
+      globs = (List<Map<String, Object>>) decodedResult.get("globs");
+    } catch (ClassCastException e) {
+      throw new IOException("Invalid parser globs", e);
+    }
     return BuildFilePythonResult.of(
         values,
         diagnostics == null ? ImmutableList.of() : diagnostics,
-        profile == null ? "" : profile);
+        profile == null ? "" : profile,
+        globs == null ? ImmutableList.of() : globs);
   }
 
   private static void handleDiagnostics(
@@ -622,5 +710,6 @@ public class ProjectBuildFileParser implements AutoCloseable {
     List<Map<String, Object>> getValues();
     List<Map<String, String>> getDiagnostics();
     String getProfile();
+    List<Map<String, Object>> getGlobs();
   }
 }
@@ -65,6 +65,50 @@ class SyncCookieState(object):
         self.use_sync_cookies = True
 
 
+class ParentGlobCache(object):
+    """
+    Glob results kept by the parent process across parses.
+
+    Lookups are sent to the parent over the same BSER channel the results of a
+    parse are sent on, and answered over the channel build file queries come in
+    on. Globs that missed are sent back along with the results of the parse.
+    """
+
+    def __init__(self, to_parent, from_parent):
+        self._to_parent = to_parent
+        self._from_parent = from_parent
+        self._new_results = []
+
+    def lookup(self, base_path, includes, excludes, include_dotfiles):
+        self._to_parent.write(bser.dumps({
+            'globLookup': {
+                'basePath': base_path,
+                'includes': includes,
+                'excludes': excludes,
+                'includeDotfiles': include_dotfiles,
+            },
+        }))
+        self._to_parent.flush()
+        reply = bser.load(self._from_parent)
+        if reply is None:
+            raise IOError('Parent closed the connection while looking up a glob.')
+        return reply.get('results')
+
+    def record(self, base_path, includes, excludes, include_dotfiles, results):
+        self._new_results.append({
+            'basePath': base_path,
+            'includes': includes,
+            'excludes': excludes,
+            'includeDotfiles': include_dotfiles,
+            'results': results,
+        })
+
+    def drain(self):
+        new_results = self._new_results
+        self._new_results = []
+        return new_results
+
+
 class BuildContextType(object):
 
     """
@@ -85,7 +129,7 @@ class BuildFileContext(object):
     def __init__(self, project_root, base_path, dirname, autodeps, allow_empty_globs, ignore_paths,
                  watchman_client, watchman_watch_root, watchman_project_prefix,
                  sync_cookie_state, watchman_error, watchman_glob_stat_results,
-                 watchman_use_glob_generator, use_mercurial_glob):
+                 watchman_use_glob_generator, use_mercurial_glob, glob_cache=None):
         self.globals = {}
         self.includes = set()
         self.used_configs = {}
@@ -104,6 +148,7 @@ class BuildFileContext(object):
         self.watchman_glob_stat_results = watchman_glob_stat_results
         self.watchman_use_glob_generator = watchman_use_glob_generator
         self.use_mercurial_glob = use_mercurial_glob
+        self.glob_cache = glob_cache
         self.diagnostics = set()
         self.rules = {}
 
@@ -262,14 +307,47 @@ def glob(includes, excludes=None, include_dotfiles=False, build_env=None, search
     assert not isinstance(excludes, basestring), \
         "The excludes argument must be a list of strings."
 
+    # Only globs relative to the package are cached, so that the parent can tell which of them a
+    # file being added or removed affects.
+    glob_cache = build_env.glob_cache if search_base is None else None
+
     if search_base is None:
         search_base = Path(build_env.dirname)
     mercurial_repo_info = load_mercurial_repo_info(build_env, search_base, allow_safe_import)
+    if mercurial_repo_info is not None:
+        # The manifest, not the file system, decides what these match.
+        glob_cache = None
 
     results = None
     if not includes:
         results = []
-    elif mercurial_repo_info is not None:
+    elif glob_cache is not None:
+        results = glob_cache.lookup(build_env.base_path, includes, excludes, include_dotfiles)
+        if results is None:
+            results = glob_uncached(
+                includes, excludes, include_dotfiles, build_env, search_base,
+                mercurial_repo_info)
+            glob_cache.record(
+                build_env.base_path, includes, excludes, include_dotfiles, results)
+    else:
+        results = glob_uncached(
+            includes, excludes, include_dotfiles, build_env, search_base, mercurial_repo_info)
+
+    assert build_env.allow_empty_globs or results, (
+        "glob(includes={includes}, excludes={excludes}, include_dotfiles={include_dotfiles}) " +
+        "returned no results.  (allow_empty_globs is set to false in the Buck " +
+        "configuration)").format(
+            includes=includes,
+            excludes=excludes,
+            include_dotfiles=include_dotfiles)
+
+    return results
+
+
+def glob_uncached(includes, excludes, include_dotfiles, build_env, search_base,
+                  mercurial_repo_info):
+    results = None
+    if mercurial_repo_info is not None:
         results = glob_mercurial_manifest(
             includes, excludes, build_env.ignore_paths, include_dotfiles, search_base,
             build_env.project_root, mercurial_repo_info)
@@ -307,14 +385,6 @@ def glob(includes, excludes=None, include_dotfiles=False, build_env=None, search
             include_dotfiles,
             search_base,
             build_env.project_root)
-    assert build_env.allow_empty_globs or results, (
-        "glob(includes={includes}, excludes={excludes}, include_dotfiles={include_dotfiles}) " +
-        "returned no results.  (allow_empty_globs is set to false in the Buck " +
-        "configuration)").format(
-            includes=includes,
-            excludes=excludes,
-            include_dotfiles=include_dotfiles)
-
     return results
 
 
@@ -734,7 +804,7 @@ class BuildFileProcessor(object):
                  watchman_use_glob_generator, use_mercurial_glob, enable_build_file_sandboxing,
                  project_import_whitelist=None, implicit_includes=None,
                  extra_funcs=None, configs=None, env_vars=None,
-                 ignore_paths=None):
+                 ignore_paths=None, glob_cache=None):
         if project_import_whitelist is None:
             project_import_whitelist = []
         if implicit_includes is None:
@@ -767,6 +837,7 @@ class BuildFileProcessor(object):
         self._configs = configs
         self._env_vars = env_vars
         self._ignore_paths = ignore_paths
+        self.glob_cache = glob_cache
 
         lazy_functions = {}
         for func in BUILD_FUNCTIONS + extra_funcs:
@@ -1395,7 +1466,8 @@ class BuildFileProcessor(object):
             self._watchman_error,
             self._watchman_glob_stat_results,
             self._watchman_use_glob_generator,
-            self._use_mercurial_glob)
+            self._use_mercurial_glob,
+            glob_cache=self.glob_cache)
 
         # If the .autodeps file has been successfully parsed, then treat it as if it were
         # a file loaded via include_defs() in that a change to the .autodeps file should
@@ -1514,7 +1586,7 @@ def cygwin_adjusted_path(path):
         return path
 
 
-def encode_result(values, diagnostics, profile):
+def encode_result(values, diagnostics, profile, globs=None):
     result = {'values': values}
     if diagnostics:
         encoded_diagnostics = []
@@ -1527,6 +1599,8 @@ def encode_result(values, diagnostics, profile):
         result['diagnostics'] = encoded_diagnostics
     if profile is not None:
         result['profile'] = profile
+    if globs:
+        result['globs'] = globs
     try:
         return bser.dumps(result)
     except Exception as e:
@@ -1600,7 +1674,12 @@ def process_with_diagnostics(build_file_query, build_file_processor, to_parent,
         else:
             profile_result = None
 
-        to_parent.write(encode_result(values, diagnostics, profile_result))
+        if build_file_processor.glob_cache is not None:
+            globs = build_file_processor.glob_cache.drain()
+        else:
+            globs = None
+
+        to_parent.write(encode_result(values, diagnostics, profile_result, globs))
         to_parent.flush()
 
 
@@ -1718,6 +1797,12 @@ def main():
         action='store_true',
         dest='use_mercurial_glob',
         help='Use the mercurial manifest to get lists of files instead of globbing from disk.')
+    parser.add_option(
+        '--use_parent_glob_cache',
+        action='store_true',
+        dest='use_parent_glob_cache',
+        help='Asks the parent for the results of globs before evaluating them, and sends it the '
+             'results of those it did not have.')
     parser.add_option(
         '--include',
         action='append',
@@ -1812,6 +1897,10 @@ def main():
         with open(options.ignore_paths, 'rb') as f:
             ignore_paths = [make_glob(i) for i in bser.loads(f.read())]
 
+    glob_cache = None
+    if options.use_parent_glob_cache:
+        glob_cache = ParentGlobCache(to_parent, sys.stdin)
+
     buildFileProcessor = BuildFileProcessor(
         project_root,
         cell_roots,
@@ -1828,7 +1917,8 @@ def main():
         project_import_whitelist=options.build_file_import_whitelist or [],
         implicit_includes=options.include or [],
         configs=configs,
-        ignore_paths=ignore_paths)
+        ignore_paths=ignore_paths,
+        glob_cache=glob_cache)
 
     buildFileProcessor.install_builtins(__builtin__.__dict__)
 
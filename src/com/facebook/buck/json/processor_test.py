@@ -8,7 +8,13 @@ import StringIO
 
 from pywatchman import bser
 
-from .buck import BuildFileProcessor, Diagnostic, add_rule, process_with_diagnostics
+from .buck import (
+    BuildFileProcessor,
+    Diagnostic,
+    ParentGlobCache,
+    add_rule,
+    process_with_diagnostics,
+)
 
 
 def foo_rule(name, srcs=[], visibility=[], build_env=None):
@@ -410,6 +416,43 @@ class BuckTest(unittest.TestCase):
                 source='watchman')]),
             diagnostics)
 
+    def test_parent_glob_cache_is_asked_before_globbing(self):
+        build_file = ProjectFile(
+            self.project_root,
+            path='BUCK',
+            contents=(
+                'foo_rule(',
+                '  name="foo",'
+                '  srcs=glob(["*.java"]) + glob(["*.txt"]),',
+                ')'
+            ))
+        java_file = ProjectFile(self.project_root, path='Foo.java', contents=())
+        txt_file = ProjectFile(self.project_root, path='Foo.txt', contents=())
+        self.write_files(build_file, java_file, txt_file)
+
+        # The parent has the *.java glob cached, with a result that isn't on disk.
+        to_parent = StringIO.StringIO()
+        from_parent = StringIO.StringIO(
+            bser.dumps({'results': ['Cached.java']}) + bser.dumps({}))
+        glob_cache = ParentGlobCache(to_parent, from_parent)
+        build_file_processor = self.create_build_file_processor(
+            extra_funcs=[foo_rule],
+            glob_cache=glob_cache)
+        build_file_processor.install_builtins(__builtin__.__dict__)
+        rules = build_file_processor.process(build_file.root, build_file.prefix, build_file.path,
+                                             set())
+
+        self.assertEqual(['Cached.java', 'Foo.txt'], rules[0]['srcs'])
+        self.assertEqual(
+            [{
+                'basePath': '',
+                'includes': ['*.txt'],
+                'excludes': [],
+                'includeDotfiles': False,
+                'results': ['Foo.txt'],
+            }],
+            glob_cache.drain())
+
     def test_read_config(self):
         """
         Verify that the builtin `read_config()` function works.
@@ -20,6 +20,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import org.immutables.value.Value;
 
@@ -59,6 +60,14 @@ abstract class AbstractBuildTargetSpec implements TargetNodeSpec {
     return ImmutableMap.of(getBuildTarget(), firstMatchingNode);
   }
 
+  @Override
+  public Optional<ImmutableSet<BuildTarget>> filterBuildTargets(
+      Iterable<BuildTarget> buildTargets) {
+    // The target is returned whether or not it's defined, the node is only used for its default
+    // flavors.
+    return Optional.of(ImmutableSet.of(getBuildTarget()));
+  }
+
   @Override
   public String toString() {
     return getBuildTarget().getFullyQualifiedName();
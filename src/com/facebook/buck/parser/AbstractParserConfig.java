@@ -181,6 +181,33 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return Math.min(value, getDelegate().getNumThreads());
   }
 
+  /**
+   * @return whether parsers for the root cell are started as soon as parsing begins, when nothing
+   *     has been parsed in it yet, instead of when the first build file is parsed.
+   */
+  @Value.Lazy
+  public boolean getPrewarmParsers() {
+    return getDelegate().getBooleanValue("project", "prewarm_parsers", true);
+  }
+
+  /**
+   * @return whether the results of globs in build files are kept by Buck between parses, and only
+   *     evaluated again after files are added or removed under the package.
+   */
+  @Value.Lazy
+  public boolean getCacheGlobs() {
+    return getDelegate().getBooleanValue("project", "cache_globs", false);
+  }
+
+  /**
+   * @return whether raw nodes of parsed build files are saved between processes, so that only the
+   *     build files that changed since have to be parsed again.
+   */
+  @Value.Lazy
+  public boolean getPersistRawNodes() {
+    return getDelegate().getBooleanValue("project", "persist_raw_nodes", false);
+  }
+
   @Value.Lazy
   public ApplyDefaultFlavorsMode getDefaultFlavorsMode() {
     return getDelegate().getEnum(
@@ -20,7 +20,9 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import org.immutables.value.Value;
 
@@ -59,4 +61,14 @@ abstract class AbstractTargetNodePredicateSpec implements TargetNodeSpec {
     return resultBuilder.build();
   }
 
+  @Override
+  public Optional<ImmutableSet<BuildTarget>> filterBuildTargets(
+      Iterable<BuildTarget> buildTargets) {
+    // Patterns like //foo/... match every target, whatever its node looks like.
+    if (getPredicate().equals(Predicates.alwaysTrue())) {
+      return Optional.of(ImmutableSet.copyOf(buildTargets));
+    }
+    return Optional.empty();
+  }
+
 }
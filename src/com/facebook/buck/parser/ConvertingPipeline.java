@@ -92,6 +92,34 @@ public abstract class ConvertingPipeline<F, T> extends ParsePipeline<T> {
     );
   }
 
+  /**
+   * Asynchronously obtain the targets of all the nodes in a build file, without converting any of
+   * them.
+   *
+   * @param cell the {@link Cell} that the build file belongs to.
+   * @param buildFile absolute path to the file to process.
+   * @return future.
+   */
+  public ListenableFuture<ImmutableSet<BuildTarget>> getAllBuildTargetsJob(
+      final Cell cell,
+      final Path buildFile) throws BuildTargetException {
+    return Futures.transform(
+        getItemsToConvert(cell, buildFile),
+        new Function<ImmutableSet<F>, ImmutableSet<BuildTarget>>() {
+          @Override
+          public ImmutableSet<BuildTarget> apply(ImmutableSet<F> allToConvert) {
+            ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
+            for (F from : allToConvert) {
+              if (isValid(from)) {
+                targets.add(getBuildTarget(cell.getRoot(), buildFile, from));
+              }
+            }
+            return targets.build();
+          }
+        },
+        executorService);
+  }
+
   @Override
   public ListenableFuture<T> getNodeJob(
       final Cell cell,
@@ -22,9 +22,12 @@ import com.facebook.buck.counters.IntegerCounter;
 import com.facebook.buck.counters.TagSetCounter;
 import com.facebook.buck.event.ParsingEvent;
 import com.facebook.buck.event.listener.BroadcastEventListener;
+import com.facebook.buck.io.PathOrGlobMatcher;
 import com.facebook.buck.io.WatchEvents;
 import com.facebook.buck.json.BuildFileParseException;
+import com.facebook.buck.json.GlobCache;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
@@ -35,6 +38,7 @@ import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.OptionalCompat;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
@@ -44,10 +48,14 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.nio.file.Path;
@@ -163,10 +171,27 @@ class DaemonicParserState {
       invalidateIfBuckConfigHasChanged(cell, buildFile);
 
       DaemonicCellState state = getCellState(cell);
-      if (state == null) {
+      Optional<ImmutableSet<Map<String, Object>>> rawNodes =
+          state == null ? Optional.empty() : state.lookupRawNodes(buildFile);
+      if (!rawNodes.isPresent()) {
+        rawNodes = lookupRawNodeSnapshot(cell, buildFile);
+      }
+      return rawNodes;
+    }
+
+    private Optional<ImmutableSet<Map<String, Object>>> lookupRawNodeSnapshot(
+        Cell cell,
+        Path buildFile) {
+      if (!rawNodeSnapshot.isPresent()) {
+        return Optional.empty();
+      }
+      Optional<ImmutableSet<Map<String, Object>>> rawNodes =
+          rawNodeSnapshot.get().get(buildFile, getRawNodeSnapshotFingerprint(cell));
+      if (!rawNodes.isPresent() || !areConfigsUpToDate(cell, rawNodes.get())) {
         return Optional.empty();
       }
-      return state.lookupRawNodes(buildFile);
+      LOG.verbose("Using raw nodes of %s from the snapshot.", buildFile);
+      return Optional.of(putRawNodes(cell, buildFile, rawNodes.get(), false));
     }
 
     /**
@@ -179,7 +204,6 @@ class DaemonicParserState {
      * @param rawNodes nodes to insert
      * @return previous nodes for the file if the cache contained it, new ones otherwise.
      */
-    @SuppressWarnings({"unchecked", "PMD.EmptyIfStmt"})
     @Override
     public ImmutableSet<Map<String, Object>> putComputedNodeIfNotPresent(
         Cell cell,
@@ -193,7 +217,15 @@ class DaemonicParserState {
       // (and so the partially-constructed graph will contain stale nodes if the cache was
       // invalidated mid-way through the parse).
       invalidateIfProjectBuildFileParserStateChanged(cell);
+      return putRawNodes(cell, buildFile, rawNodes, true);
+    }
 
+    @SuppressWarnings({"unchecked", "PMD.EmptyIfStmt"})
+    private ImmutableSet<Map<String, Object>> putRawNodes(
+        Cell cell,
+        Path buildFile,
+        ImmutableSet<Map<String, Object>> rawNodes,
+        boolean addToSnapshot) {
       final ImmutableSet.Builder<Map<String, Object>> withoutMetaIncludesBuilder =
           ImmutableSet.builder();
       ImmutableSet.Builder<Path> dependentsOfEveryNode = ImmutableSet.builder();
@@ -243,12 +275,47 @@ class DaemonicParserState {
         dependentsOfEveryNode.add(cell.getFilesystem().resolve(include.substring(2)));
       }
 
+      ImmutableSet<Path> dependents = dependentsOfEveryNode.build();
+      if (addToSnapshot && rawNodeSnapshot.isPresent()) {
+        rawNodeSnapshot.get().put(
+            cell.getRoot(),
+            buildFile,
+            getRawNodeSnapshotFingerprint(cell),
+            dependents,
+            rawNodes);
+      }
+
       return getOrCreateCellState(cell).putRawNodesIfNotPresentAndStripMetaEntries(
           buildFile,
           withoutMetaIncludes,
-          dependentsOfEveryNode.build(),
+          dependents,
           configs);
     }
+
+    /**
+     * @return whether the config values that were read while parsing {@code rawNodes} are still
+     *     the same.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean areConfigsUpToDate(Cell cell, ImmutableSet<Map<String, Object>> rawNodes) {
+      for (Map<String, Object> rawNode : rawNodes) {
+        if (!rawNode.containsKey(CONFIGS_META_RULE)) {
+          continue;
+        }
+        Map<String, Map<String, String>> configsMeta =
+            Preconditions.checkNotNull(
+                (Map<String, Map<String, String>>) rawNode.get(CONFIGS_META_RULE));
+        for (Map.Entry<String, Map<String, String>> section : configsMeta.entrySet()) {
+          for (Map.Entry<String, String> value : section.getValue().entrySet()) {
+            if (!cell.getBuckConfig().getValue(section.getKey(), value.getKey())
+                .equals(Optional.ofNullable(value.getValue()))) {
+              return false;
+            }
+          }
+        }
+      }
+      return true;
+    }
   }
 
 
@@ -276,6 +343,13 @@ class DaemonicParserState {
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /**
+   * Results of globs in build files, by cell root. Unlike the other caches, these are only
+   * invalidated by files being added or removed, as they don't depend on the environment or
+   * includes.
+   */
+  private final ConcurrentMap<Path, GlobCache> globCaches;
+
   /**
    * Environment used by build files. If the environment is changed, then build files need to be
    * reevaluated with the new environment, so the environment used when populating the rule cache
@@ -297,10 +371,26 @@ class DaemonicParserState {
 
   private BroadcastEventListener broadcastEventListener;
 
+  private final Optional<RawNodeSnapshot> rawNodeSnapshot;
+
+  /**
+   * What the raw nodes of build files in each cell depend on besides the files read and config
+   * values used while parsing them. Keyed by identity, as cells are created for every command.
+   */
+  private final LoadingCache<Cell, HashCode> rawNodeSnapshotFingerprints;
+
   public DaemonicParserState(
       BroadcastEventListener broadcastEventListener,
       TypeCoercerFactory typeCoercerFactory,
       int parsingThreads) {
+    this(broadcastEventListener, typeCoercerFactory, parsingThreads, Optional.empty());
+  }
+
+  public DaemonicParserState(
+      BroadcastEventListener broadcastEventListener,
+      TypeCoercerFactory typeCoercerFactory,
+      int parsingThreads,
+      Optional<RawNodeSnapshot> rawNodeSnapshot) {
     this.parsingThreads = parsingThreads;
     this.typeCoercerFactory = typeCoercerFactory;
     this.cacheInvalidatedByEnvironmentVariableChangeCounter = new TagSetCounter(
@@ -348,6 +438,7 @@ class DaemonicParserState {
             parsingThreads);
 
     this.rawNodeCache = new DaemonicRawCache();
+    this.globCaches = new ConcurrentHashMap<>();
     this.typedNodeCaches =
         new ConcurrentHashMap<>(
             DEFAULT_TYPE_CACHE_COUNT,
@@ -357,6 +448,14 @@ class DaemonicParserState {
     this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
     this.cellStateLock = new AutoCloseableReadWriteUpdateLock();
     this.broadcastEventListener = broadcastEventListener;
+    this.rawNodeSnapshot = rawNodeSnapshot;
+    this.rawNodeSnapshotFingerprints = CacheBuilder.newBuilder().weakKeys().build(
+        new CacheLoader<Cell, HashCode>() {
+          @Override
+          public HashCode load(Cell cell) {
+            return computeRawNodeSnapshotFingerprint(cell);
+          }
+        });
   }
 
   TypeCoercerFactory getTypeCoercerFactory() {
@@ -383,6 +482,46 @@ class DaemonicParserState {
     return rawNodeCache;
   }
 
+  public GlobCache getGlobCache(Cell cell) {
+    GlobCache globCache = globCaches.get(cell.getRoot());
+    if (globCache == null) {
+      globCache = new GlobCache();
+      GlobCache existing = globCaches.putIfAbsent(cell.getRoot(), globCache);
+      if (existing != null) {
+        globCache = existing;
+      }
+    }
+    return globCache;
+  }
+
+  private HashCode getRawNodeSnapshotFingerprint(Cell cell) {
+    return rawNodeSnapshotFingerprints.getUnchecked(cell);
+  }
+
+  private static HashCode computeRawNodeSnapshotFingerprint(Cell cell) {
+    ParserConfig parserConfig = cell.getBuckConfig().getView(ParserConfig.class);
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(BuckVersion.getVersion(), Charsets.UTF_8);
+    hasher.putString(cell.getRoot().toString(), Charsets.UTF_8);
+    hasher.putString(cell.getBuildFileName(), Charsets.UTF_8);
+    hasher.putString(
+        ImmutableSortedMap.copyOf(cell.getBuckConfig().getFilteredEnvironment()).toString(),
+        Charsets.UTF_8);
+    hasher.putString(
+        ImmutableSortedMap.copyOf(cell.getCellPathResolver().getCellPaths()).toString(),
+        Charsets.UTF_8);
+    hasher.putString(
+        ImmutableList.copyOf(parserConfig.getDefaultIncludes()).toString(),
+        Charsets.UTF_8);
+    for (PathOrGlobMatcher ignorePath : cell.getFilesystem().getIgnorePaths()) {
+      hasher.putString(ignorePath.getPathOrGlob(), Charsets.UTF_8);
+    }
+    hasher.putBoolean(parserConfig.getAllowEmptyGlobs());
+    hasher.putBoolean(parserConfig.getEnableBuildFileSandboxing());
+    hasher.putString(parserConfig.getBuildFileImportWhitelist().toString(), Charsets.UTF_8);
+    return hasher.hash();
+  }
+
   @Nullable
   private DaemonicCellState getCellState(Cell cell) {
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
@@ -390,6 +529,14 @@ class DaemonicParserState {
     }
   }
 
+  /**
+   * @return whether anything parsed in {@code cell} is cached, i.e. whether this isn't a fresh
+   *     daemon (or one whose caches for the cell were just invalidated).
+   */
+  public boolean hasCellState(Cell cell) {
+    return getCellState(cell) != null;
+  }
+
   private DaemonicCellState getOrCreateCellState(Cell cell) {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
@@ -410,6 +557,12 @@ class DaemonicParserState {
         LOG.warn("Invalidated cache on watch event %s.", event);
         cacheInvalidatedByWatchOverflowCounter.inc();
       }
+      if (rawNodeSnapshot.isPresent()) {
+        rawNodeSnapshot.get().invalidateAll();
+      }
+      for (GlobCache globCache : globCaches.values()) {
+        globCache.invalidateAll();
+      }
       return;
     }
 
@@ -417,6 +570,18 @@ class DaemonicParserState {
 
     Path path = (Path) event.context();
 
+    if (rawNodeSnapshot.isPresent()) {
+      rawNodeSnapshot.get().invalidate(path, isPathCreateOrDeleteEvent(event));
+    }
+
+    // Like the cell states below, glob caches can't tell which cell the path is in, so every cell
+    // treats it as its own.
+    if (isPathCreateOrDeleteEvent(event)) {
+      for (GlobCache globCache : globCaches.values()) {
+        globCache.invalidate(path);
+      }
+    }
+
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         try {
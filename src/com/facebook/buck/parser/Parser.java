@@ -69,6 +69,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.SortedMap;
@@ -94,10 +95,29 @@ public class Parser {
       ParserConfig parserConfig,
       TypeCoercerFactory typeCoercerFactory,
       ConstructorArgMarshaller marshaller) {
+    this(
+        broadcastEventListener,
+        parserConfig,
+        typeCoercerFactory,
+        marshaller,
+        Optional.empty());
+  }
+
+  /**
+   * @param rawNodeSnapshot raw nodes parsed by earlier processes, to use instead of parsing build
+   *     files again, and to store newly parsed ones in.
+   */
+  public Parser(
+      BroadcastEventListener broadcastEventListener,
+      ParserConfig parserConfig,
+      TypeCoercerFactory typeCoercerFactory,
+      ConstructorArgMarshaller marshaller,
+      Optional<RawNodeSnapshot> rawNodeSnapshot) {
     this.permState = new DaemonicParserState(
         broadcastEventListener,
         typeCoercerFactory,
-        parserConfig.getNumParsingThreads());
+        parserConfig.getNumParsingThreads(),
+        rawNodeSnapshot);
     this.marshaller = marshaller;
   }
 
@@ -546,32 +566,19 @@ public class Parser {
             cell.getFilesystem().getRootPath().relativize(buildFile));
       }
 
-      // Build up a list of all target nodes from the build file.
+      // Start from the targets defined in the build file, only creating the target nodes that
+      // the specs need to look at.
       targetFutures.add(
-          Futures.transform(
-              state.getAllTargetNodesJob(cell, buildFile),
-              new Function<ImmutableSet<TargetNode<?>>,
-                           ImmutableList<Map.Entry<Integer, ImmutableSet<BuildTarget>>>>() {
-                @Override
-                public ImmutableList<Map.Entry<Integer, ImmutableSet<BuildTarget>>> apply(
-                    ImmutableSet<TargetNode<?>> nodes) {
-                  ImmutableList.Builder<Map.Entry<Integer, ImmutableSet<BuildTarget>>> targets =
-                      ImmutableList.builder();
-                  for (int index : buildFileSpecs) {
-                    // Call back into the target node spec to filter the relevant build targets.
-                    // We return a pair of spec index and build target set, so that we can build a
-                    // final result list that maintains the input spec ordering.
-                    targets.add(
-                        new AbstractMap.SimpleEntry<>(
-                            index,
-                            applySpecFilter(
-                                orderedSpecs.get(index),
-                                nodes,
-                                applyDefaultFlavorsMode)));
-                  }
-                  return targets.build();
-                }
-              }));
+          Futures.transformAsync(
+              state.getAllBuildTargetsJob(cell, buildFile),
+              buildTargets -> resolveSpecsInBuildFile(
+                  state,
+                  cell,
+                  buildFile,
+                  buildTargets,
+                  orderedSpecs,
+                  buildFileSpecs,
+                  applyDefaultFlavorsMode)));
     }
 
     // Now walk through and resolve all the futures, and place their results in a multimap that
@@ -601,6 +608,120 @@ public class Parser {
     return targets.build();
   }
 
+  private static ListenableFuture<ImmutableList<Map.Entry<Integer, ImmutableSet<BuildTarget>>>>
+      resolveSpecsInBuildFile(
+          PerBuildState state,
+          Cell cell,
+          Path buildFile,
+          ImmutableSet<BuildTarget> buildTargets,
+          ImmutableList<TargetNodeSpec> orderedSpecs,
+          Collection<Integer> buildFileSpecs,
+          final ParserConfig.ApplyDefaultFlavorsMode applyDefaultFlavorsMode)
+      throws BuildTargetException {
+    ImmutableList.Builder<ListenableFuture<Map.Entry<Integer, ImmutableSet<BuildTarget>>>>
+        specTargetFutures = ImmutableList.builder();
+    // Only created if one of the specs has to look at the nodes themselves.
+    ListenableFuture<ImmutableSet<TargetNode<?>>> allNodesJob = null;
+    for (final int index : buildFileSpecs) {
+      final TargetNodeSpec spec = orderedSpecs.get(index);
+      Optional<ImmutableSet<BuildTarget>> matchingTargets = spec.filterBuildTargets(buildTargets);
+      ListenableFuture<ImmutableSet<BuildTarget>> specTargets;
+      if (matchingTargets.isPresent()) {
+        specTargets = applyDefaultFlavors(
+            state,
+            matchingTargets.get(),
+            buildTargets,
+            spec.getTargetType(),
+            applyDefaultFlavorsMode);
+      } else {
+        if (allNodesJob == null) {
+          allNodesJob = state.getAllTargetNodesJob(cell, buildFile);
+        }
+        specTargets = Futures.transform(
+            allNodesJob,
+            new Function<ImmutableSet<TargetNode<?>>, ImmutableSet<BuildTarget>>() {
+              @Override
+              public ImmutableSet<BuildTarget> apply(ImmutableSet<TargetNode<?>> nodes) {
+                return applySpecFilter(spec, nodes, applyDefaultFlavorsMode);
+              }
+            });
+      }
+      // We return a pair of spec index and build target set, so that we can build a final result
+      // list that maintains the input spec ordering.
+      specTargetFutures.add(
+          Futures.transform(
+              specTargets,
+              new Function<ImmutableSet<BuildTarget>,
+                           Map.Entry<Integer, ImmutableSet<BuildTarget>>>() {
+                @Override
+                public Map.Entry<Integer, ImmutableSet<BuildTarget>> apply(
+                    ImmutableSet<BuildTarget> targets) {
+                  return new AbstractMap.SimpleEntry<>(index, targets);
+                }
+              }));
+    }
+    return Futures.transform(
+        Futures.allAsList(specTargetFutures.build()),
+        new Function<List<Map.Entry<Integer, ImmutableSet<BuildTarget>>>,
+                     ImmutableList<Map.Entry<Integer, ImmutableSet<BuildTarget>>>>() {
+          @Override
+          public ImmutableList<Map.Entry<Integer, ImmutableSet<BuildTarget>>> apply(
+              List<Map.Entry<Integer, ImmutableSet<BuildTarget>>> input) {
+            return ImmutableList.copyOf(input);
+          }
+        });
+  }
+
+  /**
+   * Applies default flavors to targets matched without looking at their nodes, creating just the
+   * nodes of the targets that may have default flavors.
+   */
+  private static ListenableFuture<ImmutableSet<BuildTarget>> applyDefaultFlavors(
+      PerBuildState state,
+      ImmutableSet<BuildTarget> matchingTargets,
+      ImmutableSet<BuildTarget> buildTargets,
+      final TargetNodeSpec.TargetType targetType,
+      final ParserConfig.ApplyDefaultFlavorsMode applyDefaultFlavorsMode)
+      throws BuildTargetException {
+    ImmutableList.Builder<ListenableFuture<BuildTarget>> targetFutures = ImmutableList.builder();
+    for (final BuildTarget target : matchingTargets) {
+      Optional<BuildTarget> definedTarget = Optional.empty();
+      if (!target.isFlavored() &&
+          targetType == TargetNodeSpec.TargetType.SINGLE_TARGET &&
+          applyDefaultFlavorsMode != ParserConfig.ApplyDefaultFlavorsMode.DISABLED) {
+        definedTarget = buildTargets.stream()
+            .filter(input -> input.getUnflavoredBuildTarget().equals(
+                target.getUnflavoredBuildTarget()))
+            .findFirst();
+      }
+      if (!definedTarget.isPresent()) {
+        targetFutures.add(Futures.immediateFuture(target));
+        continue;
+      }
+      targetFutures.add(
+          Futures.transform(
+              state.getTargetNodeJob(definedTarget.get()),
+              new Function<TargetNode<?>, BuildTarget>() {
+                @Override
+                public BuildTarget apply(TargetNode<?> node) {
+                  return applyDefaultFlavors(
+                      target,
+                      Optional.of(node),
+                      targetType,
+                      applyDefaultFlavorsMode);
+                }
+              }));
+    }
+    return Futures.transform(
+        Futures.allAsList(targetFutures.build()),
+        new Function<List<BuildTarget>, ImmutableSet<BuildTarget>>() {
+          @Override
+          public ImmutableSet<BuildTarget> apply(List<BuildTarget> input) {
+            return ImmutableSet.copyOf(input);
+          }
+        });
+  }
+
   private static ImmutableSet<BuildTarget> applySpecFilter(
       TargetNodeSpec spec,
       ImmutableSet<TargetNode<?>> targetNodes,
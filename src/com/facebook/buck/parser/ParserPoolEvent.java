@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.EventKey;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Posted when a {@link ProjectBuildFileParserPool} is done, with how busy its parsers were and
+ * how long parse requests waited for one.
+ */
+public class ParserPoolEvent extends AbstractBuckEvent {
+
+  private final ImmutableList<ParserStats> parsers;
+  private final int requests;
+  private final int queuedRequests;
+  private final long totalQueueWaitMillis;
+  private final long maxQueueWaitMillis;
+
+  private ParserPoolEvent(
+      ImmutableList<ParserStats> parsers,
+      int requests,
+      int queuedRequests,
+      long totalQueueWaitMillis,
+      long maxQueueWaitMillis) {
+    super(EventKey.unique());
+    this.parsers = parsers;
+    this.requests = requests;
+    this.queuedRequests = queuedRequests;
+    this.totalQueueWaitMillis = totalQueueWaitMillis;
+    this.maxQueueWaitMillis = maxQueueWaitMillis;
+  }
+
+  public static ParserPoolEvent finished(
+      ImmutableList<ParserStats> parsers,
+      int requests,
+      int queuedRequests,
+      long totalQueueWaitMillis,
+      long maxQueueWaitMillis) {
+    return new ParserPoolEvent(
+        parsers,
+        requests,
+        queuedRequests,
+        totalQueueWaitMillis,
+        maxQueueWaitMillis);
+  }
+
+  /**
+   * @return one entry for every parser the pool started.
+   */
+  public ImmutableList<ParserStats> getParsers() {
+    return parsers;
+  }
+
+  public int getRequests() {
+    return requests;
+  }
+
+  /**
+   * @return how many requests had to wait for a parser to be started or to become free.
+   */
+  public int getQueuedRequests() {
+    return queuedRequests;
+  }
+
+  public long getTotalQueueWaitMillis() {
+    return totalQueueWaitMillis;
+  }
+
+  public long getMaxQueueWaitMillis() {
+    return maxQueueWaitMillis;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format(
+        "%d parsers, %d requests, %d queued for %d ms",
+        parsers.size(),
+        requests,
+        queuedRequests,
+        totalQueueWaitMillis);
+  }
+
+  @Override
+  public String getEventName() {
+    return "ParserPoolFinished";
+  }
+
+  /**
+   * How much a single parser was used while it was alive.
+   */
+  public static class ParserStats {
+    private final int parses;
+    private final long busyMillis;
+    private final long aliveMillis;
+
+    public ParserStats(int parses, long busyMillis, long aliveMillis) {
+      this.parses = parses;
+      this.busyMillis = busyMillis;
+      this.aliveMillis = aliveMillis;
+    }
+
+    public int getParses() {
+      return parses;
+    }
+
+    public long getBusyMillis() {
+      return busyMillis;
+    }
+
+    public long getAliveMillis() {
+      return aliveMillis;
+    }
+
+    /**
+     * @return the share of its lifetime the parser spent parsing, between 0 and 1.
+     */
+    public double getUtilization() {
+      return aliveMillis == 0 ? 0 : Math.min(1.0, (double) busyMillis / aliveMillis);
+    }
+  }
+}
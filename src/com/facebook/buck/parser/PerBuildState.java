@@ -148,6 +148,12 @@ public class PerBuildState implements AutoCloseable {
         rawNodeParsePipeline);
 
     register(rootCell);
+
+    // Starting a parser means starting a python interpreter, which takes a while. When nothing in
+    // the root cell has been parsed yet we're bound to need them, so get them going right away.
+    if (parserConfig.getPrewarmParsers() && !parser.getPermState().hasCellState(rootCell)) {
+      projectBuildFileParserPool.prewarm(rootCell, numParsingThreads, executorService);
+    }
   }
 
   public TargetNode<?> getTargetNode(BuildTarget target)
@@ -172,6 +178,25 @@ public class PerBuildState implements AutoCloseable {
     return targetNodeParsePipeline.getAllNodesJob(cell, buildFile);
   }
 
+  public ListenableFuture<TargetNode<?>> getTargetNodeJob(BuildTarget target)
+      throws BuildTargetException {
+    Cell owningCell = getCell(target);
+
+    return targetNodeParsePipeline.getNodeJob(owningCell, target);
+  }
+
+  /**
+   * @return the targets defined in {@code buildFile}, read from its raw nodes, without creating
+   *     any {@link TargetNode}s.
+   */
+  public ListenableFuture<ImmutableSet<BuildTarget>> getAllBuildTargetsJob(
+      Cell cell,
+      Path buildFile) throws BuildTargetException {
+    Preconditions.checkState(buildFile.startsWith(cell.getRoot()));
+
+    return targetNodeParsePipeline.getAllBuildTargetsJob(cell, buildFile);
+  }
+
   public ImmutableSet<Map<String, Object>> getAllRawNodes(Cell cell, Path buildFile)
       throws BuildFileParseException {
     Preconditions.checkState(buildFile.startsWith(cell.getRoot()));
@@ -201,6 +226,9 @@ public class PerBuildState implements AutoCloseable {
         eventBus,
         ignoreBuckAutodepsFiles);
     parser.setEnableProfiling(enableProfiling);
+    if (cell.getBuckConfig().getView(ParserConfig.class).getCacheGlobs()) {
+      parser.setGlobCache(this.parser.getPermState().getGlobCache(cell));
+    }
     return parser;
   }
 
@@ -346,6 +374,7 @@ public class PerBuildState implements AutoCloseable {
     stderr.close();
     targetNodeParsePipeline.close();
     rawNodeParsePipeline.close();
+    eventBus.post(projectBuildFileParserPool.createStatsEvent());
     projectBuildFileParserPool.close();
 
     if (ignoreBuckAutodepsFiles) {
@@ -19,58 +19,72 @@ package com.facebook.buck.parser;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.model.Either;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Allows multiple concurrently executing futures to share a constrained number of parsers.
  *
- * Parser instances are lazily created up till a fixed maximum. If more than max parser are
- * requested the associated 'requests' are queued up in the parserRequests field. As soon as
- * a parser is returned it will be used to satisfy the first pending request, otherwise it
- * is stored in the parkedParsers queue.
+ * Parsers are started in the background, and only while there are more requests waiting for a
+ * parser than parsers being started, so that a request gets whichever parser is free first
+ * instead of waiting for a new one to start. Each cell gets at most a fixed number of parsers,
+ * and all cells together at most one per core (or the per cell maximum, if that is more). When
+ * that limit is reached, an idle parser of another cell is closed to make room. Parsers can also
+ * be started before any requests come in, with {@link #prewarm}.
+ *
+ * State is kept per cell, so requests for different cells don't contend on a lock.
  */
 class ProjectBuildFileParserPool implements AutoCloseable {
   private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
 
   private final int maxParsersPerCell;
-  @GuardedBy("this")
+  private final int maxParsers;
   private final Function<Cell, ProjectBuildFileParser> parserFactory;
-  @GuardedBy("this")
-  private final Multimap<Cell, ProjectBuildFileParser> createdParsers;
-  @GuardedBy("this")
-  private final Map<Cell, Deque<ProjectBuildFileParser>> parkedParsers;
-  @GuardedBy("this")
-  private final Map<Cell, Deque<SettableFuture<Void>>> parserRequests;
+  private final ConcurrentMap<Cell, CellParsers> cellParsers;
+  // Parsers created or being started, across all cells.
+  private final AtomicInteger parserCount;
   private final AtomicBoolean closing;
-  @GuardedBy("this")
   private final Set<ListenableFuture<?>> pendingWork;
 
+  private final Queue<TrackedParser> startedParsers;
+  private final AtomicInteger requests;
+  private final AtomicInteger queuedRequests;
+  private final AtomicLong totalQueueWaitNanos;
+  private final AtomicLong maxQueueWaitNanos;
+
   /**
    * @param maxParsersPerCell maximum number of parsers to create for a single cell.
    * @param parserFactory function used to create a new parser.
@@ -78,15 +92,37 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   public ProjectBuildFileParserPool(
       int maxParsersPerCell,
       Function<Cell, ProjectBuildFileParser> parserFactory) {
+    this(
+        maxParsersPerCell,
+        Math.max(maxParsersPerCell, Runtime.getRuntime().availableProcessors()),
+        parserFactory);
+  }
+
+  /**
+   * @param maxParsersPerCell maximum number of parsers to create for a single cell.
+   * @param maxParsers maximum number of parsers to create for all cells together.
+   * @param parserFactory function used to create a new parser.
+   */
+  @VisibleForTesting
+  ProjectBuildFileParserPool(
+      int maxParsersPerCell,
+      int maxParsers,
+      Function<Cell, ProjectBuildFileParser> parserFactory) {
     Preconditions.checkArgument(maxParsersPerCell > 0);
+    Preconditions.checkArgument(maxParsers >= maxParsersPerCell);
 
     this.maxParsersPerCell = maxParsersPerCell;
+    this.maxParsers = maxParsers;
     this.parserFactory = parserFactory;
-    this.createdParsers = ArrayListMultimap.create();
-    this.parkedParsers = new HashMap<>();
-    this.parserRequests = new HashMap<>();
+    this.cellParsers = new ConcurrentHashMap<>();
+    this.parserCount = new AtomicInteger(0);
     this.closing = new AtomicBoolean(false);
-    this.pendingWork = new HashSet<>();
+    this.pendingWork = Sets.newConcurrentHashSet();
+    this.startedParsers = new ConcurrentLinkedQueue<>();
+    this.requests = new AtomicInteger(0);
+    this.queuedRequests = new AtomicInteger(0);
+    this.totalQueueWaitNanos = new AtomicLong(0);
+    this.maxQueueWaitNanos = new AtomicLong(0);
   }
 
   /**
@@ -96,178 +132,168 @@ class ProjectBuildFileParserPool implements AutoCloseable {
    * @return a {@link ListenableFuture} containing the result of the parsing. The future will be
    *         cancelled if the {@link ProjectBuildFileParserPool#close()} method is called.
    */
-  public synchronized ListenableFuture<ImmutableSet<Map<String, Object>>> getAllRulesAndMetaRules(
+  public ListenableFuture<ImmutableSet<Map<String, Object>>> getAllRulesAndMetaRules(
       final Cell cell,
       final Path buildFile,
       final ListeningExecutorService executorService) {
     Preconditions.checkState(!closing.get());
 
+    final CellParsers parsers = getCellParsers(cell);
+    final long requestedNanos = System.nanoTime();
+    requests.incrementAndGet();
     final ListenableFuture<ImmutableSet<Map<String, Object>>> futureWork = Futures.transformAsync(
-        initialSchedule(cell),
-        new AsyncFunction<Void, ImmutableSet<Map<String, Object>>>() {
+        parsers.acquire(executorService),
+        new AsyncFunction<TrackedParser, ImmutableSet<Map<String, Object>>>() {
           @Override
           public ListenableFuture<ImmutableSet<Map<String, Object>>> apply(
-              Void input) throws Exception {
-            Either<ProjectBuildFileParser, ListenableFuture<Void>> parserRequest =
-                requestParser(cell);
-            if (parserRequest.isLeft()) {
-              ProjectBuildFileParser parser = parserRequest.getLeft();
-              boolean hadErrorDuringParsing = false;
-              try {
-                return Futures.immediateFuture(
-                    ImmutableSet.copyOf(parser.getAllRulesAndMetaRules(buildFile)));
-              } catch (BuildFileParseException e) {
-                hadErrorDuringParsing = true;
-                throw e;
-              } finally {
-                returnParser(cell, parser, hadErrorDuringParsing);
-              }
-            } else {
-              return Futures.transformAsync(parserRequest.getRight(), this, executorService);
+              TrackedParser parser) throws Exception {
+            recordQueueWait(System.nanoTime() - requestedNanos);
+            boolean hadErrorDuringParsing = false;
+            long startNanos = System.nanoTime();
+            try {
+              return Futures.immediateFuture(
+                  ImmutableSet.copyOf(parser.parser.getAllRulesAndMetaRules(buildFile)));
+            } catch (BuildFileParseException e) {
+              hadErrorDuringParsing = true;
+              throw e;
+            } finally {
+              parser.recordParse(System.nanoTime() - startNanos);
+              parsers.release(parser, hadErrorDuringParsing);
             }
           }
         },
         executorService);
 
-    pendingWork.add(futureWork);
-    futureWork.addListener(
-        () -> {
-          synchronized (ProjectBuildFileParserPool.this) {
-            pendingWork.remove(futureWork);
-          }
-        },
-        executorService);
+    addPendingWork(futureWork, executorService);
 
     // If someone else calls cancel on `futureWork` it makes it impossible to wait for that future
     // to finish using the parser.
     return Futures.nonCancellationPropagating(futureWork);
   }
 
-  private synchronized ListenableFuture<Void> initialSchedule(Cell cell) {
-    // If we'll (potentially) be allowed to create a parser or there are some parked then we'll take
-    // the chance and attempt to run immediately.
-    if (allowedToCreateParser(cell) || !getParkedParserQueue(cell).isEmpty()) {
-      return Futures.immediateFuture(null);
-    }
-    // All possible parsers are currently occupied. Because we're in a synchronized block, even
-    // if one becomes available immediately after this call returns it will simply make this future
-    // runnable, so we'll be able to progress.
-    return scheduleNewParserRequest(cell);
+  /**
+   * Starts parsers for {@code cell} in the background, up to {@code count} of them, so that they
+   * are ready by the time parse requests come in.
+   */
+  public void prewarm(Cell cell, int count, ListeningExecutorService executorService) {
+    Preconditions.checkState(!closing.get());
+    getCellParsers(cell).startParsers(count, executorService);
   }
 
-  private synchronized Either<ProjectBuildFileParser, ListenableFuture<Void>> requestParser(
-      Cell cell) {
-    Optional<ProjectBuildFileParser> parser = obtainParser(cell);
-    if (parser.isPresent()) {
-      return Either.ofLeft(parser.get());
+  /**
+   * @return an event with how busy each parser was and how long requests waited for one.
+   */
+  public ParserPoolEvent createStatsEvent() {
+    ImmutableList.Builder<ParserPoolEvent.ParserStats> parserStats = ImmutableList.builder();
+    for (TrackedParser parser : startedParsers) {
+      parserStats.add(parser.getStats());
     }
-    return Either.ofRight(scheduleNewParserRequest(cell));
+    return ParserPoolEvent.finished(
+        parserStats.build(),
+        requests.get(),
+        queuedRequests.get(),
+        TimeUnit.NANOSECONDS.toMillis(totalQueueWaitNanos.get()),
+        TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos.get()));
   }
 
-  private synchronized ListenableFuture<Void> scheduleNewParserRequest(Cell cell) {
-    if (closing.get()) {
-      return Futures.immediateCancelledFuture();
-    }
-    SettableFuture<Void> parserFuture = SettableFuture.create();
-    Deque<SettableFuture<Void>> requestsQueue = parserRequests.get(cell);
-    if (requestsQueue == null) {
-      requestsQueue = new ArrayDeque<>();
-      parserRequests.put(cell, requestsQueue);
+  private CellParsers getCellParsers(Cell cell) {
+    CellParsers parsers = cellParsers.get(cell);
+    if (parsers == null) {
+      parsers = new CellParsers(cell);
+      CellParsers existing = cellParsers.putIfAbsent(cell, parsers);
+      if (existing != null) {
+        parsers = existing;
+      }
     }
-    requestsQueue.add(parserFuture);
-    return parserFuture;
+    return parsers;
   }
 
-  private synchronized Deque<ProjectBuildFileParser> getParkedParserQueue(Cell cell) {
-    Deque<ProjectBuildFileParser> parkedParsersQueue = parkedParsers.get(cell);
-    if (parkedParsersQueue == null) {
-      parkedParsersQueue = new ArrayDeque<>(maxParsersPerCell);
-      parkedParsers.put(cell, parkedParsersQueue);
-    }
-    return parkedParsersQueue;
+  private void addPendingWork(
+      final ListenableFuture<?> work,
+      ListeningExecutorService executorService) {
+    pendingWork.add(work);
+    work.addListener(() -> pendingWork.remove(work), executorService);
   }
 
-  private synchronized Optional<ProjectBuildFileParser> obtainParser(Cell cell) {
-    if (closing.get()) {
-      return Optional.empty();
+  private void recordQueueWait(long waitNanos) {
+    // Requests that got a free parser right away still take a moment to get scheduled.
+    if (waitNanos < TimeUnit.MILLISECONDS.toNanos(1)) {
+      return;
     }
-    Deque<ProjectBuildFileParser> parserQueue = getParkedParserQueue(cell);
-    ProjectBuildFileParser parser = parserQueue.pollFirst();
-    if (parser != null) {
-      return Optional.of(parser);
+    queuedRequests.incrementAndGet();
+    totalQueueWaitNanos.addAndGet(waitNanos);
+    maxQueueWaitNanos.accumulateAndGet(waitNanos, Math::max);
+  }
+
+  private boolean tryReserveParser() {
+    while (true) {
+      int count = parserCount.get();
+      if (count >= maxParsers) {
+        return false;
+      }
+      if (parserCount.compareAndSet(count, count + 1)) {
+        return true;
+      }
     }
-    return createIfAllowed(cell);
   }
 
-  private synchronized void returnParser(
-      Cell cell,
-      ProjectBuildFileParser parser,
-      boolean parserIsDefunct) {
-    if (parserIsDefunct) {
-      createdParsers.remove(cell, parser);
-      try {
-        parser.close();
-      } catch (Exception e) {
-        LOG.info(e, "Error shutting down a defunct parser.");
+  /**
+   * Closes an idle parser of a cell other than {@code except}, to make room for a new one.
+   *
+   * @return whether a parser was closed.
+   */
+  private boolean retireIdleParserOfOtherCell(CellParsers except) {
+    for (CellParsers parsers : cellParsers.values()) {
+      if (parsers != except && parsers.retireIdleParser()) {
+        return true;
       }
-    } else {
-      Deque<ProjectBuildFileParser> parkedParsersQueue = getParkedParserQueue(cell);
-      parkedParsersQueue.add(parser);
     }
-    scheduleNextRequest(cell);
+    return false;
   }
 
-  private synchronized void scheduleNextRequest(Cell cell) {
-    if (!parserRequests.containsKey(cell)) {
+  /**
+   * Gives cells with requests waiting for a parser, which they couldn't start because all cells
+   * together had as many as allowed, the chance to start one now.
+   */
+  private void rebalance(CellParsers from) {
+    if (parserCount.get() < maxParsers) {
       return;
     }
-
-    while (true) {
-      SettableFuture<Void> nextRequest = parserRequests.get(cell).pollFirst();
-      // Queue empty.
-      if (nextRequest == null) {
-        return;
-      }
-      // A false return value means the future was failed/cancelled, so we ignore it.
-      if (nextRequest.set(null)) {
+    for (CellParsers parsers : cellParsers.values()) {
+      if (parsers != from && parsers.needsParsers()) {
+        parsers.startParsersIfNeeded();
         return;
       }
     }
   }
 
-  private synchronized boolean allowedToCreateParser(Cell cell) {
-    return !closing.get() && (createdParsers.get(cell).size() < maxParsersPerCell);
-  }
-
-  private synchronized Optional<ProjectBuildFileParser> createIfAllowed(Cell cell) {
-    if (!allowedToCreateParser(cell)) {
-      return Optional.empty();
+  private static void closeParser(ProjectBuildFileParser parser) {
+    try {
+      parser.close();
+    } catch (Exception e) {
+      LOG.info(e, "Error shutting down a parser.");
     }
-    ProjectBuildFileParser parser = Preconditions.checkNotNull(parserFactory.apply(cell));
-    createdParsers.put(cell, parser);
-    return Optional.of(parser);
   }
 
   @Override
-  public synchronized void close() {
+  public void close() {
     Preconditions.checkState(!closing.get());
     closing.set(true);
 
-    // Unblock all waiting requests.
-    for (Deque<SettableFuture<Void>> requestQueue : parserRequests.values()) {
-      for (SettableFuture<Void> request : requestQueue) {
-        request.set(null);
-      }
-      requestQueue.clear();
+    // Cancel all waiting requests. Any parsing that is currently taking place will be allowed to
+    // complete (as it won't notice `closing` is true).
+    List<SettableFuture<TrackedParser>> waitingRequests = new ArrayList<>();
+    for (CellParsers parsers : cellParsers.values()) {
+      parsers.drainWaitingRequests(waitingRequests);
+    }
+    for (SettableFuture<TrackedParser> request : waitingRequests) {
+      request.cancel(false);
     }
 
-    // Any parsing that is currently taking place will be allowed to complete (as it won't notice
-    // `closing` is true.
-    // Any scheduled (but not executing) parse requests should notice `closing` is true and
-    // mark themselves as cancelled.
-    // Therefore `closeFuture` should allow us to wait for any parsers that are in use.
-    ListenableFuture<List<Object>> closeFuture;
-    closeFuture = Futures.successfulAsList(pendingWork);
+    // Therefore `closeFuture` should allow us to wait for any parsers that are in use or still
+    // being started.
+    ListenableFuture<List<Object>> closeFuture =
+        Futures.successfulAsList(ImmutableList.copyOf(pendingWork));
 
     // As silly as it seems this is the only reliable way to make sure we run the shutdown code.
     // Reusing an external executor means we run the risk of it being shut down before the cleanup
@@ -284,27 +310,12 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         new AsyncFunction<List<Object>, Void>() {
           @Override
           public ListenableFuture<Void> apply(List<Object> input) throws Exception {
-            synchronized (ProjectBuildFileParserPool.this) {
-              int parkedParsersCount = 0;
-              for (Deque<ProjectBuildFileParser> projectBuildFileParsers : parkedParsers.values()) {
-                parkedParsersCount += projectBuildFileParsers.size();
-              }
-              if (parkedParsersCount != createdParsers.size()) {
-                LOG.error("Whoops! Some parser are still in use, even though we're shutting down.");
-              }
-              // Now that pending work is done we can close all parsers.
-              for (Map.Entry<Cell, ProjectBuildFileParser> createdParserEntry :
-                  createdParsers.entries()) {
-                createdParserEntry.getValue().close();
-              }
-              for (Map.Entry<Cell, Deque<SettableFuture<Void>>> cellDequeEntry :
-                  parserRequests.entrySet()) {
-                if (!cellDequeEntry.getValue().isEmpty()) {
-                  LOG.error("Error shutting down ParserLeaseVendor: " +
-                      "there should be no enqueued parser requests.");
-                  break;
-                }
-              }
+            // Now that pending work is done we can close all parsers.
+            for (CellParsers parsers : cellParsers.values()) {
+              parsers.closeParkedParsers();
+            }
+            if (parserCount.get() != 0) {
+              LOG.error("Whoops! Some parser are still in use, even though we're shutting down.");
             }
             executorService.shutdown();
             return Futures.immediateFuture(null);
@@ -312,4 +323,231 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         },
         executorService);
   }
+
+  /**
+   * The parsers and parse requests of a single cell.
+   */
+  private class CellParsers {
+    private final Cell cell;
+    // Parsers of this cell, including those still being started.
+    @GuardedBy("this")
+    private int created;
+    @GuardedBy("this")
+    private int starting;
+    @GuardedBy("this")
+    private final Deque<TrackedParser> parkedParsers;
+    @GuardedBy("this")
+    private final Deque<SettableFuture<TrackedParser>> parserRequests;
+    @Nullable
+    private volatile ListeningExecutorService executorService;
+
+    CellParsers(Cell cell) {
+      this.cell = cell;
+      this.parkedParsers = new ArrayDeque<>(maxParsersPerCell);
+      this.parserRequests = new ArrayDeque<>();
+    }
+
+    ListenableFuture<TrackedParser> acquire(ListeningExecutorService executorService) {
+      this.executorService = executorService;
+      SettableFuture<TrackedParser> request = SettableFuture.create();
+      synchronized (this) {
+        if (closing.get()) {
+          return Futures.immediateCancelledFuture();
+        }
+        TrackedParser parser = parkedParsers.pollFirst();
+        if (parser != null) {
+          return Futures.immediateFuture(parser);
+        }
+        parserRequests.add(request);
+      }
+      startParsersIfNeeded();
+      return request;
+    }
+
+    void release(TrackedParser parser, boolean parserIsDefunct) {
+      if (parserIsDefunct) {
+        synchronized (this) {
+          created--;
+        }
+        parserCount.decrementAndGet();
+        parser.close();
+        startParsersIfNeeded();
+        return;
+      }
+
+      SettableFuture<TrackedParser> nextRequest;
+      synchronized (this) {
+        nextRequest = closing.get() ? null : parserRequests.pollFirst();
+        if (nextRequest == null) {
+          parkedParsers.add(parser);
+        }
+      }
+      if (nextRequest == null) {
+        rebalance(this);
+      } else if (!nextRequest.set(parser)) {
+        // The request was cancelled because the pool is closing.
+        release(parser, false);
+      }
+    }
+
+    synchronized boolean needsParsers() {
+      return !closing.get() &&
+          parserRequests.size() > starting &&
+          created < maxParsersPerCell;
+    }
+
+    /**
+     * Starts parsers while there are more requests waiting than parsers being started.
+     */
+    void startParsersIfNeeded() {
+      while (true) {
+        boolean reserved;
+        synchronized (this) {
+          if (!needsParsers()) {
+            return;
+          }
+          reserved = tryReserveParser();
+          if (reserved) {
+            created++;
+            starting++;
+          }
+        }
+        if (reserved) {
+          startParserInBackground();
+        } else if (!retireIdleParserOfOtherCell(this)) {
+          // Parsers of other cells are all busy, a request will get ours once one is released.
+          return;
+        }
+      }
+    }
+
+    void startParsers(int count, ListeningExecutorService executorService) {
+      this.executorService = executorService;
+      for (int i = 0; i < count; i++) {
+        synchronized (this) {
+          if (closing.get() || created >= maxParsersPerCell || !tryReserveParser()) {
+            return;
+          }
+          created++;
+          starting++;
+        }
+        startParserInBackground();
+      }
+    }
+
+    private void startParserInBackground() {
+      ListeningExecutorService executorService = Preconditions.checkNotNull(this.executorService);
+      addPendingWork(executorService.submit(this::startParser), executorService);
+    }
+
+    private void startParser() {
+      TrackedParser parser = null;
+      Throwable failure = null;
+      if (!closing.get()) {
+        ProjectBuildFileParser buildFileParser = null;
+        try {
+          buildFileParser = Preconditions.checkNotNull(parserFactory.apply(cell));
+          // Launch the interpreter now, rather than on the first request given to the parser.
+          buildFileParser.initIfNeeded();
+          parser = new TrackedParser(buildFileParser);
+        } catch (IOException e) {
+          failure = e;
+        } catch (UncheckedIOException e) {
+          failure = e.getCause();
+        } catch (RuntimeException e) {
+          failure = e;
+        }
+        if (parser == null && buildFileParser != null) {
+          closeParser(buildFileParser);
+        }
+      }
+
+      if (parser == null) {
+        SettableFuture<TrackedParser> failedRequest;
+        synchronized (this) {
+          created--;
+          starting--;
+          failedRequest = failure == null ? null : parserRequests.pollFirst();
+        }
+        parserCount.decrementAndGet();
+        if (failedRequest != null) {
+          LOG.warn(failure, "Failed to start a parser.");
+          failedRequest.setException(failure);
+          // Other requests may have been counting on this parser.
+          startParsersIfNeeded();
+        }
+        return;
+      }
+
+      synchronized (this) {
+        starting--;
+      }
+      startedParsers.add(parser);
+      release(parser, false);
+    }
+
+    /**
+     * @return whether an idle parser was closed.
+     */
+    boolean retireIdleParser() {
+      TrackedParser parser;
+      synchronized (this) {
+        parser = parkedParsers.pollFirst();
+        if (parser == null) {
+          return false;
+        }
+        created--;
+      }
+      parserCount.decrementAndGet();
+      parser.close();
+      return true;
+    }
+
+    synchronized void drainWaitingRequests(List<SettableFuture<TrackedParser>> requests) {
+      requests.addAll(parserRequests);
+      parserRequests.clear();
+    }
+
+    void closeParkedParsers() {
+      while (retireIdleParser()) {
+        // Keep going until all are closed.
+      }
+    }
+  }
+
+  /**
+   * A parser, with how much it was used.
+   */
+  private static class TrackedParser {
+    private final ProjectBuildFileParser parser;
+    private final long createdNanos;
+    private final AtomicInteger parses;
+    private final AtomicLong busyNanos;
+    private volatile long closedNanos;
+
+    TrackedParser(ProjectBuildFileParser parser) {
+      this.parser = parser;
+      this.createdNanos = System.nanoTime();
+      this.parses = new AtomicInteger(0);
+      this.busyNanos = new AtomicLong(0);
+    }
+
+    void recordParse(long nanos) {
+      parses.incrementAndGet();
+      busyNanos.addAndGet(nanos);
+    }
+
+    void close() {
+      closedNanos = System.nanoTime();
+      closeParser(parser);
+    }
+
+    ParserPoolEvent.ParserStats getStats() {
+      long endNanos = closedNanos == 0 ? System.nanoTime() : closedNanos;
+      return new ParserPoolEvent.ParserStats(
+          parses.get(),
+          TimeUnit.NANOSECONDS.toMillis(busyNanos.get()),
+          TimeUnit.NANOSECONDS.toMillis(endNanos - createdNanos));
+    }
+  }
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.bser.BserDeserializer;
+import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the raw nodes of parsed build files on disk between daemons, so that a new daemon only
+ * has to run buck.py over the build files that changed since the last one saved them.
+ * <p>
+ * A stored result is only used while the parser settings it was parsed with (its fingerprint)
+ * and the contents of the build file and of everything it included are the same. Files that were
+ * added or removed can change what globs match, so the snapshot also keeps the Watchman clock it
+ * was saved at, and {@link #invalidateChangesSince(Watchman)} drops the packages those files are
+ * in.
+ * <p>
+ * The saved file is memory-mapped and only its index is read on load. Raw nodes are decoded when
+ * they're asked for.
+ */
+public class RawNodeSnapshot {
+
+  private static final Logger LOG = Logger.get(RawNodeSnapshot.class);
+
+  private static final int VERSION = 1;
+
+  private final Optional<Path> savePath;
+  // Keyed by absolute path of the build file.
+  private final ConcurrentMap<Path, Entry> entries;
+  private final Set<Path> cellRoots;
+  private final Set<String> buildFileNames;
+  // Hashes of build files and includes, until they change.
+  private final ConcurrentMap<Path, HashCode> fileHashes;
+  private final AtomicBoolean dirty;
+  private volatile Optional<String> watchmanClock;
+
+  /**
+   * @param savePath absolute path of the file to {@link #save(Optional)} raw nodes to, if any.
+   */
+  public RawNodeSnapshot(Optional<Path> savePath) {
+    this.savePath = savePath;
+    this.entries = new ConcurrentHashMap<>();
+    this.cellRoots = ConcurrentHashMap.newKeySet();
+    this.buildFileNames = ConcurrentHashMap.newKeySet();
+    this.fileHashes = new ConcurrentHashMap<>();
+    this.dirty = new AtomicBoolean(false);
+    this.watchmanClock = Optional.empty();
+  }
+
+  /**
+   * Creates an instance holding the raw nodes that were saved to {@code savePath}.
+   */
+  public static RawNodeSnapshot load(Path savePath) {
+    RawNodeSnapshot snapshot = new RawNodeSnapshot(Optional.of(savePath));
+    try (FileChannel channel = FileChannel.open(savePath, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != VERSION) {
+        return snapshot;
+      }
+      String clock = readString(buffer);
+      snapshot.watchmanClock = clock.isEmpty() ? Optional.empty() : Optional.of(clock);
+      int numberOfEntries = buffer.getInt();
+      for (int i = 0; i < numberOfEntries; i++) {
+        Path cellRoot = Paths.get(readString(buffer));
+        Path buildFile = Paths.get(readString(buffer));
+        HashCode fingerprint = readHash(buffer);
+        int numberOfInputs = buffer.getInt();
+        ImmutableMap.Builder<Path, HashCode> inputs = ImmutableMap.builder();
+        for (int j = 0; j < numberOfInputs; j++) {
+          inputs.put(Paths.get(readString(buffer)), readHash(buffer));
+        }
+        int length = buffer.getInt();
+        ByteBuffer serialized = buffer.duplicate();
+        serialized.limit(serialized.position() + length);
+        buffer.position(buffer.position() + length);
+        snapshot.addEntry(
+            buildFile,
+            new Entry(cellRoot, fingerprint, inputs.build(), serialized.slice(), null));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing was saved yet.
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LOG.warn(e, "Failed to load raw nodes from %s.", savePath);
+      snapshot.entries.clear();
+      snapshot.watchmanClock = Optional.empty();
+    }
+    return snapshot;
+  }
+
+  /**
+   * @return the raw nodes, including meta rules, stored for {@code buildFile} if they were parsed
+   *     with the same {@code fingerprint} and none of the files read to parse them has changed.
+   */
+  public Optional<ImmutableSet<Map<String, Object>>> get(Path buildFile, HashCode fingerprint) {
+    Preconditions.checkArgument(buildFile.isAbsolute());
+    Entry entry = entries.get(buildFile);
+    if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+      return Optional.empty();
+    }
+    try {
+      for (Map.Entry<Path, HashCode> input : entry.inputs.entrySet()) {
+        if (!hashFile(input.getKey()).equals(input.getValue())) {
+          return Optional.empty();
+        }
+      }
+      return Optional.of(entry.getRawNodes());
+    } catch (IOException e) {
+      LOG.debug(e, "Can't use the stored raw nodes of %s.", buildFile);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Stores the raw nodes, including meta rules, that parsing {@code buildFile} gave.
+   *
+   * @param inputs absolute paths of all files read while parsing {@code buildFile}.
+   */
+  public void put(
+      Path cellRoot,
+      Path buildFile,
+      HashCode fingerprint,
+      Iterable<Path> inputs,
+      ImmutableSet<Map<String, Object>> rawNodes) {
+    Preconditions.checkArgument(buildFile.isAbsolute());
+    ImmutableMap.Builder<Path, HashCode> inputHashes = ImmutableMap.builder();
+    try {
+      for (Path input : ImmutableSet.<Path>builder().add(buildFile).addAll(inputs).build()) {
+        inputHashes.put(input, hashFile(input));
+      }
+    } catch (IOException e) {
+      LOG.debug(e, "Not storing the raw nodes of %s.", buildFile);
+      return;
+    }
+    addEntry(buildFile, new Entry(cellRoot, fingerprint, inputHashes.build(), null, rawNodes));
+    dirty.set(true);
+  }
+
+  /**
+   * Forgets what is known about the file at {@code path}, which is either absolute or relative to
+   * a cell root. If it was added or removed, the build files of packages it may be in are dropped,
+   * as their globs may match differently now.
+   */
+  public void invalidate(Path path, boolean createdOrDeleted) {
+    for (Path cellRoot : cellRoots) {
+      Path absolutePath = cellRoot.resolve(path);
+      fileHashes.remove(absolutePath);
+      if (!createdOrDeleted) {
+        continue;
+      }
+      for (Path dir = absolutePath.getParent();
+           dir != null && dir.startsWith(cellRoot);
+           dir = dir.getParent()) {
+        for (String buildFileName : buildFileNames) {
+          if (entries.remove(dir.resolve(buildFileName)) != null) {
+            dirty.set(true);
+          }
+        }
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    if (!entries.isEmpty()) {
+      dirty.set(true);
+    }
+    entries.clear();
+    fileHashes.clear();
+  }
+
+  /**
+   * Asks Watchman which files changed since the snapshot was saved, and invalidates them. If that
+   * can't be known, everything is dropped.
+   */
+  @SuppressWarnings("unchecked")
+  public void invalidateChangesSince(Watchman watchman) throws InterruptedException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    Optional<WatchmanClient> watchmanClient = watchman.getWatchmanClient();
+    if (!watchmanClock.isPresent() ||
+        !watchmanClient.isPresent() ||
+        !watchman.getWatchRoot().isPresent()) {
+      LOG.info("Can't tell which files changed since raw nodes were saved, dropping them.");
+      invalidateAll();
+      return;
+    }
+
+    Map<String, Object> params = new LinkedHashMap<>();
+    params.put("since", watchmanClock.get());
+    if (watchman.getProjectPrefix().isPresent()) {
+      params.put("relative_root", watchman.getProjectPrefix().get());
+    }
+    params.put("empty_on_fresh_instance", true);
+    params.put("fields", Lists.newArrayList("name", "exists", "new"));
+    List<Object> query = Lists.newArrayList("query", watchman.getWatchRoot().get(), params);
+    try {
+      Optional<? extends Map<String, ? extends Object>> queryResponse =
+          watchmanClient.get().queryWithTimeout(
+              TimeUnit.MILLISECONDS.toNanos(watchman.getCommandTimeoutMillis()),
+              query.toArray());
+      if (!queryResponse.isPresent() ||
+          queryResponse.get().get("error") != null ||
+          Boolean.TRUE.equals(queryResponse.get().get("is_fresh_instance"))) {
+        LOG.info("Watchman can't tell which files changed since raw nodes were saved.");
+        invalidateAll();
+        return;
+      }
+      List<Map<String, Object>> files =
+          (List<Map<String, Object>>) queryResponse.get().get("files");
+      if (files == null) {
+        return;
+      }
+      for (Map<String, Object> file : files) {
+        Object name = file.get("name");
+        if (!(name instanceof String)) {
+          invalidateAll();
+          return;
+        }
+        invalidate(
+            Paths.get((String) name),
+            Boolean.TRUE.equals(file.get("new")) || Boolean.FALSE.equals(file.get("exists")));
+      }
+      LOG.debug("Invalidated %d files changed since raw nodes were saved.", files.size());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to query Watchman for files changed since raw nodes were saved.");
+      invalidateAll();
+    }
+  }
+
+  public Optional<String> getWatchmanClock() {
+    return watchmanClock;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the stored raw nodes to the save path, if there is one and they changed since they
+   * were loaded or last saved.
+   *
+   * @param clock the Watchman clock from before any of the stored build files were read.
+   */
+  public void save(Optional<String> clock) throws IOException {
+    if (!savePath.isPresent() || !dirty.getAndSet(false)) {
+      return;
+    }
+
+    // Entries may still be added while saving, and the count has to match what gets written.
+    Map<Path, Entry> snapshot = new HashMap<>(entries);
+    Path tmp = savePath.get().resolveSibling(savePath.get().getFileName() + ".tmp");
+    Files.createDirectories(savePath.get().getParent());
+    BserSerializer serializer = new BserSerializer();
+    try (DataOutputStream output =
+             new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      output.writeInt(VERSION);
+      writeString(output, clock.orElse(""));
+      output.writeInt(snapshot.size());
+      for (Map.Entry<Path, Entry> mapEntry : snapshot.entrySet()) {
+        Entry entry = mapEntry.getValue();
+        writeString(output, entry.cellRoot.toString());
+        writeString(output, mapEntry.getKey().toString());
+        writeHash(output, entry.fingerprint);
+        output.writeInt(entry.inputs.size());
+        for (Map.Entry<Path, HashCode> input : entry.inputs.entrySet()) {
+          writeString(output, input.getKey().toString());
+          writeHash(output, input.getValue());
+        }
+        byte[] serialized = entry.serialize(serializer);
+        output.writeInt(serialized.length);
+        output.write(serialized);
+      }
+    } catch (IOException e) {
+      dirty.set(true);
+      throw e;
+    }
+    Files.move(tmp, savePath.get(), StandardCopyOption.REPLACE_EXISTING);
+    watchmanClock = clock;
+  }
+
+  private void addEntry(Path buildFile, Entry entry) {
+    cellRoots.add(entry.cellRoot);
+    buildFileNames.add(buildFile.getFileName().toString());
+    entries.put(buildFile, entry);
+  }
+
+  private HashCode hashFile(Path path) throws IOException {
+    HashCode hash = fileHashes.get(path);
+    if (hash == null) {
+      hash = com.google.common.io.Files.asByteSource(path.toFile()).hash(Hashing.sha1());
+      fileHashes.put(path, hash);
+    }
+    return hash;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(Charsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static HashCode readHash(ByteBuffer buffer) {
+    byte[] hash = new byte[buffer.get() & 0xff];
+    buffer.get(hash);
+    return HashCode.fromBytes(hash);
+  }
+
+  private static void writeHash(DataOutputStream output, HashCode hash) throws IOException {
+    byte[] bytes = hash.asBytes();
+    output.writeByte(bytes.length);
+    output.write(bytes);
+  }
+
+  private static class Entry {
+    private final Path cellRoot;
+    private final HashCode fingerprint;
+    private final ImmutableMap<Path, HashCode> inputs;
+    // Exactly one of these is set: the BSER bytes in the mapped file for loaded entries, or the
+    // raw nodes themselves for entries that were added since.
+    @Nullable private final ByteBuffer serialized;
+    @Nullable private final ImmutableSet<Map<String, Object>> rawNodes;
+
+    Entry(
+        Path cellRoot,
+        HashCode fingerprint,
+        ImmutableMap<Path, HashCode> inputs,
+        @Nullable ByteBuffer serialized,
+        @Nullable ImmutableSet<Map<String, Object>> rawNodes) {
+      this.cellRoot = cellRoot;
+      this.fingerprint = fingerprint;
+      this.inputs = inputs;
+      this.serialized = serialized;
+      this.rawNodes = rawNodes;
+    }
+
+    @SuppressWarnings("unchecked")
+    ImmutableSet<Map<String, Object>> getRawNodes() throws IOException {
+      if (rawNodes != null) {
+        return rawNodes;
+      }
+      Object value = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+          .deserializeBserValue(new ByteArrayInputStream(getSerializedBytes()));
+      if (!(value instanceof List)) {
+        throw new IOException("Stored raw nodes are not a list.");
+      }
+      return ImmutableSet.copyOf((List<Map<String, Object>>) value);
+    }
+
+    byte[] serialize(BserSerializer serializer) throws IOException {
+      if (rawNodes == null) {
+        return getSerializedBytes();
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      serializer.serializeToStream(ImmutableList.copyOf(rawNodes), output);
+      return output.toByteArray();
+    }
+
+    private byte[] getSerializedBytes() {
+      ByteBuffer buffer = Preconditions.checkNotNull(serialized).duplicate();
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      return bytes;
+    }
+  }
+}
@@ -19,6 +19,7 @@ package com.facebook.buck.parser;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.TargetNode;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import java.util.Optional;
 
@@ -39,6 +40,13 @@ public interface TargetNodeSpec {
    */
   ImmutableMap<BuildTarget, Optional<TargetNode<?>>> filter(Iterable<TargetNode<?>> nodes);
 
+  /**
+   * @return the targets which should be built according to this spec, if they can be told from
+   *     just the targets defined in a build file, or {@link Optional#empty()} if {@link #filter}
+   *     needs to look at their {@link TargetNode}s.
+   */
+  Optional<ImmutableSet<BuildTarget>> filterBuildTargets(Iterable<BuildTarget> buildTargets);
+
   /**
    * @return a {@link BuildFileSpec} representing the build files to parse to search for
    *     explicit {@link TargetNode}.
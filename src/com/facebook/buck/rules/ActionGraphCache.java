@@ -27,16 +27,19 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.Pair;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyBuilderFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
 
+import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -51,9 +54,25 @@ public class ActionGraphCache {
   @Nullable
   private Pair<TargetGraph, ActionGraphAndResolver> lastActionGraph;
   private BroadcastEventListener broadcastEventListener;
+  private final Optional<DefaultRuleKeyCache> ruleKeyCache;
 
   public ActionGraphCache(BroadcastEventListener broadcastEventListener) {
+    this(broadcastEventListener, Optional.empty());
+  }
+
+  /**
+   * @param ruleKeyCache if present, holds on to the rule keys of the cached action graph, which
+   *     stay valid for as long as the graph is reused.
+   */
+  public ActionGraphCache(
+      BroadcastEventListener broadcastEventListener,
+      Optional<DefaultRuleKeyCache> ruleKeyCache) {
     this.broadcastEventListener = broadcastEventListener;
+    this.ruleKeyCache = ruleKeyCache;
+  }
+
+  public Optional<DefaultRuleKeyCache> getRuleKeyCache() {
+    return ruleKeyCache;
   }
 
   /**
@@ -85,6 +104,8 @@ public class ActionGraphCache {
         } else {
           LOG.info("ActionGraph cache miss. TargetGraphs mismatched.");
         }
+        // The keys of the rules of the previous graph are no use anymore.
+        ruleKeyCache.ifPresent(DefaultRuleKeyCache::invalidateAll);
         lastActionGraph = new Pair<TargetGraph, ActionGraphAndResolver>(
             targetGraph,
             createActionGraph(
@@ -240,8 +261,12 @@ public class ActionGraphCache {
 
   @Subscribe
   public void invalidateBasedOn(WatchEvent<?> event) {
-    // We invalidate in every case except a modify event.
-    if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+    // A modified file only invalidates the rule keys that depend on it. We invalidate the whole
+    // graph in every other case.
+    if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+      Path path = (Path) event.context();
+      ruleKeyCache.ifPresent(cache -> cache.invalidatePath(path));
+    } else {
       LOG.info("ActionGraphCache invalidation due to Watchman event %s.", event);
       invalidateCache();
 
@@ -257,6 +282,7 @@ public class ActionGraphCache {
 
   private void invalidateCache() {
     lastActionGraph = null;
+    ruleKeyCache.ifPresent(DefaultRuleKeyCache::invalidateAll);
   }
 
   @VisibleForTesting
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.FetchRequest;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Coalesces the artifact cache lookups of rules which become ready at around the same time into
+ * {@link ArtifactCache#multiFetch(ImmutableList)} calls, so that a whole frontier of ready rules
+ * costs a single trip to the cache rather than one per rule.
+ * <p>
+ * At most one batch is outstanding at any time. Lookups which arrive while a batch is in flight
+ * queue up, and are sent together as soon as it completes.
+ */
+class ArtifactFetchBatcher {
+
+  private static final Logger LOG = Logger.get(ArtifactFetchBatcher.class);
+
+  private final ListeningExecutorService service;
+  private final int maxBatchSize;
+
+  @GuardedBy("this")
+  private final Queue<PendingFetch> pending = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private boolean draining = false;
+
+  public ArtifactFetchBatcher(ListeningExecutorService service, int maxBatchSize) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    this.service = service;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Queue a lookup of {@code ruleKey} in {@code artifactCache}.
+   *
+   * @return a future which is set once the batch containing this lookup has been fetched. It never
+   *     fails: errors are reported as a {@link CacheResult} instead.
+   */
+  public ListenableFuture<CacheResult> fetch(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      LazyPath output) {
+    PendingFetch fetch = new PendingFetch(artifactCache, FetchRequest.of(ruleKey, output));
+    boolean startDraining;
+    synchronized (this) {
+      pending.add(fetch);
+      startDraining = !draining;
+      draining = true;
+    }
+    if (startDraining) {
+      service.submit(this::drain);
+    }
+    return fetch.result;
+  }
+
+  private void drain() {
+    while (true) {
+      List<PendingFetch> batch;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          draining = false;
+          return;
+        }
+        batch = Lists.newArrayListWithCapacity(Math.min(pending.size(), maxBatchSize));
+        while (!pending.isEmpty() && batch.size() < maxBatchSize) {
+          batch.add(pending.remove());
+        }
+      }
+      dispatch(batch);
+    }
+  }
+
+  private void dispatch(List<PendingFetch> batch) {
+    // All of the rules in a build normally share the same cache, but group them just in case.
+    ListMultimap<ArtifactCache, PendingFetch> byCache = LinkedListMultimap.create();
+    for (PendingFetch fetch : batch) {
+      byCache.put(fetch.artifactCache, fetch);
+    }
+
+    for (Map.Entry<ArtifactCache, Collection<PendingFetch>> entry : byCache.asMap().entrySet()) {
+      ImmutableList<PendingFetch> fetches = ImmutableList.copyOf(entry.getValue());
+      ImmutableList.Builder<FetchRequest> requests = ImmutableList.builder();
+      for (PendingFetch fetch : fetches) {
+        requests.add(fetch.request);
+      }
+
+      try {
+        ImmutableList<CacheResult> results = entry.getKey().multiFetch(requests.build());
+        for (int i = 0; i < fetches.size(); i++) {
+          fetches.get(i).result.set(results.get(i));
+        }
+      } catch (Throwable t) {
+        LOG.error(t, "Buck internal error when downloading from the cache, will build locally.");
+        for (PendingFetch fetch : fetches) {
+          fetch.result.set(CacheResult.error("unknown", t.getMessage()));
+        }
+      }
+    }
+  }
+
+  private static class PendingFetch {
+    private final ArtifactCache artifactCache;
+    private final FetchRequest request;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+
+    public PendingFetch(ArtifactCache artifactCache, FetchRequest request) {
+      this.artifactCache = artifactCache;
+      this.request = request;
+    }
+  }
+}
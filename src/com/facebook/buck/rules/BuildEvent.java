@@ -56,6 +56,12 @@ public abstract class BuildEvent extends AbstractBuckEvent implements WorkAdvanc
     return new UnskippedRuleCountUpdated(ruleCount);
   }
 
+  public static CriticalPathWallTime criticalPathWallTime(
+      long predictedWallTimeMillis,
+      long actualWallTimeMillis) {
+    return new CriticalPathWallTime(predictedWallTimeMillis, actualWallTimeMillis);
+  }
+
   public static class Started extends BuildEvent {
 
     private final ImmutableSet<String> buildArgs;
@@ -209,4 +215,51 @@ public abstract class BuildEvent extends AbstractBuckEvent implements WorkAdvanc
       return System.identityHashCode(this);
     }
   }
+
+  /**
+   * Posted once all top-level rules have been built when critical-path scheduling is enabled, to
+   * compare the critical path predicted from past builds with how long the build actually took.
+   */
+  public static class CriticalPathWallTime extends BuildEvent {
+
+    private final long predictedWallTimeMillis;
+    private final long actualWallTimeMillis;
+
+    protected CriticalPathWallTime(long predictedWallTimeMillis, long actualWallTimeMillis) {
+      super(EventKey.unique());
+      this.predictedWallTimeMillis = predictedWallTimeMillis;
+      this.actualWallTimeMillis = actualWallTimeMillis;
+    }
+
+    public long getPredictedWallTimeMillis() {
+      return predictedWallTimeMillis;
+    }
+
+    public long getActualWallTimeMillis() {
+      return actualWallTimeMillis;
+    }
+
+    @Override
+    public String getEventName() {
+      return "CriticalPathWallTime";
+    }
+
+    @Override
+    protected String getValueString() {
+      return String.format(
+          "predicted: %d ms, actual: %d ms",
+          predictedWallTimeMillis,
+          actualWallTimeMillis);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+  }
 }
@@ -26,7 +26,6 @@ import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
-import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
@@ -35,10 +34,12 @@ import com.facebook.buck.rules.keys.AbiRule;
 import com.facebook.buck.rules.keys.AbiRuleKeyBuilderFactory;
 import com.facebook.buck.rules.keys.DefaultDependencyFileRuleKeyBuilderFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.DependencyFileEntry;
 import com.facebook.buck.rules.keys.DependencyFileRuleKeyBuilderFactory;
 import com.facebook.buck.rules.keys.InputBasedRuleKeyBuilderFactory;
 import com.facebook.buck.rules.keys.InputCountingRuleKeyBuilderFactory;
+import com.facebook.buck.rules.keys.RuleKeyDiagnosticsLog;
 import com.facebook.buck.rules.keys.SupportsDependencyFileRuleKey;
 import com.facebook.buck.rules.keys.SupportsInputBasedRuleKey;
 import com.facebook.buck.step.ExecutionContext;
@@ -52,6 +53,7 @@ import com.facebook.buck.util.MoreFunctions;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.OptionalCompat;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.concurrent.ListeningMultiSemaphore;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
@@ -103,6 +105,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -138,9 +141,6 @@ public class CachingBuildEngine implements BuildEngine {
   private final ConcurrentMap<BuildTarget, ListenableFuture<BuildResult>> results =
       Maps.newConcurrentMap();
 
-  private final ConcurrentMap<BuildTarget, ListenableFuture<RuleKey>> ruleKeys =
-      Maps.newConcurrentMap();
-
   private final RuleDepsCache ruleDeps;
   private final Optional<UnskippedRulesTracker> unskippedRulesTracker;
 
@@ -159,6 +159,9 @@ public class CachingBuildEngine implements BuildEngine {
   private final LoadingCache<ProjectFilesystem, FileHashCache> fileHashCaches;
   private final LoadingCache<ProjectFilesystem, RuleKeyFactories> ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
+  private final Optional<CriticalPathScheduler> criticalPathScheduler;
+  private final ParallelRuleKeyCalculator ruleKeyCalculator;
+  private final Optional<ArtifactFetchBatcher> artifactFetchBatcher;
 
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
@@ -168,11 +171,16 @@ public class CachingBuildEngine implements BuildEngine {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int maxArtifactFetchBatchSize,
       final long inputRuleKeyFileSizeLimit,
       ObjectMapper objectMapper,
       final BuildRuleResolver resolver,
       final int keySeed,
-      ResourceAwareSchedulingInfo resourceAwareSchedulingInfo) {
+      final RuleKeyHashFunction ruleKeyHashFunction,
+      final Optional<DefaultRuleKeyCache> defaultRuleKeyCache,
+      final Optional<RuleKeyDiagnosticsLog> ruleKeyDiagnosticsLog,
+      ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      Optional<CriticalPathScheduler> criticalPathScheduler) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
 
     this.ruleDeps = new RuleDepsCache(service);
@@ -194,12 +202,18 @@ public class CachingBuildEngine implements BuildEngine {
           public RuleKeyFactories load(@Nonnull ProjectFilesystem filesystem) throws Exception {
             return RuleKeyFactories.build(
                 keySeed,
+                ruleKeyHashFunction,
+                defaultRuleKeyCache,
+                ruleKeyDiagnosticsLog,
                 fileHashCaches.get(filesystem),
                 resolver,
                 inputRuleKeyFileSizeLimit);
           }
         });
     this.resourceAwareSchedulingInfo = resourceAwareSchedulingInfo;
+    this.criticalPathScheduler = criticalPathScheduler;
+    this.ruleKeyCalculator = createRuleKeyCalculator();
+    this.artifactFetchBatcher = createArtifactFetchBatcher(maxArtifactFetchBatchSize);
   }
 
   /**
@@ -214,9 +228,11 @@ public class CachingBuildEngine implements BuildEngine {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int maxArtifactFetchBatchSize,
       SourcePathResolver pathResolver,
       final Function<? super ProjectFilesystem, RuleKeyFactories> ruleKeyFactoriesFunction,
-      ResourceAwareSchedulingInfo resourceAwareSchedulingInfo) {
+      ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      Optional<CriticalPathScheduler> criticalPathScheduler) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
 
     this.ruleDeps = new RuleDepsCache(service);
@@ -240,6 +256,9 @@ public class CachingBuildEngine implements BuildEngine {
           }
         });
     this.resourceAwareSchedulingInfo = resourceAwareSchedulingInfo;
+    this.criticalPathScheduler = criticalPathScheduler;
+    this.ruleKeyCalculator = createRuleKeyCalculator();
+    this.artifactFetchBatcher = createArtifactFetchBatcher(maxArtifactFetchBatchSize);
   }
 
   /**
@@ -255,6 +274,28 @@ public class CachingBuildEngine implements BuildEngine {
     return service;
   }
 
+  private ParallelRuleKeyCalculator createRuleKeyCalculator() {
+    return new ParallelRuleKeyCalculator(
+        serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS),
+        ruleDeps,
+        new Function<ProjectFilesystem, RuleKeyBuilderFactory<RuleKey>>() {
+          @Override
+          public RuleKeyBuilderFactory<RuleKey> apply(ProjectFilesystem filesystem) {
+            return ruleKeyFactories.getUnchecked(filesystem).defaultRuleKeyBuilderFactory;
+          }
+        });
+  }
+
+  private Optional<ArtifactFetchBatcher> createArtifactFetchBatcher(int maxBatchSize) {
+    if (maxBatchSize <= 1) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new ArtifactFetchBatcher(
+            serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS),
+            maxBatchSize));
+  }
+
   private static Optional<UnskippedRulesTracker> createUnskippedRulesTracker(
       BuildMode buildMode,
       RuleDepsCache ruleDeps,
@@ -285,7 +326,7 @@ public class CachingBuildEngine implements BuildEngine {
   @Nullable
   @Override
   public RuleKey getRuleKey(BuildTarget buildTarget) {
-    return Futures.getUnchecked(ruleKeys.get(buildTarget));
+    return Futures.getUnchecked(ruleKeyCalculator.getRuleKey(buildTarget));
   }
 
   // Dispatch and return a future resolving to a list of all results of this rules dependencies.
@@ -296,19 +337,31 @@ public class CachingBuildEngine implements BuildEngine {
       ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks) {
     List<ListenableFuture<BuildResult>> depResults =
         Lists.newArrayListWithExpectedSize(rule.getDeps().size());
-    for (BuildRule dep : shuffled(rule.getDeps())) {
+    for (BuildRule dep : ordered(rule.getDeps())) {
       depResults.add(
           getBuildRuleResultWithRuntimeDeps(dep, buildContext, executionContext, asyncCallbacks));
     }
     return Futures.allAsList(depResults);
   }
 
-  private static List<BuildRule> shuffled(Iterable<BuildRule> rules) {
+  // When scheduling by critical path, dispatch the deps with the longest remaining chain of work
+  // first.  Otherwise, shuffle them to avoid always starting with the same subgraph.
+  private List<BuildRule> ordered(Iterable<BuildRule> rules) {
+    if (criticalPathScheduler.isPresent()) {
+      return criticalPathScheduler.get().sortByPriority(rules);
+    }
     ArrayList<BuildRule> rulesList = Lists.newArrayList(rules);
     Collections.shuffle(rulesList);
     return rulesList;
   }
 
+  private long getRulePriority(BuildRule rule) {
+    if (criticalPathScheduler.isPresent()) {
+      return criticalPathScheduler.get().getPriority(rule);
+    }
+    return ListeningMultiSemaphore.DEFAULT_PRIORITY;
+  }
+
   private AsyncFunction<Optional<BuildResult>, BuildResult> buildLocally(
       final BuildRule rule,
       final BuildContext buildContext,
@@ -346,7 +399,8 @@ public class CachingBuildEngine implements BuildEngine {
                   cacheResult);
             }
           },
-          getRuleResourceAmounts(rule));
+          getRuleResourceAmounts(rule),
+          getRulePriority(rule));
     };
   }
 
@@ -462,7 +516,6 @@ public class CachingBuildEngine implements BuildEngine {
 
     final RuleKeyFactories ruleKeyFactory =
         ruleKeyFactories.getUnchecked(rule.getProjectFilesystem());
-    final CacheResult cacheResult;
 
     try (BuildRuleEvent.Scope scope =
              BuildRuleEvent.resumeSuspendScope(
@@ -485,7 +538,36 @@ public class CachingBuildEngine implements BuildEngine {
       }
 
       // 2. Rule key cache lookup.
-      cacheResult = tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+      if (artifactFetchBatcher.isPresent() && rule.isCacheable()) {
+        // Batch this lookup up with those of the other rules which are ready at the same time.
+        final StagedArtifactLazyPath lazyZipPath = createLazyZipPath(rule);
+        return Futures.transformAsync(
+            artifactFetchBatcher.get().fetch(
+                buildContext.getArtifactCache(),
+                defaultRuleKey,
+                lazyZipPath),
+            ruleAsyncFunction(
+                rule,
+                buildContext.getEventBus(),
+                fetchResult -> buildUnlessFetchedFromCache(
+                    rule,
+                    buildContext,
+                    executionContext,
+                    onDiskBuildInfo,
+                    buildInfoRecorder,
+                    buildableContext,
+                    asyncCallbacks,
+                    ruleKeyFactory,
+                    unzipArtifactFromCacheResult(
+                        rule,
+                        defaultRuleKey,
+                        lazyZipPath,
+                        buildContext,
+                        rule.getProjectFilesystem(),
+                        fetchResult))),
+            serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+      }
+      CacheResult cacheResult = tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
           rule,
           defaultRuleKey,
           buildInfoRecorder,
@@ -494,47 +576,69 @@ public class CachingBuildEngine implements BuildEngine {
           rule.getProjectFilesystem(),
           buildContext);
 
-      if (cacheResult.getType().isSuccess()) {
-        return Futures.transform(
-            markRuleAsUsed(rule, buildContext.getEventBus()), Functions.constant(
-                BuildResult.success(
-                    rule,
-                    BuildRuleSuccessType.FETCHED_FROM_CACHE,
-                    cacheResult)));
-      }
+      return buildUnlessFetchedFromCache(
+          rule,
+          buildContext,
+          executionContext,
+          onDiskBuildInfo,
+          buildInfoRecorder,
+          buildableContext,
+          asyncCallbacks,
+          ruleKeyFactory,
+          cacheResult);
+    }
+  }
 
-      // 3. Build deps.
-      ListenableFuture<List<BuildResult>> getDepResults =
-          Futures.transformAsync(
-              getDepResults(rule, buildContext, executionContext, asyncCallbacks),
-              input -> Futures.transform(
-                  markRuleAsUsed(rule, buildContext.getEventBus()),
-                  Functions.constant(input)),
-              serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
-
-      // 4. Return to the current rule and check caches to see if we can avoid building
-      // locally.
-      AsyncFunction<List<BuildResult>, Optional<BuildResult>> checkCachesCallback =
-          checkCaches(rule, buildContext, onDiskBuildInfo, buildInfoRecorder, ruleKeyFactory);
-
-      ListenableFuture<Optional<BuildResult>> checkCachesResult =
-          Futures.transformAsync(
-              getDepResults,
-              ruleAsyncFunction(rule, buildContext.getEventBus(), checkCachesCallback),
-              serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
-
-      // 5. Build the current rule locally, if we have to.
-      return Futures.transformAsync(
-          checkCachesResult,
-          buildLocally(
-              rule,
-              buildContext,
-              executionContext,
-              ruleKeyFactory,
-              buildableContext,
-              cacheResult),
-          serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+  private ListenableFuture<BuildResult> buildUnlessFetchedFromCache(
+      final BuildRule rule,
+      final BuildContext buildContext,
+      final ExecutionContext executionContext,
+      final OnDiskBuildInfo onDiskBuildInfo,
+      final BuildInfoRecorder buildInfoRecorder,
+      final BuildableContext buildableContext,
+      final ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks,
+      final RuleKeyFactories ruleKeyFactory,
+      final CacheResult cacheResult) {
+    if (cacheResult.getType().isSuccess()) {
+      return Futures.transform(
+          markRuleAsUsed(rule, buildContext.getEventBus()), Functions.constant(
+              BuildResult.success(
+                  rule,
+                  BuildRuleSuccessType.FETCHED_FROM_CACHE,
+                  cacheResult)));
     }
+
+    // 3. Build deps.
+    ListenableFuture<List<BuildResult>> getDepResults =
+        Futures.transformAsync(
+            getDepResults(rule, buildContext, executionContext, asyncCallbacks),
+            input -> Futures.transform(
+                markRuleAsUsed(rule, buildContext.getEventBus()),
+                Functions.constant(input)),
+            serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+
+    // 4. Return to the current rule and check caches to see if we can avoid building
+    // locally.
+    AsyncFunction<List<BuildResult>, Optional<BuildResult>> checkCachesCallback =
+        checkCaches(rule, buildContext, onDiskBuildInfo, buildInfoRecorder, ruleKeyFactory);
+
+    ListenableFuture<Optional<BuildResult>> checkCachesResult =
+        Futures.transformAsync(
+            getDepResults,
+            ruleAsyncFunction(rule, buildContext.getEventBus(), checkCachesCallback),
+            serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+
+    // 5. Build the current rule locally, if we have to.
+    return Futures.transformAsync(
+        checkCachesResult,
+        buildLocally(
+            rule,
+            buildContext,
+            executionContext,
+            ruleKeyFactory,
+            buildableContext,
+            cacheResult),
+        serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
   }
 
   private ListenableFuture<BuildResult> processBuildRule(
@@ -1065,55 +1169,16 @@ public class CachingBuildEngine implements BuildEngine {
       }
     }
     Futures.getUnchecked(Futures.allAsList(results.build()));
+    if (criticalPathScheduler.isPresent()) {
+      criticalPathScheduler.get().plan(rules);
+    }
     return seen.size();
   }
 
-  private synchronized ListenableFuture<RuleKey> calculateRuleKey(
+  private ListenableFuture<RuleKey> calculateRuleKey(
       final BuildRule rule,
       final BuildContext context) {
-    ListenableFuture<RuleKey> ruleKey = ruleKeys.get(rule.getBuildTarget());
-    if (ruleKey == null) {
-
-      // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
-      // one, we need to wait for them to complete.
-      ListenableFuture<List<RuleKey>> depKeys =
-          Futures.transformAsync(
-              ruleDeps.get(rule),
-              deps -> {
-                List<ListenableFuture<RuleKey>> depKeys1 =
-                    Lists.newArrayListWithExpectedSize(rule.getDeps().size());
-                for (BuildRule dep : deps) {
-                  depKeys1.add(calculateRuleKey(dep, context));
-                }
-                return Futures.allAsList(depKeys1);
-              },
-              serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
-
-      final RuleKeyFactories keyFactories =
-          ruleKeyFactories.getUnchecked(rule.getProjectFilesystem());
-
-      // Setup a future to calculate this rule key once the dependencies have been calculated.
-      ruleKey = Futures.transform(
-          depKeys,
-          new Function<List<RuleKey>, RuleKey>() {
-            @Override
-            public RuleKey apply(List<RuleKey> input) {
-              try (BuildRuleEvent.Scope scope =
-                       BuildRuleEvent.startSuspendScope(
-                           context.getEventBus(),
-                           rule,
-                           keyFactories.defaultRuleKeyBuilderFactory)) {
-                return keyFactories.defaultRuleKeyBuilderFactory.build(rule);
-              }
-            }
-          },
-          serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS));
-
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), ruleKey);
-    }
-
-    return ruleKey;
+    return ruleKeyCalculator.calculate(context.getEventBus(), rule);
   }
 
   @Override
@@ -1129,12 +1194,18 @@ public class CachingBuildEngine implements BuildEngine {
         registerTopLevelRule(rule, buildContext.getEventBus()),
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext, asyncCallbacks),
         serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
-    return Futures.transformAsync(
+    ListenableFuture<BuildResult> finalResult = Futures.transformAsync(
         resultFuture,
         result -> Futures.transform(
             Futures.allAsList(asyncCallbacks),
             Functions.constant(result)),
         serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
+    if (criticalPathScheduler.isPresent()) {
+      finalResult.addListener(
+          () -> criticalPathScheduler.get().topLevelRuleFinished(rule, buildContext.getEventBus()),
+          MoreExecutors.directExecutor());
+    }
+    return finalResult;
   }
 
   private CacheResult tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
@@ -1149,16 +1220,7 @@ public class CachingBuildEngine implements BuildEngine {
       return CacheResult.ignored();
     }
 
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    final LazyPath lazyZipPath = new LazyPath() {
-      @Override
-      protected Path create() throws IOException {
-        return Files.createTempFile(
-            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
-            ".zip");
-      }
-    };
+    final StagedArtifactLazyPath lazyZipPath = createLazyZipPath(rule);
 
     // TODO(bolinfest): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
@@ -1175,10 +1237,16 @@ public class CachingBuildEngine implements BuildEngine {
                     cacheResult);
   }
 
+  private static StagedArtifactLazyPath createLazyZipPath(BuildRule rule) {
+    return new StagedArtifactLazyPath(
+        rule.getProjectFilesystem(),
+        rule.getBuildTarget().getShortName());
+  }
+
   private CacheResult unzipArtifactFromCacheResult(
       BuildRule rule,
       RuleKey ruleKey,
-      LazyPath lazyZipPath,
+      StagedArtifactLazyPath lazyZipPath,
       BuildContext buildContext,
       ProjectFilesystem filesystem,
       CacheResult cacheResult) {
@@ -1188,6 +1256,25 @@ public class CachingBuildEngine implements BuildEngine {
     }
     LOG.debug("Fetched '%s' from cache with rulekey '%s'", rule, ruleKey);
 
+    if (lazyZipPath.isCommitted()) {
+      // The cache extracted the artifact as it was downloaded, so there is nothing to unzip.
+      try {
+        Optional<Path> zipPath = lazyZipPath.getCreatedZipPath();
+        if (zipPath.isPresent()) {
+          Files.deleteIfExists(zipPath.get());
+        }
+        writeCacheResultMetadata(rule, filesystem, cacheResult);
+      } catch (IOException e) {
+        buildContext.getEventBus().post(ConsoleEvent.warning(
+            "Failed to write the build metadata fetched for %s.\n" +
+                "The rule will be built locally, but here is the stacktrace:\n%s",
+            rule.getBuildTarget(),
+            Throwables.getStackTraceAsString(e)));
+        return CacheResult.miss();
+      }
+      return cacheResult;
+    }
+
     // It should be fine to get the path straight away, since cache already did it's job.
     Path zipPath = lazyZipPath.getUnchecked();
 
@@ -1215,19 +1302,7 @@ public class CachingBuildEngine implements BuildEngine {
       // around for debugging purposes.
       Files.delete(zipPath);
 
-      if (cacheResult.getType() == CacheResultType.HIT) {
-
-        // If we have a hit, also write out the build metadata.
-        Path metadataDir =
-            BuildInfo.getPathToMetadataDirectory(
-                rule.getBuildTarget(),
-                rule.getProjectFilesystem());
-        for (Map.Entry<String, String> ent : cacheResult.getMetadata().entrySet()) {
-          Path dest = metadataDir.resolve(ent.getKey());
-          filesystem.createParentDirs(dest);
-          filesystem.writeContentsToPath(ent.getValue(), dest);
-        }
-      }
+      writeCacheResultMetadata(rule, filesystem, cacheResult);
 
     } catch (IOException e) {
       // In the wild, we have seen some inexplicable failures during this step. For now, we try to
@@ -1248,6 +1323,25 @@ public class CachingBuildEngine implements BuildEngine {
     return cacheResult;
   }
 
+  private static void writeCacheResultMetadata(
+      BuildRule rule,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult) throws IOException {
+    if (cacheResult.getType() == CacheResultType.HIT) {
+
+      // If we have a hit, also write out the build metadata.
+      Path metadataDir =
+          BuildInfo.getPathToMetadataDirectory(
+              rule.getBuildTarget(),
+              rule.getProjectFilesystem());
+      for (Map.Entry<String, String> ent : cacheResult.getMetadata().entrySet()) {
+        Path dest = metadataDir.resolve(ent.getKey());
+        filesystem.createParentDirs(dest);
+        filesystem.writeContentsToPath(ent.getValue(), dest);
+      }
+    }
+  }
+
   private CacheResult fetchArtifactForBuildable(
       final RuleKey ruleKey,
       final LazyPath lazyZipPath,
@@ -1300,6 +1394,11 @@ public class CachingBuildEngine implements BuildEngine {
     }
 
     long end = System.nanoTime();
+    if (criticalPathScheduler.isPresent()) {
+      criticalPathScheduler.get().recordLocalBuildDuration(
+          rule,
+          TimeUnit.NANOSECONDS.toMillis(end - start));
+    }
     LOG.debug("Build completed: %s %s (%dns)",
         rule.getType(),
         rule.getFullyQualifiedName(),
@@ -1466,13 +1565,6 @@ public class CachingBuildEngine implements BuildEngine {
       rule.getProjectFilesystem().createParentDirs(manifestPath);
     }
 
-    // If the manifest is larger than the max size, just truncate it.  It might be nice to support
-    // some sort of LRU management here to avoid evicting everything, but it'll take some care to do
-    // this efficiently and it's not clear how much benefit this will give us.
-    if (manifest.size() >= maxDepFileCacheEntries) {
-      manifest = new Manifest();
-    }
-
     // Update the manifest with the new output rule key.
     manifest.addEntry(
         fileHashCaches.getUnchecked(rule.getProjectFilesystem()),
@@ -1481,6 +1573,9 @@ public class CachingBuildEngine implements BuildEngine {
         manifestKey.getSecond(),
         inputs);
 
+    // If the manifest is larger than the max size, evict its least recently added entries.
+    manifest.trim(maxDepFileCacheEntries);
+
     // Serialize the manifest to disk.
     try (OutputStream outputStream =
              rule.getProjectFilesystem().newFileOutputStream(manifestPath)) {
@@ -1567,19 +1662,18 @@ public class CachingBuildEngine implements BuildEngine {
     }
     Files.delete(tempFile.get());
 
-    // Deserialize the manifest.
-    Manifest manifest;
+    // Lookup the rule for the current state of our inputs, straight from the serialized manifest.
+    Optional<RuleKey> ruleKey;
     try (InputStream input =
-             rule.getProjectFilesystem().newFileInputStream(manifestPath)) {
-      manifest = new Manifest(input);
+             new BufferedInputStream(
+                 rule.getProjectFilesystem().newFileInputStream(manifestPath))) {
+      ruleKey =
+          Manifest.lookup(
+              input,
+              fileHashCaches.getUnchecked(rule.getProjectFilesystem()),
+              pathResolver,
+              manifestKey.get().getSecond());
     }
-
-    // Lookup the rule for the current state of our inputs.
-    Optional<RuleKey> ruleKey =
-        manifest.lookup(
-            fileHashCaches.getUnchecked(rule.getProjectFilesystem()),
-            pathResolver,
-            manifestKey.get().getSecond());
     if (!ruleKey.isPresent()) {
       return Optional.empty();
     }
@@ -1776,6 +1870,9 @@ public class CachingBuildEngine implements BuildEngine {
 
     public static RuleKeyFactories build(
         int seed,
+        RuleKeyHashFunction hashFunction,
+        Optional<DefaultRuleKeyCache> defaultRuleKeyCache,
+        Optional<RuleKeyDiagnosticsLog> ruleKeyDiagnosticsLog,
         FileHashCache fileHashCache,
         BuildRuleResolver ruleResolver,
         long inputRuleKeyFileSizeLimit) {
@@ -1783,7 +1880,10 @@ public class CachingBuildEngine implements BuildEngine {
       DefaultRuleKeyBuilderFactory defaultRuleKeyBuilderFactory = new DefaultRuleKeyBuilderFactory(
           seed,
           fileHashCache,
-          pathResolver);
+          pathResolver,
+          hashFunction,
+          defaultRuleKeyCache,
+          ruleKeyDiagnosticsLog);
 
       return new RuleKeyFactories(
           defaultRuleKeyBuilderFactory,
@@ -1791,16 +1891,19 @@ public class CachingBuildEngine implements BuildEngine {
               seed,
               fileHashCache,
               pathResolver,
-              inputRuleKeyFileSizeLimit),
+              inputRuleKeyFileSizeLimit,
+              hashFunction),
           new AbiRuleKeyBuilderFactory(
               seed,
               fileHashCache,
               pathResolver,
-              defaultRuleKeyBuilderFactory),
+              defaultRuleKeyBuilderFactory,
+              hashFunction),
           new DefaultDependencyFileRuleKeyBuilderFactory(
               seed,
               fileHashCache,
-              pathResolver),
+              pathResolver,
+              hashFunction),
           new InputCountingRuleKeyBuilderFactory(
               seed,
               fileHashCache,
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The {@link ParamInfo}s of a constructor arg class, with their type coercers and default values
+ * resolved, so that populating and scanning constructor args doesn't have to look them up
+ * reflectively for every target.
+ */
+public class CoercionPlan {
+
+  private final ImmutableSet<ParamInfo> paramInfos;
+  private final Optional<ParamInfo> declaredDeps;
+  private final ImmutableList<ParamInfo> depsAndInputs;
+
+  private CoercionPlan(TypeCoercerFactory typeCoercerFactory, Class<?> argClass) {
+    ImmutableSet.Builder<ParamInfo> paramInfos = ImmutableSet.builder();
+    Optional<ParamInfo> declaredDeps = Optional.empty();
+    ImmutableList.Builder<ParamInfo> depsAndInputs = ImmutableList.builder();
+
+    for (Field field : argClass.getFields()) {
+      ParamInfo info = new ParamInfo(typeCoercerFactory, argClass, field);
+      if (info.isDep() && info.isInput() &&
+          info.hasElementTypes(BuildTarget.class, SourcePath.class, Path.class)) {
+        depsAndInputs.add(info);
+      }
+      if (Modifier.isFinal(field.getModifiers())) {
+        continue;
+      }
+      paramInfos.add(info);
+      if (info.getName().equals("deps") && info.isDep()) {
+        declaredDeps = Optional.of(info);
+      }
+    }
+
+    this.paramInfos = paramInfos.build();
+    this.declaredDeps = declaredDeps;
+    this.depsAndInputs = depsAndInputs.build();
+  }
+
+  /**
+   * Plans are shared by everything using the same {@link TypeCoercerFactory}, so each constructor
+   * arg class has its coercers resolved once, however many marshallers and node factories use it.
+   * Coercers don't refer back to their factory, so weak keys let a discarded factory's plans go.
+   */
+  private static final LoadingCache<TypeCoercerFactory, Cache<Class<?>, CoercionPlan>> PLANS =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(
+              new CacheLoader<TypeCoercerFactory, Cache<Class<?>, CoercionPlan>>() {
+                @Override
+                public Cache<Class<?>, CoercionPlan> load(TypeCoercerFactory typeCoercerFactory) {
+                  return CacheBuilder.newBuilder().build();
+                }
+              });
+
+  /**
+   * @return the plan of {@code argClass}, computing it when first needed.
+   */
+  public static CoercionPlan of(
+      final TypeCoercerFactory typeCoercerFactory,
+      final Class<?> argClass) {
+    try {
+      return PLANS.getUnchecked(typeCoercerFactory).get(
+          argClass,
+          () -> new CoercionPlan(typeCoercerFactory, argClass));
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * @return the fields which can be set from build files.
+   */
+  public ImmutableSet<ParamInfo> getParamInfos() {
+    return paramInfos;
+  }
+
+  /**
+   * @return the {@code deps} field, if the class has one holding dependencies.
+   */
+  public Optional<ParamInfo> getDeclaredDeps() {
+    return declaredDeps;
+  }
+
+  /**
+   * @return the fields that may refer to other targets or to files, which need to be scanned to
+   *     find a target's extra deps and inputs.
+   */
+  public ImmutableList<ParamInfo> getDepsAndInputs() {
+    return depsAndInputs;
+  }
+}
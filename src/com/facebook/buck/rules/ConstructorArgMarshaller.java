@@ -21,18 +21,13 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 
 /**
  * Used to derive information from the constructor args returned by {@link Description} instances.
@@ -43,7 +38,6 @@ import java.util.concurrent.ExecutionException;
 public class ConstructorArgMarshaller {
 
   private final TypeCoercerFactory typeCoercerFactory;
-  private final Cache<Class<?>, ImmutableSet<ParamInfo>> coercedTypes;
 
   /**
    * Constructor. {@code pathFromProjectRootToBuildFile} is the path relative to the project root to
@@ -53,7 +47,6 @@ public class ConstructorArgMarshaller {
    */
   public ConstructorArgMarshaller(TypeCoercerFactory typeCoercerFactory) {
     this.typeCoercerFactory = typeCoercerFactory;
-    this.coercedTypes = CacheBuilder.newBuilder().build();
   }
 
   /**
@@ -86,15 +79,16 @@ public class ConstructorArgMarshaller {
       ImmutableSet.Builder<BuildTarget> declaredDeps,
       ImmutableSet.Builder<VisibilityPattern> visibilityPatterns,
       Map<String, ?> instance) throws ConstructorArgMarshalException {
-    for (ParamInfo info : getAllParamInfo(dto)) {
+    CoercionPlan plan = CoercionPlan.of(typeCoercerFactory, dto.getClass());
+    for (ParamInfo info : plan.getParamInfos()) {
       try {
         info.setFromParams(cellRoots, filesystem, params, dto, instance);
       } catch (ParamInfoException e) {
         throw new ConstructorArgMarshalException(e.getMessage(), e);
       }
-      if (info.getName().equals("deps")) {
-        populateDeclaredDeps(info, declaredDeps, dto);
-      }
+    }
+    if (plan.getDeclaredDeps().isPresent()) {
+      populateDeclaredDeps(plan.getDeclaredDeps().get(), declaredDeps, dto);
     }
     populateVisibilityPatterns(cellRoots, visibilityPatterns, instance, params.target);
   }
@@ -125,18 +119,14 @@ public class ConstructorArgMarshaller {
       ParamInfo paramInfo,
       final ImmutableSet.Builder<BuildTarget> declaredDeps,
       Object dto) {
-
-    if (paramInfo.isDep()) {
-      paramInfo.traverse(
-          object -> {
-            if (!(object instanceof BuildTarget)) {
-              return;
-            }
-            declaredDeps.add((BuildTarget) object);
-          },
-          dto);
-
-    }
+    paramInfo.traverse(
+        object -> {
+          if (!(object instanceof BuildTarget)) {
+            return;
+          }
+          declaredDeps.add((BuildTarget) object);
+        },
+        dto);
   }
 
   @SuppressWarnings("unchecked")
@@ -173,25 +163,6 @@ public class ConstructorArgMarshaller {
   }
 
   ImmutableSet<ParamInfo> getAllParamInfo(Object dto) {
-    final Class<?> argClass = dto.getClass();
-    try {
-      return coercedTypes.get(argClass, () -> {
-        ImmutableSet.Builder<ParamInfo> allInfo = ImmutableSet.builder();
-
-        for (Field field : argClass.getFields()) {
-          if (Modifier.isFinal(field.getModifiers())) {
-            continue;
-          }
-          allInfo.add(new ParamInfo(typeCoercerFactory, argClass, field));
-        }
-
-        return allInfo.build();
-      });
-    } catch (ExecutionException e) {
-      // This gets thrown if we saw an error when loading the value. Nothing sane to do here, and
-      // we (previously, before using a cache), simply allowed a RuntimeException to bubble up.
-      // Maintain that behaviour.
-      throw new RuntimeException(e);
-    }
+    return CoercionPlan.of(typeCoercerFactory, dto.getClass()).getParamInfos();
   }
 }
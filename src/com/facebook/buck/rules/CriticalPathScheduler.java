@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.timing.Clock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Orders build work by the length of the longest chain of work still to come after each rule.
+ *
+ * When the build is planned, every rule is assigned its remaining critical path: the time it takes
+ * to build the rule itself plus the longest remaining critical path of any rule that depends on
+ * it. Starting the rules with the longest remaining critical path first keeps long serial chains
+ * (e.g. codegen, javac, dex, apk) from ending up alone at the tail of the build while other cores
+ * sit idle. Durations come from a {@link RuleDurationHistory}; rules we have never built locally
+ * are assumed to take as long as an average rule.
+ */
+public class CriticalPathScheduler {
+
+  private static final Logger LOG = Logger.get(CriticalPathScheduler.class);
+
+  private final RuleDurationHistory history;
+  private final Clock clock;
+  private final ConcurrentMap<BuildTarget, Long> remainingCriticalPathMillis =
+      Maps.newConcurrentMap();
+  private final Set<BuildTarget> pendingTopLevelTargets = Sets.newConcurrentHashSet();
+
+  private volatile long predictedWallTimeMillis = 0;
+  private volatile long planStartMillis = 0;
+
+  public CriticalPathScheduler(RuleDurationHistory history, Clock clock) {
+    this.history = history;
+    this.clock = clock;
+  }
+
+  private static Iterable<BuildRule> getAllDeps(BuildRule rule) {
+    if (rule instanceof HasRuntimeDeps) {
+      return Iterables.concat(rule.getDeps(), ((HasRuntimeDeps) rule).getRuntimeDeps());
+    }
+    return rule.getDeps();
+  }
+
+  /**
+   * Compute the remaining critical path of every rule reachable from the given top-level rules.
+   * This must be called before the build starts for priorities to take effect.
+   */
+  public void plan(Iterable<BuildRule> topLevelRules) {
+    planStartMillis = clock.currentTimeMillis();
+
+    // Order the rules so that every rule comes after all of its deps, without recursing so that
+    // very long dependency chains can't overflow the stack.
+    List<BuildRule> depsFirst = new ArrayList<>();
+    Set<BuildTarget> visited = Sets.newHashSet();
+    Deque<Iterator<BuildRule>> stack = new ArrayDeque<>();
+    Deque<BuildRule> path = new ArrayDeque<>();
+    for (BuildRule topLevelRule : topLevelRules) {
+      pendingTopLevelTargets.add(topLevelRule.getBuildTarget());
+      if (!visited.add(topLevelRule.getBuildTarget())) {
+        continue;
+      }
+      path.push(topLevelRule);
+      stack.push(getAllDeps(topLevelRule).iterator());
+      while (!stack.isEmpty()) {
+        Iterator<BuildRule> deps = stack.peek();
+        if (deps.hasNext()) {
+          BuildRule dep = deps.next();
+          if (visited.add(dep.getBuildTarget())) {
+            path.push(dep);
+            stack.push(getAllDeps(dep).iterator());
+          }
+        } else {
+          stack.pop();
+          depsFirst.add(path.pop());
+        }
+      }
+    }
+
+    long defaultDurationMillis = getDefaultDurationMillis(depsFirst);
+
+    // Walk the rules dependents-first, so that the remaining critical path of every rule which
+    // depends on a rule is known by the time we get to that rule.
+    Map<BuildTarget, Long> longestDependentPath = Maps.newHashMap();
+    long predicted = 0;
+    for (BuildRule rule : Lists.reverse(depsFirst)) {
+      long remaining =
+          history.getDurationMillis(rule.getBuildTarget()).orElse(defaultDurationMillis) +
+          longestDependentPath.getOrDefault(rule.getBuildTarget(), 0L);
+      remainingCriticalPathMillis.put(rule.getBuildTarget(), remaining);
+      predicted = Math.max(predicted, remaining);
+      for (BuildRule dep : getAllDeps(rule)) {
+        longestDependentPath.merge(dep.getBuildTarget(), remaining, Math::max);
+      }
+    }
+    predictedWallTimeMillis = predicted;
+
+    LOG.debug(
+        "Planned %d rules (%d with known durations), predicted critical path %d ms.",
+        depsFirst.size(),
+        history.size(),
+        predicted);
+  }
+
+  private long getDefaultDurationMillis(List<BuildRule> rules) {
+    long total = 0;
+    int known = 0;
+    for (BuildRule rule : rules) {
+      Optional<Long> duration = history.getDurationMillis(rule.getBuildTarget());
+      if (duration.isPresent()) {
+        total += duration.get();
+        known++;
+      }
+    }
+    // With no history at all, count every rule as one unit of work so that at least the longest
+    // chains of rules are started first.
+    return known == 0 ? 1 : Math.max(1, total / known);
+  }
+
+  /**
+   * @return the priority with which to schedule work for the given rule. Rules which were not
+   *     part of the plan get the lowest priority.
+   */
+  public long getPriority(BuildRule rule) {
+    return remainingCriticalPathMillis.getOrDefault(rule.getBuildTarget(), 0L);
+  }
+
+  /**
+   * @return the given rules, ordered so that those with the longest remaining critical path come
+   *     first.
+   */
+  public ImmutableList<BuildRule> sortByPriority(Iterable<BuildRule> rules) {
+    List<BuildRule> sorted = Lists.newArrayList(rules);
+    Collections.sort(sorted, (a, b) -> Long.compare(getPriority(b), getPriority(a)));
+    return ImmutableList.copyOf(sorted);
+  }
+
+  public long getPredictedWallTimeMillis() {
+    return predictedWallTimeMillis;
+  }
+
+  public void recordLocalBuildDuration(BuildRule rule, long durationMillis) {
+    history.recordDurationMillis(rule.getBuildTarget(), durationMillis);
+  }
+
+  /**
+   * Notes that a top-level rule has finished. Once all the planned top-level rules are done,
+   * reports the predicted and actual wall time of the build and saves the updated durations.
+   */
+  public synchronized void topLevelRuleFinished(BuildRule rule, BuckEventBus eventBus) {
+    if (!pendingTopLevelTargets.remove(rule.getBuildTarget()) ||
+        !pendingTopLevelTargets.isEmpty()) {
+      return;
+    }
+    long actualWallTimeMillis = clock.currentTimeMillis() - planStartMillis;
+    LOG.info(
+        "Critical path: predicted %d ms, actual build wall time %d ms.",
+        predictedWallTimeMillis,
+        actualWallTimeMillis);
+    eventBus.post(BuildEvent.criticalPathWallTime(predictedWallTimeMillis, actualWallTimeMillis));
+    try {
+      history.save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save rule durations.");
+    }
+  }
+}
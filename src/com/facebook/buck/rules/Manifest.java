@@ -29,6 +29,7 @@ import com.google.common.collect.Multimaps;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -37,22 +38,41 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+/**
+ * Maps the hashes of the inputs a rule actually used to the dep file rule key they produced.
+ * <p>
+ * Entries are kept in the order they were last added, so that {@link #trim(long)} can evict the
+ * least recently added ones. Lookups hash each header once and then find matching entries through
+ * an index keyed by the hashes of their headers, rather than checking every entry in turn.
+ */
 public class Manifest {
 
-  private static final int VERSION = 0;
+  private static final int VERSION = 1;
+
+  // Stands for headers that aren't in the universe, or whose hash isn't in the manifest.
+  private static final int NO_MATCH = -1;
 
   private final List<String> headers;
   private final Map<String, Integer> headerIndices;
 
   private final List<Pair<Integer, HashCode>> hashes;
-  private final Map<HashCode, Integer> hashIndices;
+  private final Map<Pair<Integer, HashCode>, Integer> hashIndices;
 
-  private final List<Pair<RuleKey, int[]>> entries;
+  // The hash indices of each entry, sorted by their header index, in the order they were added.
+  private final LinkedHashMap<RuleKey, int[]> entries;
+
+  // Maps the header indices of each group of entries that depend on the same headers, to the
+  // entries of that group keyed by their hash indices. Built on the first lookup.
+  private Map<List<Integer>, Map<List<Integer>, RuleKey>> index;
 
   /**
    * Create an empty manifest.
@@ -62,7 +82,7 @@ public class Manifest {
     headerIndices = new HashMap<>();
     hashes = new ArrayList<>();
     hashIndices = new HashMap<>();
-    entries = new ArrayList<>();
+    entries = new LinkedHashMap<>();
   }
 
   /**
@@ -87,24 +107,31 @@ public class Manifest {
     hashIndices = new HashMap<>(numberOfHashes);
     for (int index = 0; index < numberOfHashes; index++) {
       int headerIndex = input.readInt();
-      HashCode headerHash = HashCode.fromString(input.readUTF());
-      hashes.add(new Pair<>(headerIndex, headerHash));
-      hashIndices.put(headerHash, index);
+      byte[] headerHash = new byte[input.readUnsignedByte()];
+      input.readFully(headerHash);
+      Pair<Integer, HashCode> hash = new Pair<>(headerIndex, HashCode.fromBytes(headerHash));
+      hashes.add(hash);
+      hashIndices.put(hash, index);
     }
 
     int numberOfEntries = input.readInt();
-    entries = new ArrayList<>(numberOfEntries);
+    entries = new LinkedHashMap<>(numberOfEntries);
     for (int entryIndex = 0; entryIndex < numberOfEntries; entryIndex++) {
-      int numberOfEntryHashes = input.readInt();
-      int[] entryHashes = new int[numberOfEntryHashes];
-      for (int hashIndex = 0; hashIndex < numberOfEntryHashes; hashIndex++) {
-        entryHashes[hashIndex] = input.readInt();
-      }
+      int[] entryHashes = readEntryHashes(input);
       RuleKey key = new RuleKey(input.readUTF());
-      entries.add(new Pair<>(key, entryHashes));
+      entries.put(key, entryHashes);
     }
   }
 
+  private static int[] readEntryHashes(DataInputStream input) throws IOException {
+    int numberOfEntryHashes = input.readInt();
+    int[] entryHashes = new int[numberOfEntryHashes];
+    for (int hashIndex = 0; hashIndex < numberOfEntryHashes; hashIndex++) {
+      entryHashes[hashIndex] = input.readInt();
+    }
+    return entryHashes;
+  }
+
   private Integer addHash(String header, HashCode hash) {
     Integer headerIndex = headerIndices.get(header);
     if (headerIndex == null) {
@@ -113,16 +140,31 @@ public class Manifest {
       headerIndices.put(header, headerIndex);
     }
 
-    Integer hashIndex = hashIndices.get(hash);
+    Pair<Integer, HashCode> headerHash = new Pair<>(headerIndex, hash);
+    Integer hashIndex = hashIndices.get(headerHash);
     if (hashIndex == null) {
-      hashes.add(new Pair<>(headerIndex, hash));
+      hashes.add(headerHash);
       hashIndex = hashes.size() - 1;
-      hashIndices.put(hash, hashIndex);
+      hashIndices.put(headerHash, hashIndex);
     }
 
     return hashIndex;
   }
 
+  private void putEntry(RuleKey key, int[] entryHashes) {
+    // Sorting by header index gives all entries over the same headers the same layout, which is
+    // what the index relies on.
+    int[] sortedEntryHashes = Arrays.stream(entryHashes)
+        .boxed()
+        .sorted(Comparator.comparing(hashIndex -> hashes.get(hashIndex).getFirst()))
+        .mapToInt(Integer::intValue)
+        .toArray();
+    // Re-adding an entry makes it the most recent one.
+    entries.remove(key);
+    entries.put(key, sortedEntryHashes);
+    index = null;
+  }
+
   @VisibleForTesting
   protected static HashCode hashSourcePathGroup(
       FileHashCache fileHashCache,
@@ -150,31 +192,42 @@ public class Manifest {
     }
   }
 
-  private boolean hashesMatch(
+  /**
+   * @return the on disk hash of {@code header}, or {@link Optional#empty()} if it isn't part of
+   *     {@code universe} or doesn't exist.
+   */
+  private static Optional<HashCode> hashHeader(
       FileHashCache fileHashCache,
       SourcePathResolver resolver,
       ImmutableListMultimap<String, SourcePath> universe,
-      int[] hashIndices)
+      String header)
       throws IOException {
-    for (int hashIndex : hashIndices) {
-      Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
-      String header = headers.get(hashEntry.getFirst());
-      ImmutableList<SourcePath> candidates = universe.get(header);
-      if (candidates.isEmpty()) {
-        return false;
-      }
-      HashCode onDiskHeaderHash;
-      try {
-        onDiskHeaderHash = hashSourcePathGroup(fileHashCache, resolver, candidates);
-      } catch (NoSuchFileException e) {
-        return false;
-      }
-      HashCode headerHash = hashEntry.getSecond();
-      if (!headerHash.equals(onDiskHeaderHash)) {
-        return false;
+    ImmutableList<SourcePath> candidates = universe.get(header);
+    if (candidates.isEmpty()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(hashSourcePathGroup(fileHashCache, resolver, candidates));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+  }
+
+  private Map<List<Integer>, Map<List<Integer>, RuleKey>> getIndex() {
+    if (index == null) {
+      index = new HashMap<>();
+      for (Map.Entry<RuleKey, int[]> entry : entries.entrySet()) {
+        int[] entryHashes = entry.getValue();
+        int[] entryHeaders = new int[entryHashes.length];
+        for (int i = 0; i < entryHashes.length; i++) {
+          entryHeaders[i] = hashes.get(entryHashes[i]).getFirst();
+        }
+        // Later entries win, as they are the most recent ones.
+        index.computeIfAbsent(Ints.asList(entryHeaders), headerIndices -> new HashMap<>())
+            .put(Ints.asList(entryHashes), entry.getKey());
       }
     }
-    return true;
+    return index;
   }
 
   /**
@@ -188,14 +241,91 @@ public class Manifest {
       throws IOException {
     ImmutableListMultimap<String, SourcePath> mappedUniverse =
         Multimaps.index(universe, sourcePathToManifestHeaderFunction(resolver));
-    for (Pair<RuleKey, int[]> entry : entries) {
-      if (hashesMatch(fileHashCache, resolver, mappedUniverse, entry.getSecond())) {
-        return Optional.of(entry.getFirst());
+
+    // The hash index matching each header on disk, computed the first time a group needs it.
+    Integer[] matchingHashes = new Integer[headers.size()];
+    for (Map.Entry<List<Integer>, Map<List<Integer>, RuleKey>> group : getIndex().entrySet()) {
+      List<Integer> groupHeaders = group.getKey();
+      int[] groupHashes = new int[groupHeaders.size()];
+      boolean groupMatches = true;
+      for (int i = 0; i < groupHashes.length && groupMatches; i++) {
+        int headerIndex = groupHeaders.get(i);
+        if (matchingHashes[headerIndex] == null) {
+          matchingHashes[headerIndex] =
+              hashHeader(fileHashCache, resolver, mappedUniverse, headers.get(headerIndex))
+                  .map(hash -> hashIndices.get(new Pair<>(headerIndex, hash)))
+                  .orElse(NO_MATCH);
+        }
+        groupHashes[i] = matchingHashes[headerIndex];
+        groupMatches = groupHashes[i] != NO_MATCH;
+      }
+      RuleKey key = groupMatches ? group.getValue().get(Ints.asList(groupHashes)) : null;
+      if (key != null) {
+        return Optional.of(key);
       }
     }
     return Optional.empty();
   }
 
+  /**
+   * Like {@link #lookup(FileHashCache, SourcePathResolver, ImmutableSet)}, but reads the
+   * serialized manifest as it goes rather than deserializing it first. Only the headers and their
+   * hashes are kept in memory; entries are compared as they stream past.
+   */
+  public static Optional<RuleKey> lookup(
+      InputStream rawInput,
+      FileHashCache fileHashCache,
+      SourcePathResolver resolver,
+      ImmutableSet<SourcePath> universe)
+      throws IOException {
+    DataInputStream input = new DataInputStream(rawInput);
+
+    Preconditions.checkState(input.readInt() == VERSION);
+
+    ImmutableListMultimap<String, SourcePath> mappedUniverse =
+        Multimaps.index(universe, sourcePathToManifestHeaderFunction(resolver));
+
+    int numberOfHeaders = input.readInt();
+    String[] headers = new String[numberOfHeaders];
+    for (int index = 0; index < numberOfHeaders; index++) {
+      headers[index] = input.readUTF();
+    }
+
+    // Hash each header once, and note which of the manifest's hashes match what's on disk.
+    byte[][] onDiskHeaderHashes = new byte[numberOfHeaders][];
+    boolean[] hashed = new boolean[numberOfHeaders];
+    int numberOfHashes = input.readInt();
+    boolean[] hashMatches = new boolean[numberOfHashes];
+    for (int index = 0; index < numberOfHashes; index++) {
+      int headerIndex = input.readInt();
+      byte[] headerHash = new byte[input.readUnsignedByte()];
+      input.readFully(headerHash);
+      if (!hashed[headerIndex]) {
+        hashed[headerIndex] = true;
+        onDiskHeaderHashes[headerIndex] =
+            hashHeader(fileHashCache, resolver, mappedUniverse, headers[headerIndex])
+                .map(HashCode::asBytes)
+                .orElse(null);
+      }
+      hashMatches[index] = Arrays.equals(headerHash, onDiskHeaderHashes[headerIndex]);
+    }
+
+    Optional<RuleKey> match = Optional.empty();
+    int numberOfEntries = input.readInt();
+    for (int entryIndex = 0; entryIndex < numberOfEntries; entryIndex++) {
+      boolean entryMatches = true;
+      for (int hashIndex : readEntryHashes(input)) {
+        entryMatches &= hashMatches[hashIndex];
+      }
+      String key = input.readUTF();
+      // Later entries win, as they are the most recent ones.
+      if (entryMatches) {
+        match = Optional.of(new RuleKey(key));
+      }
+    }
+    return match;
+  }
+
   private static Function<SourcePath, String> sourcePathToManifestHeaderFunction(
       final SourcePathResolver resolver) {
     return input -> sourcePathToManifestHeader(input, resolver);
@@ -236,7 +366,39 @@ public class Manifest {
               relativePath,
               hashSourcePathGroup(fileHashCache, resolver, paths));
     }
-    entries.add(new Pair<>(key, hashIndices));
+    putEntry(key, hashIndices);
+  }
+
+  /**
+   * Evicts the least recently added entries until at most {@code maxEntries} are left, and drops
+   * the headers and hashes that only they used.
+   */
+  public void trim(long maxEntries) {
+    if (entries.size() <= maxEntries) {
+      return;
+    }
+    Iterator<int[]> oldest = entries.values().iterator();
+    for (long excess = entries.size() - maxEntries; excess > 0; excess--) {
+      oldest.next();
+      oldest.remove();
+    }
+
+    List<String> oldHeaders = new ArrayList<>(headers);
+    List<Pair<Integer, HashCode>> oldHashes = new ArrayList<>(hashes);
+    Map<RuleKey, int[]> oldEntries = new LinkedHashMap<>(entries);
+    headers.clear();
+    headerIndices.clear();
+    hashes.clear();
+    hashIndices.clear();
+    entries.clear();
+    for (Map.Entry<RuleKey, int[]> entry : oldEntries.entrySet()) {
+      int[] entryHashes = new int[entry.getValue().length];
+      for (int i = 0; i < entryHashes.length; i++) {
+        Pair<Integer, HashCode> hash = oldHashes.get(entry.getValue()[i]);
+        entryHashes[i] = addHash(oldHeaders.get(hash.getFirst()), hash.getSecond());
+      }
+      putEntry(entry.getKey(), entryHashes);
+    }
   }
 
   /**
@@ -255,16 +417,18 @@ public class Manifest {
     output.writeInt(hashes.size());
     for (Pair<Integer, HashCode> hash : hashes) {
       output.writeInt(hash.getFirst());
-      output.writeUTF(hash.getSecond().toString());
+      byte[] headerHash = hash.getSecond().asBytes();
+      output.writeByte(headerHash.length);
+      output.write(headerHash);
     }
 
     output.writeInt(entries.size());
-    for (Pair<RuleKey, int[]> entry : entries) {
-      output.writeInt(entry.getSecond().length);
-      for (int hashIndex : entry.getSecond()) {
+    for (Map.Entry<RuleKey, int[]> entry : entries.entrySet()) {
+      output.writeInt(entry.getValue().length);
+      for (int hashIndex : entry.getValue()) {
         output.writeInt(hashIndex);
       }
-      output.writeUTF(entry.getFirst().toString());
+      output.writeUTF(entry.getKey().toString());
     }
   }
 
@@ -275,15 +439,15 @@ public class Manifest {
   @VisibleForTesting
   ImmutableMap<RuleKey, ImmutableMap<String, HashCode>> toMap() {
     ImmutableMap.Builder<RuleKey, ImmutableMap<String, HashCode>> builder = ImmutableMap.builder();
-    for (Pair<RuleKey, int[]> entry : entries) {
+    for (Map.Entry<RuleKey, int[]> entry : entries.entrySet()) {
       ImmutableMap.Builder<String, HashCode> entryBuilder = ImmutableMap.builder();
-      for (int hashIndex : entry.getSecond()) {
+      for (int hashIndex : entry.getValue()) {
         Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
         String header = headers.get(hashEntry.getFirst());
         HashCode headerHash = hashEntry.getSecond();
         entryBuilder.put(header, headerHash);
       }
-      builder.put(entry.getFirst(), entryBuilder.build());
+      builder.put(entry.getKey(), entryBuilder.build());
     }
     return builder.build();
   }
@@ -298,7 +462,7 @@ public class Manifest {
         entryHashIndices[entryHashIndex++] =
             manifest.addHash(innerEntry.getKey(), innerEntry.getValue());
       }
-      manifest.entries.add(new Pair<>(entry.getKey(), entryHashIndices));
+      manifest.putEntry(entry.getKey(), entryHashIndices);
     }
     return manifest;
   }
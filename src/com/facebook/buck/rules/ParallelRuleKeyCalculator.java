@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Calculates the default {@link RuleKey}s of a graph of build rules in parallel.
+ *
+ * Each rule's key is computed exactly once, on the given executor, after the keys of all of its
+ * deps are available, so independent subgraphs are hashed concurrently. Requests never block:
+ * the first request for a rule publishes a placeholder future with a single
+ * {@link ConcurrentMap#putIfAbsent(Object, Object)} and every later request for the same rule
+ * gets that future back.
+ */
+public class ParallelRuleKeyCalculator {
+
+  private final ConcurrentMap<BuildTarget, ListenableFuture<RuleKey>> ruleKeys =
+      Maps.newConcurrentMap();
+
+  private final ListeningExecutorService service;
+  private final RuleDepsCache ruleDeps;
+  private final Function<? super ProjectFilesystem, RuleKeyBuilderFactory<RuleKey>>
+      ruleKeyFactories;
+
+  public ParallelRuleKeyCalculator(
+      ListeningExecutorService service,
+      RuleDepsCache ruleDeps,
+      Function<? super ProjectFilesystem, RuleKeyBuilderFactory<RuleKey>> ruleKeyFactories) {
+    this.service = service;
+    this.ruleDeps = ruleDeps;
+    this.ruleKeyFactories = ruleKeyFactories;
+  }
+
+  /**
+   * @return the future rule key of the given target, or {@code null} if it was never requested.
+   */
+  @Nullable
+  public ListenableFuture<RuleKey> getRuleKey(BuildTarget target) {
+    return ruleKeys.get(target);
+  }
+
+  public ListenableFuture<RuleKey> calculate(final BuckEventBus eventBus, final BuildRule rule) {
+    ListenableFuture<RuleKey> existing = ruleKeys.get(rule.getBuildTarget());
+    if (existing != null) {
+      return existing;
+    }
+
+    // Publish a placeholder first so that whichever thread wins the race is the only one which
+    // schedules the computation.
+    SettableFuture<RuleKey> ruleKey = SettableFuture.create();
+    existing = ruleKeys.putIfAbsent(rule.getBuildTarget(), ruleKey);
+    if (existing != null) {
+      return existing;
+    }
+
+    // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
+    // one, we need to wait for them to complete.
+    ListenableFuture<List<RuleKey>> depKeys =
+        Futures.transformAsync(
+            ruleDeps.get(rule),
+            deps -> {
+              List<ListenableFuture<RuleKey>> futures =
+                  Lists.newArrayListWithExpectedSize(deps.size());
+              for (BuildRule dep : deps) {
+                futures.add(calculate(eventBus, dep));
+              }
+              return Futures.allAsList(futures);
+            },
+            service);
+
+    // Calculate this rule key once the dependencies have been calculated.
+    final RuleKeyBuilderFactory<RuleKey> ruleKeyFactory =
+        ruleKeyFactories.apply(rule.getProjectFilesystem());
+    ruleKey.setFuture(
+        Futures.transform(
+            depKeys,
+            new Function<List<RuleKey>, RuleKey>() {
+              @Override
+              public RuleKey apply(List<RuleKey> input) {
+                try (BuildRuleEvent.Scope scope =
+                         BuildRuleEvent.startSuspendScope(eventBus, rule, ruleKeyFactory)) {
+                  return ruleKeyFactory.build(rule);
+                }
+              }
+            },
+            service));
+
+    return ruleKey;
+  }
+}
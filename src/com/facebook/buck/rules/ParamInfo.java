@@ -40,8 +40,11 @@ public class ParamInfo implements Comparable<ParamInfo> {
   private final TypeCoercer<?> typeCoercer;
 
   private final boolean isOptional;
+  /**
+   * What the field is set to when a build file doesn't give it a value, or null if it must.
+   */
   @Nullable
-  private final Object defaultValue;
+  private final Object valueIfMissing;
   private final String name;
   private final String pythonName;
   private final boolean isDep;
@@ -74,8 +77,9 @@ public class ParamInfo implements Comparable<ParamInfo> {
     this.isInput = hint != null ? hint.isInput() : Hint.DEFAULT_IS_INPUT;
 
     Object emptyConstructorArg = EMPTY_CONSTRUCTOR_ARGS.getUnchecked(cls);
+    Object defaultValue;
     try {
-      this.defaultValue = field.get(emptyConstructorArg);
+      defaultValue = field.get(emptyConstructorArg);
     } catch (ReflectiveOperationException e) {
       throw new RuntimeException(e);
     }
@@ -85,6 +89,21 @@ public class ParamInfo implements Comparable<ParamInfo> {
       this.isOptional = Optional.class.isAssignableFrom(field.getType());
     }
     this.typeCoercer = typeCoercerFactory.typeCoercerForType(field.getGenericType());
+
+    if (defaultValue != null) {
+      this.valueIfMissing = defaultValue;
+    } else if (isOptional) {
+      this.valueIfMissing = Optional.empty();
+    } else if (Number.class.isAssignableFrom(typeCoercer.getOutputClass())) {
+      this.valueIfMissing = 0;
+    } else if (Boolean.class.isAssignableFrom(typeCoercer.getOutputClass())) {
+      this.valueIfMissing = false;
+    } else {
+      this.valueIfMissing = null;
+    }
+
+    // The field is public, this only skips the access checks on every get and set.
+    field.setAccessible(true);
   }
 
   public String getName() {
@@ -181,17 +200,10 @@ public class ParamInfo implements Comparable<ParamInfo> {
     Object result;
 
     if (value == null) {
-      if (defaultValue != null) {
-        result = defaultValue;
-      } else if (isOptional) {
-        result = Optional.empty();
-      } else if (Number.class.isAssignableFrom(typeCoercer.getOutputClass())) {
-        result = 0;
-      } else if (Boolean.class.isAssignableFrom(typeCoercer.getOutputClass())) {
-        result = false;
-      } else {
+      if (valueIfMissing == null) {
         throw new ParamInfoException(name, "field cannot be null");
       }
+      result = valueIfMissing;
     } else {
       try {
         result = typeCoercer.coerce(
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how long each build rule took to build locally, across builds. The durations are
+ * kept in a single file in {@code buck-out} so that they can be loaded up front, before any rule
+ * has been looked at.
+ */
+public class RuleDurationHistory {
+
+  private static final Logger LOG = Logger.get(RuleDurationHistory.class);
+
+  private final ProjectFilesystem filesystem;
+  private final ObjectMapper objectMapper;
+  private final ConcurrentMap<String, Long> durations;
+
+  private RuleDurationHistory(
+      ProjectFilesystem filesystem,
+      ObjectMapper objectMapper,
+      Map<String, Long> durations) {
+    this.filesystem = filesystem;
+    this.objectMapper = objectMapper;
+    this.durations = Maps.newConcurrentMap();
+    this.durations.putAll(durations);
+  }
+
+  /**
+   * Load the durations recorded by previous builds. A missing or unreadable history is not an
+   * error: it just means we have nothing to go on yet.
+   */
+  public static RuleDurationHistory load(ProjectFilesystem filesystem, ObjectMapper objectMapper) {
+    Path path = filesystem.getBuckPaths().getRuleDurationsFile();
+    Map<String, Long> durations = ImmutableSortedMap.of();
+    if (filesystem.exists(path)) {
+      try (InputStream input = filesystem.newFileInputStream(path)) {
+        durations = objectMapper.readValue(input, new TypeReference<Map<String, Long>>() {});
+      } catch (IOException e) {
+        LOG.warn(e, "Could not read rule durations from %s, ignoring them.", path);
+      }
+    }
+    return new RuleDurationHistory(filesystem, objectMapper, durations);
+  }
+
+  public Optional<Long> getDurationMillis(BuildTarget target) {
+    return Optional.ofNullable(durations.get(target.getFullyQualifiedName()));
+  }
+
+  public void recordDurationMillis(BuildTarget target, long durationMillis) {
+    durations.put(target.getFullyQualifiedName(), durationMillis);
+  }
+
+  public int size() {
+    return durations.size();
+  }
+
+  /**
+   * Write the durations back to disk. The file is replaced atomically so that a concurrent or
+   * interrupted build never sees a truncated history.
+   */
+  public void save() throws IOException {
+    Path path = filesystem.getBuckPaths().getRuleDurationsFile();
+    filesystem.createParentDirs(path);
+    Path tmp = filesystem.createTempFile(path.getParent(), "ruledurations", ".tmp");
+    try (OutputStream output = filesystem.newFileOutputStream(tmp)) {
+      objectMapper.writeValue(output, ImmutableSortedMap.copyOf(durations));
+    }
+    filesystem.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
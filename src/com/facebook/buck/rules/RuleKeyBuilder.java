@@ -30,17 +30,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
-import com.google.common.primitives.Primitives;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.SortedMap;
-import java.util.Stack;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -53,35 +50,65 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
   private static final Logger logger = Logger.get(RuleKeyBuilder.class);
 
   private final SourcePathResolver resolver;
-  private final Hasher hasher;
+  private final RuleKeyHashingSink sink;
   private final FileHashLoader hashLoader;
   private final RuleKeyLogger ruleKeyLogger;
-  private Stack<String> keyStack;
+  private final ArrayDeque<String> keyStack;
 
   public RuleKeyBuilder(
       SourcePathResolver resolver,
       FileHashLoader hashLoader,
-      RuleKeyLogger ruleKeyLogger) {
+      RuleKeyLogger ruleKeyLogger,
+      RuleKeyHashFunction hashFunction) {
     this.resolver = resolver;
-    this.hasher = Hashing.sha1().newHasher();
+    this.sink = new RuleKeyHashingSink(hashFunction.getHashFunction());
     this.hashLoader = hashLoader;
-    this.keyStack = new Stack<>();
+    this.keyStack = new ArrayDeque<>();
     this.ruleKeyLogger = ruleKeyLogger;
+    if (!hashFunction.getKeyPrefix().isEmpty()) {
+      feed(hashFunction.getKeyPrefix());
+    }
+  }
+
+  public RuleKeyBuilder(
+      SourcePathResolver resolver,
+      FileHashLoader hashLoader,
+      RuleKeyLogger ruleKeyLogger) {
+    this(resolver, hashLoader, ruleKeyLogger, RuleKeyHashFunction.SHA1);
+  }
+
+  public RuleKeyBuilder(
+      SourcePathResolver resolver,
+      FileHashLoader hashLoader,
+      RuleKeyHashFunction hashFunction) {
+    this(resolver, hashLoader, newDefaultRuleKeyLogger(), hashFunction);
   }
 
   public RuleKeyBuilder(
       SourcePathResolver resolver,
       FileHashLoader hashLoader) {
-    this(
-        resolver,
-        hashLoader,
-        logger.isVerboseEnabled() ?
-            new DefaultRuleKeyLogger() :
-            new NullRuleKeyLogger());
+    this(resolver, hashLoader, RuleKeyHashFunction.SHA1);
   }
 
-  private void putBytes(String string) {
-    hasher.putUnencodedChars(string);
+  /**
+   * @return the {@link RuleKeyLogger} used by builders which are not given one.
+   */
+  public static RuleKeyLogger newDefaultRuleKeyLogger() {
+    return isVerboseLoggingEnabled() ? new DefaultRuleKeyLogger() : new NullRuleKeyLogger();
+  }
+
+  /**
+   * @return whether builders which are not given a {@link RuleKeyLogger} log their keys.
+   */
+  public static boolean isVerboseLoggingEnabled() {
+    return logger.isVerboseEnabled();
+  }
+
+  private void flushKeyStack() {
+    while (!keyStack.isEmpty()) {
+      sink.putUnencodedChars(keyStack.pop());
+      sink.putByte(SEPARATOR);
+    }
   }
 
   /**
@@ -100,35 +127,39 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
   }
 
   private RuleKeyBuilder<T> feed(String key) {
-    while (!keyStack.isEmpty()) {
-      putBytes(keyStack.pop());
-      hasher.putByte(SEPARATOR);
-    }
-
-    putBytes(key);
-    hasher.putByte(SEPARATOR);
+    flushKeyStack();
+    sink.putUnencodedChars(key);
+    sink.putByte(SEPARATOR);
     return this;
   }
 
   private RuleKeyBuilder<T> feed(byte[] bytes) {
-    while (!keyStack.isEmpty()) {
-      putBytes(keyStack.pop());
-      hasher.putByte(SEPARATOR);
-    }
-
-    hasher.putBytes(bytes);
-    hasher.putByte(SEPARATOR);
+    flushKeyStack();
+    sink.putBytes(bytes);
+    sink.putByte(SEPARATOR);
     return this;
   }
 
   private RuleKeyBuilder<T> feed(Sha1HashCode sha1) {
-    while (!keyStack.isEmpty()) {
-      putBytes(keyStack.pop());
-      hasher.putByte(SEPARATOR);
-    }
+    flushKeyStack();
+    sink.putSha1(sha1);
+    sink.putByte(SEPARATOR);
+    return this;
+  }
 
-    sha1.update(hasher);
-    hasher.putByte(SEPARATOR);
+  /**
+   * Feeds the string form of a hash without building the string.
+   */
+  private RuleKeyBuilder<T> feed(HashCode hashCode) {
+    flushKeyStack();
+    sink.putHexChars(hashCode);
+    sink.putByte(SEPARATOR);
+    return this;
+  }
+
+  private RuleKeyBuilder<T> feedNull() {
+    flushKeyStack();
+    sink.putByte(SEPARATOR);
     return this;
   }
 
@@ -261,6 +292,66 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
     }
   }
 
+  @Override
+  public RuleKeyBuilder<T> setBoolean(String key, boolean val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      // Same bytes as pushing the key and feeding the value: the innermost key is written first.
+      sink.putUnencodedChars(key);
+      sink.putByte(SEPARATOR);
+      feed(val ? "t" : "f");
+    }
+    return this;
+  }
+
+  // Numbers are put straight into the sink without flushing the key stack, as in
+  // setSingleValue, so their keys are only logged.
+
+  @Override
+  public RuleKeyBuilder<T> setShort(String key, short val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      sink.putShort(val);
+    }
+    return this;
+  }
+
+  @Override
+  public RuleKeyBuilder<T> setInt(String key, int val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      sink.putInt(val);
+    }
+    return this;
+  }
+
+  @Override
+  public RuleKeyBuilder<T> setLong(String key, long val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      sink.putLong(val);
+    }
+    return this;
+  }
+
+  @Override
+  public RuleKeyBuilder<T> setFloat(String key, float val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      sink.putFloat(val);
+    }
+    return this;
+  }
+
+  @Override
+  public RuleKeyBuilder<T> setDouble(String key, double val) {
+    try (RuleKeyLogger.Scope keyScope = ruleKeyLogger.pushKey(key)) {
+      ruleKeyLogger.addValue(val);
+      sink.putDouble(val);
+    }
+    return this;
+  }
+
   private RuleKeyBuilder<T> setReflectively(String key, Iterator<?> iterator) {
     while (iterator.hasNext()) {
       setReflectively(key, iterator.next());
@@ -280,7 +371,7 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
 
     ruleKeyLogger.addPath(addToKey, sha1);
 
-    feed(addToKey);
+    feed(addToKey.toString());
     feed(sha1);
     return this;
   }
@@ -326,30 +417,29 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
 
     if (val == null) { // Null value first
       ruleKeyLogger.addNullValue();
-      return feed(new byte[0]);
+      return feedNull();
     } else if (val instanceof Boolean) {           // JRE types
       ruleKeyLogger.addValue((boolean) val);
       feed((boolean) val ? "t" : "f");
     } else if (val instanceof Enum) {
       ruleKeyLogger.addValue((Enum<?>) val);
-      feed(String.valueOf(val));
+      feed(val.toString());
     } else if (val instanceof Number) {
-      Class<?> wrapped = Primitives.wrap(val.getClass());
-      if (Double.class.equals(wrapped)) {
+      if (val instanceof Double) {
         ruleKeyLogger.addValue((Double) val);
-        hasher.putDouble((Double) val);
-      } else if (Float.class.equals(wrapped)) {
+        sink.putDouble((Double) val);
+      } else if (val instanceof Float) {
         ruleKeyLogger.addValue((Float) val);
-        hasher.putFloat((Float) val);
-      } else if (Integer.class.equals(wrapped)) {
+        sink.putFloat((Float) val);
+      } else if (val instanceof Integer) {
         ruleKeyLogger.addValue((Integer) val);
-        hasher.putInt((Integer) val);
-      } else if (Long.class.equals(wrapped)) {
+        sink.putInt((Integer) val);
+      } else if (val instanceof Long) {
         ruleKeyLogger.addValue((Long) val);
-        hasher.putLong((Long) val);
-      } else if (Short.class.equals(wrapped)) {
+        sink.putLong((Long) val);
+      } else if (val instanceof Short) {
         ruleKeyLogger.addValue((Short) val);
-        hasher.putShort((Short) val);
+        sink.putShort((Short) val);
       } else {
         throw new RuntimeException(("Unhandled number type: " + val.getClass()));
       }
@@ -369,7 +459,7 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
       feed(val);
     } else if (val instanceof RuleKey) {
       ruleKeyLogger.addValue((RuleKey) val);
-      feed(val);
+      feed(((RuleKey) val).getHashCode());
     } else if (val instanceof BuildTarget || val instanceof UnflavoredBuildTarget) {
       BuildTarget buildTarget = ((HasBuildTarget) val).getBuildTarget();
       ruleKeyLogger.addValue(buildTarget);
@@ -418,7 +508,7 @@ public abstract class RuleKeyBuilder<T> implements RuleKeyObjectSink {
   }
 
   protected RuleKey buildRuleKey() {
-    RuleKey ruleKey = new RuleKey(hasher.hash());
+    RuleKey ruleKey = new RuleKey(sink.hash());
     ruleKeyLogger.registerRuleKey(ruleKey);
     return ruleKey;
   }
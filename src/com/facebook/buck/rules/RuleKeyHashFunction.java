@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * The hash functions that {@link RuleKey}s can be computed with.
+ * <p>
+ * Every function other than {@link #SHA1} starts its keys with a versioned prefix, so keys of
+ * different kinds can never alias each other in a cache, and bumping the version invalidates all
+ * keys of that kind. SHA-1 keys have no prefix so that they stay the same as they have always been.
+ */
+public enum RuleKeyHashFunction {
+  /**
+   * Cryptographic, and the only choice that should be used with caches shared between machines.
+   */
+  SHA1(Hashing.sha1(), ""),
+
+  /**
+   * Much faster, but not cryptographic. Meant for local and daemon-internal caches.
+   */
+  MURMUR3_128(Hashing.murmur3_128(), "murmur3_128.v1"),
+  ;
+
+  private final HashFunction hashFunction;
+  private final String keyPrefix;
+
+  RuleKeyHashFunction(HashFunction hashFunction, String keyPrefix) {
+    this.hashFunction = hashFunction;
+    this.keyPrefix = keyPrefix;
+  }
+
+  public HashFunction getHashFunction() {
+    return hashFunction;
+  }
+
+  /**
+   * @return the string every key of this kind is seeded with, or the empty string if none.
+   */
+  public String getKeyPrefix() {
+    return keyPrefix;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+
+/**
+ * Encodes the primitives fed into a rule key without allocating and hands them to the underlying
+ * {@link Hasher}.
+ * <p>
+ * The bytes written are exactly the ones the equivalent {@link Hasher} calls would produce (chars
+ * and numbers are little endian, like Guava's hashers), so rule keys do not change. Values are
+ * encoded into a buffer that belongs to the current thread and passed on to the hasher before the
+ * call returns, so a sink never holds on to a buffer: rule keys of deps can be computed while an
+ * outer key is still being built, and builders can be dropped or moved to another thread freely.
+ */
+final class RuleKeyHashingSink {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<byte[]> BUFFER =
+      ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+  private final Hasher hasher;
+  private boolean hashed;
+
+  RuleKeyHashingSink(HashFunction hashFunction) {
+    this.hasher = hashFunction.newHasher();
+    this.hashed = false;
+  }
+
+  private Hasher getHasher() {
+    Preconditions.checkState(!hashed, "Cannot reuse a rule key sink after hashing.");
+    return hasher;
+  }
+
+  public RuleKeyHashingSink putByte(byte b) {
+    getHasher().putByte(b);
+    return this;
+  }
+
+  public RuleKeyHashingSink putBytes(byte[] bytes) {
+    getHasher().putBytes(bytes);
+    return this;
+  }
+
+  /**
+   * Writes the UTF-16LE code units of {@code chars}, matching
+   * {@link Hasher#putUnencodedChars(CharSequence)}.
+   */
+  public RuleKeyHashingSink putUnencodedChars(CharSequence chars) {
+    Hasher hasher = getHasher();
+    byte[] buffer = BUFFER.get();
+    int length = chars.length();
+    int index = 0;
+    while (index < length) {
+      int count = Math.min(length - index, BUFFER_SIZE / 2);
+      int position = 0;
+      for (int end = index + count; index < end; index++) {
+        char c = chars.charAt(index);
+        buffer[position++] = (byte) c;
+        buffer[position++] = (byte) (c >>> 8);
+      }
+      hasher.putBytes(buffer, 0, position);
+    }
+    return this;
+  }
+
+  /**
+   * Writes the lowercase hex representation of {@code hashCode} as chars, producing the same bytes
+   * as feeding {@link HashCode#toString()} without building the string.
+   */
+  public RuleKeyHashingSink putHexChars(HashCode hashCode) {
+    int length = hashCode.bits() / 8;
+    // Each byte becomes two chars of two bytes each, written ahead of the raw bytes.
+    if (length * 5 > BUFFER_SIZE) {
+      return putUnencodedChars(hashCode.toString());
+    }
+    Hasher hasher = getHasher();
+    byte[] buffer = BUFFER.get();
+    hashCode.writeBytesTo(buffer, length * 4, length);
+    for (int i = 0; i < length; i++) {
+      byte b = buffer[length * 4 + i];
+      buffer[i * 4] = (byte) HEX_DIGITS[(b >> 4) & 0xf];
+      buffer[i * 4 + 1] = 0;
+      buffer[i * 4 + 2] = (byte) HEX_DIGITS[b & 0xf];
+      buffer[i * 4 + 3] = 0;
+    }
+    hasher.putBytes(buffer, 0, length * 4);
+    return this;
+  }
+
+  public RuleKeyHashingSink putShort(short s) {
+    return putLittleEndian(s, 2);
+  }
+
+  public RuleKeyHashingSink putInt(int i) {
+    return putLittleEndian(i, 4);
+  }
+
+  public RuleKeyHashingSink putLong(long l) {
+    return putLittleEndian(l, 8);
+  }
+
+  public RuleKeyHashingSink putFloat(float f) {
+    return putInt(Float.floatToRawIntBits(f));
+  }
+
+  public RuleKeyHashingSink putDouble(double d) {
+    return putLong(Double.doubleToRawLongBits(d));
+  }
+
+  private RuleKeyHashingSink putLittleEndian(long value, int bytes) {
+    Hasher hasher = getHasher();
+    byte[] buffer = BUFFER.get();
+    for (int i = 0; i < bytes; i++) {
+      buffer[i] = (byte) (value >>> (i * 8));
+    }
+    hasher.putBytes(buffer, 0, bytes);
+    return this;
+  }
+
+  public RuleKeyHashingSink putSha1(Sha1HashCode sha1) {
+    sha1.update(getHasher());
+    return this;
+  }
+
+  /**
+   * Computes the hash of everything written so far. The sink cannot be used afterwards.
+   */
+  public HashCode hash() {
+    HashCode hashCode = getHasher().hash();
+    hashed = true;
+    return hashCode;
+  }
+}
@@ -26,6 +26,17 @@ public interface RuleKeyObjectSink {
   RuleKeyObjectSink setReflectively(String key, @Nullable Object val);
   RuleKeyObjectSink setAppendableRuleKey(String key, RuleKeyAppendable appendable);
 
+  /**
+   * The primitive setters below hash exactly as {@link #setReflectively(String, Object)} does with
+   * the boxed value, but without boxing it or dispatching on its type.
+   */
+  RuleKeyObjectSink setBoolean(String key, boolean val);
+  RuleKeyObjectSink setShort(String key, short val);
+  RuleKeyObjectSink setInt(String key, int val);
+  RuleKeyObjectSink setLong(String key, long val);
+  RuleKeyObjectSink setFloat(String key, float val);
+  RuleKeyObjectSink setDouble(String key, double val);
+
   /**
    * Do not use this method, instead call {@link #setReflectively(String, Object)} with
    * the corresponding {@link SourcePath} as a parameter.
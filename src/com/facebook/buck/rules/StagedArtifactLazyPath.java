@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactEntry;
+import com.facebook.buck.artifact_cache.StreamableLazyPath;
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.zip.Unzip;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+
+/**
+ * The output of an artifact fetch for a rule. When the cache streams the artifact, its entries are
+ * extracted as they arrive into a staging directory under buck-out, and only moved over the rule's
+ * outputs once the cache has verified the download. A local cache can stage the entries straight
+ * from its own files instead. Otherwise, the artifact is written to a temporary zip file which the
+ * caller unzips, as before.
+ */
+class StagedArtifactLazyPath extends StreamableLazyPath {
+
+  private static final Logger LOG = Logger.get(StagedArtifactLazyPath.class);
+
+  private final ProjectFilesystem filesystem;
+  private final String name;
+
+  @Nullable
+  private Path stagingDir;
+  private ImmutableList<Path> stagedEntries = ImmutableList.of();
+  private boolean committed;
+  private volatile boolean created;
+
+  StagedArtifactLazyPath(ProjectFilesystem filesystem, String name) {
+    this.filesystem = filesystem;
+    this.name = name;
+  }
+
+  @Override
+  protected Path create() throws IOException {
+    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
+    // that we are creating a zip-based FileSystem.
+    created = true;
+    return Files.createTempFile("buck_artifact_" + MoreFiles.sanitize(name), ".zip");
+  }
+
+  @Override
+  public synchronized void stage(InputStream payload) throws IOException {
+    Path stagingDir = createStagingDir();
+    stagedEntries = Unzip.extractZipStream(payload, filesystem, stagingDir);
+  }
+
+  @Override
+  public synchronized void stage(
+      ImmutableList<ArtifactEntry> entries,
+      boolean linkFiles) throws IOException {
+    Path stagingDir = createStagingDir();
+    ImmutableList.Builder<Path> staged = ImmutableList.builder();
+    for (ArtifactEntry entry : entries) {
+      Path target = stagingDir.resolve(entry.getName());
+      staged.add(target);
+      if (!entry.getSource().isPresent()) {
+        filesystem.mkdirs(target);
+        continue;
+      }
+      filesystem.createParentDirs(target);
+      Path source = entry.getSource().get();
+      if ((entry.getMode() & MoreFiles.S_IFMT) == MoreFiles.S_IFLNK) {
+        filesystem.createSymLink(
+            target,
+            source.getFileSystem().getPath(new String(Files.readAllBytes(source), Charsets.UTF_8)),
+            /* force */ true);
+      } else if (!linkFiles || !tryCreateLink(source, filesystem.resolve(target))) {
+        Files.copy(source, filesystem.resolve(target), StandardCopyOption.COPY_ATTRIBUTES);
+        filesystem.resolve(target).toFile().setLastModified(entry.getTime());
+        if (MorePosixFilePermissions.fromMode(entry.getMode())
+            .contains(PosixFilePermission.OWNER_EXECUTE)) {
+          MoreFiles.makeExecutable(filesystem.resolve(target));
+        }
+      }
+    }
+    stagedEntries = staged.build();
+  }
+
+  private Path createStagingDir() throws IOException {
+    discard();
+    Path tmpDir = filesystem.getBuckPaths().getTmpDir();
+    filesystem.mkdirs(tmpDir);
+    stagingDir = tmpDir.resolve(
+        Files.createTempDirectory(
+            filesystem.resolve(tmpDir),
+            "buck_artifact_" + MoreFiles.sanitize(name)).getFileName());
+    return stagingDir;
+  }
+
+  private static boolean tryCreateLink(Path source, Path target) {
+    try {
+      Files.createLink(target, source);
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      // E.g. the cache is on a different device, or the filesystem doesn't support hard links.
+      LOG.debug(e, "Could not link %s to %s, copying it instead", target, source);
+      return false;
+    }
+  }
+
+  /**
+   * Moves the staged entries over the project, first cleaning out whatever was there, just like
+   * {@link Unzip.ExistingFileMode#OVERWRITE_AND_CLEAN_DIRECTORIES} does when unzipping a file.
+   */
+  @Override
+  public synchronized void commit() throws IOException {
+    Path stagingDir = Preconditions.checkNotNull(this.stagingDir);
+    for (Path entry : stagedEntries) {
+      filesystem.deleteRecursivelyIfExists(stagingDir.relativize(entry));
+    }
+    for (Path entry : stagedEntries) {
+      Path target = stagingDir.relativize(entry);
+      if (filesystem.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+        filesystem.mkdirs(target);
+      } else {
+        filesystem.createParentDirs(target);
+        filesystem.move(entry, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    committed = true;
+    discard();
+  }
+
+  @Override
+  public synchronized void discard() {
+    if (stagingDir == null) {
+      return;
+    }
+    try {
+      filesystem.deleteRecursivelyIfExists(stagingDir);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete artifact staging directory %s", stagingDir);
+    }
+    stagingDir = null;
+    stagedEntries = ImmutableList.of();
+  }
+
+  @Override
+  public synchronized boolean isCommitted() {
+    return committed;
+  }
+
+  /**
+   * @return the temporary zip file, if the artifact (or anything else) was written to one.
+   */
+  public Optional<Path> getCreatedZipPath() {
+    return created ? Optional.of(getUnchecked()) : Optional.empty();
+  }
+}
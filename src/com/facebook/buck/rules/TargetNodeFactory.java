@@ -25,7 +25,6 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 
-import java.lang.reflect.Field;
 import java.nio.file.Path;
 
 public class TargetNodeFactory {
@@ -79,16 +78,12 @@ public class TargetNodeFactory {
 
     // Scan the input to find possible BuildTargets, necessary for loading dependent rules.
     T arg = description.createUnpopulatedConstructorArg();
-    for (Field field : arg.getClass().getFields()) {
-      ParamInfo info = new ParamInfo(typeCoercerFactory, arg.getClass(), field);
-      if (info.isDep() && info.isInput() &&
-          info.hasElementTypes(BuildTarget.class, SourcePath.class, Path.class)) {
-        detectBuildTargetsAndPathsForConstructorArg(
-            extraDepsBuilder,
-            pathsBuilder,
-            info,
-            constructorArg);
-      }
+    for (ParamInfo info : CoercionPlan.of(typeCoercerFactory, arg.getClass()).getDepsAndInputs()) {
+      detectBuildTargetsAndPathsForConstructorArg(
+          extraDepsBuilder,
+          pathsBuilder,
+          info,
+          constructorArg);
     }
 
     if (description instanceof ImplicitDepsInferringDescription) {
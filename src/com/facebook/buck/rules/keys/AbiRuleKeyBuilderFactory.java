@@ -18,6 +18,7 @@ package com.facebook.buck.rules.keys;
 
 import com.facebook.buck.hashing.FileHashLoader;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.RuleKeyObjectSink;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.google.common.base.Preconditions;
@@ -30,11 +31,20 @@ public class AbiRuleKeyBuilderFactory extends DefaultRuleKeyBuilderFactory {
       int seed,
       FileHashLoader hashLoader,
       SourcePathResolver pathResolver,
-      DefaultRuleKeyBuilderFactory defaultRuleKeyBuilderFactory) {
-    super(seed, hashLoader, pathResolver);
+      DefaultRuleKeyBuilderFactory defaultRuleKeyBuilderFactory,
+      RuleKeyHashFunction hashFunction) {
+    super(seed, hashLoader, pathResolver, hashFunction);
     this.defaultRuleKeyBuilderFactory = defaultRuleKeyBuilderFactory;
   }
 
+  public AbiRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver,
+      DefaultRuleKeyBuilderFactory defaultRuleKeyBuilderFactory) {
+    this(seed, hashLoader, pathResolver, defaultRuleKeyBuilderFactory, RuleKeyHashFunction.SHA1);
+  }
+
   @Override
   public DefaultRuleKeyBuilderFactory getDefaultRuleKeyBuilderFactory() {
     return defaultRuleKeyBuilderFactory;
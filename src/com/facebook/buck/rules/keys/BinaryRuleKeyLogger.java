@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyLogger;
+import com.facebook.buck.rules.SourceRoot;
+import com.google.common.hash.HashCode;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encodes the structure of a single rule key into a {@link RuleKeyDiagnosticsLog}.
+ */
+class BinaryRuleKeyLogger implements RuleKeyLogger {
+
+  private final RuleKeyDiagnosticsLog log;
+  private final Scope endScope = this::endScope;
+  private byte[] buffer = new byte[256];
+  private int size = 0;
+  // Where each open scope starts, so that scopes without values can be dropped again.
+  private int[] scopeStarts = new int[16];
+  private int depth = 0;
+
+  BinaryRuleKeyLogger(RuleKeyDiagnosticsLog log) {
+    this.log = log;
+  }
+
+  @Override
+  public void registerRuleKey(RuleKey ruleKey) {
+    log.logRuleKey(ruleKey, buffer, size);
+  }
+
+  @Override
+  public Scope pushKey(String key) {
+    return pushScope(RuleKeyDiagnosticsLog.KEY, key);
+  }
+
+  @Override
+  public Scope pushMap() {
+    return pushScope(RuleKeyDiagnosticsLog.MAP, null);
+  }
+
+  @Override
+  public Scope pushMapKey() {
+    return pushScope(RuleKeyDiagnosticsLog.MAP_KEY, null);
+  }
+
+  @Override
+  public Scope pushMapValue() {
+    return pushScope(RuleKeyDiagnosticsLog.MAP_VALUE, null);
+  }
+
+  @Override
+  public Scope pushSourceWithFlags() {
+    return pushScope(RuleKeyDiagnosticsLog.SOURCE_WITH_FLAGS, null);
+  }
+
+  @Override
+  public void addArchiveMemberPath(ArchiveMemberPath archiveMemberPath, HashCode hashCode) {
+    writeByte(RuleKeyDiagnosticsLog.ARCHIVE_MEMBER_PATH);
+    writeString(archiveMemberPath.toString());
+    writeHash(hashCode.asBytes());
+  }
+
+  @Override
+  public void addPath(Path path, HashCode hashCode) {
+    writeByte(RuleKeyDiagnosticsLog.PATH);
+    writeString(path.toString());
+    writeHash(hashCode.asBytes());
+  }
+
+  @Override
+  public void addNonHashingPath(String path) {
+    writeString(RuleKeyDiagnosticsLog.NON_HASHING_PATH, path);
+  }
+
+  @Override
+  public void addNullValue() {
+    writeByte(RuleKeyDiagnosticsLog.NULL);
+  }
+
+  @Override
+  public void addValue(String value) {
+    writeString(RuleKeyDiagnosticsLog.STRING, value);
+  }
+
+  @Override
+  public void addValue(boolean value) {
+    writeByte(RuleKeyDiagnosticsLog.BOOLEAN);
+    writeByte((byte) (value ? 1 : 0));
+  }
+
+  @Override
+  public void addValue(Enum<?> value) {
+    writeString(RuleKeyDiagnosticsLog.ENUM, value.toString());
+  }
+
+  @Override
+  public void addValue(double value) {
+    writeByte(RuleKeyDiagnosticsLog.FLOATING_POINT);
+    writeLong(Double.doubleToLongBits(value));
+  }
+
+  @Override
+  public void addValue(float value) {
+    addValue((double) value);
+  }
+
+  @Override
+  public void addValue(int value) {
+    addValue((long) value);
+  }
+
+  @Override
+  public void addValue(long value) {
+    writeByte(RuleKeyDiagnosticsLog.INTEGER);
+    writeLong(value);
+  }
+
+  @Override
+  public void addValue(short value) {
+    addValue((long) value);
+  }
+
+  @Override
+  public void addValue(Pattern value) {
+    writeString(RuleKeyDiagnosticsLog.PATTERN, value.pattern());
+  }
+
+  @Override
+  public void addValue(BuildRuleType value) {
+    writeString(RuleKeyDiagnosticsLog.RULE_TYPE, value.getName());
+  }
+
+  @Override
+  public void addValue(RuleKey value) {
+    writeByte(RuleKeyDiagnosticsLog.RULE_KEY);
+    writeHash(value.getHashCode().asBytes());
+  }
+
+  @Override
+  public void addValue(BuildTarget value) {
+    writeString(RuleKeyDiagnosticsLog.TARGET, value.getFullyQualifiedName());
+  }
+
+  @Override
+  public void addValue(SourceRoot value) {
+    writeString(RuleKeyDiagnosticsLog.SOURCE_ROOT, value.getName());
+  }
+
+  @Override
+  public void addValue(byte[] value) {
+    writeByte(RuleKeyDiagnosticsLog.BYTES);
+    writeHash(value);
+  }
+
+  private Scope pushScope(byte tag, @Nullable String name) {
+    if (depth == scopeStarts.length) {
+      scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+    }
+    scopeStarts[depth++] = size;
+    if (name == null) {
+      writeByte(tag);
+    } else {
+      writeString(tag, name);
+    }
+    return endScope;
+  }
+
+  private void endScope() {
+    int start = scopeStarts[--depth];
+    byte tag = buffer[start];
+    // Drop scopes which ended up without any values, e.g. for absent optional fields.
+    int headerSize = tag == RuleKeyDiagnosticsLog.KEY ? varIntSize(start + 1) + 1 : 1;
+    if (size == start + headerSize) {
+      size = start;
+    } else {
+      writeByte(RuleKeyDiagnosticsLog.END);
+    }
+  }
+
+  private int varIntSize(int offset) {
+    int end = offset;
+    while ((buffer[end] & 0x80) != 0) {
+      end++;
+    }
+    return end - offset + 1;
+  }
+
+  private void writeString(byte tag, String value) {
+    writeByte(tag);
+    writeString(value);
+  }
+
+  private void writeString(String value) {
+    writeVarInt(log.intern(value));
+  }
+
+  private void writeHash(byte[] bytes) {
+    writeVarInt(bytes.length);
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  private void writeLong(long value) {
+    ensureCapacity(8);
+    for (int i = 0; i < 8; i++) {
+      buffer[size++] = (byte) (value >>> (i * 8));
+    }
+  }
+
+  private void writeVarInt(int value) {
+    ensureCapacity(5);
+    while ((value & ~0x7f) != 0) {
+      buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[size++] = (byte) value;
+  }
+
+  private void writeByte(byte value) {
+    ensureCapacity(1);
+    buffer[size++] = value;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (size + bytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+    }
+  }
+}
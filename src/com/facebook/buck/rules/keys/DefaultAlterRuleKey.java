@@ -28,6 +28,33 @@ class DefaultAlterRuleKey extends AbstractAlterRuleKey {
 
   @Override
   public void amendKey(RuleKeyObjectSink builder, BuildRule rule) {
+    Class<?> type = field.getType();
+    if (type.isPrimitive()) {
+      try {
+        // Read primitives unboxed, so that they don't have to be boxed only to be dispatched on.
+        if (type == boolean.class) {
+          builder.setBoolean(field.getName(), field.getBoolean(rule));
+          return;
+        } else if (type == int.class) {
+          builder.setInt(field.getName(), field.getInt(rule));
+          return;
+        } else if (type == long.class) {
+          builder.setLong(field.getName(), field.getLong(rule));
+          return;
+        } else if (type == short.class) {
+          builder.setShort(field.getName(), field.getShort(rule));
+          return;
+        } else if (type == float.class) {
+          builder.setFloat(field.getName(), field.getFloat(rule));
+          return;
+        } else if (type == double.class) {
+          builder.setDouble(field.getName(), field.getDouble(rule));
+          return;
+        }
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException(e);
+      }
+    }
     builder.setReflectively(field.getName(), getValue(field, rule));
   }
 }
@@ -21,6 +21,7 @@ import com.facebook.buck.model.Pair;
 import com.facebook.buck.rules.ArchiveMemberSourcePath;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.google.common.base.Joiner;
@@ -45,17 +46,26 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
   public DefaultDependencyFileRuleKeyBuilderFactory(
       int seed,
       FileHashLoader fileHashLoader,
-      SourcePathResolver pathResolver) {
+      SourcePathResolver pathResolver,
+      RuleKeyHashFunction hashFunction) {
     super(
         seed,
         fileHashLoader,
         pathResolver,
         InputHandling.IGNORE,
         ArchiveHandling.MEMBERS,
-        Long.MAX_VALUE);
+        Long.MAX_VALUE,
+        hashFunction);
     this.pathResolver = pathResolver;
   }
 
+  public DefaultDependencyFileRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader fileHashLoader,
+      SourcePathResolver pathResolver) {
+    this(seed, fileHashLoader, pathResolver, RuleKeyHashFunction.SHA1);
+  }
+
   @Override
   public Optional<Pair<RuleKey, ImmutableSet<SourcePath>>> build(
       BuildRule rule,
@@ -17,17 +17,31 @@
 package com.facebook.buck.rules.keys;
 
 import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.rules.AbstractBuildRule;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.NullRuleKeyLogger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.RuleKeyAppendable;
 import com.facebook.buck.rules.RuleKeyBuilder;
 import com.facebook.buck.rules.RuleKeyBuilderFactory;
+import com.facebook.buck.rules.RuleKeyHashFunction;
+import com.facebook.buck.rules.RuleKeyLogger;
 import com.facebook.buck.rules.RuleKeyObjectSink;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Optional;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 
@@ -37,52 +51,78 @@ import javax.annotation.Nonnull;
 public class DefaultRuleKeyBuilderFactory
     extends ReflectiveRuleKeyBuilderFactory<RuleKeyBuilder<RuleKey>, RuleKey> {
 
-  protected final LoadingCache<RuleKeyAppendable, RuleKey> ruleKeyCache;
+  private final LoadingCache<RuleKeyAppendable, TrackedRuleKey> appendableKeys;
   private final FileHashLoader hashLoader;
   private final SourcePathResolver pathResolver;
+  private final Optional<DefaultRuleKeyCache> ruleKeyCache;
+  private final Optional<RuleKeyDiagnosticsLog> diagnosticsLog;
 
   public DefaultRuleKeyBuilderFactory(
       int seed,
       FileHashLoader hashLoader,
-      SourcePathResolver pathResolver) {
-    super(seed);
-    this.ruleKeyCache = CacheBuilder.newBuilder().weakKeys().build(
-        new CacheLoader<RuleKeyAppendable, RuleKey>() {
+      SourcePathResolver pathResolver,
+      RuleKeyHashFunction hashFunction,
+      Optional<DefaultRuleKeyCache> ruleKeyCache,
+      Optional<RuleKeyDiagnosticsLog> diagnosticsLog) {
+    super(seed, hashFunction);
+    this.appendableKeys = CacheBuilder.newBuilder().weakKeys().build(
+        new CacheLoader<RuleKeyAppendable, TrackedRuleKey>() {
           @Override
-          public RuleKey load(@Nonnull RuleKeyAppendable appendable) throws Exception {
-            RuleKeyBuilder<RuleKey> subKeyBuilder = newBuilder();
+          public TrackedRuleKey load(@Nonnull RuleKeyAppendable appendable) throws Exception {
+            Builder subKeyBuilder = newBuilder();
             appendable.appendToRuleKey(subKeyBuilder);
-            return subKeyBuilder.build();
+            return subKeyBuilder.buildTracked();
           }
         });
     this.hashLoader = hashLoader;
     this.pathResolver = pathResolver;
+    this.ruleKeyCache = ruleKeyCache;
+    this.diagnosticsLog = diagnosticsLog;
+  }
+
+  public DefaultRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver,
+      RuleKeyHashFunction hashFunction,
+      Optional<DefaultRuleKeyCache> ruleKeyCache) {
+    this(seed, hashLoader, pathResolver, hashFunction, ruleKeyCache, Optional.empty());
+  }
+
+  public DefaultRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver,
+      RuleKeyHashFunction hashFunction) {
+    this(seed, hashLoader, pathResolver, hashFunction, Optional.empty());
+  }
+
+  public DefaultRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver) {
+    this(seed, hashLoader, pathResolver, RuleKeyHashFunction.SHA1);
   }
 
   protected DefaultRuleKeyBuilderFactory getDefaultRuleKeyBuilderFactory() {
     return this;
   }
 
-  private RuleKeyBuilder<RuleKey> newBuilder() {
-    return new RuleKeyBuilder<RuleKey>(pathResolver, hashLoader) {
-      @Override
-      protected RuleKeyBuilder<RuleKey> setBuildRule(BuildRule rule) {
-        return setSingleValue(getDefaultRuleKeyBuilderFactory().build(rule));
-      }
-
-      @Override
-      public RuleKeyBuilder<RuleKey> setAppendableRuleKey(
-          String key,
-          RuleKeyAppendable appendable) {
-        RuleKey subKey = ruleKeyCache.getUnchecked(appendable);
-        return setAppendableRuleKey(key, subKey);
-      }
+  private Builder newBuilder() {
+    return new Builder();
+  }
 
-      @Override
-      public RuleKey build() {
-        return buildRuleKey();
-      }
-    };
+  private RuleKeyLogger newRuleKeyLogger() {
+    RuleKeyLogger defaultLogger = RuleKeyBuilder.newDefaultRuleKeyLogger();
+    if (!diagnosticsLog.isPresent()) {
+      return defaultLogger;
+    }
+    // Keep the verbose text log working alongside the diagnostics log, as
+    // scripts/diff_rulekeys.py reads it.
+    if (defaultLogger instanceof NullRuleKeyLogger) {
+      return diagnosticsLog.get().newLogger();
+    }
+    return new TeeRuleKeyLogger(defaultLogger, diagnosticsLog.get().newLogger());
   }
 
   @Override
@@ -90,6 +130,38 @@ public class DefaultRuleKeyBuilderFactory
     return newBuilder();
   }
 
+  @Override
+  protected RuleKey newRuleKey(BuildRule buildRule) {
+    if (!ruleKeyCache.isPresent()) {
+      return super.newRuleKey(buildRule);
+    }
+
+    // Keys served from the cache would be missing from this build's rule key logs, so while the
+    // structure of keys is being logged the cache is only filled, never read.
+    if (!diagnosticsLog.isPresent() && !RuleKeyBuilder.isVerboseLoggingEnabled()) {
+      Optional<RuleKey> cached = ruleKeyCache.get().get(buildRule);
+      if (cached.isPresent()) {
+        return cached.get();
+      }
+    }
+
+    RuleKeyBuilder<RuleKey> builder = newInstance(buildRule);
+    if (!(builder instanceof Builder)) {
+      return builder.build();
+    }
+    TrackedRuleKey ruleKey = ((Builder) builder).buildTracked();
+    // A key can only be kept if we will hear about changes to everything that went into it,
+    // including the keys of its deps.
+    boolean cacheable = ruleKey.allInputsWatched;
+    for (BuildRule dep : ruleKey.deps) {
+      cacheable &= ruleKeyCache.get().get(dep).isPresent();
+    }
+    if (cacheable) {
+      ruleKeyCache.get().put(buildRule, ruleKey.ruleKey, ruleKey.inputs, ruleKey.deps);
+    }
+    return ruleKey.ruleKey;
+  }
+
   protected void addDepsToRuleKey(RuleKeyObjectSink sink, BuildRule buildRule) {
     if (buildRule instanceof AbstractBuildRule) {
       // TODO(marcinkosiba): We really need to get rid of declared/extra deps in rules. Instead
@@ -110,4 +182,92 @@ public class DefaultRuleKeyBuilderFactory
     return builder;
   }
 
+  /**
+   * Records the files and rules that go into a key, when there is a {@link DefaultRuleKeyCache}
+   * that needs to know them.
+   */
+  private class Builder extends RuleKeyBuilder<RuleKey> {
+
+    private final Set<Path> inputs = new HashSet<>();
+    private final Set<BuildRule> deps = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean allInputsWatched = true;
+
+    private Builder() {
+      super(pathResolver, hashLoader, newRuleKeyLogger(), getHashFunction());
+    }
+
+    private void addInput(Path absolutePath) {
+      if (ruleKeyCache.isPresent()) {
+        inputs.add(absolutePath);
+        allInputsWatched &= ruleKeyCache.get().isWatched(absolutePath);
+      }
+    }
+
+    @Override
+    public RuleKeyBuilder<RuleKey> setPath(
+        Path absolutePath,
+        Path ideallyRelative) throws IOException {
+      addInput(absolutePath);
+      return super.setPath(absolutePath, ideallyRelative);
+    }
+
+    @Override
+    public RuleKeyBuilder<RuleKey> setArchiveMemberPath(
+        ArchiveMemberPath absoluteArchiveMemberPath,
+        ArchiveMemberPath relativeArchiveMemberPath) throws IOException {
+      addInput(absoluteArchiveMemberPath.getArchivePath());
+      return super.setArchiveMemberPath(absoluteArchiveMemberPath, relativeArchiveMemberPath);
+    }
+
+    @Override
+    protected RuleKeyBuilder<RuleKey> setBuildRule(BuildRule rule) {
+      if (ruleKeyCache.isPresent()) {
+        deps.add(rule);
+      }
+      return setSingleValue(getDefaultRuleKeyBuilderFactory().build(rule));
+    }
+
+    @Override
+    public RuleKeyBuilder<RuleKey> setAppendableRuleKey(
+        String key,
+        RuleKeyAppendable appendable) {
+      TrackedRuleKey subKey = appendableKeys.getUnchecked(appendable);
+      inputs.addAll(subKey.inputs);
+      deps.addAll(subKey.deps);
+      allInputsWatched &= subKey.allInputsWatched;
+      return setAppendableRuleKey(key, subKey.ruleKey);
+    }
+
+    private TrackedRuleKey buildTracked() {
+      return new TrackedRuleKey(
+          buildRuleKey(),
+          ImmutableSet.copyOf(inputs),
+          ImmutableList.copyOf(deps),
+          allInputsWatched);
+    }
+
+    @Override
+    public RuleKey build() {
+      return buildRuleKey();
+    }
+  }
+
+  private static final class TrackedRuleKey {
+    private final RuleKey ruleKey;
+    private final ImmutableSet<Path> inputs;
+    private final ImmutableList<BuildRule> deps;
+    private final boolean allInputsWatched;
+
+    private TrackedRuleKey(
+        RuleKey ruleKey,
+        ImmutableSet<Path> inputs,
+        ImmutableList<BuildRule> deps,
+        boolean allInputsWatched) {
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.deps = deps;
+      this.allInputsWatched = allInputsWatched;
+    }
+  }
+
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Keeps the default {@link RuleKey}s of build rules across builds in the daemon, for as long as
+ * the action graph they belong to is reused.
+ * <p>
+ * Each key is stored with the files that were hashed into it and the rules whose keys it includes.
+ * When one of those files changes, {@link #invalidatePath(Path)} drops the keys of the rules that
+ * hashed it and of everything that depends on them, so the rest of the graph does not have to be
+ * keyed again. Only rules whose inputs all live in the watched part of {@link ProjectFilesystem}
+ * can be cached, since nothing tells us about changes anywhere else.
+ */
+public class DefaultRuleKeyCache {
+
+  private static final Logger LOG = Logger.get(DefaultRuleKeyCache.class);
+
+  private final ProjectFilesystem filesystem;
+  private final Path watchRoot;
+
+  // Weak keys compare rules by identity, which matters: a rule from a new action graph is equal to
+  // the one it replaces, but may have different arguments.
+  private final Cache<BuildRule, Entry> cache = CacheBuilder.newBuilder().weakKeys().build();
+
+  /**
+   * @param watchRoot the absolute directory that the paths of file change events are relative to,
+   *     which need not be the root of {@code filesystem}.
+   */
+  public DefaultRuleKeyCache(ProjectFilesystem filesystem, Path watchRoot) {
+    Preconditions.checkArgument(watchRoot.isAbsolute(), "%s is not absolute", watchRoot);
+    this.filesystem = filesystem;
+    this.watchRoot = watchRoot;
+  }
+
+  /**
+   * @return whether changes to the file at {@code absolutePath} are reported to this cache.
+   */
+  public boolean isWatched(Path absolutePath) {
+    Path root = filesystem.getRootPath();
+    if (!absolutePath.startsWith(root)) {
+      return false;
+    }
+    Path relativePath = root.relativize(absolutePath);
+    // Outputs in buck-out change without any file events we would act on.
+    return !relativePath.startsWith(filesystem.getBuckPaths().getBuckOut()) &&
+        !filesystem.isIgnored(relativePath);
+  }
+
+  public Optional<RuleKey> get(BuildRule rule) {
+    Entry entry = cache.getIfPresent(rule);
+    return entry == null ? Optional.empty() : Optional.of(entry.ruleKey);
+  }
+
+  /**
+   * @param inputs the absolute paths of the files hashed into the key, which must all be watched.
+   * @param deps the rules whose keys are part of the key.
+   */
+  public void put(
+      BuildRule rule,
+      RuleKey ruleKey,
+      Iterable<Path> inputs,
+      Iterable<BuildRule> deps) {
+    ImmutableSet.Builder<Path> relativeInputs = ImmutableSet.builder();
+    for (Path input : inputs) {
+      Preconditions.checkArgument(isWatched(input), "%s is not watched", input);
+      relativeInputs.add(filesystem.getRootPath().relativize(input));
+    }
+    cache.put(rule, new Entry(ruleKey, relativeInputs.build(), ImmutableList.copyOf(deps)));
+  }
+
+  /**
+   * Drops the key of every rule that hashed {@code path}, or a directory containing it, along with
+   * the keys of all the rules that depend on those.
+   *
+   * @param path a path relative to the watch root, or an absolute path.
+   */
+  public synchronized void invalidatePath(Path path) {
+    // Every cached input is under the root of the filesystem, so changes anywhere else, such as in
+    // other cells under the same watch root, cannot affect any of the keys.
+    Path changed = watchRoot.resolve(path).normalize();
+    if (!changed.startsWith(filesystem.getRootPath())) {
+      return;
+    }
+    changed = filesystem.getRootPath().relativize(changed);
+
+    Deque<BuildRule> toInvalidate = new ArrayDeque<>();
+    for (Map.Entry<BuildRule, Entry> entry : cache.asMap().entrySet()) {
+      for (Path input : entry.getValue().inputs) {
+        if (changed.startsWith(input) || input.startsWith(changed)) {
+          toInvalidate.add(entry.getKey());
+          break;
+        }
+      }
+    }
+    if (toInvalidate.isEmpty()) {
+      return;
+    }
+
+    Map<BuildRule, List<BuildRule>> dependents = new IdentityHashMap<>();
+    for (Map.Entry<BuildRule, Entry> entry : cache.asMap().entrySet()) {
+      for (BuildRule dep : entry.getValue().deps) {
+        dependents.computeIfAbsent(dep, rule -> new ArrayList<>()).add(entry.getKey());
+      }
+    }
+
+    Set<BuildRule> invalidated = Collections.newSetFromMap(new IdentityHashMap<>());
+    while (!toInvalidate.isEmpty()) {
+      BuildRule rule = toInvalidate.pop();
+      if (invalidated.add(rule)) {
+        toInvalidate.addAll(dependents.getOrDefault(rule, ImmutableList.of()));
+      }
+    }
+    LOG.verbose(
+        "Invalidating the rule keys of %d rules after %s changed",
+        invalidated.size(),
+        path);
+    cache.invalidateAll(invalidated);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    cache.cleanUp();
+    return cache.size();
+  }
+
+  private static final class Entry {
+    private final RuleKey ruleKey;
+    private final ImmutableSet<Path> inputs;
+    private final ImmutableList<BuildRule> deps;
+
+    private Entry(RuleKey ruleKey, ImmutableSet<Path> inputs, ImmutableList<BuildRule> deps) {
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.deps = deps;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.facebook.buck.rules.DependencyAggregation;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.RuleKeyAppendable;
 import com.facebook.buck.rules.RuleKeyBuilder;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.util.OptionalCompat;
@@ -68,8 +69,9 @@ public class InputBasedRuleKeyBuilderFactory
       SourcePathResolver pathResolver,
       InputHandling inputHandling,
       ArchiveHandling archiveHandling,
-      long inputSizeLimit) {
-    super(seed);
+      long inputSizeLimit,
+      RuleKeyHashFunction hashFunction) {
+    super(seed, hashFunction);
     this.fileHashLoader = hashLoader;
     this.pathResolver = pathResolver;
     this.inputHandling = inputHandling;
@@ -93,14 +95,24 @@ public class InputBasedRuleKeyBuilderFactory
       int seed,
       FileHashLoader hashLoader,
       SourcePathResolver pathResolver,
-      long inputSizeLimit) {
+      long inputSizeLimit,
+      RuleKeyHashFunction hashFunction) {
     this(
         seed,
         hashLoader,
         pathResolver,
         InputHandling.HASH,
         ArchiveHandling.ARCHIVES,
-        inputSizeLimit);
+        inputSizeLimit,
+        hashFunction);
+  }
+
+  public InputBasedRuleKeyBuilderFactory(
+      int seed,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver,
+      long inputSizeLimit) {
+    this(seed, hashLoader, pathResolver, inputSizeLimit, RuleKeyHashFunction.SHA1);
   }
 
   public InputBasedRuleKeyBuilderFactory(
@@ -149,7 +161,7 @@ public class InputBasedRuleKeyBuilderFactory
     private final ImmutableList.Builder<Iterable<SourcePath>> inputs = ImmutableList.builder();
 
     private Builder() {
-      super(pathResolver, fileHashLoader);
+      super(pathResolver, fileHashLoader, getHashFunction());
     }
 
     @Override
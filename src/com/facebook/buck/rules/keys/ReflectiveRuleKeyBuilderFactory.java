@@ -22,6 +22,7 @@ import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.RuleKeyAppendable;
 import com.facebook.buck.rules.RuleKeyBuilder;
 import com.facebook.buck.rules.RuleKeyBuilderFactory;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -35,28 +36,51 @@ public abstract class ReflectiveRuleKeyBuilderFactory<T extends RuleKeyBuilder<U
 
   private static final Logger LOG = Logger.get(ReflectiveRuleKeyBuilderFactory.class);
 
+  // Which fields of a class go into its rule key never changes, so they are found once per
+  // process and shared by all factories, instead of being looked up again for every build. The
+  // values hold the classes' Fields, so weak keys could never be collected and are not used.
+  private static final LoadingCache<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>>
+      KNOWN_FIELDS = CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
+
   private final int seed;
-  private final LoadingCache<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>>
-      knownFields;
+  private final RuleKeyHashFunction hashFunction;
   private final LoadingCache<BuildRule, U> knownRules;
 
-  public ReflectiveRuleKeyBuilderFactory(int seed) {
+  public ReflectiveRuleKeyBuilderFactory(int seed, RuleKeyHashFunction hashFunction) {
     this.seed = seed;
-    this.knownFields = CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
+    this.hashFunction = hashFunction;
     this.knownRules = CacheBuilder.newBuilder().weakKeys().build(
         new CacheLoader<BuildRule, U>() {
           @Override
           public U load(BuildRule key) throws Exception {
-            return newInstance(key).build();
+            return newRuleKey(key);
           }
         });
   }
 
+  public ReflectiveRuleKeyBuilderFactory(int seed) {
+    this(seed, RuleKeyHashFunction.SHA1);
+  }
+
+  /**
+   * @return the hash function the {@link RuleKeyBuilder}s of this factory should use.
+   */
+  protected RuleKeyHashFunction getHashFunction() {
+    return hashFunction;
+  }
+
   /**
    * @return sub-classes should override this to provide specialized {@link RuleKeyBuilder}s.
    */
   protected abstract T newBuilder(BuildRule rule);
 
+  /**
+   * Computes the key of a rule this factory has not seen before.
+   */
+  protected U newRuleKey(BuildRule buildRule) {
+    return newInstance(buildRule).build();
+  }
+
   protected T newInstance(BuildRule buildRule) {
     T builder = newBuilder(buildRule);
     builder.setReflectively("buck.seed", seed);
@@ -81,7 +105,7 @@ public abstract class ReflectiveRuleKeyBuilderFactory<T extends RuleKeyBuilder<U
     }
 
     try {
-      for (AlterRuleKey alterRuleKey : knownFields.get(buildRule.getClass())) {
+      for (AlterRuleKey alterRuleKey : KNOWN_FIELDS.get(buildRule.getClass())) {
         alterRuleKey.amendKey(builder, buildRule);
       }
     } catch (ExecutionException | RuntimeException e) {
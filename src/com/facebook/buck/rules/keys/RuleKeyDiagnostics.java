@@ -0,0 +1,458 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The contents of a {@link RuleKeyDiagnosticsLog}, and the means to explain how the rule key of a
+ * target differs between the logs of two builds.
+ */
+public class RuleKeyDiagnostics {
+
+  private final ImmutableMap<RuleKey, ImmutableList<Field>> keys;
+  private final ImmutableMap<String, RuleKey> targets;
+  private final ImmutableMap<RuleKey, String> targetsByKey;
+
+  private RuleKeyDiagnostics(
+      ImmutableMap<RuleKey, ImmutableList<Field>> keys,
+      ImmutableMap<String, RuleKey> targets) {
+    this.keys = keys;
+    this.targets = targets;
+    Map<RuleKey, String> targetsByKey = new HashMap<>();
+    for (Map.Entry<String, RuleKey> entry : targets.entrySet()) {
+      targetsByKey.put(entry.getValue(), entry.getKey());
+    }
+    this.targetsByKey = ImmutableMap.copyOf(targetsByKey);
+  }
+
+  public static RuleKeyDiagnostics read(Path path) throws IOException {
+    try (InputStream stream = new BufferedInputStream(Files.newInputStream(path))) {
+      return read(stream);
+    }
+  }
+
+  /**
+   * Reads a log, keeping everything up to the first incomplete record so that the log of a build
+   * which was killed can still be used.
+   */
+  public static RuleKeyDiagnostics read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != RuleKeyDiagnosticsLog.MAGIC) {
+      throw new IOException("Not a rule key diagnostics log.");
+    }
+    List<String> strings = new ArrayList<>();
+    Map<RuleKey, ImmutableList<Field>> keys = new LinkedHashMap<>();
+    Map<String, RuleKey> targets = new LinkedHashMap<>();
+    try {
+      int tag;
+      while ((tag = in.read()) != -1) {
+        switch (tag) {
+          case RuleKeyDiagnosticsLog.STRING_RECORD:
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+            break;
+          case RuleKeyDiagnosticsLog.RULE_KEY_RECORD:
+            RuleKey ruleKey = new RuleKey(HashCode.fromBytes(readBytes(in)).toString());
+            byte[] body = readBytes(in);
+            BodyReader reader = new BodyReader(strings, body);
+            keys.put(ruleKey, reader.read());
+            reader.getTarget().ifPresent(target -> targets.put(target, ruleKey));
+            break;
+          default:
+            throw new IOException(String.format("Unknown record type %d.", tag));
+        }
+      }
+    } catch (EOFException e) {
+      // The build was interrupted while writing the last record.
+    }
+    return new RuleKeyDiagnostics(ImmutableMap.copyOf(keys), ImmutableMap.copyOf(targets));
+  }
+
+  public ImmutableSortedSet<String> getTargets() {
+    return ImmutableSortedSet.copyOf(targets.keySet());
+  }
+
+  public Optional<RuleKey> getRuleKey(String target) {
+    return Optional.ofNullable(targets.get(target));
+  }
+
+  public Optional<ImmutableList<Field>> getFields(RuleKey ruleKey) {
+    return Optional.ofNullable(keys.get(ruleKey));
+  }
+
+  /**
+   * Explains why the rule key of {@code target} changed between two builds, following changes in
+   * the keys of its deps down to the fields that actually changed.
+   */
+  public static ImmutableList<String> explain(
+      RuleKeyDiagnostics before,
+      RuleKeyDiagnostics after,
+      String target) {
+    Optional<RuleKey> oldKey = before.getRuleKey(target);
+    Optional<RuleKey> newKey = after.getRuleKey(target);
+    if (!oldKey.isPresent() || !newKey.isPresent()) {
+      return ImmutableList.of(
+          String.format(
+              "%s: not in the %s log",
+              target,
+              oldKey.isPresent() ? "new" : "old"));
+    }
+    if (oldKey.equals(newKey)) {
+      return ImmutableList.of(String.format("%s: rule key did not change", target));
+    }
+    List<String> differences = new ArrayList<>();
+    new Differ(before, after, /* followDeps */ true, differences)
+        .diff(oldKey.get(), newKey.get(), target);
+    return ImmutableList.copyOf(differences);
+  }
+
+  /**
+   * Lists, for every target in both logs whose rule key changed, the fields that changed other
+   * than the keys of its deps, which are listed on their own. This narrows a wave of cache misses
+   * down to the rules that caused it.
+   */
+  public static ImmutableList<String> explainAll(
+      RuleKeyDiagnostics before,
+      RuleKeyDiagnostics after) {
+    List<String> differences = new ArrayList<>();
+    for (String target : Sets.intersection(before.getTargets(), after.getTargets())) {
+      RuleKey oldKey = before.targets.get(target);
+      RuleKey newKey = after.targets.get(target);
+      if (!oldKey.equals(newKey)) {
+        new Differ(before, after, /* followDeps */ false, differences)
+            .diff(oldKey, newKey, target);
+      }
+    }
+    return ImmutableList.copyOf(differences);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readVarInt(in)];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * A single value that went into a rule key, with the name of the field it belongs to.
+   */
+  public static class Field {
+    private final String name;
+    private final String value;
+    private final Optional<RuleKey> reference;
+
+    private Field(String name, String value, Optional<RuleKey> reference) {
+      this.name = name;
+      this.value = value;
+      this.reference = reference;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    /**
+     * @return the key that this value refers to, for keys of deps and appendables.
+     */
+    public Optional<RuleKey> getReference() {
+      return reference;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": " + value;
+    }
+  }
+
+  private static class BodyReader {
+    private final List<String> strings;
+    private final DataInputStream in;
+    private final ImmutableList.Builder<Field> fields = ImmutableList.builder();
+    // The name of the field being read, and the name of the innermost key, for every open scope.
+    private final Deque<String[]> scopes = new ArrayDeque<>();
+    private Optional<String> target = Optional.empty();
+    private boolean isBuildRule = false;
+
+    private BodyReader(List<String> strings, byte[] body) {
+      this.strings = strings;
+      this.in = new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    ImmutableList<Field> read() throws IOException {
+      scopes.push(new String[] {"", ""});
+      int tag;
+      while ((tag = in.read()) != -1) {
+        String[] scope = scopes.peek();
+        switch (tag) {
+          case RuleKeyDiagnosticsLog.KEY:
+            String key = readString();
+            if (key.equals(scope[1])) {
+              scopes.push(scope);
+            } else {
+              scopes.push(new String[] {scope[0].isEmpty() ? key : scope[0] + "." + key, key});
+            }
+            break;
+          case RuleKeyDiagnosticsLog.MAP:
+          case RuleKeyDiagnosticsLog.SOURCE_WITH_FLAGS:
+            scopes.push(scope);
+            break;
+          case RuleKeyDiagnosticsLog.MAP_KEY:
+            scopes.push(new String[] {scope[0] + "[key]", scope[1]});
+            break;
+          case RuleKeyDiagnosticsLog.MAP_VALUE:
+            scopes.push(new String[] {scope[0] + "[value]", scope[1]});
+            break;
+          case RuleKeyDiagnosticsLog.END:
+            scopes.pop();
+            break;
+          case RuleKeyDiagnosticsLog.PATH:
+            add(String.format("path(%s:%s)", readString(), readHash()));
+            break;
+          case RuleKeyDiagnosticsLog.ARCHIVE_MEMBER_PATH:
+            add(String.format("archiveMember(%s:%s)", readString(), readHash()));
+            break;
+          case RuleKeyDiagnosticsLog.NON_HASHING_PATH:
+            add(String.format("path(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.NULL:
+            add("null");
+            break;
+          case RuleKeyDiagnosticsLog.STRING:
+            String value = readString();
+            if (scope[0].equals("name")) {
+              target = Optional.of(value);
+            }
+            add(String.format("string(\"%s\")", value));
+            break;
+          case RuleKeyDiagnosticsLog.BOOLEAN:
+            add(String.format("boolean(%s)", in.readByte() != 0));
+            break;
+          case RuleKeyDiagnosticsLog.ENUM:
+            add(String.format("enum(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.INTEGER:
+            add(String.format("number(%d)", Long.reverseBytes(in.readLong())));
+            break;
+          case RuleKeyDiagnosticsLog.FLOATING_POINT:
+            add(
+                String.format(
+                    "number(%s)",
+                    Double.longBitsToDouble(Long.reverseBytes(in.readLong()))));
+            break;
+          case RuleKeyDiagnosticsLog.PATTERN:
+            add(String.format("pattern(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.RULE_TYPE:
+            add(String.format("ruleType(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.RULE_KEY:
+            RuleKey ruleKey = new RuleKey(HashCode.fromBytes(readBytes(in)).toString());
+            fields.add(
+                new Field(scope[0], String.format("ruleKey(%s)", ruleKey), Optional.of(ruleKey)));
+            break;
+          case RuleKeyDiagnosticsLog.TARGET:
+            add(String.format("target(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.SOURCE_ROOT:
+            add(String.format("sourceRoot(%s)", readString()));
+            break;
+          case RuleKeyDiagnosticsLog.BYTES:
+            add(String.format("bytes(%s)", HashCode.fromBytes(readBytes(in))));
+            break;
+          default:
+            throw new IOException(String.format("Unknown rule key entry type %d.", tag));
+        }
+        isBuildRule |= scope[0].equals("buck.seed");
+      }
+      return fields.build();
+    }
+
+    /**
+     * @return the target of the build rule that the key belongs to, if it is a build rule's key
+     *     rather than that of a {@link com.facebook.buck.rules.RuleKeyAppendable}.
+     */
+    Optional<String> getTarget() {
+      return isBuildRule ? target : Optional.empty();
+    }
+
+    private void add(String value) {
+      fields.add(new Field(scopes.peek()[0], value, Optional.empty()));
+    }
+
+    private String readString() throws IOException {
+      return strings.get(readVarInt(in));
+    }
+
+    private HashCode readHash() throws IOException {
+      return HashCode.fromBytes(readBytes(in));
+    }
+  }
+
+  private static class Differ {
+    private final RuleKeyDiagnostics before;
+    private final RuleKeyDiagnostics after;
+    private final boolean followDeps;
+    private final List<String> differences;
+    private final Set<RuleKey> visited = new HashSet<>();
+
+    private Differ(
+        RuleKeyDiagnostics before,
+        RuleKeyDiagnostics after,
+        boolean followDeps,
+        List<String> differences) {
+      this.before = before;
+      this.after = after;
+      this.followDeps = followDeps;
+      this.differences = differences;
+    }
+
+    void diff(RuleKey oldKey, RuleKey newKey, String context) {
+      if (!visited.add(newKey)) {
+        return;
+      }
+      Optional<ImmutableList<Field>> oldFields = before.getFields(oldKey);
+      Optional<ImmutableList<Field>> newFields = after.getFields(newKey);
+      if (!oldFields.isPresent() || !newFields.isPresent()) {
+        differences.add(
+            String.format(
+                "%s: the structure of %s is not in the %s log",
+                context,
+                oldFields.isPresent() ? newKey : oldKey,
+                oldFields.isPresent() ? "new" : "old"));
+        return;
+      }
+
+      Map<String, List<Field>> oldByName = groupByName(oldFields.get());
+      Map<String, List<Field>> newByName = groupByName(newFields.get());
+      Set<String> names = new LinkedHashSet<>(oldByName.keySet());
+      names.addAll(newByName.keySet());
+      for (String name : names) {
+        List<Field> oldValues = oldByName.getOrDefault(name, ImmutableList.of());
+        List<Field> newValues = newByName.getOrDefault(name, ImmutableList.of());
+        if (oldValues.size() != newValues.size()) {
+          differences.add(
+              String.format(
+                  "%s: %s: [%s] -> [%s]",
+                  context,
+                  name,
+                  describe(before, oldValues),
+                  describe(after, newValues)));
+          continue;
+        }
+        for (int i = 0; i < oldValues.size(); i++) {
+          Field oldValue = oldValues.get(i);
+          Field newValue = newValues.get(i);
+          if (oldValue.getValue().equals(newValue.getValue())) {
+            continue;
+          }
+          if (oldValue.getReference().isPresent() && newValue.getReference().isPresent()) {
+            Optional<String> dep =
+                Optional.ofNullable(after.targetsByKey.get(newValue.getReference().get()));
+            if (!dep.isPresent()) {
+              diff(
+                  oldValue.getReference().get(),
+                  newValue.getReference().get(),
+                  context + " > " + name);
+            } else if (followDeps) {
+              diff(oldValue.getReference().get(), newValue.getReference().get(), dep.get());
+            }
+          } else {
+            differences.add(
+                String.format(
+                    "%s: %s: %s -> %s",
+                    context,
+                    name,
+                    describe(before, oldValue),
+                    describe(after, newValue)));
+          }
+        }
+      }
+    }
+
+    private static Map<String, List<Field>> groupByName(List<Field> fields) {
+      Map<String, List<Field>> byName = new LinkedHashMap<>();
+      for (Field field : fields) {
+        byName.computeIfAbsent(field.getName(), name -> new ArrayList<>()).add(field);
+      }
+      return byName;
+    }
+
+    private static String describe(RuleKeyDiagnostics diagnostics, List<Field> fields) {
+      List<String> values = new ArrayList<>();
+      for (Field field : fields) {
+        values.add(describe(diagnostics, field));
+      }
+      return Joiner.on(", ").join(values);
+    }
+
+    private static String describe(RuleKeyDiagnostics diagnostics, Field field) {
+      if (field.getReference().isPresent()) {
+        String target = diagnostics.targetsByKey.get(field.getReference().get());
+        if (target != null) {
+          return String.format("%s(%s)", target, field.getReference().get());
+        }
+      }
+      return field.getValue();
+    }
+  }
+}
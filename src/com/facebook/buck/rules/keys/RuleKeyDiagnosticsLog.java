@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * A compact binary log of the structure of every {@link RuleKey} computed during a build, cheap
+ * enough to be left on so that unexpected cache misses can be explained after the fact with
+ * {@link RuleKeyDiagnostics}.
+ * <p>
+ * The log is a sequence of records. Strings (field names, paths, targets) are written once and
+ * afterwards referred to by their index, and each distinct rule key is written once per build,
+ * no matter how many rules or appendables hash to it. Keys that include other keys, such as the
+ * keys of deps or of {@link com.facebook.buck.rules.RuleKeyAppendable}s, only refer to them.
+ * <p>
+ * Failing to write the log never fails the build: the first error is logged and the rest of the
+ * log is dropped.
+ */
+public class RuleKeyDiagnosticsLog implements Closeable {
+
+  private static final Logger LOG = Logger.get(RuleKeyDiagnosticsLog.class);
+
+  static final int MAGIC = 0x524b4401;
+
+  // Record tags.
+  static final byte STRING_RECORD = 1;
+  static final byte RULE_KEY_RECORD = 2;
+
+  // Tags of the entries making up the body of a rule key record.
+  static final byte KEY = 1;
+  static final byte END = 2;
+  static final byte MAP = 3;
+  static final byte MAP_KEY = 4;
+  static final byte MAP_VALUE = 5;
+  static final byte SOURCE_WITH_FLAGS = 6;
+  static final byte PATH = 7;
+  static final byte ARCHIVE_MEMBER_PATH = 8;
+  static final byte NON_HASHING_PATH = 9;
+  static final byte NULL = 10;
+  static final byte STRING = 11;
+  static final byte BOOLEAN = 12;
+  static final byte ENUM = 13;
+  static final byte INTEGER = 14;
+  static final byte FLOATING_POINT = 15;
+  static final byte PATTERN = 16;
+  static final byte RULE_TYPE = 17;
+  static final byte RULE_KEY = 18;
+  static final byte TARGET = 19;
+  static final byte SOURCE_ROOT = 20;
+  static final byte BYTES = 21;
+
+  private final Path path;
+  private final ConcurrentHashMap<String, Integer> strings = new ConcurrentHashMap<>();
+  private final Set<RuleKey> loggedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+  @Nullable
+  private DataOutputStream out;
+  private boolean failed;
+  private boolean closed;
+
+  /**
+   * @param path where to write the log. Nothing is created until the first key is logged.
+   */
+  public RuleKeyDiagnosticsLog(Path path) {
+    this.path = path;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return a new {@link RuleKeyLogger} for a single rule key builder, which adds the key to this
+   *     log once it is built.
+   */
+  public RuleKeyLogger newLogger() {
+    return new BinaryRuleKeyLogger(this);
+  }
+
+  /**
+   * @return the index of {@code string} in this log, writing it out first if it is new.
+   */
+  int intern(String string) {
+    Integer index = strings.get(string);
+    if (index != null) {
+      return index;
+    }
+    synchronized (this) {
+      index = strings.get(string);
+      if (index == null) {
+        index = strings.size();
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream stream = getStream();
+        if (stream != null) {
+          try {
+            stream.writeByte(STRING_RECORD);
+            writeVarInt(stream, bytes.length);
+            stream.write(bytes);
+          } catch (IOException e) {
+            fail(e);
+          }
+        }
+        strings.put(string, index);
+      }
+      return index;
+    }
+  }
+
+  void logRuleKey(RuleKey ruleKey, byte[] body, int length) {
+    if (!loggedKeys.add(ruleKey)) {
+      return;
+    }
+    byte[] hash = ruleKey.getHashCode().asBytes();
+    synchronized (this) {
+      DataOutputStream stream = getStream();
+      if (stream == null) {
+        return;
+      }
+      try {
+        stream.writeByte(RULE_KEY_RECORD);
+        writeVarInt(stream, hash.length);
+        stream.write(hash);
+        writeVarInt(stream, length);
+        stream.write(body, 0, length);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  @Nullable
+  private DataOutputStream getStream() {
+    if (out == null && !failed && !closed) {
+      try {
+        Files.createDirectories(path.getParent());
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.writeInt(MAGIC);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+    return failed || closed ? null : out;
+  }
+
+  private void fail(IOException e) {
+    LOG.warn(e, "Failed to write the rule key diagnostics log to %s.", path);
+    failed = true;
+    closeQuietly();
+  }
+
+  private void closeQuietly() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to close %s.", path);
+      }
+      out = null;
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    closeQuietly();
+  }
+
+  static void writeVarInt(OutputStream stream, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      stream.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    stream.write(value);
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyLogger;
+import com.facebook.buck.rules.SourceRoot;
+import com.google.common.hash.HashCode;
+
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+/**
+ * Sends the structure of a rule key to two {@link RuleKeyLogger}s.
+ */
+class TeeRuleKeyLogger implements RuleKeyLogger {
+
+  private final RuleKeyLogger first;
+  private final RuleKeyLogger second;
+
+  TeeRuleKeyLogger(RuleKeyLogger first, RuleKeyLogger second) {
+    this.first = first;
+    this.second = second;
+  }
+
+  @Override
+  public void registerRuleKey(RuleKey ruleKey) {
+    first.registerRuleKey(ruleKey);
+    second.registerRuleKey(ruleKey);
+  }
+
+  @Override
+  public Scope pushKey(String key) {
+    return both(first.pushKey(key), second.pushKey(key));
+  }
+
+  @Override
+  public Scope pushMap() {
+    return both(first.pushMap(), second.pushMap());
+  }
+
+  @Override
+  public Scope pushMapKey() {
+    return both(first.pushMapKey(), second.pushMapKey());
+  }
+
+  @Override
+  public Scope pushMapValue() {
+    return both(first.pushMapValue(), second.pushMapValue());
+  }
+
+  @Override
+  public Scope pushSourceWithFlags() {
+    return both(first.pushSourceWithFlags(), second.pushSourceWithFlags());
+  }
+
+  @Override
+  public void addArchiveMemberPath(ArchiveMemberPath archiveMemberPath, HashCode hashCode) {
+    first.addArchiveMemberPath(archiveMemberPath, hashCode);
+    second.addArchiveMemberPath(archiveMemberPath, hashCode);
+  }
+
+  @Override
+  public void addPath(Path path, HashCode hashCode) {
+    first.addPath(path, hashCode);
+    second.addPath(path, hashCode);
+  }
+
+  @Override
+  public void addNonHashingPath(String path) {
+    first.addNonHashingPath(path);
+    second.addNonHashingPath(path);
+  }
+
+  @Override
+  public void addNullValue() {
+    first.addNullValue();
+    second.addNullValue();
+  }
+
+  @Override
+  public void addValue(String value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(boolean value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(Enum<?> value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(double value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(float value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(int value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(long value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(short value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(Pattern value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(BuildRuleType value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(RuleKey value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(BuildTarget value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(SourceRoot value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  @Override
+  public void addValue(byte[] value) {
+    first.addValue(value);
+    second.addValue(value);
+  }
+
+  private static Scope both(final Scope firstScope, final Scope secondScope) {
+    return () -> {
+      secondScope.close();
+      firstScope.close();
+    };
+  }
+}
@@ -23,6 +23,7 @@ public class BuckConstant {
   public static final String BUCK_LOG_FILE_NAME = "buck.log";
   public static final String BUCK_MACHINE_LOG_FILE_NAME = "buck-machine-log";
   public static final String RULE_KEY_LOGGER_FILE_NAME = "rule_key_logger.tsv";
+  public static final String RULE_KEY_DIAGNOSTICS_LOG_FILE_NAME = "rule_key_diagnostics.bin";
 
   private static final String BUCK_OUTPUT_DIRECTORY = "buck-out";
   private static final Path BUCK_OUTPUT_PATH = Paths.get("buck-out");
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.util.immutables.BuckStyleTuple;
+
+import org.immutables.value.Value;
+
+/**
+ * What {@link WatchmanFileHashPreloader} added to a file hash cache.
+ */
+@Value.Immutable
+@BuckStyleTuple
+abstract class AbstractFileHashPreloadResult {
+
+  /**
+   * @return the number of files whose hashes were added.
+   */
+  public abstract int getPreloadedFiles();
+
+  /**
+   * @return the total size of the files whose hashes were added, which Buck doesn't have to read.
+   */
+  public abstract long getBytesNotRead();
+
+  /**
+   * @return the number of files Watchman couldn't hash, which are left to be hashed locally.
+   */
+  public abstract int getUnhashedFiles();
+
+}
@@ -66,7 +66,8 @@ abstract class AbstractHashCodeAndFileType {
     return HashCodeAndFileType.builder()
         .setType(Type.ARCHIVE)
         .setGetHashCode(hashCode)
-        .setJarContentHasher(new JarContentHasher(projectFilesystem, archiveRelativePath))
+        .setJarContentHasher(
+            new JarContentHasher(projectFilesystem, archiveRelativePath, hashCode))
         .build();
   }
 
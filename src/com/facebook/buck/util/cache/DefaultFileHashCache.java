@@ -16,7 +16,7 @@
 
 package com.facebook.buck.util.cache;
 
-import com.facebook.buck.hashing.PathHashing;
+import com.facebook.buck.hashing.StringHashing;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
@@ -27,15 +27,22 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nonnull;
 
@@ -46,6 +53,14 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
   private final Optional<Path> buckOutPath;
+  private final Optional<PersistentFileHashStore> persistentStore;
+
+  /**
+   * Directories being hashed further up this thread's stack, mapped to where their links resolve
+   * to. Subdirectories are hashed on the calling thread, so this is enough to spot symlink loops.
+   */
+  private final ThreadLocal<Map<Path, Path>> directoriesBeingHashed =
+      ThreadLocal.withInitial(HashMap::new);
 
   @VisibleForTesting
   final LoadingCache<Path, HashCodeAndFileType> loadingCache;
@@ -57,8 +72,20 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   DefaultFileHashCache(
       ProjectFilesystem projectFilesystem,
       Optional<Path> buckOutPath) {
+    this(projectFilesystem, buckOutPath, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore where hashes of files are looked up before hashing them, and stored
+   *     after.
+   */
+  DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<Path> buckOutPath,
+      Optional<PersistentFileHashStore> persistentStore) {
     this.projectFilesystem = projectFilesystem;
     this.buckOutPath = buckOutPath;
+    this.persistentStore = persistentStore;
 
     this.loadingCache =
         CacheBuilder.newBuilder().build(
@@ -89,6 +116,12 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return new DefaultFileHashCache(projectFilesystem, Optional.empty());
   }
 
+  public static FileHashCache createDefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<PersistentFileHashStore> persistentStore) {
+    return new DefaultFileHashCache(projectFilesystem, Optional.empty(), persistentStore);
+  }
+
   private HashCodeAndFileType getHashCodeAndFileType(Path path) throws IOException {
     if (projectFilesystem.isDirectory(path)) {
       return getDirHashCode(path);
@@ -103,6 +136,11 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(Path path) throws IOException {
+    if (persistentStore.isPresent()) {
+      return persistentStore.get().get(
+          projectFilesystem.resolve(path),
+          () -> projectFilesystem.computeSha1(path).asHashCode());
+    }
     return projectFilesystem.computeSha1(path).asHashCode();
   }
 
@@ -114,11 +152,96 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return size;
   }
 
+  /**
+   * Hashes a directory as a Merkle tree of its entries. Each subdirectory's hash is cached in its
+   * own right, so a change to one file only rehashes the directories above it. Files are hashed
+   * on the common fork/join pool while subdirectories are walked on this thread.
+   *
+   * <p>Symlinked directories are followed, and a link back to a directory that is still being
+   * hashed fails with a {@link FileSystemLoopException}. Subdirectories without any files are
+   * left out, so empty directories don't change the hash.
+   */
   private HashCodeAndFileType getDirHashCode(Path path) throws IOException {
+    Map<Path, Path> outer = directoriesBeingHashed.get();
+    Path parentLocation = outer.get(path.getParent());
+    Map<Path, Path> ancestors = parentLocation == null ? new HashMap<>() : outer;
+    if (parentLocation == null) {
+      parentLocation = projectFilesystem.resolve(path).getParent();
+    }
+    Path location = parentLocation
+        .resolve(projectFilesystem.isSymLink(path)
+            ? projectFilesystem.readSymLink(path)
+            : path.getFileName())
+        .normalize();
+    if (ancestors.containsValue(location)) {
+      throw new FileSystemLoopException(path.toString());
+    }
+    ancestors.put(path, location);
+    directoriesBeingHashed.set(ancestors);
+    try {
+      return hashDirectoryEntries(
+          ImmutableSortedSet.copyOf(projectFilesystem.getDirectoryContents(path)));
+    } finally {
+      ancestors.remove(path);
+      directoriesBeingHashed.set(outer);
+    }
+  }
+
+  private HashCodeAndFileType hashDirectoryEntries(ImmutableSortedSet<Path> entries)
+      throws IOException {
+    Map<Path, CompletableFuture<HashCodeAndFileType>> fileHashes = new HashMap<>();
+    for (Path entry : entries) {
+      if (!projectFilesystem.isDirectory(entry)) {
+        fileHashes.put(
+            entry,
+            CompletableFuture.supplyAsync(
+                () -> {
+                  try {
+                    return loadingCache.get(entry);
+                  } catch (ExecutionException e) {
+                    throw new CompletionException(e.getCause());
+                  }
+                },
+                ForkJoinPool.commonPool()));
+      }
+    }
+
     Hasher hasher = Hashing.sha1().newHasher();
-    ImmutableSet<Path> children =
-        PathHashing.hashPath(hasher, this, projectFilesystem, path);
-    return HashCodeAndFileType.ofDirectory(hasher.hash(), children);
+    ImmutableSet.Builder<Path> children = ImmutableSet.builder();
+    for (Path entry : entries) {
+      Path name = entry.getFileName();
+      CompletableFuture<HashCodeAndFileType> fileHash = fileHashes.get(entry);
+      HashCodeAndFileType value;
+      if (fileHash == null) {
+        value = getHashCodeAndFileTypeFromCache(entry);
+        if (value.getChildren().isEmpty()) {
+          continue;
+        }
+        for (Path child : value.getChildren()) {
+          children.add(name.resolve(child));
+        }
+      } else {
+        try {
+          value = fileHash.join();
+        } catch (CompletionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+      children.add(name);
+      StringHashing.hashStringAndLength(hasher, name.toString());
+      hasher.putBytes(value.getHashCode().asBytes());
+    }
+    return HashCodeAndFileType.ofDirectory(hasher.hash(), children.build());
+  }
+
+  private HashCodeAndFileType getHashCodeAndFileTypeFromCache(Path path) throws IOException {
+    try {
+      return loadingCache.get(path);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
   }
 
   public Path resolvePath(Path path) {
@@ -153,6 +276,26 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return willGet(archiveMemberPath.getArchivePath());
   }
 
+  /**
+   * Caches a hash of the file at {@code relativePath} that was computed elsewhere, e.g. by
+   * Watchman, unless the file is ignored or a hash of it is already cached.
+   *
+   * @return whether the hash was added.
+   */
+  public boolean putFileHashIfAbsent(Path relativePath, HashCode hashCode) {
+    if (isIgnored(relativePath)) {
+      return false;
+    }
+    HashCodeAndFileType value = relativePath.toString().endsWith(".jar") ?
+        HashCodeAndFileType.ofArchive(hashCode, projectFilesystem, relativePath) :
+        HashCodeAndFileType.ofFile(hashCode);
+    return loadingCache.asMap().putIfAbsent(relativePath, value) == null;
+  }
+
+  public boolean isEmpty() {
+    return loadingCache.size() == 0;
+  }
+
   @Override
   public void invalidate(Path rawPath) {
     Path path = resolvePath(rawPath);
@@ -17,26 +17,54 @@ package com.facebook.buck.util.cache;
 
 import com.facebook.buck.io.HashingDeterministicJarWriter;
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public class JarContentHasher {
 
+  private static final Logger LOG = Logger.get(JarContentHasher.class);
+
+  private static final int INDEX_VERSION = 1;
+
+  // Set in the end of central directory record and in entries of archives that need ZIP64.
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+  private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+
   private final ProjectFilesystem filesystem;
   private final Path jarRelativePath;
+  private final HashCode jarHash;
 
-  public JarContentHasher(ProjectFilesystem filesystem, Path jarRelativePath) {
+  public JarContentHasher(ProjectFilesystem filesystem, Path jarRelativePath, HashCode jarHash) {
     Preconditions.checkState(!jarRelativePath.isAbsolute());
     this.filesystem = filesystem;
     this.jarRelativePath = jarRelativePath;
+    this.jarHash = jarHash;
   }
 
   public Path getJarRelativePath() {
@@ -44,6 +72,147 @@ public class JarContentHasher {
   }
 
   public ImmutableMap<Path, HashCodeAndFileType> getContentHashes() throws IOException {
+    // Prebuilt jars are shared by many rules and rarely change, so the hashes of their members
+    // are kept on disk by the hash of the jar, and later processes don't have to open it.
+    Optional<Path> indexPath = getIndexPath();
+    if (!indexPath.isPresent()) {
+      return readManifest();
+    }
+    Optional<ImmutableMap<Path, HashCodeAndFileType>> index = readIndex(indexPath.get());
+    if (index.isPresent()) {
+      return index.get();
+    }
+
+    // Jars built by Buck come with the hashes of their members, other jars usually don't.
+    ImmutableMap<Path, HashCodeAndFileType> contentHashes = readManifestIfPresent();
+    if (contentHashes.isEmpty()) {
+      Optional<ImmutableMap<Path, HashCodeAndFileType>> centralDirectory = readCentralDirectory();
+      contentHashes = centralDirectory.isPresent() ? centralDirectory.get() : hashMembers();
+    }
+    if (!contentHashes.isEmpty()) {
+      writeIndex(indexPath.get(), contentHashes);
+    }
+    return contentHashes;
+  }
+
+  private ImmutableMap<Path, HashCodeAndFileType> readManifestIfPresent() throws IOException {
+    if (filesystem.getJarManifest(jarRelativePath) == null) {
+      return ImmutableMap.of();
+    }
+    return readManifest();
+  }
+
+  /**
+   * Identifies every file in the jar by the CRC-32 and size its central directory records for it,
+   * so that only the end of the jar has to be read.
+   *
+   * @return nothing if the jar needs ZIP64 extensions, which this doesn't read.
+   */
+  private Optional<ImmutableMap<Path, HashCodeAndFileType>> readCentralDirectory()
+      throws IOException {
+    try (FileChannel channel =
+             FileChannel.open(filesystem.resolve(jarRelativePath), StandardOpenOption.READ)) {
+      // The end of central directory record is followed by a comment of up to 64 KiB.
+      int tailSize = (int) Math.min(channel.size(), ZipEntry.ENDHDR + 0xFFFF);
+      ByteBuffer tail = map(channel, channel.size() - tailSize, tailSize);
+      int end = tailSize - ZipEntry.ENDHDR;
+      while (end >= 0 && tail.getInt(end) != ZipEntry.ENDSIG) {
+        end--;
+      }
+      if (end < 0) {
+        throw new IOException(String.format("%s is not a zip file.", jarRelativePath));
+      }
+
+      int numberOfEntries = Short.toUnsignedInt(tail.getShort(end + ZipEntry.ENDTOT));
+      long centralDirectorySize = Integer.toUnsignedLong(tail.getInt(end + ZipEntry.ENDSIZ));
+      long centralDirectoryOffset = Integer.toUnsignedLong(tail.getInt(end + ZipEntry.ENDOFF));
+      if (numberOfEntries == ZIP64_MAGIC_COUNT ||
+          centralDirectorySize == ZIP64_MAGIC_VALUE ||
+          centralDirectoryOffset == ZIP64_MAGIC_VALUE) {
+        return Optional.empty();
+      }
+
+      ByteBuffer centralDirectory =
+          map(channel, centralDirectoryOffset, (int) centralDirectorySize);
+      Map<Path, HashCodeAndFileType> memberHashes = new LinkedHashMap<>();
+      int position = 0;
+      for (int i = 0; i < numberOfEntries; i++) {
+        if (centralDirectory.getInt(position) != ZipEntry.CENSIG) {
+          throw new IOException(
+              String.format("Bad central directory entry in %s.", jarRelativePath));
+        }
+        int crc = centralDirectory.getInt(position + ZipEntry.CENCRC);
+        long size = Integer.toUnsignedLong(centralDirectory.getInt(position + ZipEntry.CENLEN));
+        int nameLength = Short.toUnsignedInt(centralDirectory.getShort(position + ZipEntry.CENNAM));
+        byte[] name = new byte[nameLength];
+        centralDirectory.position(position + ZipEntry.CENHDR);
+        centralDirectory.get(name);
+        if (size == ZIP64_MAGIC_VALUE) {
+          return Optional.empty();
+        }
+
+        String memberName = new String(name, StandardCharsets.UTF_8);
+        if (!memberName.endsWith("/")) {
+          // Some jars have duplicate entries, keep the first one.
+          memberHashes.putIfAbsent(
+              Paths.get(memberName),
+              HashCodeAndFileType.ofFile(
+                  HashCode.fromBytes(
+                      ByteBuffer.allocate(Integer.BYTES + Long.BYTES)
+                          .putInt(crc)
+                          .putLong(size)
+                          .array())));
+        }
+
+        position += ZipEntry.CENHDR +
+            nameLength +
+            Short.toUnsignedInt(centralDirectory.getShort(position + ZipEntry.CENEXT)) +
+            Short.toUnsignedInt(centralDirectory.getShort(position + ZipEntry.CENCOM));
+      }
+      return Optional.of(ImmutableMap.copyOf(memberHashes));
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, int size) throws IOException {
+    ByteBuffer buffer;
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    } catch (UnsupportedOperationException e) {
+      // Not every filesystem can map files, so read the range instead.
+      buffer = ByteBuffer.allocate(size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      buffer.flip();
+    }
+    return buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Hashes the contents of every file in the jar, the same way
+   * {@link HashingDeterministicJarWriter} does, for jars whose central directory can't be read.
+   */
+  private ImmutableMap<Path, HashCodeAndFileType> hashMembers() throws IOException {
+    Map<Path, HashCodeAndFileType> memberHashes = new LinkedHashMap<>();
+    try (ZipInputStream jar = new ZipInputStream(filesystem.newFileInputStream(jarRelativePath))) {
+      for (ZipEntry entry = jar.getNextEntry(); entry != null; entry = jar.getNextEntry()) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        HashingInputStream member = new HashingInputStream(Hashing.murmur3_128(), jar);
+        ByteStreams.copy(member, ByteStreams.nullOutputStream());
+        // Some jars have duplicate entries, keep the first one.
+        memberHashes.putIfAbsent(
+            Paths.get(entry.getName()),
+            HashCodeAndFileType.ofFile(member.hash()));
+      }
+    }
+    return ImmutableMap.copyOf(memberHashes);
+  }
+
+  private ImmutableMap<Path, HashCodeAndFileType> readManifest() throws IOException {
     Manifest manifest = filesystem.getJarManifest(jarRelativePath);
     if (manifest == null) {
       throw new UnsupportedOperationException(
@@ -71,4 +240,63 @@ public class JarContentHasher {
 
     return builder.build();
   }
+
+  private Optional<Path> getIndexPath() {
+    // Jars built into buck-out change with every build, so their indexes wouldn't be reused.
+    if (jarRelativePath.startsWith(filesystem.getBuckPaths().getBuckOut())) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        filesystem.getBuckPaths().getJarMemberHashesDir().resolve(jarHash.toString()));
+  }
+
+  private Optional<ImmutableMap<Path, HashCodeAndFileType>> readIndex(Path indexPath) {
+    if (!filesystem.exists(indexPath)) {
+      return Optional.empty();
+    }
+    try (DataInputStream input = new DataInputStream(filesystem.newFileInputStream(indexPath))) {
+      if (input.readInt() != INDEX_VERSION) {
+        return Optional.empty();
+      }
+      ImmutableMap.Builder<Path, HashCodeAndFileType> builder = ImmutableMap.builder();
+      int numberOfMembers = input.readInt();
+      if (numberOfMembers == 0) {
+        return Optional.empty();
+      }
+      for (int i = 0; i < numberOfMembers; i++) {
+        Path memberPath = Paths.get(input.readUTF());
+        byte[] memberHash = new byte[input.readUnsignedByte()];
+        input.readFully(memberHash);
+        builder.put(memberPath, HashCodeAndFileType.ofFile(HashCode.fromBytes(memberHash)));
+      }
+      return Optional.of(builder.build());
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn(e, "Failed to read member hashes of %s from %s.", jarRelativePath, indexPath);
+      return Optional.empty();
+    }
+  }
+
+  private void writeIndex(Path indexPath, ImmutableMap<Path, HashCodeAndFileType> contentHashes) {
+    try {
+      filesystem.mkdirs(indexPath.getParent());
+      // Other processes may write the index of the same jar at the same time, but as they all
+      // write the same contents it doesn't matter which one gets moved into place last.
+      Path tmp = filesystem.createTempFile(indexPath.getParent(), "index", ".tmp");
+      try (DataOutputStream output =
+               new DataOutputStream(
+                   new BufferedOutputStream(filesystem.newFileOutputStream(tmp)))) {
+        output.writeInt(INDEX_VERSION);
+        output.writeInt(contentHashes.size());
+        for (Map.Entry<Path, HashCodeAndFileType> entry : contentHashes.entrySet()) {
+          output.writeUTF(entry.getKey().toString());
+          byte[] memberHash = entry.getValue().getHashCode().asBytes();
+          output.writeByte(memberHash.length);
+          output.write(memberHash);
+        }
+      }
+      filesystem.move(tmp, indexPath, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save member hashes of %s to %s.", jarRelativePath, indexPath);
+    }
+  }
 }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the hashes of files on disk between processes, so that a fresh daemon or a CI machine
+ * doesn't have to hash every source and prebuilt jar again.
+ * <p>
+ * A stored hash is only used while the file's size, modification time and change id (its inode
+ * and ctime, where the filesystem has them) are the same as when it was hashed. Those come from a
+ * single stat, which is much cheaper than reading the file.
+ */
+public class PersistentFileHashStore {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int VERSION = 1;
+
+  /**
+   * Computes the hash of a file whose stored hash is missing or out of date.
+   */
+  public interface HashLoader {
+    HashCode load() throws IOException;
+  }
+
+  private final Optional<Path> savePath;
+  // Keyed by absolute path.
+  private final ConcurrentMap<String, Entry> entries;
+
+  /**
+   * @param savePath absolute path of the file to {@link #save()} hashes to, if any.
+   */
+  public PersistentFileHashStore(Optional<Path> savePath) {
+    this.savePath = savePath;
+    this.entries = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Creates an instance holding the hashes that were saved to {@code savePath}.
+   */
+  public static PersistentFileHashStore load(Path savePath) {
+    PersistentFileHashStore store = new PersistentFileHashStore(Optional.of(savePath));
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(savePath));
+      if (buffer.getInt() != VERSION) {
+        return store;
+      }
+      int numberOfEntries = buffer.getInt();
+      for (int i = 0; i < numberOfEntries; i++) {
+        String path = readString(buffer);
+        FileStat stat = new FileStat(buffer.getLong(), buffer.getLong(), buffer.getLong());
+        byte[] hash = new byte[buffer.get() & 0xff];
+        buffer.get(hash);
+        store.entries.put(path, new Entry(stat, HashCode.fromBytes(hash)));
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing was saved yet.
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LOG.warn(e, "Failed to load file hashes from %s.", savePath);
+      store.entries.clear();
+    }
+    return store;
+  }
+
+  /**
+   * @return the stored hash of the file at {@code path} if it is still up to date, or else the
+   *     one computed by {@code loader}, which gets stored in its place.
+   */
+  public HashCode get(Path path, HashLoader loader) throws IOException {
+    Preconditions.checkArgument(path.isAbsolute());
+    String key = path.toString();
+    // Stat before hashing, so that changes made while hashing make the stored hash out of date.
+    FileStat stat = FileStat.of(path);
+    Entry stored = entries.get(key);
+    if (stored != null && stored.stat.equals(stat)) {
+      return stored.hash;
+    }
+    HashCode hash = loader.load();
+    entries.put(key, new Entry(stat, hash));
+    return hash;
+  }
+
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the stored hashes to the save path, if there is one.
+   */
+  public void save() throws IOException {
+    if (!savePath.isPresent()) {
+      return;
+    }
+
+    // Hashes may still be added while saving, and the count has to match what gets written.
+    Map<String, Entry> snapshot = new HashMap<>(entries);
+    Path tmp = savePath.get().resolveSibling(savePath.get().getFileName() + ".tmp");
+    Files.createDirectories(savePath.get().getParent());
+    try (DataOutputStream output =
+             new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      output.writeInt(VERSION);
+      output.writeInt(snapshot.size());
+      for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+        byte[] path = entry.getKey().getBytes(Charsets.UTF_8);
+        output.writeInt(path.length);
+        output.write(path);
+        FileStat stat = entry.getValue().stat;
+        output.writeLong(stat.size);
+        output.writeLong(stat.modifiedNanos);
+        output.writeLong(stat.changeId);
+        byte[] hash = entry.getValue().hash.asBytes();
+        output.writeByte(hash.length);
+        output.write(hash);
+      }
+    }
+    Files.move(tmp, savePath.get(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static class Entry {
+    private final FileStat stat;
+    private final HashCode hash;
+
+    Entry(FileStat stat, HashCode hash) {
+      this.stat = stat;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * What a stat says about a file, which changes whenever its contents do.
+   */
+  private static class FileStat {
+    private final long size;
+    private final long modifiedNanos;
+    private final long changeId;
+
+    FileStat(long size, long modifiedNanos, long changeId) {
+      this.size = size;
+      this.modifiedNanos = modifiedNanos;
+      this.changeId = changeId;
+    }
+
+    static FileStat of(Path path) throws IOException {
+      try {
+        Map<String, Object> attributes =
+            Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,ino");
+        return new FileStat(
+            (Long) attributes.get("size"),
+            ((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+            31 * ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS) +
+                (Long) attributes.get("ino"));
+      } catch (UnsupportedOperationException e) {
+        // No unix attributes, e.g. on Windows.
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileStat(
+            attributes.size(),
+            attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+            31 * attributes.creationTime().to(TimeUnit.NANOSECONDS) +
+                Objects.hashCode(attributes.fileKey()));
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FileStat)) {
+        return false;
+      }
+      FileStat that = (FileStat) other;
+      return size == that.size &&
+          modifiedNanos == that.modifiedNanos &&
+          changeId == that.changeId;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(size, modifiedNanos, changeId);
+    }
+  }
+}
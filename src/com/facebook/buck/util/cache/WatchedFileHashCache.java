@@ -34,6 +34,12 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     super(projectFilesystem, Optional.empty());
   }
 
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<PersistentFileHashStore> persistentStore) {
+    super(projectFilesystem, Optional.empty(), persistentStore);
+  }
+
   /**
    * Called when file change events are posted to the file change EventBus to invalidate cached
    * build rules if required. {@link Path}s contained within events must all be relative to the
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills a {@link DefaultFileHashCache} with the content hashes Watchman keeps for the files it
+ * watches, so that Buck doesn't have to read those files to hash them. Files Watchman can't hash
+ * are left out, and get hashed locally when they're first needed.
+ */
+public class WatchmanFileHashPreloader {
+
+  private static final Logger LOG = Logger.get(WatchmanFileHashPreloader.class);
+
+  private static final String CONTENT_SHA1HEX = "content.sha1hex";
+
+  // Utility class, do not instantiate.
+  private WatchmanFileHashPreloader() { }
+
+  /**
+   * Adds the hashes Watchman has for all files under the root of {@code projectFilesystem} to
+   * {@code cache}, keeping any hashes the cache already has.
+   */
+  @SuppressWarnings("unchecked")
+  public static FileHashPreloadResult preload(
+      Watchman watchman,
+      ProjectFilesystem projectFilesystem,
+      DefaultFileHashCache cache) throws IOException, InterruptedException {
+    Optional<WatchmanClient> watchmanClient = watchman.getWatchmanClient();
+    if (!watchmanClient.isPresent() ||
+        !watchman.getWatchRoot().isPresent() ||
+        !watchman.getCapabilities().contains(Watchman.Capability.CONTENT_SHA1HEX)) {
+      LOG.debug("Watchman can't provide file hashes.");
+      return FileHashPreloadResult.of(0, 0, 0);
+    }
+
+    List<Object> query = createQuery(watchman, projectFilesystem);
+    long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(watchman.getCommandTimeoutMillis());
+    Optional<? extends Map<String, ? extends Object>> queryResponse =
+        watchmanClient.get().queryWithTimeout(timeoutNanos, query.toArray());
+    if (!queryResponse.isPresent()) {
+      LOG.warn("Timed out after %d ns for Watchman query %s", timeoutNanos, query);
+      return FileHashPreloadResult.of(0, 0, 0);
+    }
+
+    Map<String, ? extends Object> response = queryResponse.get();
+    String error = (String) response.get("error");
+    if (error != null) {
+      throw new IOException(String.format("Error from Watchman query %s: %s", query, error));
+    }
+
+    int preloadedFiles = 0;
+    long bytesNotRead = 0;
+    int unhashedFiles = 0;
+    List<Map<String, Object>> files = (List<Map<String, Object>>) response.get("files");
+    if (files != null) {
+      for (Map<String, Object> file : files) {
+        Object name = file.get("name");
+        Object hash = file.get(CONTENT_SHA1HEX);
+        // Watchman reports an error instead of a hash for files it couldn't read.
+        if (!(name instanceof String) || !(hash instanceof String)) {
+          unhashedFiles++;
+          continue;
+        }
+        Path path = Paths.get((String) name);
+        if (cache.putFileHashIfAbsent(path, HashCode.fromString((String) hash))) {
+          preloadedFiles++;
+          Object size = file.get("size");
+          if (size instanceof Number) {
+            bytesNotRead += ((Number) size).longValue();
+          }
+        }
+      }
+    }
+
+    LOG.info(
+        "Preloaded hashes of %d files (%d bytes) from Watchman, %d files left to hash locally.",
+        preloadedFiles,
+        bytesNotRead,
+        unhashedFiles);
+    return FileHashPreloadResult.of(preloadedFiles, bytesNotRead, unhashedFiles);
+  }
+
+  @VisibleForTesting
+  static List<Object> createQuery(
+      Watchman watchman,
+      ProjectFilesystem projectFilesystem) {
+    // Leave out ignored directories, such as buck-out, so Watchman doesn't hash what Buck won't
+    // ask for anyway. Ignored globs are only checked when hashes are added to the cache.
+    List<Object> excludeAnyOf = Lists.newArrayList("anyof");
+    for (PathOrGlobMatcher ignorePathOrGlob : projectFilesystem.getIgnorePaths()) {
+      if (ignorePathOrGlob.getType() != PathOrGlobMatcher.Type.PATH) {
+        continue;
+      }
+      Path ignorePath = ignorePathOrGlob.getPath();
+      if (ignorePath.isAbsolute()) {
+        ignorePath = MorePaths.relativize(projectFilesystem.getRootPath(), ignorePath);
+      }
+      if (watchman.getCapabilities().contains(Watchman.Capability.DIRNAME)) {
+        excludeAnyOf.add(Lists.newArrayList("dirname", ignorePath.toString()));
+      } else {
+        excludeAnyOf.add(
+            Lists.newArrayList("match", ignorePath.toString() + File.separator + "*", "wholename"));
+      }
+    }
+
+    List<Object> expression = Lists.newArrayList("allof", Lists.newArrayList("type", "f"));
+    if (excludeAnyOf.size() > 1) {
+      expression.add(Lists.newArrayList("not", excludeAnyOf));
+    }
+
+    // Note that we use LinkedHashMap so insertion order is preserved. That
+    // helps us write tests that don't depend on the undefined order of HashMap.
+    Map<String, Object> params = new LinkedHashMap<>();
+    if (watchman.getProjectPrefix().isPresent()) {
+      params.put("relative_root", watchman.getProjectPrefix().get());
+    }
+    params.put("expression", expression);
+    params.put("fields", Lists.newArrayList("name", "size", CONTENT_SHA1HEX));
+    return Lists.newArrayList("query", watchman.getWatchRoot().get(), params);
+  }
+
+}
@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types
@@ -31,6 +32,8 @@ import java.util.List;
  */
 public class ListeningMultiSemaphore {
 
+  public static final long DEFAULT_PRIORITY = 0;
+
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
   private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
@@ -56,7 +59,18 @@ public class ListeningMultiSemaphore {
    *
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Void> acquire(ResourceAmounts resources) {
+    return acquire(resources, DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the request has to wait, it is queued ahead
+   * of all pending requests with a lower priority. Requests with equal priorities are served in
+   * the order they were made.
+   *
+   * @param priority Higher values are served first.
+   */
+  public synchronized ListenableFuture<Void> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.ZERO)) {
       return Futures.immediateFuture(null);
     }
@@ -64,13 +78,24 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Void> pendingFuture = SettableFuture.create();
-      pending.add(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      addPendingItem(ListeningSemaphoreArrayPendingItem.of(pendingFuture, resources, priority));
       return pendingFuture;
     }
     increaseUsedResources(resources);
     return Futures.immediateFuture(null);
   }
 
+  private synchronized void addPendingItem(ListeningSemaphoreArrayPendingItem item) {
+    ListIterator<ListeningSemaphoreArrayPendingItem> iterator = pending.listIterator(pending.size());
+    while (iterator.hasPrevious()) {
+      if (iterator.previous().getPriority() >= item.getPriority()) {
+        iterator.next();
+        break;
+      }
+    }
+    iterator.add(item);
+  }
+
   /**
    * Releases previously acquired resources.
    *
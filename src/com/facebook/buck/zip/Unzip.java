@@ -23,21 +23,41 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.LittleEndianDataInputStream;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipUtil;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
 
 public class Unzip {
 
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int DATA_DESCRIPTOR_FLAG = 1 << 3;
+  private static final int LOCAL_HEADER_SIGNATURE = (int) ZipEntry.LOCSIG;
+  private static final long DATA_DESCRIPTOR_SIGNATURE = ZipEntry.EXTSIG;
+  private static final int CENTRAL_HEADER_SIGNATURE = (int) ZipEntry.CENSIG;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = (int) ZipEntry.ENDSIG;
+  private static final int UNIX_PLATFORM = 3;
+
   /** Utility class: do not instantiate. */
   private Unzip() {}
 
@@ -213,4 +233,174 @@ public class Unzip {
         .toList();
   }
 
+  /**
+   * Extracts a zip archive as it is read from {@code zipStream}, without first writing the archive
+   * to disk. Only the local entry headers are needed to write the entries out; the central
+   * directory at the end of the stream is then used to restore file permissions and symlinks, just
+   * like {@link #extractZipFile(Path, ProjectFilesystem, Path, ExistingFileMode)} does.
+   * <p>
+   * Entries are written on top of whatever is already at {@code relativePath}, so callers that need
+   * an all-or-nothing update should extract into an empty staging directory and move the result.
+   * The stream is read at least up to the end of the central directory, and is not closed.
+   *
+   * @return the paths of every entry in the archive, directories included, in archive order.
+   */
+  public static ImmutableList<Path> extractZipStream(
+      InputStream zipStream,
+      ProjectFilesystem filesystem,
+      Path relativePath) throws IOException {
+    // The pushback buffer lets us return the bytes the inflater read past the end of an entry.
+    PushbackInputStream pushback =
+        new PushbackInputStream(new BufferedInputStream(zipStream), STREAM_BUFFER_SIZE);
+    LittleEndianDataInputStream in = new LittleEndianDataInputStream(pushback);
+    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+
+    ImmutableList.Builder<Path> entriesWritten = ImmutableList.builder();
+    Map<String, Long> entryTimes = new LinkedHashMap<>();
+    while (true) {
+      int signature = in.readInt();
+      if (signature == LOCAL_HEADER_SIGNATURE) {
+        in.readUnsignedShort();  // version needed to extract
+        int flags = in.readUnsignedShort();
+        int method = in.readUnsignedShort();
+        long time = in.readInt() & 0xFFFFFFFFL;
+        long crc = in.readInt() & 0xFFFFFFFFL;
+        long compressedSize = in.readInt() & 0xFFFFFFFFL;
+        in.readInt();  // uncompressed size
+        int nameLength = in.readUnsignedShort();
+        int extraLength = in.readUnsignedShort();
+        String fileName = readString(in, nameLength);
+        ByteStreams.skipFully(in, extraLength);
+
+        Path target = relativePath.resolve(fileName);
+        entriesWritten.add(target);
+        boolean hasDataDescriptor = (flags & DATA_DESCRIPTOR_FLAG) != 0;
+        CRC32 actualCrc = new CRC32();
+        if (fileName.endsWith("/")) {
+          filesystem.mkdirs(target);
+        } else {
+          filesystem.createParentDirs(target);
+          entryTimes.put(fileName, ZipUtil.dosToJavaTime(time));
+        }
+        try (OutputStream out = fileName.endsWith("/") ?
+            ByteStreams.nullOutputStream() :
+            filesystem.newFileOutputStream(target)) {
+          OutputStream checked = new CheckedOutputStream(out, actualCrc);
+          if (method == ZipEntry.DEFLATED) {
+            inflateEntry(pushback, checked, buffer);
+          } else if (method == ZipEntry.STORED && !hasDataDescriptor) {
+            ByteStreams.copy(ByteStreams.limit(pushback, compressedSize), checked);
+          } else {
+            throw new IOException(
+                String.format("Cannot stream entry %s with compression method %d", fileName, method));
+          }
+        }
+
+        if (hasDataDescriptor) {
+          crc = in.readInt() & 0xFFFFFFFFL;
+          if (crc == DATA_DESCRIPTOR_SIGNATURE) {
+            crc = in.readInt() & 0xFFFFFFFFL;
+          }
+          in.readInt();  // compressed size
+          in.readInt();  // uncompressed size
+        }
+        if (crc != actualCrc.getValue()) {
+          throw new IOException(String.format("CRC mismatch for zip entry %s", fileName));
+        }
+      } else if (signature == CENTRAL_HEADER_SIGNATURE) {
+        int versionMadeBy = in.readUnsignedShort();
+        ByteStreams.skipFully(in, 22);  // version, flags, method, time, crc and sizes.
+        int nameLength = in.readUnsignedShort();
+        int extraLength = in.readUnsignedShort();
+        int commentLength = in.readUnsignedShort();
+        ByteStreams.skipFully(in, 4);  // disk number and internal attributes.
+        long externalAttributes = in.readInt() & 0xFFFFFFFFL;
+        in.readInt();  // offset of the local header
+        String fileName = readString(in, nameLength);
+        ByteStreams.skipFully(in, extraLength + commentLength);
+
+        Long time = entryTimes.get(fileName);
+        if (time != null) {
+          restoreFileAttributes(
+              filesystem,
+              relativePath.resolve(fileName),
+              time,
+              versionMadeBy,
+              externalAttributes);
+        }
+      } else if (signature == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        ByteStreams.skipFully(in, 16);
+        ByteStreams.skipFully(in, in.readUnsignedShort());
+        return entriesWritten.build();
+      } else {
+        throw new IOException(String.format("Unexpected zip signature 0x%08x", signature));
+      }
+    }
+  }
+
+  private static String readString(LittleEndianDataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  /**
+   * Inflates a single deflated entry, handing any bytes read past the end of it back to
+   * {@code in}.
+   */
+  private static void inflateEntry(
+      PushbackInputStream in,
+      OutputStream out,
+      byte[] buffer) throws IOException {
+    Inflater inflater = new Inflater(/* nowrap */ true);
+    byte[] input = new byte[STREAM_BUFFER_SIZE];
+    int lastRead = 0;
+    try {
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          lastRead = in.read(input);
+          if (lastRead == -1) {
+            throw new EOFException("Unexpected end of zip stream");
+          }
+          inflater.setInput(input, 0, lastRead);
+        }
+        int written = inflater.inflate(buffer);
+        if (written == 0 && inflater.needsDictionary()) {
+          throw new IOException("Zip entry needs a preset dictionary");
+        }
+        out.write(buffer, 0, written);
+      }
+      int remaining = inflater.getRemaining();
+      if (remaining > 0) {
+        in.unread(input, lastRead - remaining, remaining);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void restoreFileAttributes(
+      ProjectFilesystem filesystem,
+      Path target,
+      long time,
+      int versionMadeBy,
+      long externalAttributes) throws IOException {
+    long mode = externalAttributes >> 16;
+    boolean isUnixSymlink =
+        (versionMadeBy >> 8) == UNIX_PLATFORM && (mode & MoreFiles.S_IFMT) == MoreFiles.S_IFLNK;
+    if (isUnixSymlink) {
+      String linkTarget = filesystem.readFileIfItExists(target).orElse("");
+      filesystem.createSymLink(
+          target,
+          filesystem.getRootPath().getFileSystem().getPath(linkTarget),
+          /* force */ true);
+    }
+    filesystem.resolve(target).toFile().setLastModified(time);
+    if (MorePosixFilePermissions.fromMode(mode).contains(PosixFilePermission.OWNER_EXECUTE)) {
+      MoreFiles.makeExecutable(filesystem.resolve(target));
+    }
+  }
+
 }
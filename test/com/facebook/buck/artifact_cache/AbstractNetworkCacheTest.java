@@ -17,11 +17,13 @@
 package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpService;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.timing.SettableFakeClock;
 import com.facebook.buck.util.concurrent.FakeListeningExecutorService;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -32,6 +34,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -56,6 +60,134 @@ public class AbstractNetworkCacheTest {
     testStoreCall(4, Optional.empty(), 5, 10, 100, 1000);
   }
 
+  @Test
+  public void testKnownMissSkipsFetchUntilStored()
+      throws InterruptedException, IOException, ExecutionException {
+    final AtomicInteger fetchCallCount = new AtomicInteger(0);
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    ListeningExecutorService service = new FakeListeningExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    ArtifactMissCache missCache =
+        new ArtifactMissCache(new SettableFakeClock(0, 0), 1000, Optional.empty());
+
+    AbstractNetworkCache cache = new AbstractNetworkCache(
+        NetworkCacheArgs.builder()
+            .setCacheName("AbstractNetworkCacheTest")
+            .setRepository("some_repository")
+            .setScheduleType("some_schedule_type")
+            .setFetchClient(EasyMock.createMock(HttpService.class))
+            .setStoreClient(EasyMock.createMock(HttpService.class))
+            .setDoStore(true)
+            .setProjectFilesystem(filesystem)
+            .setBuckEventBus(BuckEventBusFactory.newInstance())
+            .setHttpWriteExecutorService(service)
+            .setHttpFetchExecutorService(service)
+            .setMultiFetchEnabled(false)
+            .setErrorTextTemplate("super error message")
+            .setMissCache(missCache)
+            .build()) {
+      @Override
+      protected CacheResult fetchImpl(
+          RuleKey ruleKey,
+          LazyPath output,
+          HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+        fetchCallCount.incrementAndGet();
+        return CacheResult.miss();
+      }
+
+      @Override
+      protected void storeImpl(
+          ArtifactInfo info,
+          Path file,
+          HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+      }
+    };
+
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    LazyPath output = LazyPath.ofInstance(filesystem.getPathForRelativePath("output"));
+    Assert.assertEquals(CacheResultType.MISS, cache.fetch(ruleKey, output).getType());
+    Assert.assertEquals(CacheResultType.MISS, cache.fetch(ruleKey, output).getType());
+    Assert.assertEquals(1, fetchCallCount.get());
+
+    Path path = filesystem.getPathForRelativePath("artifact");
+    filesystem.writeBytesToPath(new byte[1], path);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        BorrowablePath.notBorrowablePath(path)).get();
+    cache.fetch(ruleKey, output);
+    Assert.assertEquals(2, fetchCallCount.get());
+  }
+
+  @Test
+  public void uploadsDrainingAfterTheEventBusIsClosedStillRun()
+      throws InterruptedException, IOException, ExecutionException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    final List<Runnable> scheduledUploads = new ArrayList<>();
+    ListeningExecutorService service = new FakeListeningExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        scheduledUploads.add(command);
+      }
+    };
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    final List<Path> storedFiles = new ArrayList<>();
+
+    AbstractNetworkCache cache = new AbstractNetworkCache(
+        NetworkCacheArgs.builder()
+            .setCacheName("AbstractNetworkCacheTest")
+            .setRepository("some_repository")
+            .setScheduleType("some_schedule_type")
+            .setFetchClient(EasyMock.createMock(HttpService.class))
+            .setStoreClient(EasyMock.createMock(HttpService.class))
+            .setDoStore(true)
+            .setProjectFilesystem(filesystem)
+            .setBuckEventBus(eventBus)
+            .setHttpWriteExecutorService(service)
+            .setHttpFetchExecutorService(service)
+            .setMultiFetchEnabled(false)
+            .setErrorTextTemplate("super error message")
+            .build()) {
+      @Override
+      protected CacheResult fetchImpl(
+          RuleKey ruleKey,
+          LazyPath output,
+          HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+        return null;
+      }
+
+      @Override
+      protected void storeImpl(
+          ArtifactInfo info,
+          Path file,
+          HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+        storedFiles.add(file);
+      }
+    };
+
+    Path path = filesystem.getPathForRelativePath("artifact");
+    filesystem.writeBytesToPath(new byte[1], path);
+    ListenableFuture<Void> future = cache.store(
+        ArtifactInfo.builder()
+            .addRuleKeys(new RuleKey("00000000000000000000000000000000"))
+            .build(),
+        BorrowablePath.notBorrowablePath(path));
+
+    // The command finishes before the upload gets to run.
+    eventBus.close();
+    for (Runnable upload : scheduledUploads) {
+      upload.run();
+    }
+    future.get();
+
+    Assert.assertEquals(1, storedFiles.size());
+    Assert.assertFalse(filesystem.exists(storedFiles.get(0)));
+    Assert.assertTrue(filesystem.exists(path));
+  }
+
   private void testStoreCall(
       int expectStoreCallCount,
       Optional<Long> maxArtifactSizeBytes,
@@ -80,6 +212,8 @@ public class AbstractNetworkCacheTest {
             .setProjectFilesystem(filesystem)
             .setBuckEventBus(EasyMock.createMock(BuckEventBus.class))
             .setHttpWriteExecutorService(service)
+            .setHttpFetchExecutorService(service)
+            .setMultiFetchEnabled(false)
             .setErrorTextTemplate("super error message")
             .setMaxStoreSizeBytes(maxArtifactSizeBytes)
             .build()) {
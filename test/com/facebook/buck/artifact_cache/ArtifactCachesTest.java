@@ -42,6 +42,7 @@ public class ArtifactCachesTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        MoreExecutors.newDirectExecutorService(),
         MoreExecutors.newDirectExecutorService());
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(HttpArtifactCache.class));
   }
@@ -58,6 +59,7 @@ public class ArtifactCachesTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        MoreExecutors.newDirectExecutorService(),
         MoreExecutors.newDirectExecutorService());
 
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(DirArtifactCache.class));
@@ -75,6 +77,7 @@ public class ArtifactCachesTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        MoreExecutors.newDirectExecutorService(),
         MoreExecutors.newDirectExecutorService());
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(MultiArtifactCache.class));
   }
@@ -92,6 +95,7 @@ public class ArtifactCachesTest {
         buckEventBus,
         projectFilesystem,
         Optional.of("evilwifi"),
+        MoreExecutors.newDirectExecutorService(),
         MoreExecutors.newDirectExecutorService());
     assertThat(stripDecorators(artifactCache), Matchers.instanceOf(DirArtifactCache.class));
   }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+public class ArtifactMissCacheTest {
+
+  private static final RuleKey RULE_KEY = new RuleKey("aaaa");
+  private static final RuleKey OTHER_RULE_KEY = new RuleKey("bbbb");
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testMissIsRememberedUntilItExpires() {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.empty());
+
+    missCache.recordMiss("http", RULE_KEY);
+    assertTrue(missCache.isKnownMiss("http", RULE_KEY));
+    assertFalse(missCache.isKnownMiss("http", OTHER_RULE_KEY));
+    assertFalse(missCache.isKnownMiss("thrift", RULE_KEY));
+
+    clock.setCurrentTimeMillis(1099);
+    assertTrue(missCache.isKnownMiss("http", RULE_KEY));
+    clock.setCurrentTimeMillis(1100);
+    assertFalse(missCache.isKnownMiss("http", RULE_KEY));
+  }
+
+  @Test
+  public void testForgetOnlyAffectsTheGivenCache() {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.empty());
+
+    missCache.recordMiss("http", RULE_KEY);
+    missCache.recordMiss("thrift", RULE_KEY);
+    missCache.recordMiss("http", OTHER_RULE_KEY);
+    missCache.forget("http", ImmutableList.of(RULE_KEY));
+
+    assertFalse(missCache.isKnownMiss("http", RULE_KEY));
+    assertTrue(missCache.isKnownMiss("thrift", RULE_KEY));
+    assertTrue(missCache.isKnownMiss("http", OTHER_RULE_KEY));
+  }
+
+  @Test
+  public void testNumberOfMissesIsBounded() {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.empty(), 2);
+
+    missCache.recordMiss("http", RULE_KEY);
+    missCache.recordMiss("http", OTHER_RULE_KEY);
+    missCache.recordMiss("thrift", RULE_KEY);
+
+    assertEquals(2, missCache.size());
+  }
+
+  @Test
+  public void testSaveDropsExpiredMisses() throws IOException {
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.empty());
+    missCache.recordMiss("http", RULE_KEY);
+    clock.setCurrentTimeMillis(1050);
+    missCache.recordMiss("http", OTHER_RULE_KEY);
+
+    clock.setCurrentTimeMillis(1100);
+    missCache.save();
+
+    assertEquals(1, missCache.size());
+    assertTrue(missCache.isKnownMiss("http", OTHER_RULE_KEY));
+  }
+
+  @Test
+  public void testSavedMissesAreLoadedUntilTheyExpire() throws IOException {
+    Path savePath = tmpDir.getRoot().toPath().resolve("buck-out/.remotecachemisses");
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.of(savePath));
+    missCache.recordMiss("http cache", RULE_KEY);
+    clock.setCurrentTimeMillis(1050);
+    missCache.recordMiss("http cache", OTHER_RULE_KEY);
+    missCache.save();
+
+    ArtifactMissCache loaded = ArtifactMissCache.load(clock, 100, savePath);
+    assertTrue(loaded.isKnownMiss("http cache", RULE_KEY));
+    assertTrue(loaded.isKnownMiss("http cache", OTHER_RULE_KEY));
+
+    clock.setCurrentTimeMillis(1120);
+    loaded = ArtifactMissCache.load(clock, 100, savePath);
+    assertFalse(loaded.isKnownMiss("http cache", RULE_KEY));
+    assertTrue(loaded.isKnownMiss("http cache", OTHER_RULE_KEY));
+  }
+
+  @Test
+  public void testLoadDropsMissesOutlivingAShorterTtl() throws IOException {
+    Path savePath = tmpDir.getRoot().toPath().resolve(".remotecachemisses");
+    SettableFakeClock clock = new SettableFakeClock(1000, 0);
+    ArtifactMissCache missCache = new ArtifactMissCache(clock, 100, Optional.of(savePath));
+    missCache.recordMiss("http", RULE_KEY);
+    missCache.save();
+
+    assertFalse(ArtifactMissCache.load(clock, 10, savePath).isKnownMiss("http", RULE_KEY));
+  }
+
+  @Test
+  public void testLoadWithoutSavedFile() {
+    Path savePath = tmpDir.getRoot().toPath().resolve(".remotecachemisses");
+    ArtifactMissCache missCache =
+        ArtifactMissCache.load(new SettableFakeClock(1000, 0), 100, savePath);
+    assertFalse(missCache.isKnownMiss("http", RULE_KEY));
+  }
+}
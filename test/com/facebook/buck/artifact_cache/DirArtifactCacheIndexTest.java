@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class DirArtifactCacheIndexTest {
+  @Rule
+  public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private Path logPath;
+  private Path indexTmpDir;
+
+  @Before
+  public void setUp() throws IOException {
+    logPath = tmpDir.getRoot().resolve("index");
+    indexTmpDir = tmpDir.newFolder("tmp");
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedFilesFirst() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    index.recordStore(Paths.get("a"), 10);
+    index.recordStore(Paths.get("b"), 10);
+    index.recordStore(Paths.get("c"), 10);
+    index.recordAccess(Paths.get("a"));
+    assertEquals(30, index.getTotalSizeBytes());
+
+    assertEquals(ImmutableList.of(Paths.get("b"), Paths.get("c")), index.evict(15));
+    assertEquals(10, index.getTotalSizeBytes());
+  }
+
+  @Test
+  public void restoringFileReplacesItsSize() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    index.recordStore(Paths.get("a"), 10);
+    index.recordStore(Paths.get("a"), 4);
+    assertEquals(4, index.getTotalSizeBytes());
+  }
+
+  @Test
+  public void untrackedFilesAreOlderThanTrackedOnes() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    assertFalse(index.isComplete());
+    index.recordStore(Paths.get("new"), 1);
+    index.addUntrackedFiles(
+        ImmutableMap.of(
+            Paths.get("old"), 1L,
+            Paths.get("new"), 1L,
+            Paths.get("older"), 1L));
+
+    assertTrue(index.isComplete());
+    assertEquals(3, index.getTotalSizeBytes());
+    assertEquals(ImmutableList.of(Paths.get("old"), Paths.get("older")), index.evict(1));
+  }
+
+  @Test
+  public void incompleteIndexIsNotWritten() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    index.recordStore(Paths.get("a"), 10);
+    index.flush();
+    assertFalse(Files.exists(logPath));
+  }
+
+  @Test
+  public void orderAndSizesSurviveReloading() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    index.addUntrackedFiles(ImmutableMap.of());
+    index.recordStore(Paths.get("a"), 1);
+    index.recordStore(Paths.get("b"), 2);
+    index.flush();
+    index.recordStore(Paths.get("c"), 4);
+    index.recordAccess(Paths.get("a"));
+    index.evict(6);
+    index.flush();
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    assertTrue(reloaded.isComplete());
+    assertEquals(5, reloaded.getTotalSizeBytes());
+    assertEquals(ImmutableList.of(Paths.get("c")), reloaded.evict(1));
+  }
+
+  @Test
+  public void pathsWithSpacesSurviveReloading() throws IOException {
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    index.addUntrackedFiles(ImmutableMap.of());
+    index.recordStore(Paths.get("a b c"), 1);
+    index.recordStore(Paths.get("d e"), 2);
+    index.recordStore(Paths.get("f"), 4);
+    index.flush();
+    index.recordAccess(Paths.get("a b c"));
+    assertEquals(ImmutableList.of(Paths.get("d e")), index.evict(5));
+    index.flush();
+
+    DirArtifactCacheIndex reloaded = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    assertEquals(5, reloaded.getTotalSizeBytes());
+    assertEquals(ImmutableList.of(Paths.get("f")), reloaded.evict(1));
+  }
+
+  @Test
+  public void malformedRecordsAreSkipped() throws IOException {
+    Files.write(
+        logPath,
+        "A 1 a\nA 2 b\nA x c\nT\nD b\nA 4".getBytes(UTF_8),
+        StandardOpenOption.CREATE_NEW);
+
+    DirArtifactCacheIndex index = DirArtifactCacheIndex.load(logPath, indexTmpDir);
+    assertEquals(1, index.getTotalSizeBytes());
+    assertEquals(ImmutableList.of(Paths.get("a")), index.evict(0));
+  }
+}
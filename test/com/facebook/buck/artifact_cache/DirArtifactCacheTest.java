@@ -49,6 +49,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.hamcrest.Matchers;
 import org.junit.After;
@@ -56,12 +58,16 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class DirArtifactCacheTest {
   @Rule
@@ -649,6 +655,63 @@ public class DirArtifactCacheTest {
             LazyPath.ofInstance(fileZ)).getType());
   }
 
+  @Test
+  public void testTrimmingFollowsFetchesRecordedInIndex() throws IOException {
+    Path root = tmpDir.newFolder();
+    ProjectFilesystem filesystem = new ProjectFilesystem(root);
+    Path cacheDir = Paths.get("cache");
+    filesystem.writeContentsToPath("x", Paths.get("x"));
+
+    RuleKey ruleKeyX = new RuleKey("aaaa");
+    RuleKey ruleKeyY = new RuleKey("bbbb");
+    RuleKey ruleKeyZ = new RuleKey("cccc");
+    DirArtifactCache cache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(1024L));
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyX, ruleKeyY, ruleKeyZ)) {
+      cache.store(
+          ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+          BorrowablePath.notBorrowablePath(Paths.get("x")));
+    }
+    assertEquals(
+        CacheResultType.HIT,
+        cache.fetch(ruleKeyX, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+    cache.close();
+
+    // Make the least recently used artifact according to the filesystem the most recently used
+    // according to the index.
+    Path artifactX = cache.getPathForRuleKey(ruleKeyX, Optional.empty());
+    Path metadataX = cache.getPathForRuleKey(ruleKeyX, Optional.of(".metadata"));
+    Files.setAttribute(filesystem.resolve(artifactX), "lastAccessTime", FileTime.fromMillis(0));
+    Files.setAttribute(filesystem.resolve(metadataX), "lastAccessTime", FileTime.fromMillis(0));
+    long entrySize = filesystem.getFileSize(artifactX) + filesystem.getFileSize(metadataX);
+
+    // Room for two artifacts, trimmed down to one.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(2 * entrySize));
+    assertThat(
+        dirArtifactCache.getAllFilesInCache(),
+        Matchers.not(Matchers.hasItem(filesystem.resolve("cache/index"))));
+    dirArtifactCache.deleteOldFiles();
+
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyX, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetch(ruleKeyY, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetch(ruleKeyZ, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -719,6 +782,144 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testContentAddressedStoreSharesIdenticalFiles() throws IOException {
+    Path root = tmpDir.newFolder();
+    ProjectFilesystem filesystem = new ProjectFilesystem(root);
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            /* doStore */ true,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            /* contentAddressed */ true,
+            /* hardlinkHits */ false);
+
+    filesystem.mkdirs(Paths.get("out"));
+    filesystem.writeContentsToPath("same", Paths.get("out/a.txt"));
+    filesystem.writeContentsToPath("same", Paths.get("out/b.txt"));
+    Path zipA = filesystem.resolve("a.zip");
+    Path zipB = filesystem.resolve("b.zip");
+    filesystem.createZip(ImmutableList.of(Paths.get("out/a.txt")), zipA);
+    filesystem.createZip(ImmutableList.of(Paths.get("out/b.txt")), zipB);
+
+    RuleKey ruleKeyA = new RuleKey("aaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbb");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyA).build(),
+        BorrowablePath.notBorrowablePath(zipA));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyB).build(),
+        BorrowablePath.notBorrowablePath(zipB));
+
+    Path blobs = filesystem.resolve("cache/cas");
+    try (Stream<Path> files = Files.walk(blobs)) {
+      assertEquals(1, files.filter(Files::isRegularFile).count());
+    }
+
+    Path fetched = Paths.get("fetched.zip");
+    CacheResult result = cache.fetch(ruleKeyB, LazyPath.ofInstance(fetched));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(Optional.of(4L), result.artifactSizeBytes());
+    try (ZipFile zip = new ZipFile(filesystem.resolve(fetched).toFile())) {
+      ZipEntry entry = zip.getEntry("out/b.txt");
+      try (InputStream in = zip.getInputStream(entry)) {
+        assertEquals("same", new String(ByteStreams.toByteArray(in), UTF_8));
+      }
+    }
+
+    cache.close();
+  }
+
+  @Test
+  public void testStoringASharedBlobAgainKeepsItFromBeingEvicted() throws IOException {
+    Path root = tmpDir.newFolder();
+    ProjectFilesystem filesystem = new ProjectFilesystem(root);
+    Path cacheDir = Paths.get("cache");
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            cacheDir,
+            /* doStore */ true,
+            /* maxCacheSizeBytes */ Optional.of(1024L * 1024L),
+            /* contentAddressed */ true,
+            /* hardlinkHits */ false);
+
+    filesystem.writeContentsToPath("same", Paths.get("a.txt"));
+    filesystem.writeContentsToPath("other", Paths.get("c.txt"));
+    filesystem.createZip(ImmutableList.of(Paths.get("a.txt")), filesystem.resolve("a.zip"));
+    filesystem.createZip(ImmutableList.of(Paths.get("c.txt")), filesystem.resolve("c.zip"));
+    RuleKey ruleKeyA = new RuleKey("aaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbb");
+    RuleKey ruleKeyC = new RuleKey("cccc");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyA).build(),
+        BorrowablePath.notBorrowablePath(Paths.get("a.zip")));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyC).build(),
+        BorrowablePath.notBorrowablePath(Paths.get("c.zip")));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyB).build(),
+        BorrowablePath.notBorrowablePath(Paths.get("a.zip")));
+    cache.close();
+
+    // Only room for the files of the artifact stored last, which include the shared blob.
+    long sizeOfB = "same".length() +
+        filesystem.getFileSize(cache.getPathForRuleKey(ruleKeyB, Optional.of(".entries"))) +
+        filesystem.getFileSize(cache.getPathForRuleKey(ruleKeyB, Optional.of(".metadata")));
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            cacheDir,
+            /* doStore */ true,
+            /* maxCacheSizeBytes */ Optional.of(sizeOfB),
+            /* contentAddressed */ true,
+            /* hardlinkHits */ false,
+            /* trimHighWatermark */ 1.0f,
+            /* trimLowWatermark */ 1.0f,
+            MoreExecutors.newDirectExecutorService());
+    dirArtifactCache.deleteOldFiles();
+
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyB, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetch(ruleKeyC, LazyPath.ofInstance(Paths.get("fetched"))).getType());
+  }
+
+  @Test
+  public void testContentAddressedFetchMissesWhenFilesAreGone() throws IOException {
+    Path root = tmpDir.newFolder();
+    ProjectFilesystem filesystem = new ProjectFilesystem(root);
+    DirArtifactCache cache =
+        new DirArtifactCache(
+            "dir",
+            filesystem,
+            Paths.get("cache"),
+            /* doStore */ true,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            /* contentAddressed */ true,
+            /* hardlinkHits */ false);
+
+    filesystem.writeContentsToPath("data", Paths.get("a.txt"));
+    filesystem.createZip(ImmutableList.of(Paths.get("a.txt")), filesystem.resolve("a.zip"));
+    RuleKey ruleKey = new RuleKey("aaaa");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+        BorrowablePath.notBorrowablePath(Paths.get("a.zip")));
+    filesystem.deleteRecursivelyIfExists(Paths.get("cache/cas"));
+
+    assertEquals(
+        CacheResultType.MISS,
+        cache.fetch(ruleKey, LazyPath.ofInstance(Paths.get("fetched.zip"))).getType());
+
+    cache.close();
+  }
+
   @Test
   public void testFolderLevelsForRuleKeys() throws IOException {
     DirArtifactCache cache = new DirArtifactCache(
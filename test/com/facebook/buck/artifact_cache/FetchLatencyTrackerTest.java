@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.util.OptionalLong;
+
+public class FetchLatencyTrackerTest {
+
+  @Test
+  public void testNoPercentileUntilEnoughSamples() {
+    FetchLatencyTracker tracker = new FetchLatencyTracker(50);
+    for (int i = 1; i < FetchLatencyTracker.MIN_SAMPLES; i++) {
+      tracker.record(i);
+    }
+    assertFalse(tracker.getPercentileMillis().isPresent());
+    tracker.record(FetchLatencyTracker.MIN_SAMPLES);
+    assertEquals(OptionalLong.of(10), tracker.getPercentileMillis());
+  }
+
+  @Test
+  public void testPercentileOfRecentSamples() {
+    FetchLatencyTracker tracker = new FetchLatencyTracker(90);
+    for (int i = 100; i > 0; i--) {
+      tracker.record(i);
+    }
+    assertEquals(OptionalLong.of(90), tracker.getPercentileMillis());
+
+    // Old samples drop out once enough new ones have been recorded.
+    for (int i = 0; i < 1000; i++) {
+      tracker.record(5);
+    }
+    assertEquals(OptionalLong.of(5), tracker.getPercentileMillis());
+  }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -71,6 +72,20 @@ public class HttpArtifactCacheBinaryProtocolTest {
     assertThat(keysHeader, Matchers.equalTo(BaseEncoding.base64().decode(base64EncodedData)));
   }
 
+  @Test
+  public void testMultiFetchRequest() throws IOException {
+    ImmutableList<RuleKey> ruleKeys = ImmutableList.of(
+        new RuleKey("90000000000000000000008000000005"),
+        new RuleKey("00000000000000000000000000000000"));
+    byte[] request = HttpArtifactCacheBinaryProtocol.createMultiFetchRequest(ruleKeys);
+    try (DataInputStream inputStream =
+             new DataInputStream(new ByteArrayInputStream(request))) {
+      assertThat(
+          HttpArtifactCacheBinaryProtocol.readMultiFetchRequest(inputStream),
+          Matchers.equalTo(ruleKeys));
+    }
+  }
+
   @Test
   public void testFetchResponse() throws IOException {
     RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
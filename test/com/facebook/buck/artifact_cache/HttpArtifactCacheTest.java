@@ -18,6 +18,7 @@ package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -33,11 +34,13 @@ import com.facebook.buck.slb.OkHttpResponseWrapper;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.timing.IncrementingFakeClock;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
@@ -50,6 +53,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -143,6 +147,8 @@ public class HttpArtifactCacheTest {
         .setProjectFilesystem(new FakeProjectFilesystem())
         .setBuckEventBus(BUCK_EVENT_BUS)
         .setHttpWriteExecutorService(DIRECT_EXECUTOR_SERVICE)
+        .setHttpFetchExecutorService(DIRECT_EXECUTOR_SERVICE)
+        .setMultiFetchEnabled(false)
         .setErrorTextTemplate(ERROR_TEXT_TEMPLATE);
   }
 
@@ -270,6 +276,69 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testFetchStreaming() throws Exception {
+    final String data = "test";
+    final RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    final List<Response> responseList = Lists.newArrayList();
+    argsBuilder.setFetchClient(withMakeRequest((path, requestBuilder) -> {
+      Request request = requestBuilder.url(SERVER + path).build();
+      Response response =
+          new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_1_1)
+              .code(HttpURLConnection.HTTP_OK)
+              .body(
+                  createResponseBody(
+                      ImmutableSet.of(ruleKey),
+                      ImmutableMap.of(),
+                      ByteSource.wrap(data.getBytes(Charsets.UTF_8)),
+                      data))
+              .build();
+      responseList.add(response);
+      return new OkHttpResponseWrapper(response);
+    }));
+
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    RecordingStreamableLazyPath output = new RecordingStreamableLazyPath();
+    CacheResult result = cache.fetch(ruleKey, output);
+    assertEquals(result.cacheError().orElse(""), CacheResultType.HIT, result.getType());
+    assertEquals(data, output.staged);
+    assertTrue(output.isCommitted());
+    assertFalse("the artifact shouldn't have been written to a file", output.created);
+    assertTrue(
+        "response wasn't fully read!",
+        responseList.get(0).body().source().exhausted());
+    cache.close();
+  }
+
+  @Test
+  public void testFetchStreamingBadChecksumIsNotCommitted() throws Exception {
+    final RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    argsBuilder.setFetchClient(withMakeRequest((path, requestBuilder) -> {
+      Request request = requestBuilder.url(SERVER + path).build();
+      return new OkHttpResponseWrapper(
+          new Response.Builder()
+              .request(request)
+              .protocol(Protocol.HTTP_1_1)
+              .code(HttpURLConnection.HTTP_OK)
+              .body(
+                  createResponseBody(
+                      ImmutableSet.of(ruleKey),
+                      ImmutableMap.of(),
+                      ByteSource.wrap(new byte[0]),
+                      "data"))
+              .build());
+    }));
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    RecordingStreamableLazyPath output = new RecordingStreamableLazyPath();
+    CacheResult result = cache.fetch(ruleKey, output);
+    assertEquals(CacheResultType.ERROR, result.getType());
+    assertFalse(output.isCommitted());
+    assertTrue(output.discarded);
+    cache.close();
+  }
+
   @Test
   public void testFetchExtraPayload() throws Exception {
     FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
@@ -539,4 +608,42 @@ public class HttpArtifactCacheTest {
   private static ResponseBody createDummyBody() {
     return ResponseBody.create(MediaType.parse("text/plain"), "SUCCESS");
   }
+
+  private static class RecordingStreamableLazyPath extends StreamableLazyPath {
+    private String staged;
+    private boolean committed;
+    private boolean discarded;
+    private boolean created;
+
+    @Override
+    protected Path create() throws IOException {
+      created = true;
+      return Paths.get("output/file");
+    }
+
+    @Override
+    public void stage(InputStream payload) throws IOException {
+      staged = new String(ByteStreams.toByteArray(payload), Charsets.UTF_8);
+    }
+
+    @Override
+    public void stage(ImmutableList<ArtifactEntry> entries, boolean linkFiles) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commit() {
+      committed = true;
+    }
+
+    @Override
+    public void discard() {
+      discarded = true;
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return committed;
+    }
+  }
 }
@@ -20,6 +20,7 @@ import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
@@ -61,6 +62,15 @@ public class InMemoryArtifactCache implements ArtifactCache {
     return CacheResult.hit("in-memory", artifact.metadata, artifact.data.length);
   }
 
+  @Override
+  public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+    ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+    for (FetchRequest request : requests) {
+      results.add(fetch(request.getRuleKey(), request.getOutput()));
+    }
+    return results.build();
+  }
+
   public void store(
       ArtifactInfo info,
       byte[] data) {
@@ -17,22 +17,38 @@
 package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class MultiArtifactCacheTest {
 
@@ -86,6 +102,40 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void testCacheMultiFetch() throws InterruptedException, IOException {
+    RuleKey otherRuleKey = new RuleKey("1111111111111111111111111111111111111111");
+    RuleKey missingRuleKey = new RuleKey("2222222222222222222222222222222222222222");
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.of(
+        (ArtifactCache) dummyArtifactCache1,
+        dummyArtifactCache2));
+
+    dummyArtifactCache1.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        BorrowablePath.notBorrowablePath(dummyFile.get()));
+    dummyArtifactCache2.store(
+        ArtifactInfo.builder().addRuleKeys(otherRuleKey).build(),
+        BorrowablePath.notBorrowablePath(dummyFile.get()));
+
+    ImmutableList<CacheResult> results = multiArtifactCache.multiFetch(
+        ImmutableList.of(
+            FetchRequest.of(missingRuleKey, dummyFile),
+            FetchRequest.of(otherRuleKey, dummyFile),
+            FetchRequest.of(dummyRuleKey, dummyFile)));
+
+    assertEquals(CacheResultType.MISS, results.get(0).getType());
+    assertEquals(CacheResultType.HIT, results.get(1).getType());
+    assertEquals(CacheResultType.HIT, results.get(2).getType());
+    assertEquals(
+        "Artifacts found in a later cache should be propagated to the earlier ones",
+        otherRuleKey,
+        dummyArtifactCache1.storeKey);
+
+    multiArtifactCache.close();
+  }
+
   @Test
   public void testCacheStore() throws InterruptedException, IOException {
     DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
@@ -146,4 +196,161 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  // A cache which doesn't answer until it is interrupted.
+  class HangingArtifactCache extends InMemoryArtifactCache {
+
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+      try {
+        new CountDownLatch(1).await();
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+      return CacheResult.error("hanging", "interrupted");
+    }
+  }
+
+  @Test
+  public void hedgedFetchReturnsFirstHitAndCancelsTheOthers() throws Exception {
+    HangingArtifactCache cache1 = new HangingArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.of(cache1, cache2),
+        Optional.of(MoreExecutors.listeningDecorator(Executors.newCachedThreadPool())),
+        0);
+    cache2.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "artifact".getBytes(Charsets.UTF_8));
+
+    Path output = tmp.getRoot().resolve("output");
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("artifact", new String(Files.readAllBytes(output), Charsets.UTF_8));
+    assertTrue(
+        "The slower cache should have been cancelled",
+        cache1.interrupted.await(10, TimeUnit.SECONDS));
+    assertTrue(
+        "Artifacts found in a later cache should be propagated to the earlier ones",
+        cache1.hasArtifact(dummyRuleKey));
+    multiArtifactCache.close();
+    try (Stream<Path> files = Files.list(tmp.getRoot())) {
+      assertEquals(ImmutableList.of(output), files.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void hedgedFetchStreamsTheWinningArtifactIntoTheOutput() throws Exception {
+    ArtifactCache hangingCache = new NoopArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          // Cancelled.
+        }
+        return CacheResult.error("hanging", "interrupted");
+      }
+    };
+    ArtifactCache streamingCache = new NoopArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        try {
+          StreamableLazyPath streamable = (StreamableLazyPath) output;
+          streamable.stage(new ByteArrayInputStream("artifact".getBytes(Charsets.UTF_8)));
+          streamable.commit();
+        } catch (IOException e) {
+          return CacheResult.error("streaming", e.getMessage());
+        }
+        return CacheResult.hit("streaming");
+      }
+    };
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.of(hangingCache, streamingCache),
+        Optional.of(MoreExecutors.listeningDecorator(Executors.newCachedThreadPool())),
+        0);
+
+    RecordingStreamableLazyPath output = new RecordingStreamableLazyPath();
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, output);
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("artifact", output.staged);
+    assertTrue(output.isCommitted());
+    assertFalse("The artifact shouldn't have been written to a file", output.created);
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void hedgedFetchWaitsForCachesWithoutEnoughLatencies() throws Exception {
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache();
+    AtomicInteger cache3Fetches = new AtomicInteger();
+    InMemoryArtifactCache cache3 = new InMemoryArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        cache3Fetches.incrementAndGet();
+        return super.fetch(ruleKey, output);
+      }
+    };
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.of(cache1, cache2, cache3),
+        Optional.of(MoreExecutors.listeningDecorator(Executors.newCachedThreadPool())),
+        95);
+    cache2.store(
+        ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+        "artifact".getBytes(Charsets.UTF_8));
+
+    Path output = tmp.getRoot().resolve("output");
+    CacheResult result = multiArtifactCache.fetch(dummyRuleKey, LazyPath.ofInstance(output));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals("artifact", new String(Files.readAllBytes(output), Charsets.UTF_8));
+    assertEquals(0, cache3Fetches.get());
+    assertTrue(cache1.hasArtifact(dummyRuleKey));
+    assertEquals(
+        CacheResultType.MISS,
+        multiArtifactCache.fetch(
+            new RuleKey("1111111111111111111111111111111111111111"),
+            LazyPath.ofInstance(output)).getType());
+    assertEquals(1, cache3Fetches.get());
+    multiArtifactCache.close();
+  }
+
+  private static class RecordingStreamableLazyPath extends StreamableLazyPath {
+    private String staged;
+    private boolean committed;
+    private boolean created;
+
+    @Override
+    protected Path create() throws IOException {
+      created = true;
+      return Paths.get("output/file");
+    }
+
+    @Override
+    public void stage(InputStream payload) throws IOException {
+      staged = new String(ByteStreams.toByteArray(payload), Charsets.UTF_8);
+    }
+
+    @Override
+    public void stage(ImmutableList<ArtifactEntry> entries, boolean linkFiles) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void commit() {
+      committed = true;
+    }
+
+    @Override
+    public void discard() {
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return committed;
+    }
+  }
 }
@@ -26,6 +26,8 @@ import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
 import org.hamcrest.Matchers;
@@ -106,6 +108,37 @@ public class TwoLevelArtifactCacheDecoratorTest {
     }
   }
 
+  @Test
+  public void testCacheMultiFetch() throws InterruptedException, IOException {
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+         TwoLevelArtifactCacheDecorator twoLevelCache = new TwoLevelArtifactCacheDecorator(
+             inMemoryArtifactCache,
+             new ProjectFilesystem(tmp.getRoot()),
+             BuckEventBusFactory.newInstance(),
+             /* performTwoLevelStores */ true,
+             /* minimumTwoLevelStoredArtifactSize */ 0L,
+             /* maximumTwoLevelStoredArtifactSize */ Optional.empty())) {
+      LazyPath dummyFile = LazyPath.ofInstance(tmp.newFile());
+      Files.write(dummyFile.get(), "contents".getBytes(Charsets.UTF_8));
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(dummyFile.get()));
+
+      LazyPath fetchedFile = LazyPath.ofInstance(tmp.newFile());
+      LazyPath missingFile = LazyPath.ofInstance(tmp.newFile());
+      ImmutableList<CacheResult> results = twoLevelCache.multiFetch(
+          ImmutableList.of(
+              FetchRequest.of(dummyRuleKey2, missingFile),
+              FetchRequest.of(dummyRuleKey, fetchedFile)));
+
+      assertThat(results.get(0).getType(), Matchers.equalTo(CacheResultType.MISS));
+      assertThat(results.get(1).getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(
+          new String(Files.readAllBytes(fetchedFile.get()), Charsets.UTF_8),
+          Matchers.equalTo("contents"));
+    }
+  }
+
   @Test
   public void noTwoLevelStoreWhenFileSizeBelowThreshold() throws Exception {
     testStoreThresholds(
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.concurrent.FakeListeningExecutorService;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class UploadQueueTest {
+
+  private List<Runnable> tasks;
+  private List<String> uploaded;
+  private boolean shutDown;
+  private FakeListeningExecutorService executor;
+
+  @Before
+  public void setUp() {
+    tasks = new ArrayList<>();
+    uploaded = new ArrayList<>();
+    executor = new FakeListeningExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        if (shutDown) {
+          throw new RejectedExecutionException("shut down");
+        }
+        tasks.add(command);
+      }
+    };
+  }
+
+  @Test
+  public void smallerUploadsRunFirst() throws IOException {
+    UploadQueue queue = newQueue(Optional.empty());
+    submit(queue, "aaaa", 100);
+    submit(queue, "bbbb", 1);
+    submit(queue, "cccc", 10);
+    runTasks();
+
+    assertEquals(ImmutableList.of("bbbb", "cccc", "aaaa"), uploaded);
+    assertEquals(0, queue.getPendingUploads());
+    assertEquals(0, queue.getPendingBytes());
+  }
+
+  @Test
+  public void uploadsOfPendingRuleKeysAreCoalesced() throws IOException {
+    UploadQueue queue = newQueue(Optional.empty());
+    assertTrue(submit(queue, "aaaa", 1).isPresent());
+    assertFalse(submit(queue, "aaaa", 1).isPresent());
+    runTasks();
+    assertTrue(submit(queue, "aaaa", 1).isPresent());
+    runTasks();
+
+    assertEquals(ImmutableList.of("aaaa", "aaaa"), uploaded);
+  }
+
+  @Test
+  public void uploadsOverBudgetAreDropped() throws IOException {
+    UploadQueue queue = newQueue(Optional.of(10L));
+    assertTrue(submit(queue, "aaaa", 20).isPresent());
+    assertFalse(submit(queue, "bbbb", 1).isPresent());
+    runTasks();
+    assertTrue(submit(queue, "bbbb", 6).isPresent());
+    assertFalse(submit(queue, "cccc", 5).isPresent());
+    assertTrue(submit(queue, "dddd", 4).isPresent());
+    runTasks();
+
+    assertEquals(ImmutableList.of("aaaa", "dddd", "bbbb"), uploaded);
+  }
+
+  @Test
+  public void futureCompletesOnceUploaded() throws IOException {
+    UploadQueue queue = newQueue(Optional.empty());
+    ListenableFuture<Void> future = submit(queue, "aaaa", 1).get();
+    assertFalse(future.isDone());
+    runTasks();
+    assertTrue(future.isDone());
+  }
+
+  @Test
+  public void drainedCallbackRunsAfterLastUpload() throws IOException {
+    UploadQueue queue = newQueue(Optional.empty());
+    AtomicBoolean drained = new AtomicBoolean(false);
+    submit(queue, "aaaa", 1);
+    queue.runWhenDrained(() -> drained.set(true));
+    assertFalse(drained.get());
+    runTasks();
+    assertTrue(drained.get());
+
+    AtomicBoolean drainedRightAway = new AtomicBoolean(false);
+    queue.runWhenDrained(() -> drainedRightAway.set(true));
+    assertTrue(drainedRightAway.get());
+  }
+
+  @Test
+  public void failedPreparationReleasesTheReservation() {
+    UploadQueue queue = newQueue(Optional.of(10L));
+    try {
+      queue.submit(
+          ImmutableSet.of(new RuleKey("aaaa")),
+          5,
+          () -> {
+            throw new IOException("no space left");
+          });
+    } catch (IOException e) {
+      assertEquals("no space left", e.getMessage());
+    }
+
+    assertEquals(0, queue.getPendingUploads());
+    assertEquals(0, queue.getPendingBytes());
+    assertTrue(tasks.isEmpty());
+  }
+
+  @Test
+  public void uploadRejectedByTheExecutorFailsAndDrains() throws IOException {
+    UploadQueue queue = newQueue(Optional.empty());
+    AtomicBoolean drained = new AtomicBoolean(false);
+    shutDown = true;
+    ListenableFuture<Void> future = submit(queue, "aaaa", 1).get();
+    queue.runWhenDrained(() -> drained.set(true));
+
+    assertTrue(future.isDone());
+    try {
+      future.get();
+      fail("The upload should have failed.");
+    } catch (ExecutionException | InterruptedException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    assertTrue(drained.get());
+    assertEquals(0, queue.getPendingUploads());
+    assertEquals(0, queue.getPendingBytes());
+    assertTrue(uploaded.isEmpty());
+  }
+
+  private UploadQueue newQueue(Optional<Long> maxPendingBytes) {
+    return new UploadQueue("test", executor, maxPendingBytes, BuckEventBusFactory.newInstance());
+  }
+
+  private Optional<ListenableFuture<Void>> submit(
+      UploadQueue queue,
+      final String ruleKey,
+      long sizeBytes) throws IOException {
+    return queue.submit(
+        ImmutableSet.of(new RuleKey(ruleKey)),
+        sizeBytes,
+        () -> () -> uploaded.add(ruleKey));
+  }
+
+  private void runTasks() {
+    List<Runnable> toRun = new ArrayList<>(tasks);
+    tasks.clear();
+    for (Runnable task : toRun) {
+      task.run();
+    }
+  }
+}
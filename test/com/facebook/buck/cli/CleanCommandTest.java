@@ -130,7 +130,8 @@ public class CleanCommandTest extends EasyMockSupport {
         new NullFileHashCache(),
         new HashMap<ExecutorPool, ListeningExecutorService>(),
         CommandRunnerParamsForTesting.BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache(new BroadcastEventListener()));
+        new ActionGraphCache(new BroadcastEventListener()),
+        Optional.empty());
   }
 
 }
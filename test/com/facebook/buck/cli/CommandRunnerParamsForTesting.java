@@ -111,7 +111,8 @@ public class CommandRunnerParamsForTesting {
             ExecutorPool.PROJECT,
             MoreExecutors.newDirectExecutorService()),
         BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache(new BroadcastEventListener()));
+        new ActionGraphCache(new BroadcastEventListener()),
+        Optional.empty());
   }
 
   public static Builder builder() {
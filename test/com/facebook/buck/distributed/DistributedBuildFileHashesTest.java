@@ -43,6 +43,7 @@ import com.facebook.buck.rules.FakeBuildRuleParamsBuilder;
 import com.facebook.buck.rules.HashedFileTool;
 import com.facebook.buck.rules.NoopBuildRule;
 import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TargetGraph;
@@ -444,7 +445,8 @@ public class DistributedBuildFileHashesTest {
           createFileHashCache(),
           cellIndexer,
           MoreExecutors.newDirectExecutorService(),
-          /* keySeed */ 0);
+          /* keySeed */ 0,
+          RuleKeyHashFunction.SHA1);
     }
 
     public Fixture(TemporaryFolder tempDir) throws Exception {
@@ -43,6 +43,7 @@ import com.facebook.buck.rules.ConstructorArgMarshaller;
 import com.facebook.buck.rules.DefaultCellPathResolver;
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetNode;
@@ -267,7 +268,8 @@ public class DistributedBuildStateTest {
         DefaultFileHashCache.createDefaultFileHashCache(projectFilesystem),
         Functions.constant(0),
         MoreExecutors.newDirectExecutorService(),
-        /* keySeed */ 0);
+        /* keySeed */ 0,
+        RuleKeyHashFunction.SHA1);
   }
 
   private static DistBuildTargetGraphCodec createDefaultCodec(
@@ -18,6 +18,7 @@ package com.facebook.buck.event.listener;
 
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.artifact_cache.ArtifactMissCacheEvent;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildRule;
@@ -165,4 +166,17 @@ public class CacheRateStatsKeeperTest {
     assertThat(stats.getCacheHitCount(), Matchers.is(0));
     assertThat(stats.getUpdatedRulesCount(), Matchers.is(0));
   }
+
+  @Test
+  public void missCacheLookups() {
+    CacheRateStatsKeeper cacheRateStatsKeeper = new CacheRateStatsKeeper();
+    cacheRateStatsKeeper.artifactMissCacheLookup(ArtifactMissCacheEvent.lookup("http", true));
+    cacheRateStatsKeeper.artifactMissCacheLookup(ArtifactMissCacheEvent.lookup("http", false));
+    cacheRateStatsKeeper.artifactMissCacheLookup(ArtifactMissCacheEvent.lookup("http", true));
+
+    CacheRateStatsKeeper.CacheRateStatsUpdateEvent stats = cacheRateStatsKeeper.getStats();
+
+    assertThat(stats.getMissCacheLookupCount(), Matchers.is(3));
+    assertThat(stats.getMissCacheHitCount(), Matchers.is(2));
+  }
 }
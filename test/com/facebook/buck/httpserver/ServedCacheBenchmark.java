@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.httpserver;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
+import com.facebook.buck.artifact_cache.ArtifactCaches;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.FetchRequest;
+import com.facebook.buck.cli.FakeBuckConfig;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.ObjectMappers;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Load test for the cache served by {@link WebServer}: concurrent clients fetch, in batches or
+ * one at a time, and store artifacts over http.
+ */
+public class ServedCacheBenchmark {
+  @Param({"1024", "1048576"})
+  private int artifactSize = 1024;
+
+  @Param({"1", "8"})
+  private int threadCount = 1;
+
+  @Param({"1", "50"})
+  private int batchSize = 1;
+
+  @Rule
+  public TemporaryPaths tempDir = new TemporaryPaths();
+
+  private static final int ARTIFACT_COUNT = 200;
+
+  private ProjectFilesystem filesystem;
+  private WebServer webServer;
+  private ArtifactCache serverBackedCache;
+  private ListeningExecutorService executorService;
+  private List<RuleKey> ruleKeys;
+  private Path artifact;
+  private int storeCount;
+
+  @Before
+  public void setUpTest() throws Exception {
+    artifactSize = 100;
+    threadCount = 4;
+    batchSize = 10;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    filesystem = new ProjectFilesystem(tempDir.getRoot());
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+
+    webServer = new WebServer(
+        /* port */ 0,
+        filesystem,
+        "/static/",
+        ObjectMappers.newDefaultInstance());
+    webServer.updateAndStartIfNeeded(
+        ArtifactCaches.newServedCache(
+            newCacheConfig(
+                ImmutableMap.of(
+                    "dir", "served-cache",
+                    "serve_local_cache", "true",
+                    "served_local_cache_mode", "readwrite")),
+            filesystem));
+    serverBackedCache = ArtifactCaches.newInstance(
+        newCacheConfig(
+            ImmutableMap.of(
+                "mode", "http",
+                "http_url", String.format("http://127.0.0.1:%d/", webServer.getPort().get()),
+                "http_multi_fetch", Boolean.toString(batchSize > 1))),
+        BuckEventBusFactory.newInstance(),
+        filesystem,
+        Optional.empty(),
+        MoreExecutors.newDirectExecutorService(),
+        MoreExecutors.newDirectExecutorService());
+
+    byte[] contents = new byte[artifactSize];
+    new Random(artifactSize).nextBytes(contents);
+    artifact = Paths.get("artifact");
+    filesystem.writeBytesToPath(contents, artifact);
+
+    ruleKeys = Lists.newArrayListWithCapacity(ARTIFACT_COUNT);
+    List<ListenableFuture<Void>> stores = Lists.newArrayListWithCapacity(ARTIFACT_COUNT);
+    for (int i = 0; i < ARTIFACT_COUNT; i++) {
+      RuleKey ruleKey = new RuleKey(String.format("%040x", i));
+      ruleKeys.add(ruleKey);
+      stores.add(
+          serverBackedCache.store(
+              ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+              BorrowablePath.notBorrowablePath(artifact)));
+    }
+    Futures.allAsList(stores).get();
+  }
+
+  @After
+  @AfterExperiment
+  public void cleanup() throws Exception {
+    serverBackedCache.close();
+    webServer.stop();
+    executorService.shutdown();
+  }
+
+  @Test
+  public void fetchAllCorrectness() throws Exception {
+    assertEquals(ARTIFACT_COUNT, fetchAll());
+  }
+
+  @Test
+  public void storeAllCorrectness() throws Exception {
+    storeAll();
+    assertEquals(ARTIFACT_COUNT, fetchAll());
+  }
+
+  /**
+   * @return how many of the artifacts were hits.
+   */
+  @Macrobenchmark
+  public int fetchAll() throws Exception {
+    List<ListenableFuture<ImmutableList<CacheResult>>> batches = Lists.newArrayList();
+    for (final List<RuleKey> batch : Lists.partition(ruleKeys, batchSize)) {
+      batches.add(executorService.submit(() -> {
+        ImmutableList.Builder<FetchRequest> requests = ImmutableList.builder();
+        for (RuleKey ruleKey : batch) {
+          requests.add(
+              FetchRequest.of(
+                  ruleKey,
+                  LazyPath.ofInstance(Paths.get("fetched", ruleKey.toString()))));
+        }
+        return serverBackedCache.multiFetch(requests.build());
+      }));
+    }
+    int hits = 0;
+    for (ImmutableList<CacheResult> results : Futures.allAsList(batches).get()) {
+      for (CacheResult result : results) {
+        if (result.getType().isSuccess()) {
+          hits++;
+        }
+      }
+    }
+    return hits;
+  }
+
+  @Macrobenchmark
+  public void storeAll() throws Exception {
+    // Each run stores under fresh rule keys, so that the server never finds them in place.
+    storeCount++;
+    List<ListenableFuture<?>> stores = Lists.newArrayListWithCapacity(ARTIFACT_COUNT);
+    for (RuleKey ruleKey : ruleKeys) {
+      final RuleKey storedRuleKey = new RuleKey(String.format("%08x%s", storeCount, ruleKey));
+      stores.add(executorService.submit(() -> serverBackedCache.store(
+          ArtifactInfo.builder().addRuleKeys(storedRuleKey).build(),
+          BorrowablePath.notBorrowablePath(artifact)).get()));
+    }
+    Futures.allAsList(stores).get();
+  }
+
+  private ArtifactCacheBuckConfig newCacheConfig(ImmutableMap<String, String> cacheSection) {
+    return new ArtifactCacheBuckConfig(
+        FakeBuckConfig.builder()
+            .setFilesystem(filesystem)
+            .setSections(ImmutableMap.of("cache", cacheSection))
+            .build());
+  }
+}
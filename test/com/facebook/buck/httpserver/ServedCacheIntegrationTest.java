@@ -27,6 +27,7 @@ import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.DirArtifactCacheTestUtil;
+import com.facebook.buck.artifact_cache.FetchRequest;
 import com.facebook.buck.artifact_cache.TestArtifactCaches;
 import com.facebook.buck.cli.BuckConfig;
 import com.facebook.buck.cli.BuckConfigTestUtils;
@@ -40,8 +41,10 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.ObjectMappers;
 import com.facebook.buck.util.environment.Architecture;
 import com.facebook.buck.util.environment.Platform;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -59,6 +62,7 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
@@ -94,6 +98,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
     dirCache.store(
         ArtifactInfo.builder().addRuleKeys(A_FILE_RULE_KEY).setMetadata(A_FILE_METADATA).build(),
@@ -146,6 +151,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     Path fetchedContents = tmpDir.newFile();
@@ -220,6 +226,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     LazyPath fetchedContents = LazyPath.ofInstance(tmpDir.newFile());
@@ -256,6 +263,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     LazyPath fetchedContents = LazyPath.ofInstance(tmpDir.newFile());
@@ -277,6 +285,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     LazyPath fetchedContents = LazyPath.ofInstance(tmpDir.newFile());
@@ -298,6 +307,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     LazyPath fetchedContents = LazyPath.ofInstance(tmpDir.newFile());
@@ -342,6 +352,15 @@ public class ServedCacheIntegrationTest {
         return CacheResult.miss();
       }
 
+      @Override
+      public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+        ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+        for (FetchRequest request : requests) {
+          results.add(fetch(request.getRuleKey(), request.getOutput()));
+        }
+        return results.build();
+      }
+
       @Override
       public ListenableFuture<Void> store(
           ArtifactInfo info,
@@ -388,6 +407,7 @@ public class ServedCacheIntegrationTest {
           buckEventBus,
           projectFilesystem,
           Optional.empty(),
+          DIRECT_EXECUTOR_SERVICE,
           DIRECT_EXECUTOR_SERVICE);
 
       assertThat(
@@ -421,6 +441,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     RuleKey ruleKey = new RuleKey("00111222333444");
@@ -467,6 +488,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     RuleKey ruleKey = new RuleKey("00111222333444");
@@ -513,6 +535,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     RuleKey ruleKey = new RuleKey("00111222333444");
@@ -561,6 +584,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     ArtifactCache serverBackedDirCache = ArtifactCaches.newInstance(
@@ -571,6 +595,7 @@ public class ServedCacheIntegrationTest {
         buckEventBus,
         projectFilesystem,
         Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
         DIRECT_EXECUTOR_SERVICE);
 
     assertFalse(containsKey(serverBackedDirCache, A_FILE_RULE_KEY));
@@ -605,4 +630,70 @@ public class ServedCacheIntegrationTest {
     assertThat(cacheResult.getType(), Matchers.oneOf(CacheResultType.HIT, CacheResultType.MISS));
     return cacheResult.getType().isSuccess();
   }
+
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    webServer = new WebServer(
+        /* port */ 0,
+        projectFilesystem,
+        "/static/",
+        MAPPER);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    ArtifactCache serverBackedCache = ArtifactCaches.newInstance(
+        createMockLocalConfig(
+            "[cache]",
+            "mode = http",
+            "http_multi_fetch = true",
+            String.format("http_url = http://127.0.0.1:%d/", webServer.getPort().get())),
+        buckEventBus,
+        projectFilesystem,
+        Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
+        DIRECT_EXECUTOR_SERVICE);
+
+    Path missingContents = tmpDir.newFile();
+    Path fetchedContents = tmpDir.newFile();
+    ImmutableList<CacheResult> results = serverBackedCache.multiFetch(
+        ImmutableList.of(
+            FetchRequest.of(new RuleKey("baadbeef"), LazyPath.ofInstance(missingContents)),
+            FetchRequest.of(A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents))));
+    assertThat(results.get(0).getType(), Matchers.equalTo(CacheResultType.MISS));
+    assertThat(results.get(1).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(results.get(1).getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(),
+        Matchers.equalTo(A_FILE_DATA));
+  }
+
+  @Test
+  public void testStatsReportRequestsPerEndpoint() throws Exception {
+    webServer = new WebServer(
+        /* port */ 0,
+        projectFilesystem,
+        "/static/",
+        MAPPER);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    ArtifactCache serverBackedCache = ArtifactCaches.newInstance(
+        createMockLocalHttpCacheConfig(webServer.getPort().get()),
+        buckEventBus,
+        projectFilesystem,
+        Optional.empty(),
+        DIRECT_EXECUTOR_SERVICE,
+        DIRECT_EXECUTOR_SERVICE);
+    serverBackedCache.fetch(A_FILE_RULE_KEY, LazyPath.ofInstance(tmpDir.newFile()));
+    serverBackedCache.fetch(new RuleKey("baadbeef"), LazyPath.ofInstance(tmpDir.newFile()));
+
+    JsonNode stats;
+    try (InputStream input = new URL(
+        String.format("http://127.0.0.1:%d/artifacts/stats", webServer.getPort().get()))
+        .openStream()) {
+      stats = MAPPER.readTree(input);
+    }
+    assertThat(stats.get("fetch").get("requests").asLong(), Matchers.equalTo(2L));
+    assertThat(stats.get("fetch").get("errors").asLong(), Matchers.equalTo(0L));
+    assertThat(stats.get("fetch").get("bytes").asLong(), Matchers.greaterThan(0L));
+    assertThat(stats.get("store").get("requests").asLong(), Matchers.equalTo(0L));
+  }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public class GlobCacheTest {
+  private static final ImmutableList<String> INCLUDES = ImmutableList.of("**/*.java");
+  private static final ImmutableList<String> EXCLUDES = ImmutableList.of("Excluded.java");
+  private static final ImmutableList<String> RESULTS = ImmutableList.of("A.java", "b/B.java");
+
+  private GlobCache globCache;
+
+  @Before
+  public void setUp() {
+    globCache = new GlobCache();
+  }
+
+  private void put(String basePath) {
+    globCache.put(globCache.getGeneration(), basePath, INCLUDES, EXCLUDES, false, RESULTS);
+  }
+
+  private boolean isCached(String basePath) {
+    return globCache.lookup(basePath, INCLUDES, EXCLUDES, false).isPresent();
+  }
+
+  @Test
+  public void lookupMatchesPatternsAndDotfiles() {
+    put("foo");
+
+    assertEquals(
+        Optional.of(RESULTS),
+        globCache.lookup("foo", ImmutableList.of("**/*.java"), EXCLUDES, false));
+    assertFalse(globCache.lookup("foo", INCLUDES, ImmutableList.of(), false).isPresent());
+    assertFalse(globCache.lookup("foo", INCLUDES, EXCLUDES, true).isPresent());
+    assertFalse(globCache.lookup("bar", INCLUDES, EXCLUDES, false).isPresent());
+  }
+
+  @Test
+  public void invalidatesPackagesContainingPath() {
+    put("");
+    put("foo");
+    put("foo/bar");
+    put("foo/baz");
+    put("foo-bar");
+
+    globCache.invalidate(Paths.get("foo/bar/New.java"));
+
+    assertFalse(isCached(""));
+    assertFalse(isCached("foo"));
+    assertFalse(isCached("foo/bar"));
+    assertTrue(isCached("foo/baz"));
+    assertTrue(isCached("foo-bar"));
+  }
+
+  @Test
+  public void invalidatesPackagesUnderRemovedDirectory() {
+    put("foo/bar");
+    put("foo/bar/baz");
+    put("foo/bar-baz");
+    put("foo/bar0");
+
+    globCache.invalidate(Paths.get("foo/bar"));
+
+    assertFalse(isCached("foo/bar"));
+    assertFalse(isCached("foo/bar/baz"));
+    assertTrue(isCached("foo/bar-baz"));
+    assertTrue(isCached("foo/bar0"));
+  }
+
+  @Test
+  public void doesNotStoreResultsEvaluatedBeforeAnInvalidation() {
+    long generation = globCache.getGeneration();
+    globCache.invalidate(Paths.get("unrelated/File.java"));
+    globCache.put(generation, "foo", INCLUDES, EXCLUDES, false, RESULTS);
+
+    assertFalse(isCached("foo"));
+  }
+
+  @Test
+  public void invalidateAllDropsEverything() {
+    put("foo");
+    put("bar");
+
+    globCache.invalidateAll();
+
+    assertFalse(isCached("foo"));
+    assertFalse(isCached("bar"));
+  }
+}
@@ -55,6 +55,9 @@ public class ParserBenchmark {
   @Param({"1", "2", "10"})
   private int threadCount = 1;
 
+  // How many times more targets than targetCount the large package has.
+  private static final int LARGE_PACKAGE_SCALE = 10;
+
   @Rule
   public TemporaryPaths tempDir = new TemporaryPaths();
 
@@ -95,6 +98,25 @@ public class ParserBenchmark {
           String.format("package com.facebook.target_%d; class A {}", i).getBytes("UTF-8"));
     }
 
+    // A single package with many targets, for the costs that grow with the size of a package.
+    Path largePackageRoot = root.resolve("large_package");
+    Files.createDirectories(largePackageRoot);
+    StringBuilder largeBuckFile = new StringBuilder();
+    for (int i = 0; i < targetCount * LARGE_PACKAGE_SCALE; i++) {
+      largeBuckFile.append(
+          String.format(
+              "java_library(name = 'lib_%d', srcs = ['A.java'], deps = [%s])\n" +
+                  "genrule(name = 'gen_%d', out = 'out_%d', cmd = 'touch $OUT')\n",
+              i,
+              i == 0 ? "" : String.format("':lib_%d'", i - 1),
+              i,
+              i));
+    }
+    Files.write(largePackageRoot.resolve("BUCK"), largeBuckFile.toString().getBytes("UTF-8"));
+    Files.write(
+        largePackageRoot.resolve("A.java"),
+        "package large_package; class A {}".getBytes("UTF-8"));
+
     ImmutableMap.Builder<String, ImmutableMap<String, String>> configSectionsBuilder =
         ImmutableMap.builder();
     if (threadCount > 1) {
@@ -149,7 +171,28 @@ public class ParserBenchmark {
             TargetNodePredicateSpec.of(
                 Predicates.alwaysTrue(),
                 BuildFileSpec.fromRecursivePath(
-                    Paths.get(""),
+                    Paths.get("java/com/facebook"),
+                    cell.getRoot()))),
+        /* ignoreBuckAutodepsFiles */ false);
+  }
+
+  @Test
+  public void parseLargePackageCorrectness() throws Exception {
+    parseLargePackage();
+  }
+
+  @Macrobenchmark
+  public void parseLargePackage() throws Exception {
+    parser.buildTargetGraphForTargetNodeSpecs(
+        eventBus,
+        cell,
+        /* enableProfiling */ false,
+        executorService,
+        ImmutableList.of(
+            TargetNodePredicateSpec.of(
+                Predicates.alwaysTrue(),
+                BuildFileSpec.fromPath(
+                    Paths.get("large_package"),
                     cell.getRoot()))),
         /* ignoreBuckAutodepsFiles */ false);
   }
@@ -2293,6 +2293,38 @@ public class ParserTest {
         equalTo(ImmutableList.of(ImmutableSet.of(foo), ImmutableSet.of(bar))));
   }
 
+  @Test
+  public void resolveTargetSpecsDoesNotCreateNodesItDoesNotNeed() throws Exception {
+    BuildTarget foo = BuildTargetFactory.newInstance(filesystem, "//foo:foo");
+    BuildTarget broken = BuildTargetFactory.newInstance(filesystem, "//foo:broken");
+    Path buckFile = cellRoot.resolve("foo/BUCK");
+    Files.createDirectories(buckFile.getParent());
+    Files.write(
+        buckFile,
+        ("genrule(name='foo', out='foo', cmd='foo')\n" +
+         "genrule(name='broken', out='broken', cmd='$(exe ////cake:walk) > $OUT')\n")
+            .getBytes(UTF_8));
+
+    ImmutableList<ImmutableSet<BuildTarget>> targets =
+        parser.resolveTargetSpecs(
+            eventBus,
+            cell,
+            false,
+            executorService,
+            ImmutableList.of(
+                AbstractBuildTargetSpec.from(foo),
+                TargetNodePredicateSpec.of(
+                    Predicates.alwaysTrue(),
+                    BuildFileSpec.fromPath(
+                        Paths.get("foo"),
+                        cell.getRoot()))),
+            SpeculativeParsing.of(true),
+            ParserConfig.ApplyDefaultFlavorsMode.ENABLED);
+    assertThat(
+        targets,
+        equalTo(ImmutableList.of(ImmutableSet.of(foo), ImmutableSet.of(foo, broken))));
+  }
+
   @Test
   public void defaultFlavorsInRuleArgsAppliedToTarget() throws Exception {
     // We depend on Xcode platforms for this test.
@@ -39,8 +39,11 @@ import org.easymock.IAnswer;
 import org.hamcrest.Matchers;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -125,6 +128,8 @@ public class ProjectBuildFileParserPoolTest {
               final ProjectBuildFileParser parser =
                   EasyMock.createMock(ProjectBuildFileParser.class);
               try {
+                parser.initIfNeeded();
+                EasyMock.expectLastCall().anyTimes();
                 EasyMock.expect(parser.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
                     .andAnswer(
                         () -> {
@@ -321,6 +326,152 @@ public class ProjectBuildFileParserPoolTest {
     }
   }
 
+  @Test
+  public void prewarmStartsParsersBeforeAnyRequest() throws Exception {
+    Cell cell = EasyMock.createMock(Cell.class);
+    final AtomicInteger createCount = new AtomicInteger(0);
+
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* maxParsers */ 2,
+                 input -> {
+                   createCount.incrementAndGet();
+                   return createMockParser(ImmutableList::of);
+                 })) {
+
+      parserPool.prewarm(cell, 5, MoreExecutors.newDirectExecutorService());
+      assertThat(createCount.get(), Matchers.equalTo(2));
+
+      Futures.allAsList(
+          scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 3)).get();
+      assertThat(createCount.get(), Matchers.equalTo(2));
+
+      ParserPoolEvent event = parserPool.createStatsEvent();
+      assertThat(event.getParsers(), Matchers.hasSize(2));
+      assertThat(event.getRequests(), Matchers.equalTo(3));
+      int parses = 0;
+      for (ParserPoolEvent.ParserStats stats : event.getParsers()) {
+        parses += stats.getParses();
+      }
+      assertThat(parses, Matchers.equalTo(3));
+    }
+  }
+
+  @Test
+  public void prewarmLaunchesTheInterpreterBeforeAnyRequest() throws Exception {
+    Cell cell = EasyMock.createMock(Cell.class);
+    final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* maxParsers */ 1,
+                 input -> {
+                   ProjectBuildFileParser parser =
+                       EasyMock.createMock(ProjectBuildFileParser.class);
+                   try {
+                     parser.initIfNeeded();
+                     EasyMock.expectLastCall().andAnswer(
+                         () -> {
+                           calls.add("init");
+                           return null;
+                         });
+                     EasyMock.expect(parser.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
+                         .andAnswer(
+                             () -> {
+                               calls.add("parse");
+                               return ImmutableList.of();
+                             })
+                         .anyTimes();
+                   } catch (Exception e) {
+                     Throwables.propagate(e);
+                   }
+                   EasyMock.replay(parser);
+                   return parser;
+                 })) {
+
+      parserPool.prewarm(cell, 1, MoreExecutors.newDirectExecutorService());
+      assertThat(calls, Matchers.contains("init"));
+
+      Futures.allAsList(
+          scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 1)).get();
+      assertThat(calls, Matchers.contains("init", "parse"));
+    }
+  }
+
+  @Test
+  public void failureToLaunchTheInterpreterFailsTheRequest() throws Exception {
+    Cell cell = EasyMock.createMock(Cell.class);
+
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* maxParsers */ 1,
+                 input -> {
+                   ProjectBuildFileParser parser =
+                       EasyMock.createNiceMock(ProjectBuildFileParser.class);
+                   try {
+                     parser.initIfNeeded();
+                     EasyMock.expectLastCall().andThrow(new IOException("no python"));
+                   } catch (Exception e) {
+                     Throwables.propagate(e);
+                   }
+                   EasyMock.replay(parser);
+                   return parser;
+                 })) {
+
+      try {
+        Futures.allAsList(
+            scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 1)).get();
+        fail("Expected the request to fail.");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause(), Matchers.instanceOf(IOException.class));
+      }
+    }
+  }
+
+  @Test
+  public void closesIdleParsersOfOtherCellsWhenAllAreTaken() throws Exception {
+    Cell firstCell = EasyMock.createMock(Cell.class);
+    Cell secondCell = EasyMock.createMock(Cell.class);
+    final AtomicInteger liveParsers = new AtomicInteger(0);
+
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* maxParsersPerCell */ 2,
+                 /* maxParsers */ 2,
+                 input -> {
+                   liveParsers.incrementAndGet();
+                   ProjectBuildFileParser parser =
+                       EasyMock.createMock(ProjectBuildFileParser.class);
+                   try {
+                     parser.initIfNeeded();
+                     EasyMock.expectLastCall().anyTimes();
+                     EasyMock.expect(parser.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
+                         .andReturn(ImmutableList.of())
+                         .anyTimes();
+                     parser.close();
+                     EasyMock.expectLastCall().andAnswer(
+                         () -> {
+                           liveParsers.decrementAndGet();
+                           return null;
+                         });
+                   } catch (Exception e) {
+                     Throwables.propagate(e);
+                   }
+                   EasyMock.replay(parser);
+                   return parser;
+                 })) {
+
+      parserPool.prewarm(firstCell, 2, MoreExecutors.newDirectExecutorService());
+      assertThat(liveParsers.get(), Matchers.equalTo(2));
+
+      Futures.allAsList(
+          scheduleWork(secondCell, parserPool, MoreExecutors.newDirectExecutorService(), 1))
+          .get();
+      assertThat(liveParsers.get(), Matchers.equalTo(2));
+      assertThat(parserPool.createStatsEvent().getParsers(), Matchers.hasSize(3));
+    }
+  }
+
   private static ImmutableSet<ListenableFuture<?>> scheduleWork(
       Cell cell,
       ProjectBuildFileParserPool pool,
@@ -337,6 +488,8 @@ public class ProjectBuildFileParserPoolTest {
       IAnswer<ImmutableList<Map<String, Object>>> parseFn) {
     ProjectBuildFileParser mock = EasyMock.createMock(ProjectBuildFileParser.class);
     try {
+      mock.initIfNeeded();
+      EasyMock.expectLastCall().anyTimes();
       EasyMock.expect(mock.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
           .andAnswer(parseFn)
           .anyTimes();
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+
+public class RawNodeSnapshotTest {
+
+  private static final HashCode FINGERPRINT = HashCode.fromInt(1);
+  private static final ImmutableSet<Map<String, Object>> RAW_NODES = ImmutableSet.of(
+      ImmutableMap.of("name", "foo", "srcs", ImmutableList.of("Foo.java")),
+      ImmutableMap.of("__includes", ImmutableList.of("/root/foo/BUCK", "/root/DEFS")));
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path buildFile;
+  private Path include;
+  private Path savePath;
+
+  @Before
+  public void setUp() throws IOException {
+    buildFile = tmp.newFolder("foo").resolve("BUCK");
+    write(buildFile, "java_library(name = 'foo')");
+    include = tmp.newFile("DEFS");
+    write(include, "def foo(): pass");
+    savePath = tmp.getRoot().resolve("rawnodes");
+  }
+
+  @Test
+  public void savedRawNodesAreUsedAfterLoading() throws IOException {
+    RawNodeSnapshot snapshot = RawNodeSnapshot.load(savePath);
+    snapshot.put(tmp.getRoot(), buildFile, FINGERPRINT, ImmutableList.of(include), RAW_NODES);
+    snapshot.save(Optional.of("c:1:2"));
+
+    RawNodeSnapshot loaded = RawNodeSnapshot.load(savePath);
+    assertEquals(Optional.of("c:1:2"), loaded.getWatchmanClock());
+    assertEquals(Optional.of(RAW_NODES), loaded.get(buildFile, FINGERPRINT));
+    assertEquals(Optional.empty(), loaded.get(buildFile, HashCode.fromInt(2)));
+  }
+
+  @Test
+  public void rawNodesAreNotUsedAfterAnIncludeChanges() throws IOException {
+    RawNodeSnapshot snapshot = RawNodeSnapshot.load(savePath);
+    snapshot.put(tmp.getRoot(), buildFile, FINGERPRINT, ImmutableList.of(include), RAW_NODES);
+    snapshot.save(Optional.of("c:1:2"));
+    write(include, "def foo(): return 1");
+
+    assertEquals(Optional.empty(), RawNodeSnapshot.load(savePath).get(buildFile, FINGERPRINT));
+  }
+
+  @Test
+  public void addingAFileInThePackageDropsItsRawNodes() throws IOException {
+    RawNodeSnapshot snapshot = new RawNodeSnapshot(Optional.empty());
+    snapshot.put(tmp.getRoot(), buildFile, FINGERPRINT, ImmutableList.of(include), RAW_NODES);
+
+    snapshot.invalidate(Paths.get("foo/Foo.java"), false);
+    snapshot.invalidate(Paths.get("bar/Bar.java"), true);
+    assertEquals(Optional.of(RAW_NODES), snapshot.get(buildFile, FINGERPRINT));
+
+    snapshot.invalidate(Paths.get("foo/sub/Foo.java"), true);
+    assertEquals(Optional.empty(), snapshot.get(buildFile, FINGERPRINT));
+  }
+
+  @Test
+  public void rawNodesAreDroppedWhenChangesCannotBeQueried() throws Exception {
+    RawNodeSnapshot snapshot = RawNodeSnapshot.load(savePath);
+    snapshot.put(tmp.getRoot(), buildFile, FINGERPRINT, ImmutableList.of(include), RAW_NODES);
+    snapshot.save(Optional.of("c:1:2"));
+
+    RawNodeSnapshot loaded = RawNodeSnapshot.load(savePath);
+    loaded.invalidateChangesSince(Watchman.NULL_WATCHMAN);
+    assertEquals(0, loaded.size());
+    assertFalse(loaded.get(buildFile, FINGERPRINT).isPresent());
+  }
+
+  private static void write(Path path, String contents) throws IOException {
+    Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.FetchRequest;
+import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.io.LazyPath;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+public class ArtifactFetchBatcherTest {
+
+  private static final LazyPath OUTPUT = LazyPath.ofInstance(Paths.get("output"));
+
+  private ListeningExecutorService service;
+
+  @Before
+  public void setUp() {
+    service = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+  }
+
+  @After
+  public void tearDown() {
+    service.shutdownNow();
+  }
+
+  @Test
+  public void fetchesQueuedWhileABatchIsInFlightAreSentTogether() throws Exception {
+    final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+    final RuleKey hitKey = new RuleKey("aaaa");
+    final List<Integer> batchSizes = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    NoopArtifactCache cache = new NoopArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+        return ruleKey.equals(hitKey) ? CacheResult.hit("cache") : CacheResult.miss();
+      }
+
+      @Override
+      public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+        batchSizes.add(requests.size());
+        firstBatchStarted.countDown();
+        try {
+          releaseFirstBatch.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.multiFetch(requests);
+      }
+    };
+
+    ArtifactFetchBatcher batcher = new ArtifactFetchBatcher(service, /* maxBatchSize */ 3);
+    List<ListenableFuture<CacheResult>> results = Lists.newArrayList();
+    results.add(batcher.fetch(cache, new RuleKey("0000"), OUTPUT));
+    firstBatchStarted.await();
+    results.add(batcher.fetch(cache, hitKey, OUTPUT));
+    for (int i = 1; i <= 4; i++) {
+      results.add(batcher.fetch(cache, new RuleKey(String.format("%04d", i)), OUTPUT));
+    }
+    releaseFirstBatch.countDown();
+
+    List<CacheResult> cacheResults = Futures.allAsList(results).get();
+    assertEquals(ImmutableList.of(1, 3, 2), ImmutableList.copyOf(batchSizes));
+    assertEquals(CacheResultType.MISS, cacheResults.get(0).getType());
+    assertEquals(CacheResultType.HIT, cacheResults.get(1).getType());
+    for (CacheResult result : cacheResults.subList(2, cacheResults.size())) {
+      assertEquals(CacheResultType.MISS, result.getType());
+    }
+  }
+
+  @Test
+  public void cacheErrorsAreReportedAsResults() throws Exception {
+    NoopArtifactCache cache = new NoopArtifactCache() {
+      @Override
+      public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+        throw new IllegalStateException("boom");
+      }
+    };
+
+    ArtifactFetchBatcher batcher = new ArtifactFetchBatcher(service, /* maxBatchSize */ 2);
+    CacheResult result = batcher.fetch(cache, new RuleKey("aaaa"), OUTPUT).get();
+
+    assertEquals(CacheResultType.ERROR, result.getType());
+  }
+}
@@ -40,6 +40,7 @@ public class CachingBuildEngineFactory {
   private CachingBuildEngine.DepFiles depFiles = CachingBuildEngine.DepFiles.ENABLED;
   private long maxDepFileCacheEntries = 256L;
   private Optional<Long> artifactCacheSizeLimit = Optional.empty();
+  private int maxArtifactFetchBatchSize = 1;
   private long inputFileSizeLimit = Long.MAX_VALUE;
   private ObjectMapper objectMapper = ObjectMappers.newDefaultInstance();
   private Optional<Function<? super ProjectFilesystem, CachingBuildEngine.RuleKeyFactories>>
@@ -49,6 +50,7 @@ public class CachingBuildEngineFactory {
   private BuildRuleResolver buildRuleResolver;
   private ResourceAwareSchedulingInfo resourceAwareSchedulingInfo =
       ResourceAwareSchedulingInfo.NON_AWARE_SCHEDULING_INFO;
+  private Optional<CriticalPathScheduler> criticalPathScheduler = Optional.empty();
 
   public CachingBuildEngineFactory(BuildRuleResolver buildRuleResolver) {
     this.cachingBuildEngineDelegate =
@@ -78,6 +80,11 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setMaxArtifactFetchBatchSize(int maxArtifactFetchBatchSize) {
+    this.maxArtifactFetchBatchSize = maxArtifactFetchBatchSize;
+    return this;
+  }
+
   public CachingBuildEngineFactory setInputFileSizeLimit(long inputFileSizeLimit) {
     this.inputFileSizeLimit = inputFileSizeLimit;
     return this;
@@ -121,6 +128,12 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setCriticalPathScheduler(
+      CriticalPathScheduler criticalPathScheduler) {
+    this.criticalPathScheduler = Optional.of(criticalPathScheduler);
+    return this;
+  }
+
   public CachingBuildEngine build() {
     if (ruleKeyFactoriesFunction.isPresent()) {
       return new CachingBuildEngine(
@@ -131,9 +144,11 @@ public class CachingBuildEngineFactory {
           depFiles,
           maxDepFileCacheEntries,
           artifactCacheSizeLimit,
+          maxArtifactFetchBatchSize,
           new SourcePathResolver(buildRuleResolver),
           ruleKeyFactoriesFunction.get(),
-          resourceAwareSchedulingInfo);
+          resourceAwareSchedulingInfo,
+          criticalPathScheduler);
     }
 
     return new CachingBuildEngine(
@@ -144,11 +159,16 @@ public class CachingBuildEngineFactory {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        maxArtifactFetchBatchSize,
         inputFileSizeLimit,
         objectMapper,
         buildRuleResolver,
         0,
-        resourceAwareSchedulingInfo);
+        RuleKeyHashFunction.SHA1,
+        Optional.empty(),
+        Optional.empty(),
+        resourceAwareSchedulingInfo,
+        criticalPathScheduler);
   }
 
   private static WeightedListeningExecutorService toWeighted(ListeningExecutorService service) {
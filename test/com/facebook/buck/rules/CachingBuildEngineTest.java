@@ -32,6 +32,7 @@ import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.FetchRequest;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
 import com.facebook.buck.cli.CommandEvent;
@@ -461,6 +462,66 @@ public class CachingBuildEngineTest {
           filesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
     }
 
+    @Test
+    public void testArtifactFetchedFromCacheInABatch()
+        throws InterruptedException, ExecutionException, IOException {
+      Step step = new AbstractExecutionStep("exploding step") {
+        @Override
+        public StepExecutionResult execute(ExecutionContext context) {
+          throw new UnsupportedOperationException("build step should not be executed");
+        }
+      };
+      BuildRule buildRule = createRule(
+          filesystem,
+          pathResolver,
+          /* deps */ ImmutableSet.of(),
+          ImmutableList.of(step),
+          /* postBuildSteps */ ImmutableList.of(),
+          /* pathToOutputFile */ null);
+
+      // Simulate successfully fetching the output file from the ArtifactCache, which should be
+      // asked through multiFetch() rather than fetch() when batching is enabled.
+      ArtifactCache artifactCache = createMock(ArtifactCache.class);
+      Map<Path, String> desiredZipEntries = ImmutableMap.of(
+          Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar"),
+          "Imagine this is the contents of a valid JAR file.");
+      expect(artifactCache.multiFetch(anyObject()))
+          .andDelegateTo(
+              new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries));
+
+      BuckEventBus buckEventBus = BuckEventBusFactory.newInstance();
+      BuildContext buildContext = BuildContext.builder()
+          .setActionGraph(new ActionGraph(ImmutableList.of(buildRule)))
+          .setClock(new DefaultClock())
+          .setBuildId(new BuildId())
+          .setArtifactCache(artifactCache)
+          .setJavaPackageFinder(createMock(JavaPackageFinder.class))
+          .setEventBus(buckEventBus)
+          .setObjectMapper(ObjectMappers.newDefaultInstance())
+          .build();
+
+      filesystem.writeContentsToPath(
+          MAPPER.writeValueAsString(ImmutableList.of()),
+          BuildInfo.getPathToMetadataDirectory(buildRule.getBuildTarget(), filesystem)
+              .resolve(BuildInfo.METADATA_KEY_FOR_RECORDED_PATHS));
+
+      // Build the rule!
+      replayAll();
+
+      CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory()
+          .setMaxArtifactFetchBatchSize(8)
+          .build();
+
+      BuildResult result =
+          cachingBuildEngine.build(buildContext, TestExecutionContext.newInstance(), buildRule)
+              .get();
+      verifyAll();
+      assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+      assertTrue(
+          "The entries in the zip should be extracted as a result of building the rule.",
+          filesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
+    }
+
     @Test
     public void testArtifactFetchedFromCacheStillRunsPostBuildSteps()
         throws InterruptedException, ExecutionException, IOException {
@@ -2363,7 +2424,7 @@ public class CachingBuildEngineTest {
       RuleKey depFileRuleKey =
           onDiskBuildInfo.getRuleKey(BuildInfo.METADATA_KEY_FOR_DEP_FILE_RULE_KEY).get();
 
-      // Verify that the manifest is truncated and now only contains the newly written entry.
+      // Verify that the oldest entry was evicted and only the newly written entry is left.
       Path fetchedManifest = tmp.newFile("manifest");
       CacheResult cacheResult =
           cache.fetch(
@@ -3209,6 +3270,15 @@ public class CachingBuildEngineTest {
       return CacheResult.hit("dir");
     }
 
+    @Override
+    public ImmutableList<CacheResult> multiFetch(ImmutableList<FetchRequest> requests) {
+      ImmutableList.Builder<CacheResult> results = ImmutableList.builder();
+      for (FetchRequest request : requests) {
+        results.add(fetch(request.getRuleKey(), request.getOutput()));
+      }
+      return results.build();
+    }
+
     @Override
     public ListenableFuture<Void> store(
         ArtifactInfo info,
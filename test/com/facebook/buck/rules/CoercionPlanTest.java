@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
+import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.util.ObjectMappers;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.Set;
+
+@SuppressWarnings("unused") // Fields of the sample DTO objects are only read reflectively.
+public class CoercionPlanTest {
+
+  private TypeCoercerFactory typeCoercerFactory;
+
+  @Before
+  public void setUp() {
+    typeCoercerFactory = new DefaultTypeCoercerFactory(ObjectMappers.newDefaultInstance());
+  }
+
+  @Test
+  public void planIsComputedOncePerClass() {
+    assertSame(
+        CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class),
+        CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class));
+  }
+
+  @Test
+  public void marshallerUsesTheSharedPlan() {
+    ConstructorArgMarshaller marshaller = new ConstructorArgMarshaller(typeCoercerFactory);
+
+    CoercionPlan plan = CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class);
+
+    assertSame(plan.getParamInfos(), marshaller.getAllParamInfo(new DtoWithDeps()));
+  }
+
+  @Test
+  public void plansAreNotSharedAcrossTypeCoercerFactories() {
+    assertNotSame(
+        CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class),
+        CoercionPlan.of(
+            new DefaultTypeCoercerFactory(ObjectMappers.newDefaultInstance()),
+            DtoWithDeps.class));
+  }
+
+  @Test
+  public void skipsFinalFields() {
+    CoercionPlan plan = CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class);
+
+    assertEquals(
+        ImmutableSet.of("deps", "srcs", "name"),
+        FluentIterable.from(plan.getParamInfos()).transform(ParamInfo::getName).toSet());
+  }
+
+  @Test
+  public void findsDeclaredDepsAndInputs() {
+    CoercionPlan plan = CoercionPlan.of(typeCoercerFactory, DtoWithDeps.class);
+
+    assertEquals(Optional.of("deps"), plan.getDeclaredDeps().map(ParamInfo::getName));
+    assertEquals(
+        ImmutableSet.of("deps", "srcs"),
+        FluentIterable.from(plan.getDepsAndInputs()).transform(ParamInfo::getName).toSet());
+  }
+
+  @Test
+  public void depsFieldThatIsNotADepIsNotDeclaredDeps() {
+    CoercionPlan plan = CoercionPlan.of(typeCoercerFactory, DtoWithFakeDeps.class);
+
+    assertFalse(plan.getDeclaredDeps().isPresent());
+  }
+
+  public static class DtoWithDeps {
+    public Optional<Set<BuildTarget>> deps;
+    public Set<SourcePath> srcs;
+    public String name;
+    public final String constant = "constant";
+  }
+
+  public static class DtoWithFakeDeps {
+    @Hint(isDep = false)
+    public Optional<Set<BuildTarget>> deps;
+  }
+}
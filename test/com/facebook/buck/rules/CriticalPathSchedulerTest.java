@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.timing.SettableFakeClock;
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CriticalPathSchedulerTest {
+
+  private static final SourcePathResolver sourcePathResolver = new SourcePathResolver(
+      new BuildRuleResolver(
+          TargetGraph.EMPTY,
+          new DefaultTargetNodeToBuildRuleTransformer()));
+
+  private FakeProjectFilesystem filesystem;
+  private ObjectMapper objectMapper;
+  private SettableFakeClock clock;
+
+  private BuildRule leaf;
+  private BuildRule middle;
+  private BuildRule side;
+  private BuildRule top;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = new FakeProjectFilesystem();
+    objectMapper = ObjectMappers.newDefaultInstance();
+    clock = new SettableFakeClock(0, 0);
+
+    // top -> middle -> leaf
+    //     -> side
+    leaf = new FakeBuildRule("//:leaf", sourcePathResolver);
+    middle = new FakeBuildRule("//:middle", sourcePathResolver, leaf);
+    side = new FakeBuildRule("//:side", sourcePathResolver);
+    top = new FakeBuildRule("//:top", sourcePathResolver, middle, side);
+
+    filesystem.writeContentsToPath(
+        objectMapper.writeValueAsString(
+            ImmutableMap.of(
+                "//:leaf", 10L,
+                "//:middle", 20L,
+                "//:side", 5L,
+                "//:top", 30L)),
+        filesystem.getBuckPaths().getRuleDurationsFile());
+  }
+
+  @Test
+  public void remainingCriticalPathIncludesLongestChainOfDependents() {
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(RuleDurationHistory.load(filesystem, objectMapper), clock);
+    scheduler.plan(ImmutableList.of(top));
+
+    assertThat(scheduler.getPriority(top), equalTo(30L));
+    assertThat(scheduler.getPriority(middle), equalTo(50L));
+    assertThat(scheduler.getPriority(leaf), equalTo(60L));
+    assertThat(scheduler.getPriority(side), equalTo(35L));
+    assertThat(scheduler.getPredictedWallTimeMillis(), equalTo(60L));
+    assertThat(
+        scheduler.sortByPriority(ImmutableList.of(side, middle)),
+        contains(middle, side));
+  }
+
+  @Test
+  public void rulesWithoutHistoryAssumeAverageDuration() {
+    BuildRule unknown = new FakeBuildRule("//:unknown", sourcePathResolver, top);
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(RuleDurationHistory.load(filesystem, objectMapper), clock);
+    scheduler.plan(ImmutableList.of(unknown));
+
+    // The average of the known durations is (10 + 20 + 5 + 30) / 4.
+    assertThat(scheduler.getPriority(unknown), equalTo(16L));
+    assertThat(scheduler.getPredictedWallTimeMillis(), equalTo(76L));
+  }
+
+  @Test
+  public void reportsWallTimeAndSavesDurationsOnceAllTopLevelRulesFinish() throws Exception {
+    CriticalPathScheduler scheduler =
+        new CriticalPathScheduler(RuleDurationHistory.load(filesystem, objectMapper), clock);
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    final List<BuildEvent.CriticalPathWallTime> events = new ArrayList<>();
+    eventBus.register(new Object() {
+      @Subscribe
+      public void onCriticalPathWallTime(BuildEvent.CriticalPathWallTime event) {
+        events.add(event);
+      }
+    });
+
+    scheduler.plan(ImmutableList.of(middle, side));
+    clock.setCurrentTimeMillis(45);
+    scheduler.recordLocalBuildDuration(leaf, 100);
+
+    scheduler.topLevelRuleFinished(side, eventBus);
+    assertThat(events.isEmpty(), is(true));
+
+    scheduler.topLevelRuleFinished(middle, eventBus);
+    assertThat(events.size(), equalTo(1));
+    assertThat(events.get(0).getPredictedWallTimeMillis(), equalTo(30L));
+    assertThat(events.get(0).getActualWallTimeMillis(), equalTo(45L));
+
+    RuleDurationHistory reloaded = RuleDurationHistory.load(filesystem, objectMapper);
+    assertThat(
+        reloaded.getDurationMillis(BuildTargetFactory.newInstance("//:leaf")).get(),
+        equalTo(100L));
+  }
+}
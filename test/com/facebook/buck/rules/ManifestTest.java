@@ -294,6 +294,133 @@ public class ManifestTest {
         Matchers.equalTo(Optional.of(key2)));
   }
 
+  @Test
+  public void lookupMatchFromSerializedManifest() throws IOException {
+    RuleKey key1 = new RuleKey("aa");
+    RuleKey key2 = new RuleKey("bb");
+    SourcePath input = new FakeSourcePath("input.h");
+    SourcePath otherInput = new FakeSourcePath("other.h");
+    Manifest manifest =
+        Manifest.fromMap(
+            ImmutableMap.of(
+                key1,
+                ImmutableMap.of(RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(1)),
+                key2,
+                ImmutableMap.of(
+                    RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(2),
+                    RESOLVER.getRelativePath(otherInput).toString(), HashCode.fromInt(3))));
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    manifest.serialize(byteArrayOutputStream);
+    FileHashCache fileHashCache =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(input), HashCode.fromInt(2),
+                RESOLVER.getAbsolutePath(otherInput), HashCode.fromInt(3)));
+    assertThat(
+        Manifest.lookup(
+            new ByteArrayInputStream(byteArrayOutputStream.toByteArray()),
+            fileHashCache,
+            RESOLVER,
+            ImmutableSet.of(input, otherInput)),
+        Matchers.equalTo(Optional.of(key2)));
+    assertThat(
+        Manifest.lookup(
+            new ByteArrayInputStream(byteArrayOutputStream.toByteArray()),
+            fileHashCache,
+            RESOLVER,
+            ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.empty()));
+  }
+
+  @Test
+  public void lookupDoesNotConfuseHeadersWithTheSameHash() throws IOException {
+    RuleKey key = new RuleKey("aa");
+    SourcePath input = new FakeSourcePath("input.h");
+    SourcePath otherInput = new FakeSourcePath("other.h");
+    Manifest manifest =
+        Manifest.fromMap(
+            ImmutableMap.of(
+                key,
+                ImmutableMap.of(
+                    RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(1),
+                    RESOLVER.getRelativePath(otherInput).toString(), HashCode.fromInt(1))));
+    FileHashCache fileHashCache =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(input), HashCode.fromInt(1),
+                RESOLVER.getAbsolutePath(otherInput), HashCode.fromInt(1)));
+    assertThat(
+        manifest.lookup(fileHashCache, RESOLVER, ImmutableSet.of(input, otherInput)),
+        Matchers.equalTo(Optional.of(key)));
+  }
+
+  @Test
+  public void trimEvictsLeastRecentlyAddedEntries() throws IOException {
+    SourcePath input = new FakeSourcePath("input.h");
+    Manifest manifest = new Manifest();
+    for (int i = 0; i < 3; i++) {
+      manifest.addEntry(
+          new FakeFileHashCache(
+              ImmutableMap.of(RESOLVER.getAbsolutePath(input), HashCode.fromInt(i))),
+          new RuleKey(String.format("%02x", i)),
+          RESOLVER,
+          ImmutableSet.of(input),
+          ImmutableSet.of(input));
+    }
+    // Adding the oldest entry again makes it the most recent one.
+    manifest.addEntry(
+        new FakeFileHashCache(
+            ImmutableMap.of(RESOLVER.getAbsolutePath(input), HashCode.fromInt(0))),
+        new RuleKey("00"),
+        RESOLVER,
+        ImmutableSet.of(input),
+        ImmutableSet.of(input));
+
+    manifest.trim(2);
+    assertThat(
+        manifest.toMap(),
+        Matchers.equalTo(
+            ImmutableMap.of(
+                new RuleKey("02"),
+                ImmutableMap.of(RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(2)),
+                new RuleKey("00"),
+                ImmutableMap.of(RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(0)))));
+    assertThat(
+        manifest.lookup(
+            new FakeFileHashCache(
+                ImmutableMap.of(RESOLVER.getAbsolutePath(input), HashCode.fromInt(2))),
+            RESOLVER,
+            ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.of(new RuleKey("02"))));
+    assertThat(
+        manifest.lookup(
+            new FakeFileHashCache(
+                ImmutableMap.of(RESOLVER.getAbsolutePath(input), HashCode.fromInt(1))),
+            RESOLVER,
+            ImmutableSet.of(input)),
+        Matchers.equalTo(Optional.empty()));
+  }
+
+  @Test
+  public void trimDropsHashesOfEvictedEntries() throws IOException {
+    Manifest manifest =
+        Manifest.fromMap(
+            ImmutableMap.of(
+                new RuleKey("aa"),
+                ImmutableMap.of("foo.h", HashCode.fromInt(1)),
+                new RuleKey("bb"),
+                ImmutableMap.of("bar.h", HashCode.fromInt(2))));
+    manifest.trim(1);
+
+    ByteArrayOutputStream trimmed = new ByteArrayOutputStream();
+    manifest.serialize(trimmed);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    Manifest.fromMap(
+        ImmutableMap.of(new RuleKey("bb"), ImmutableMap.of("bar.h", HashCode.fromInt(2))))
+        .serialize(expected);
+    assertThat(trimmed.toByteArray(), Matchers.equalTo(expected.toByteArray()));
+  }
+
   @Test
   public void size() {
     assertThat(new Manifest().size(), Matchers.equalTo(0));
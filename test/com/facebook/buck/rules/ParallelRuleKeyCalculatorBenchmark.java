@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.cache.NullFileHashCache;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how long it takes to key a synthetic action graph from scratch, with a single thread
+ * and with a work-stealing pool.
+ */
+public class ParallelRuleKeyCalculatorBenchmark {
+  @Param({"10000", "50000", "200000"})
+  private int ruleCount = 10000;
+
+  @Param({"1", "4", "16"})
+  private int threadCount = 1;
+
+  private static final int MAX_DEPS_PER_RULE = 4;
+
+  private List<BuildRule> rules;
+  private SourcePathResolver pathResolver;
+  private BuckEventBus eventBus;
+  private ListeningExecutorService executorService;
+
+  @Before
+  public void setUpTest() throws Exception {
+    ruleCount = 1000;
+    threadCount = 4;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    eventBus = BuckEventBusFactory.newInstance();
+    executorService = MoreExecutors.listeningDecorator(new ForkJoinPool(threadCount));
+
+    // Every rule depends on a handful of earlier rules, which gives a wide DAG with lots of
+    // shared deps, much like a real action graph.
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Random random = new Random(ruleCount);
+    rules = Lists.newArrayListWithCapacity(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      int depCount = Math.min(i, random.nextInt(MAX_DEPS_PER_RULE + 1));
+      BuildRule[] deps = new BuildRule[depCount];
+      for (int j = 0; j < depCount; j++) {
+        deps[j] = rules.get(random.nextInt(i));
+      }
+      rules.add(
+          new FakeBuildRule(
+              BuildTargetFactory.newInstance(String.format("//pkg%d:rule%d", i % 100, i)),
+              filesystem,
+              pathResolver,
+              deps));
+    }
+  }
+
+  @After
+  @AfterExperiment
+  public void cleanup() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void calculateAllRuleKeysCorrectness() throws Exception {
+    List<RuleKey> keys = calculateAllRuleKeys();
+    DefaultRuleKeyBuilderFactory serialFactory = newRuleKeyBuilderFactory();
+    for (int i = 0; i < rules.size(); i++) {
+      assertEquals(serialFactory.build(rules.get(i)), keys.get(i));
+    }
+  }
+
+  @Macrobenchmark
+  public List<RuleKey> calculateAllRuleKeys() throws Exception {
+    ParallelRuleKeyCalculator calculator = new ParallelRuleKeyCalculator(
+        executorService,
+        new RuleDepsCache(executorService),
+        Functions.constant(newRuleKeyBuilderFactory()));
+    List<ListenableFuture<RuleKey>> keys = Lists.newArrayListWithCapacity(rules.size());
+    for (BuildRule rule : rules) {
+      keys.add(calculator.calculate(eventBus, rule));
+    }
+    return Futures.allAsList(keys).get();
+  }
+
+  private DefaultRuleKeyBuilderFactory newRuleKeyBuilderFactory() {
+    return new DefaultRuleKeyBuilderFactory(0, new NullFileHashCache(), pathResolver);
+  }
+}
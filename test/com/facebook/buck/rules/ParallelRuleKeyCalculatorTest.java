@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
+import com.facebook.buck.util.cache.NullFileHashCache;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private ListeningExecutorService service;
+  private SourcePathResolver pathResolver;
+  private BuckEventBus eventBus;
+
+  @Before
+  public void setUp() {
+    service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    eventBus = BuckEventBusFactory.newInstance();
+  }
+
+  @After
+  public void tearDown() {
+    service.shutdownNow();
+  }
+
+  @Test
+  public void depKeysAreCalculatedBeforeTheRulesThatNeedThem() throws Exception {
+    // A diamond: top -> {left, right} -> bottom.
+    BuildRule bottom = new FakeBuildRule("//:bottom", pathResolver);
+    BuildRule left = new FakeBuildRule("//:left", pathResolver, bottom);
+    BuildRule right = new FakeBuildRule("//:right", pathResolver, bottom);
+    BuildRule top = new FakeBuildRule("//:top", pathResolver, left, right);
+
+    final DefaultRuleKeyBuilderFactory delegate =
+        new DefaultRuleKeyBuilderFactory(0, new NullFileHashCache(), pathResolver);
+    final List<BuildRule> order = Collections.synchronizedList(Lists.<BuildRule>newArrayList());
+    RuleKeyBuilderFactory<RuleKey> recordingFactory = rule -> {
+      synchronized (order) {
+        if (!order.contains(rule)) {
+          order.add(rule);
+        }
+      }
+      return delegate.build(rule);
+    };
+
+    ParallelRuleKeyCalculator calculator = new ParallelRuleKeyCalculator(
+        service,
+        new RuleDepsCache(service),
+        Functions.constant(recordingFactory));
+
+    RuleKey topKey = calculator.calculate(eventBus, top).get();
+
+    assertEquals(delegate.build(top), topKey);
+    assertEquals(4, order.size());
+    for (BuildRule rule : order) {
+      for (BuildRule dep : rule.getDeps()) {
+        assertTrue(
+            String.format("%s should be keyed before %s", dep, rule),
+            order.indexOf(dep) < order.indexOf(rule));
+      }
+    }
+    assertEquals(delegate.build(bottom), calculator.getRuleKey(bottom.getBuildTarget()).get());
+  }
+
+  @Test
+  public void concurrentRequestsShareASingleFuture() throws Exception {
+    final BuildRule bottom = new FakeBuildRule("//:bottom", pathResolver);
+    final BuildRule top = new FakeBuildRule("//:top", pathResolver, bottom);
+    final ParallelRuleKeyCalculator calculator = new ParallelRuleKeyCalculator(
+        service,
+        new RuleDepsCache(service),
+        Functions.constant(
+            new DefaultRuleKeyBuilderFactory(0, new NullFileHashCache(), pathResolver)));
+
+    List<ListenableFuture<ListenableFuture<RuleKey>>> requests = Lists.newArrayList();
+    for (int i = 0; i < 16; i++) {
+      requests.add(
+          service.submit(
+              new Callable<ListenableFuture<RuleKey>>() {
+                @Override
+                public ListenableFuture<RuleKey> call() {
+                  return calculator.calculate(eventBus, top);
+                }
+              }));
+    }
+
+    ImmutableList<ListenableFuture<RuleKey>> futures =
+        ImmutableList.copyOf(Futures.allAsList(requests).get());
+    for (ListenableFuture<RuleKey> future : futures) {
+      assertSame(futures.get(0), future);
+    }
+    assertSame(futures.get(0), calculator.getRuleKey(top.getBuildTarget()));
+  }
+
+  @Test
+  public void unrequestedRulesHaveNoKey() {
+    ParallelRuleKeyCalculator calculator = new ParallelRuleKeyCalculator(
+        service,
+        new RuleDepsCache(service),
+        Functions.constant(
+            new DefaultRuleKeyBuilderFactory(0, new NullFileHashCache(), pathResolver)));
+    assertNull(calculator.getRuleKey(BuildTargetFactory.newInstance("//:nope")));
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feeds the kinds of values rules usually add to their keys straight into a {@link RuleKeyBuilder},
+ * so that the cost of hashing them is measured apart from finding them. Run it with Caliper's
+ * {@code -i allocation} instrument to see the garbage produced per key.
+ */
+public class RuleKeyBuilderBenchmark {
+  @Param({"1000", "100000"})
+  private int keyCount = 1000;
+
+  @Param({"10", "100"})
+  private int valuesPerKey = 10;
+
+  private static final HashCode HASH = HashCode.fromString(
+      "0123456789abcdef0123456789abcdef01234567");
+
+  private SourcePathResolver pathResolver;
+  private FakeFileHashCache hashCache;
+  private RuleKeyBuilderFactory<RuleKey> ruleKeyBuilderFactory;
+  private List<String> strings;
+  private List<SourcePath> sourcePaths;
+  private List<RuleKey> ruleKeys;
+  private BuildTarget target;
+  private Map<String, String> environment;
+
+  @Before
+  public void setUpTest() {
+    keyCount = 10;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    hashCache = new FakeFileHashCache(new HashMap<>());
+    ruleKeyBuilderFactory = new FakeRuleKeyBuilderFactory(ImmutableMap.of());
+    target = BuildTargetFactory.newInstance("//some/package:target");
+    environment = ImmutableSortedMap.of("PATH", "/usr/bin:/bin", "LANG", "en_US.UTF-8");
+
+    strings = Lists.newArrayListWithCapacity(valuesPerKey);
+    sourcePaths = Lists.newArrayListWithCapacity(valuesPerKey);
+    ruleKeys = Lists.newArrayListWithCapacity(valuesPerKey);
+    for (int i = 0; i < valuesPerKey; i++) {
+      strings.add("-DFLAG_NUMBER_" + i + "=1");
+      Path path = Paths.get("some/package/src/File" + i + ".java");
+      hashCache.set(filesystem.resolve(path), HASH);
+      sourcePaths.add(new PathSourcePath(filesystem, path));
+      ruleKeys.add(new RuleKey(HASH));
+    }
+  }
+
+  @Test
+  public void buildRuleKeysCorrectness() {
+    List<RuleKey> keys = buildRuleKeys();
+    assertEquals(keyCount, keys.size());
+    assertEquals(1, keys.stream().distinct().count());
+    assertEquals(keys, buildRuleKeys());
+  }
+
+  @Macrobenchmark
+  public List<RuleKey> buildRuleKeys() {
+    List<RuleKey> keys = Lists.newArrayListWithCapacity(keyCount);
+    for (int i = 0; i < keyCount; i++) {
+      RuleKeyBuilder<RuleKey> builder =
+          new UncachedRuleKeyBuilder(pathResolver, hashCache, ruleKeyBuilderFactory);
+      builder
+          .setReflectively("name", target)
+          .setReflectively("buck.type", "java_library")
+          .setReflectively("optimize", true)
+          .setReflectively("level", valuesPerKey)
+          .setReflectively("env", environment)
+          .setReflectively("flags", strings)
+          .setReflectively("srcs", sourcePaths)
+          .setReflectively("deps", ruleKeys)
+          .setReflectively("extra", ImmutableList.of());
+      keys.add(builder.build());
+    }
+    return keys;
+  }
+}
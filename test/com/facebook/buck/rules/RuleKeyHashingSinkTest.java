@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RuleKeyHashingSinkTest {
+
+  @Test
+  public void primitivesHashLikeGuava() {
+    Sha1HashCode sha1 = Sha1HashCode.of("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+    HashCode hashCode = HashCode.fromString("0123456789abcdeffedcba9876543210");
+
+    RuleKeyHashingSink sink = new RuleKeyHashingSink(Hashing.sha1())
+        .putByte((byte) 7)
+        .putBytes(new byte[] {1, 2, 3})
+        .putUnencodedChars("h\u00e9llo \u2603")
+        .putShort((short) -2)
+        .putInt(0x12345678)
+        .putLong(0x0102030405060708L)
+        .putFloat(1.5f)
+        .putDouble(-2.25)
+        .putSha1(sha1)
+        .putHexChars(hashCode);
+
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putByte((byte) 7)
+        .putBytes(new byte[] {1, 2, 3})
+        .putUnencodedChars("h\u00e9llo \u2603")
+        .putShort((short) -2)
+        .putInt(0x12345678)
+        .putLong(0x0102030405060708L)
+        .putFloat(1.5f)
+        .putDouble(-2.25);
+    sha1.update(hasher);
+    hasher.putUnencodedChars(hashCode.toString());
+
+    assertEquals(hasher.hash(), sink.hash());
+  }
+
+  @Test
+  public void valuesLargerThanTheBufferHashLikeGuava() {
+    String longString = Strings.repeat("abcdefgh", 5000);
+    byte[] longBytes = new byte[100_000];
+    for (int i = 0; i < longBytes.length; i++) {
+      longBytes[i] = (byte) i;
+    }
+
+    RuleKeyHashingSink sink = new RuleKeyHashingSink(Hashing.sha1());
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (int i = 0; i < 3; i++) {
+      sink.putUnencodedChars(longString).putBytes(longBytes).putInt(i);
+      hasher.putUnencodedChars(longString).putBytes(longBytes).putInt(i);
+    }
+
+    assertEquals(hasher.hash(), sink.hash());
+  }
+
+  @Test
+  public void nestedSinksDoNotShareBuffers() {
+    RuleKeyHashingSink outer = new RuleKeyHashingSink(Hashing.sha1()).putUnencodedChars("outer");
+    HashCode inner = new RuleKeyHashingSink(Hashing.sha1()).putUnencodedChars("inner").hash();
+    outer.putHexChars(inner);
+    HashCode reused = new RuleKeyHashingSink(Hashing.sha1()).putUnencodedChars("inner").hash();
+
+    assertEquals(
+        Hashing.sha1().newHasher().putUnencodedChars("inner").hash(),
+        inner);
+    assertEquals(inner, reused);
+    assertEquals(
+        Hashing.sha1().newHasher()
+            .putUnencodedChars("outer")
+            .putUnencodedChars(inner.toString())
+            .hash(),
+        outer.hash());
+  }
+
+  @Test
+  public void sinkCanBeFinishedOnAnotherThread() throws Exception {
+    final RuleKeyHashingSink sink =
+        new RuleKeyHashingSink(Hashing.sha1()).putUnencodedChars("started").putInt(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(() -> sink.putUnencodedChars("finished").putLong(2L)).get();
+    } finally {
+      executor.shutdown();
+    }
+    sink.putByte((byte) 3);
+
+    assertEquals(
+        Hashing.sha1().newHasher()
+            .putUnencodedChars("started")
+            .putInt(1)
+            .putUnencodedChars("finished")
+            .putLong(2L)
+            .putByte((byte) 3)
+            .hash(),
+        sink.hash());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void sinkCannotBeUsedAfterHashing() {
+    RuleKeyHashingSink sink = new RuleKeyHashingSink(Hashing.sha1());
+    sink.hash();
+    sink.putByte((byte) 1);
+  }
+}
@@ -41,6 +41,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 
 import org.junit.Test;
 
@@ -128,6 +129,34 @@ public class RuleKeyTest {
     assertEquals(manual, reflective);
   }
 
+  @Test
+  public void primitiveSettersHashLikeTheirBoxedValues() {
+    SourcePathResolver resolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer())
+     );
+    RuleKey reflective = createEmptyRuleKey(resolver)
+        .setReflectively("boolean", true)
+        .setReflectively("short", (short) 3)
+        .setReflectively("int", 42)
+        .setReflectively("long", 42L)
+        .setReflectively("float", 1.5f)
+        .setReflectively("double", 2.5d)
+        .setReflectively("false", false)
+        .build();
+
+    RuleKey primitive = createEmptyRuleKey(resolver)
+        .setBoolean("boolean", true)
+        .setShort("short", (short) 3)
+        .setInt("int", 42)
+        .setLong("long", 42L)
+        .setFloat("float", 1.5f)
+        .setDouble("double", 2.5d)
+        .setBoolean("false", false)
+        .build();
+
+    assertEquals(reflective, primitive);
+  }
+
   @Test
   public void ensureTwoListsOfSameRuleKeyAppendablesHaveSameRuleKey() {
     ImmutableList<TestRuleKeyAppendable> ruleKeyAppendableList =
@@ -827,6 +856,45 @@ public class RuleKeyTest {
     }
   }
 
+  @Test
+  public void keysOfNonDefaultHashFunctionsAreSeededWithTheirPrefix() {
+    SourcePathResolver resolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer())
+    );
+    RuleKeyBuilder<RuleKey> builder = new RuleKeyBuilder<RuleKey>(
+        resolver,
+        new NullFileHashCache(),
+        RuleKeyHashFunction.MURMUR3_128) {
+      @Override
+      protected RuleKeyBuilder<RuleKey> setBuildRule(BuildRule rule) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public RuleKeyBuilder<RuleKey> setAppendableRuleKey(
+          String key,
+          RuleKeyAppendable appendable) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public RuleKey build() {
+        return buildRuleKey();
+      }
+    };
+    builder.setReflectively("key", "value");
+
+    HashCode expected = Hashing.murmur3_128().newHasher()
+        .putUnencodedChars(RuleKeyHashFunction.MURMUR3_128.getKeyPrefix())
+        .putByte(RuleKeyBuilder.SEPARATOR)
+        .putUnencodedChars("key")
+        .putByte(RuleKeyBuilder.SEPARATOR)
+        .putUnencodedChars("value")
+        .putByte(RuleKeyBuilder.SEPARATOR)
+        .hash();
+    assertEquals(new RuleKey(expected), builder.build());
+  }
+
   private static class TestRuleKeyAppendableBuildRule extends NoopBuildRule
       implements RuleKeyAppendable {
     private final String foo;
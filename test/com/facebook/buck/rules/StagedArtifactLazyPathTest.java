@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.ArtifactEntry;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public class StagedArtifactLazyPathTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path zip;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    filesystem.mkdirs(Paths.get("buck-out/gen/foo"));
+    filesystem.writeContentsToPath("fetched", Paths.get("buck-out/gen/foo/out.txt"));
+    zip = tmp.newFile("artifact.zip");
+    filesystem.createZip(
+        ImmutableList.of(Paths.get("buck-out/gen/foo"), Paths.get("buck-out/gen/foo/out.txt")),
+        zip);
+    filesystem.deleteRecursivelyIfExists(Paths.get("buck-out/gen/foo"));
+  }
+
+  @Test
+  public void stagedEntriesAreOnlyVisibleOnceCommitted() throws IOException {
+    filesystem.mkdirs(Paths.get("buck-out/gen/foo"));
+    filesystem.writeContentsToPath("stale", Paths.get("buck-out/gen/foo/stale.txt"));
+
+    StagedArtifactLazyPath output = new StagedArtifactLazyPath(filesystem, "foo");
+    try (InputStream input = Files.newInputStream(zip)) {
+      output.stage(input);
+    }
+    assertFalse(filesystem.exists(Paths.get("buck-out/gen/foo/out.txt")));
+    assertFalse(output.isCommitted());
+
+    output.commit();
+    assertTrue(output.isCommitted());
+    assertEquals(
+        Optional.of("fetched"),
+        filesystem.readFileIfItExists(Paths.get("buck-out/gen/foo/out.txt")));
+    assertFalse(
+        "directories in the artifact should be cleaned before extracting",
+        filesystem.exists(Paths.get("buck-out/gen/foo/stale.txt")));
+    assertEquals(Optional.empty(), output.getCreatedZipPath());
+    assertTrue(filesystem.getDirectoryContents(filesystem.getBuckPaths().getTmpDir()).isEmpty());
+  }
+
+  @Test
+  public void discardRemovesStagedEntries() throws IOException {
+    StagedArtifactLazyPath output = new StagedArtifactLazyPath(filesystem, "foo");
+    try (InputStream input = Files.newInputStream(zip)) {
+      output.stage(input);
+    }
+    output.discard();
+    assertFalse(output.isCommitted());
+    assertFalse(filesystem.exists(Paths.get("buck-out/gen/foo/out.txt")));
+    assertTrue(filesystem.getDirectoryContents(filesystem.getBuckPaths().getTmpDir()).isEmpty());
+  }
+
+  @Test
+  public void entriesOnDiskCanBeLinkedIntoPlace() throws IOException {
+    Path blob = tmp.newFile("blob");
+    Files.write(blob, "cached".getBytes(StandardCharsets.UTF_8));
+
+    StagedArtifactLazyPath output = new StagedArtifactLazyPath(filesystem, "foo");
+    output.stage(
+        ImmutableList.of(
+            ArtifactEntry.of("buck-out/gen/foo/", 0, 0, Optional.empty()),
+            ArtifactEntry.of("buck-out/gen/foo/out.txt", 0, 0, Optional.of(blob))),
+        /* linkFiles */ true);
+    output.commit();
+
+    Path out = filesystem.resolve("buck-out/gen/foo/out.txt");
+    assertTrue(Files.isSameFile(blob, out));
+  }
+}
@@ -32,6 +32,7 @@ import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.RuleKeyAppendable;
 import com.facebook.buck.rules.RuleKeyBuilder;
+import com.facebook.buck.rules.RuleKeyHashFunction;
 import com.facebook.buck.rules.RuleKeyObjectSink;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TargetGraph;
@@ -79,6 +80,32 @@ public class DefaultRuleKeyBuilderFactoryTest {
     assertEquals(expected, seen);
   }
 
+  @Test
+  public void hashFunctionDeterminesTheKindOfKey() {
+    BuildTarget target = BuildTargetFactory.newInstance("//cheese:peas");
+    SourcePathResolver pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer())
+    );
+    BuildRule rule = new EmptyRule(target);
+
+    RuleKey defaultKey =
+        new DefaultRuleKeyBuilderFactory(0, new NullFileHashCache(), pathResolver).build(rule);
+    RuleKey sha1Key = new DefaultRuleKeyBuilderFactory(
+        0,
+        new NullFileHashCache(),
+        pathResolver,
+        RuleKeyHashFunction.SHA1).build(rule);
+    RuleKey murmurKey = new DefaultRuleKeyBuilderFactory(
+        0,
+        new NullFileHashCache(),
+        pathResolver,
+        RuleKeyHashFunction.MURMUR3_128).build(rule);
+
+    assertEquals(defaultKey, sha1Key);
+    assertEquals(160, sha1Key.getHashCode().bits());
+    assertEquals(128, murmurKey.getHashCode().bits());
+  }
+
   @Test
   public void shouldAddASingleAnnotatedFieldToRuleKey() {
     BuildTarget target = BuildTargetFactory.newInstance("//cheese:peas");
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyHashFunction;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Optional;
+
+public class DefaultRuleKeyCacheTest {
+
+  private static final RuleKey KEY = new RuleKey("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private FakeProjectFilesystem filesystem;
+  private SourcePathResolver pathResolver;
+  private DefaultRuleKeyCache cache;
+
+  @Before
+  public void setUp() {
+    filesystem = new FakeProjectFilesystem();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    cache = new DefaultRuleKeyCache(filesystem, filesystem.getRootPath());
+  }
+
+  @Test
+  public void onlyPathsInTheWatchedPartOfTheProjectAreWatched() {
+    assertTrue(cache.isWatched(filesystem.resolve("foo/Bar.java")));
+    assertFalse(cache.isWatched(Paths.get("/usr/bin/javac")));
+    assertFalse(
+        cache.isWatched(
+            filesystem.resolve(filesystem.getBuckPaths().getGenDir()).resolve("foo/bar.jar")));
+  }
+
+  @Test
+  public void changingAnInputDropsTheRulesUsingItAndTheirDependents() {
+    BuildRule lib = new FakeBuildRule("//foo:lib", pathResolver);
+    BuildRule bin = new FakeBuildRule("//foo:bin", pathResolver, lib);
+    BuildRule other = new FakeBuildRule("//other:lib", pathResolver);
+    cache.put(lib, KEY, ImmutableList.of(filesystem.resolve("foo/Lib.java")), ImmutableList.of());
+    cache.put(
+        bin,
+        KEY,
+        ImmutableList.of(filesystem.resolve("foo/Bin.java")),
+        ImmutableList.of(lib));
+    cache.put(
+        other,
+        KEY,
+        ImmutableList.of(filesystem.resolve("other/Lib.java")),
+        ImmutableList.of());
+
+    cache.invalidatePath(Paths.get("foo/Lib.java"));
+
+    assertEquals(Optional.empty(), cache.get(lib));
+    assertEquals(Optional.empty(), cache.get(bin));
+    assertEquals(Optional.of(KEY), cache.get(other));
+  }
+
+  @Test
+  public void changingAFileInsideAnInputDirectoryDropsTheRule() {
+    BuildRule rule = new FakeBuildRule("//foo:res", pathResolver);
+    cache.put(rule, KEY, ImmutableList.of(filesystem.resolve("foo/res")), ImmutableList.of());
+
+    cache.invalidatePath(filesystem.resolve("foo/res/values/strings.xml"));
+
+    assertEquals(Optional.empty(), cache.get(rule));
+  }
+
+  @Test
+  public void changesOutsideTheProjectAreIgnored() {
+    BuildRule rule = new FakeBuildRule("//foo:lib", pathResolver);
+    cache.put(rule, KEY, ImmutableList.of(filesystem.resolve("foo/Lib.java")), ImmutableList.of());
+
+    cache.invalidatePath(Paths.get("/somewhere/else/foo/Lib.java"));
+
+    assertEquals(Optional.of(KEY), cache.get(rule));
+  }
+
+  @Test
+  public void changedPathsAreRelativeToTheWatchRoot() {
+    Path projectRoot = Paths.get("/watched/project").toAbsolutePath();
+    filesystem = new FakeProjectFilesystem(projectRoot);
+    cache = new DefaultRuleKeyCache(filesystem, projectRoot.getParent());
+    BuildRule rule = new FakeBuildRule("//foo:lib", pathResolver);
+    cache.put(rule, KEY, ImmutableList.of(filesystem.resolve("foo/Lib.java")), ImmutableList.of());
+
+    // The same path in another project under the watch root.
+    cache.invalidatePath(Paths.get("foo/Lib.java"));
+    assertEquals(Optional.of(KEY), cache.get(rule));
+
+    cache.invalidatePath(Paths.get("project/foo/Lib.java"));
+    assertEquals(Optional.empty(), cache.get(rule));
+  }
+
+  @Test
+  public void factoriesSharingTheCacheDoNotHashCachedRulesAgain() {
+    Path input = filesystem.resolve("foo/Lib.java");
+    HashMap<Path, HashCode> hashes = new HashMap<>();
+    hashes.put(input, HashCode.fromInt(42));
+    BuildRule lib =
+        new RuleWithInput("//foo:lib", new PathSourcePath(filesystem, Paths.get("foo/Lib.java")));
+    BuildRule bin = new FakeBuildRule("//foo:bin", pathResolver, lib);
+
+    RuleKey expected = new DefaultRuleKeyBuilderFactory(
+        0,
+        new FakeFileHashCache(hashes),
+        pathResolver,
+        RuleKeyHashFunction.SHA1,
+        Optional.of(cache)).build(bin);
+    assertEquals(2, cache.size());
+
+    // Any file hashed again would fail to be found here.
+    DefaultRuleKeyBuilderFactory factory = new DefaultRuleKeyBuilderFactory(
+        0,
+        new FakeFileHashCache(ImmutableMap.of()),
+        pathResolver,
+        RuleKeyHashFunction.SHA1,
+        Optional.of(cache));
+    assertEquals(expected, factory.build(bin));
+  }
+
+  @Test
+  public void cachedKeysAreComputedAgainWhileTheDiagnosticsLogIsOn() throws IOException {
+    Path input = filesystem.resolve("foo/Lib.java");
+    HashMap<Path, HashCode> hashes = new HashMap<>();
+    hashes.put(input, HashCode.fromInt(42));
+    BuildRule lib =
+        new RuleWithInput("//foo:lib", new PathSourcePath(filesystem, Paths.get("foo/Lib.java")));
+    BuildRule bin = new FakeBuildRule("//foo:bin", pathResolver, lib);
+
+    RuleKey expected = new DefaultRuleKeyBuilderFactory(
+        0,
+        new FakeFileHashCache(hashes),
+        pathResolver,
+        RuleKeyHashFunction.SHA1,
+        Optional.of(cache)).build(bin);
+    assertEquals(2, cache.size());
+
+    Path logPath = tmp.getRoot().resolve("keys.bin");
+    try (RuleKeyDiagnosticsLog log = new RuleKeyDiagnosticsLog(logPath)) {
+      assertEquals(
+          expected,
+          new DefaultRuleKeyBuilderFactory(
+              0,
+              new FakeFileHashCache(hashes),
+              pathResolver,
+              RuleKeyHashFunction.SHA1,
+              Optional.of(cache),
+              Optional.of(log)).build(bin));
+    }
+    RuleKeyDiagnostics diagnostics = RuleKeyDiagnostics.read(logPath);
+    assertEquals(Optional.of(expected), diagnostics.getRuleKey("//foo:bin"));
+    assertTrue(diagnostics.getRuleKey("//foo:lib").isPresent());
+  }
+
+  @Test
+  public void rulesWithInputsOutsideTheProjectAreNotCached() {
+    Path compiler = Paths.get("/usr/bin/cc").toAbsolutePath();
+    HashMap<Path, HashCode> hashes = new HashMap<>();
+    hashes.put(compiler, HashCode.fromInt(42));
+    BuildRule lib = new RuleWithInput("//foo:lib", new PathSourcePath(filesystem, compiler));
+    BuildRule bin = new FakeBuildRule("//foo:bin", pathResolver, lib);
+
+    new DefaultRuleKeyBuilderFactory(
+        0,
+        new FakeFileHashCache(hashes),
+        pathResolver,
+        RuleKeyHashFunction.SHA1,
+        Optional.of(cache)).build(bin);
+
+    assertEquals(Optional.empty(), cache.get(lib));
+    assertEquals(Optional.empty(), cache.get(bin));
+  }
+
+  private class RuleWithInput extends FakeBuildRule {
+
+    @AddToRuleKey
+    private final SourcePath input;
+
+    private RuleWithInput(String target, SourcePath input) {
+      super(
+          BuildTargetFactory.newInstance(target),
+          filesystem,
+          pathResolver,
+          new BuildRule[0]);
+      this.input = input;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.cxx.CxxPlatformUtils;
+import com.facebook.buck.cxx.CxxPreprocessMode;
+import com.facebook.buck.cxx.CxxSource;
+import com.facebook.buck.cxx.CxxSourceRuleFactory;
+import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRuleParamsBuilder;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.shell.GenruleBuilder;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Measures how long a new factory takes to key a set of common rules, including finding and
+ * reading their {@link com.facebook.buck.rules.AddToRuleKey} fields.
+ */
+public class ReflectiveRuleKeyBuilderFactoryBenchmark {
+  @Param({"1000", "10000"})
+  private int rulesPerType = 1000;
+
+  private static final HashCode HASH = HashCode.fromString(
+      "0123456789abcdef0123456789abcdef01234567");
+
+  private List<BuildRule> rules;
+  private SourcePathResolver pathResolver;
+
+  @Before
+  public void setUpTest() throws Exception {
+    rulesPerType = 10;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    pathResolver = new SourcePathResolver(resolver);
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    rules = Lists.newArrayListWithCapacity(rulesPerType * 3);
+    for (int i = 0; i < rulesPerType; i++) {
+      rules.add(
+          JavaLibraryBuilder.createBuilder(BuildTargetFactory.newInstance("//java:lib" + i))
+              .addSrc(Paths.get("java/Foo" + i + ".java"))
+              .addSrc(Paths.get("java/Bar" + i + ".java"))
+              .build(resolver, filesystem));
+      rules.add(
+          GenruleBuilder.newGenruleBuilder(BuildTargetFactory.newInstance("//gen:rule" + i))
+              .setOut("out" + i)
+              .setCmd("cat $SRCS > $OUT")
+              .setSrcs(
+                  ImmutableList.of(
+                      new PathSourcePath(filesystem, Paths.get("gen/in" + i + ".txt"))))
+              .build(resolver, filesystem));
+      CxxSourceRuleFactory cxxSourceRuleFactory = CxxSourceRuleFactory.builder()
+          .setParams(
+              new FakeBuildRuleParamsBuilder(BuildTargetFactory.newInstance("//cxx:lib" + i))
+                  .setProjectFilesystem(filesystem)
+                  .build())
+          .setResolver(resolver)
+          .setPathResolver(pathResolver)
+          .setCxxBuckConfig(CxxPlatformUtils.DEFAULT_CONFIG)
+          .setCxxPlatform(CxxPlatformUtils.DEFAULT_PLATFORM)
+          .setPicType(CxxSourceRuleFactory.PicType.PDC)
+          .build();
+      rules.add(
+          cxxSourceRuleFactory.createPreprocessAndCompileBuildRule(
+              "src.cpp",
+              CxxSource.of(
+                  CxxSource.Type.CXX,
+                  new PathSourcePath(filesystem, Paths.get("cxx/src" + i + ".cpp")),
+                  ImmutableList.of("-O2", "-Wall")),
+              CxxPreprocessMode.SEPARATE));
+    }
+  }
+
+  @Test
+  public void buildRuleKeysCorrectness() throws Exception {
+    List<RuleKey> keys = buildRuleKeys();
+    assertEquals(rules.size(), keys.size());
+    assertEquals(keys, buildRuleKeys());
+    assertEquals(rules.size(), keys.stream().distinct().count());
+  }
+
+  @Macrobenchmark
+  public List<RuleKey> buildRuleKeys() {
+    // Every build gets a new factory, so nothing it caches itself is reused here.
+    DefaultRuleKeyBuilderFactory factory =
+        new DefaultRuleKeyBuilderFactory(0, new ConstantFileHashLoader(), pathResolver);
+    List<RuleKey> keys = Lists.newArrayListWithCapacity(rules.size());
+    for (BuildRule rule : rules) {
+      keys.add(factory.build(rule));
+    }
+    return keys;
+  }
+
+  /**
+   * Gives every file the same hash, so that hashing files doesn't add to the measurements.
+   */
+  private static class ConstantFileHashLoader implements FileHashLoader {
+    @Override
+    public HashCode get(Path path) {
+      return HASH;
+    }
+
+    @Override
+    public long getSize(Path path) {
+      return 0;
+    }
+
+    @Override
+    public HashCode get(ArchiveMemberPath archiveMemberPath) {
+      return HASH;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyHashFunction;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Optional;
+
+public class RuleKeyDiagnosticsTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private FakeProjectFilesystem filesystem;
+  private SourcePathResolver pathResolver;
+
+  @Before
+  public void setUp() {
+    filesystem = new FakeProjectFilesystem();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+  }
+
+  @Test
+  public void explainFollowsDepsToTheChangedField() throws IOException {
+    RuleKeyDiagnostics before = logBuild("before.bin", HashCode.fromInt(1));
+    RuleKeyDiagnostics after = logBuild("after.bin", HashCode.fromInt(2));
+
+    assertEquals(
+        ImmutableList.of(
+            "//foo:lib: input: path(foo/Lib.java:01000000) -> path(foo/Lib.java:02000000)"),
+        RuleKeyDiagnostics.explain(before, after, "//foo:bin"));
+  }
+
+  @Test
+  public void explainAllOnlyListsTheRulesThatChangedThemselves() throws IOException {
+    RuleKeyDiagnostics before = logBuild("before.bin", HashCode.fromInt(1));
+    RuleKeyDiagnostics after = logBuild("after.bin", HashCode.fromInt(2));
+
+    assertEquals(
+        ImmutableList.of(
+            "//foo:lib: input: path(foo/Lib.java:01000000) -> path(foo/Lib.java:02000000)"),
+        RuleKeyDiagnostics.explainAll(before, after));
+  }
+
+  @Test
+  public void unchangedKeysAreReportedAsSuch() throws IOException {
+    RuleKeyDiagnostics before = logBuild("before.bin", HashCode.fromInt(1));
+    RuleKeyDiagnostics after = logBuild("after.bin", HashCode.fromInt(1));
+
+    assertEquals(
+        ImmutableList.of("//foo:bin: rule key did not change"),
+        RuleKeyDiagnostics.explain(before, after, "//foo:bin"));
+    assertEquals(ImmutableList.of(), RuleKeyDiagnostics.explainAll(before, after));
+  }
+
+  @Test
+  public void logsOfInterruptedBuildsCanStillBeRead() throws IOException {
+    logBuild("complete.bin", HashCode.fromInt(1));
+    byte[] log = Files.readAllBytes(tmp.getRoot().resolve("complete.bin"));
+
+    RuleKeyDiagnostics truncated = RuleKeyDiagnostics.read(
+        new ByteArrayInputStream(Arrays.copyOf(log, log.length - 1)));
+
+    // The last key to be written is the one of the rule at the top of the graph.
+    assertEquals(Optional.empty(), truncated.getRuleKey("//foo:bin"));
+    RuleKey libKey = truncated.getRuleKey("//foo:lib").get();
+    assertTrue(truncated.getFields(libKey).get().stream()
+        .anyMatch(field -> field.getName().equals("input")));
+  }
+
+  private RuleKeyDiagnostics logBuild(String name, HashCode inputHash) throws IOException {
+    Path input = filesystem.resolve("foo/Lib.java");
+    HashMap<Path, HashCode> hashes = new HashMap<>();
+    hashes.put(input, inputHash);
+    BuildRule lib =
+        new RuleWithInput("//foo:lib", new PathSourcePath(filesystem, Paths.get("foo/Lib.java")));
+    BuildRule bin = new FakeBuildRule("//foo:bin", pathResolver, lib);
+
+    Path path = tmp.getRoot().resolve(name);
+    try (RuleKeyDiagnosticsLog log = new RuleKeyDiagnosticsLog(path)) {
+      new DefaultRuleKeyBuilderFactory(
+          0,
+          new FakeFileHashCache(hashes),
+          pathResolver,
+          RuleKeyHashFunction.SHA1,
+          Optional.empty(),
+          Optional.of(log)).build(bin);
+    }
+    return RuleKeyDiagnostics.read(path);
+  }
+
+  private class RuleWithInput extends FakeBuildRule {
+
+    @AddToRuleKey
+    private final SourcePath input;
+
+    private RuleWithInput(String target, SourcePath input) {
+      super(
+          BuildTargetFactory.newInstance(target),
+          filesystem,
+          pathResolver,
+          new BuildRule[0]);
+      this.input = input;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyLogger;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+public class TeeRuleKeyLoggerTest {
+
+  @Test
+  public void sendsEverythingToBothLoggers() {
+    RuleKeyLogger first = EasyMock.createMock(RuleKeyLogger.class);
+    RuleKeyLogger second = EasyMock.createMock(RuleKeyLogger.class);
+    RuleKeyLogger.Scope firstScope = EasyMock.createMock(RuleKeyLogger.Scope.class);
+    RuleKeyLogger.Scope secondScope = EasyMock.createMock(RuleKeyLogger.Scope.class);
+    RuleKey ruleKey = new RuleKey("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+
+    EasyMock.expect(first.pushKey("key")).andReturn(firstScope);
+    EasyMock.expect(second.pushKey("key")).andReturn(secondScope);
+    first.addValue("value");
+    second.addValue("value");
+    firstScope.close();
+    secondScope.close();
+    first.registerRuleKey(ruleKey);
+    second.registerRuleKey(ruleKey);
+    EasyMock.replay(first, second, firstScope, secondScope);
+
+    RuleKeyLogger logger = new TeeRuleKeyLogger(first, second);
+    try (RuleKeyLogger.Scope scope = logger.pushKey("key")) {
+      logger.addValue("value");
+    }
+    logger.registerRuleKey(ruleKey);
+
+    EasyMock.verify(first, second, firstScope, secondScope);
+  }
+}
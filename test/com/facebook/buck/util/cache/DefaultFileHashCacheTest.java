@@ -18,15 +18,19 @@ package com.facebook.buck.util.cache;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.HashingDeterministicJarWriter;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 
@@ -39,7 +43,9 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -47,6 +53,7 @@ import java.util.Optional;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
 
 public class DefaultFileHashCacheTest {
 
@@ -155,6 +162,89 @@ public class DefaultFileHashCacheTest {
     assertNull(cache.loadingCache.getIfPresent(child2));
   }
 
+  @Test
+  public void subdirectoryHashesAreCachedSeparately() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+
+    Path dir = filesystem.getRootPath().getFileSystem().getPath("dir");
+    Path subdir1 = dir.resolve("subdir1");
+    Path subdir2 = dir.resolve("subdir2");
+    filesystem.mkdirs(subdir1);
+    filesystem.mkdirs(subdir2);
+    filesystem.writeContentsToPath("foo", subdir1.resolve("file"));
+    filesystem.writeContentsToPath("bar", subdir2.resolve("file"));
+
+    HashCode dirHash = cache.get(filesystem.resolve(dir));
+    assertEquals(
+        HashCodeAndFileType.Type.DIRECTORY,
+        cache.loadingCache.getIfPresent(subdir1).getType());
+    assertEquals(
+        ImmutableSet.of(
+            Paths.get("subdir1"),
+            Paths.get("subdir1/file"),
+            Paths.get("subdir2"),
+            Paths.get("subdir2/file")),
+        cache.loadingCache.getIfPresent(dir).getChildren());
+
+    // Only the changed file and its ancestors need to be hashed again.
+    HashCodeAndFileType subdir2Value = cache.loadingCache.getIfPresent(subdir2);
+    filesystem.writeContentsToPath("baz", subdir1.resolve("file"));
+    cache.loadingCache.invalidate(subdir1.resolve("file"));
+    cache.loadingCache.invalidate(subdir1);
+    cache.loadingCache.invalidate(dir);
+    HashCode newDirHash = cache.get(filesystem.resolve(dir));
+    assertNotEquals(dirHash, newDirHash);
+    assertSame(subdir2Value, cache.loadingCache.getIfPresent(subdir2));
+    assertEquals(
+        newDirHash,
+        new DefaultFileHashCache(filesystem, Optional.empty()).get(filesystem.resolve(dir)));
+  }
+
+  @Test
+  public void directoryHashDependsOnFileNames() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path dir1 = filesystem.getRootPath().getFileSystem().getPath("dir1");
+    Path dir2 = filesystem.getRootPath().getFileSystem().getPath("dir2");
+    filesystem.mkdirs(dir1);
+    filesystem.mkdirs(dir2);
+    filesystem.writeContentsToPath("foo", dir1.resolve("a"));
+    filesystem.writeContentsToPath("foo", dir2.resolve("b"));
+
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+    assertNotEquals(cache.get(filesystem.resolve(dir1)), cache.get(filesystem.resolve(dir2)));
+  }
+
+  @Test
+  public void emptySubdirectoriesDoNotChangeTheDirectoryHash() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path dir = filesystem.getRootPath().getFileSystem().getPath("dir");
+    filesystem.mkdirs(dir);
+    filesystem.writeContentsToPath("foo", dir.resolve("file"));
+    HashCode dirHash = new DefaultFileHashCache(filesystem, Optional.empty())
+        .get(filesystem.resolve(dir));
+
+    filesystem.mkdirs(dir.resolve("empty/nested"));
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+    assertEquals(dirHash, cache.get(filesystem.resolve(dir)));
+    assertEquals(
+        ImmutableSet.of(Paths.get("file")),
+        cache.loadingCache.getIfPresent(dir).getChildren());
+  }
+
+  @Test
+  public void symlinkLoopsAreDetected() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path dir = Paths.get("dir");
+    filesystem.mkdirs(dir.resolve("subdir"));
+    filesystem.writeContentsToPath("foo", dir.resolve("subdir/file"));
+    filesystem.createSymLink(dir.resolve("subdir/loop"), tmp.getRoot().resolve(dir), false);
+
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+    expectedException.expect(FileSystemLoopException.class);
+    cache.get(filesystem.resolve(dir));
+  }
+
   @Test
   public void whenJarMemberWithHashInManifestIsQueriedThenCacheCorrectlyObtainsIt()
       throws IOException {
@@ -177,6 +267,90 @@ public class DefaultFileHashCacheTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void jarMemberHashesOfPrebuiltJarsAreComputedAndSaved() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+
+    // Like most third-party jars, this one has no member hashes in its manifest.
+    Path prebuiltJarPath = Paths.get("third-party/guava.jar");
+    filesystem.createParentDirs(prebuiltJarPath);
+    Path memberPath = Paths.get("com/google/Some.class");
+    try (JarOutputStream jar =
+             new JarOutputStream(filesystem.newFileOutputStream(prebuiltJarPath))) {
+      jar.putNextEntry(new JarEntry("com/"));
+      jar.closeEntry();
+      jar.putNextEntry(new JarEntry("com/google/"));
+      jar.closeEntry();
+      jar.putNextEntry(new JarEntry(memberPath.toString()));
+      jar.write("Some contents".getBytes(StandardCharsets.UTF_8));
+      jar.closeEntry();
+    }
+
+    // The jar's central directory records the CRC-32 and size of each member.
+    byte[] contents = "Some contents".getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+    HashCode expected = HashCode.fromBytes(
+        ByteBuffer.allocate(Integer.BYTES + Long.BYTES)
+            .putInt((int) crc.getValue())
+            .putLong(contents.length)
+            .array());
+    assertEquals(
+        expected,
+        new DefaultFileHashCache(filesystem, Optional.empty())
+            .get(ArchiveMemberPath.of(filesystem.resolve(prebuiltJarPath), memberPath)));
+
+    Path indexPath = filesystem.getBuckPaths().getJarMemberHashesDir()
+        .resolve(filesystem.computeSha1(prebuiltJarPath).toString());
+    assertTrue(filesystem.exists(indexPath));
+
+    // A new cache reads the hashes back from the index.
+    assertEquals(
+        expected,
+        new DefaultFileHashCache(filesystem, Optional.empty())
+            .get(ArchiveMemberPath.of(filesystem.resolve(prebuiltJarPath), memberPath)));
+  }
+
+  @Test
+  public void emptyJarMemberHashesAreNotSaved() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+
+    Path emptyJarPath = Paths.get("empty.jar");
+    try (JarOutputStream jar = new JarOutputStream(filesystem.newFileOutputStream(emptyJarPath))) {
+      jar.putNextEntry(new JarEntry("com/"));
+      jar.closeEntry();
+    }
+
+    try {
+      new DefaultFileHashCache(filesystem, Optional.empty())
+          .get(ArchiveMemberPath.of(filesystem.resolve(emptyJarPath), Paths.get("A.class")));
+      fail("The jar has no members.");
+    } catch (NoSuchFileException e) {
+      // Expected.
+    }
+
+    assertFalse(filesystem.exists(filesystem.getBuckPaths().getJarMemberHashesDir()));
+  }
+
+  @Test
+  public void jarMemberHashesOfJarsInBuckOutAreNotSaved() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+
+    Path abiJarPath = filesystem.getBuckPaths().getGenDir().resolve("test-abi.jar");
+    filesystem.createParentDirs(abiJarPath);
+    Path memberPath = Paths.get("SomeClass.class");
+    try (HashingDeterministicJarWriter jar = new HashingDeterministicJarWriter(
+        new JarOutputStream(filesystem.newFileOutputStream(abiJarPath)))) {
+      jar.writeEntry(
+          memberPath.toString(),
+          new ByteArrayInputStream("Some contents".getBytes(StandardCharsets.UTF_8)));
+    }
+    cache.get(ArchiveMemberPath.of(filesystem.resolve(abiJarPath), memberPath));
+
+    assertFalse(filesystem.exists(filesystem.getBuckPaths().getJarMemberHashesDir()));
+  }
+
   @Test(expected = NoSuchFileException.class)
   public void whenJarMemberWithoutHashInManifestIsQueriedThenThrow()
       throws IOException {
@@ -205,7 +379,9 @@ public class DefaultFileHashCacheTest {
     ProjectFilesystem filesystem = new FakeProjectFilesystem();
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
 
-    Path abiJarPath = Paths.get("no-manifest.jar");
+    // Jars built by Buck are expected to have member hashes in their manifest.
+    Path abiJarPath = filesystem.getBuckPaths().getGenDir().resolve("no-manifest.jar");
+    filesystem.createParentDirs(abiJarPath);
     Path memberPath = Paths.get("Empty.class");
 
     try (JarOutputStream jar = new JarOutputStream(filesystem.newFileOutputStream(abiJarPath))) {
@@ -222,7 +398,9 @@ public class DefaultFileHashCacheTest {
     ProjectFilesystem filesystem = new FakeProjectFilesystem();
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
 
-    Path abiJarPath = Paths.get("empty-manifest.jar");
+    // Jars built by Buck are expected to have member hashes in their manifest.
+    Path abiJarPath = filesystem.getBuckPaths().getGenDir().resolve("empty-manifest.jar");
+    filesystem.createParentDirs(abiJarPath);
     Path memberPath = Paths.get("Empty.class");
 
     try (HashingDeterministicJarWriter jar = new HashingDeterministicJarWriter(
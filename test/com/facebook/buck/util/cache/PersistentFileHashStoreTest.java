@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.hash.HashCode;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PersistentFileHashStoreTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void storedHashIsUsedWhileFileIsUnchanged() throws IOException {
+    Path file = tmp.newFile("foo.txt");
+    Files.write(file, "contents".getBytes(StandardCharsets.UTF_8));
+    PersistentFileHashStore store = new PersistentFileHashStore(Optional.empty());
+    AtomicInteger loads = new AtomicInteger();
+
+    assertEquals(HashCode.fromInt(1), store.get(file, () -> load(loads, 1)));
+    assertEquals(HashCode.fromInt(1), store.get(file, () -> load(loads, 2)));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void hashIsComputedAgainAfterFileChanges() throws IOException {
+    Path file = tmp.newFile("foo.txt");
+    Files.write(file, "contents".getBytes(StandardCharsets.UTF_8));
+    PersistentFileHashStore store = new PersistentFileHashStore(Optional.empty());
+    AtomicInteger loads = new AtomicInteger();
+
+    assertEquals(HashCode.fromInt(1), store.get(file, () -> load(loads, 1)));
+    Files.write(file, "other contents".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(
+        file,
+        FileTime.from(
+            Files.getLastModifiedTime(file).to(TimeUnit.SECONDS) + 10,
+            TimeUnit.SECONDS));
+    assertEquals(HashCode.fromInt(2), store.get(file, () -> load(loads, 2)));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  public void savedHashesAreUsedAfterLoading() throws IOException {
+    Path file = tmp.newFile("foo.txt");
+    Files.write(file, "contents".getBytes(StandardCharsets.UTF_8));
+    Path savePath = tmp.getRoot().resolve("filehashes");
+    PersistentFileHashStore store = PersistentFileHashStore.load(savePath);
+    AtomicInteger loads = new AtomicInteger();
+    assertEquals(HashCode.fromInt(1), store.get(file, () -> load(loads, 1)));
+    store.save();
+
+    PersistentFileHashStore loaded = PersistentFileHashStore.load(savePath);
+    assertEquals(1, loaded.size());
+    assertEquals(HashCode.fromInt(1), loaded.get(file, () -> load(loads, 2)));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void corruptSaveFileIsIgnored() throws IOException {
+    Path savePath = tmp.newFile("filehashes");
+    Files.write(savePath, new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 0});
+
+    assertEquals(0, PersistentFileHashStore.load(savePath).size());
+  }
+
+  private static HashCode load(AtomicInteger loads, int hash) {
+    loads.incrementAndGet();
+    return HashCode.fromInt(hash);
+  }
+}
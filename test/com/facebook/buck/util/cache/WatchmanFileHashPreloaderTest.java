@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.io.FakeWatchmanClient;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.io.Watchman;
+import com.facebook.buck.io.WatchmanClient;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+public class WatchmanFileHashPreloaderTest {
+
+  private static final String HASH = "0123456789abcdef0123456789abcdef01234567";
+
+  @Test
+  public void hashesFromWatchmanAreUsedWithoutReadingFiles()
+      throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path file = Paths.get("foo.txt");
+    filesystem.writeContentsToPath("contents", file);
+    filesystem.writeContentsToPath("contents", Paths.get("bar.txt"));
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+
+    FileHashPreloadResult result = WatchmanFileHashPreloader.preload(
+        createWatchman(
+            filesystem,
+            ImmutableList.of(
+                ImmutableMap.of("name", "foo.txt", "size", 8L, "content.sha1hex", HASH),
+                ImmutableMap.of(
+                    "name", "bar.txt",
+                    "size", 8L,
+                    "content.sha1hex", ImmutableMap.of("error", "Permission denied")))),
+        filesystem,
+        cache);
+
+    assertEquals(FileHashPreloadResult.of(1, 8, 1), result);
+    assertEquals(HashCode.fromString(HASH), cache.get(filesystem.resolve(file)));
+    assertEquals(
+        filesystem.computeSha1(Paths.get("bar.txt")).asHashCode(),
+        cache.get(filesystem.resolve("bar.txt")));
+  }
+
+  @Test
+  public void cachedHashesAreKept() throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Path file = Paths.get("foo.txt");
+    filesystem.writeContentsToPath("contents", file);
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+    HashCode hash = cache.get(filesystem.resolve(file));
+
+    FileHashPreloadResult result = WatchmanFileHashPreloader.preload(
+        createWatchman(
+            filesystem,
+            ImmutableList.of(
+                ImmutableMap.of("name", "foo.txt", "size", 8L, "content.sha1hex", HASH))),
+        filesystem,
+        cache);
+
+    assertEquals(FileHashPreloadResult.of(0, 0, 0), result);
+    assertEquals(hash, cache.get(filesystem.resolve(file)));
+  }
+
+  @Test
+  public void nothingIsPreloadedWithoutContentHashCapability()
+      throws IOException, InterruptedException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+    Watchman watchman = new Watchman(
+        Optional.empty(),
+        Optional.of(filesystem.getRootPath().toString()),
+        ImmutableSet.of(Watchman.Capability.DIRNAME),
+        Optional.empty(),
+        Optional.empty(),
+        Optional.of(new FakeWatchmanClient(0, ImmutableMap.of())),
+        1000);
+
+    assertEquals(
+        FileHashPreloadResult.of(0, 0, 0),
+        WatchmanFileHashPreloader.preload(watchman, filesystem, cache));
+    assertFalse(cache.willGet(filesystem.resolve("foo.txt")));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void queryLeavesOutIgnoredDirectories() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    List<Object> query = WatchmanFileHashPreloader.createQuery(
+        createWatchman(filesystem, Optional.empty()),
+        filesystem);
+    Map<String, Object> params = (Map<String, Object>) query.get(2);
+    List<Object> expression = (List<Object>) params.get("expression");
+    List<Object> excluded = (List<Object>) ((List<Object>) expression.get(2)).get(1);
+    assertThat(
+        excluded,
+        hasItem(
+            ImmutableList.of(
+                "dirname",
+                filesystem.getBuckPaths().getBuckOut().toString())));
+  }
+
+  private static Watchman createWatchman(
+      ProjectFilesystem filesystem,
+      ImmutableList<ImmutableMap<String, Object>> files) {
+    List<Object> query = WatchmanFileHashPreloader.createQuery(
+        createWatchman(filesystem, Optional.empty()),
+        filesystem);
+    return createWatchman(
+        filesystem,
+        Optional.of(
+            new FakeWatchmanClient(
+                0,
+                ImmutableMap.of(query, ImmutableMap.of("files", files)))));
+  }
+
+  private static Watchman createWatchman(
+      ProjectFilesystem filesystem,
+      Optional<WatchmanClient> client) {
+    return new Watchman(
+        Optional.empty(),
+        Optional.of(filesystem.getRootPath().toString()),
+        ImmutableSet.of(Watchman.Capability.DIRNAME, Watchman.Capability.CONTENT_SHA1HEX),
+        Optional.empty(),
+        Optional.empty(),
+        client,
+        1000);
+  }
+}
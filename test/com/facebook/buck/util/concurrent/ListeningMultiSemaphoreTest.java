@@ -219,6 +219,29 @@ public class ListeningMultiSemaphoreTest {
     assertThat(second.isDone(), Matchers.equalTo(true));
   }
 
+  @Test
+  public void testPendingRequestsAreServedByPriority() {
+    ListeningMultiSemaphore semaphore = getFairListeningMultiSemaphore(amountsOfCpu(1));
+    semaphore.acquire(amountsOfCpu(1));
+
+    ListenableFuture<Void> low = semaphore.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Void> high = semaphore.acquire(amountsOfCpu(1), 10);
+    ListenableFuture<Void> lowAgain = semaphore.acquire(amountsOfCpu(1), 1);
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(3));
+
+    semaphore.release(amountsOfCpu(1));
+    assertThat(high.isDone(), Matchers.equalTo(true));
+    assertThat(low.isDone(), Matchers.equalTo(false));
+
+    // Requests with the same priority are still served in order.
+    semaphore.release(amountsOfCpu(1));
+    assertThat(low.isDone(), Matchers.equalTo(true));
+    assertThat(lowAgain.isDone(), Matchers.equalTo(false));
+
+    semaphore.release(amountsOfCpu(1));
+    assertThat(lowAgain.isDone(), Matchers.equalTo(true));
+  }
+
   private ListeningMultiSemaphore getFairListeningMultiSemaphore(ResourceAmounts values) {
     return new ListeningMultiSemaphore(
         values,
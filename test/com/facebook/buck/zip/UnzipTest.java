@@ -16,13 +16,16 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeThat;
 
 import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.environment.Platform;
@@ -36,11 +39,14 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
 import java.util.zip.ZipEntry;
 
 public class UnzipTest {
@@ -153,4 +159,84 @@ public class UnzipTest {
     assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
   }
 
+  @Test
+  public void testExtractZipStream() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmpFolder.getRoot());
+    filesystem.mkdirs(Paths.get("out/subdir"));
+    filesystem.writeBytesToPath(DUMMY_FILE_CONTENTS, Paths.get("out/1.bin"));
+    filesystem.writeContentsToPath("#!/bin/sh\n", Paths.get("out/subdir/run.sh"));
+    MoreFiles.makeExecutable(filesystem.resolve("out/subdir/run.sh"));
+    filesystem.mkdirs(Paths.get("out/emptydir"));
+    filesystem.createZip(
+        ImmutableList.of(
+            Paths.get("out/1.bin"),
+            Paths.get("out/emptydir"),
+            Paths.get("out/subdir/run.sh")),
+        zipFile);
+
+    Path extractFolder = Paths.get("extracted");
+    ImmutableList<Path> result;
+    try (InputStream input = Files.newInputStream(zipFile)) {
+      result = Unzip.extractZipStream(input, filesystem, extractFolder);
+    }
+
+    assertEquals(
+        ImmutableList.of(
+            extractFolder.resolve("out/1.bin"),
+            extractFolder.resolve("out/emptydir/"),
+            extractFolder.resolve("out/subdir/run.sh")),
+        result);
+    assertArrayEquals(
+        DUMMY_FILE_CONTENTS,
+        Files.readAllBytes(filesystem.resolve(extractFolder.resolve("out/1.bin"))));
+    assertTrue(filesystem.isDirectory(extractFolder.resolve("out/emptydir")));
+    assertTrue(Files.isExecutable(filesystem.resolve(extractFolder.resolve("out/subdir/run.sh"))));
+    assertFalse(Files.isExecutable(filesystem.resolve(extractFolder.resolve("out/1.bin"))));
+  }
+
+  @Test
+  public void testExtractZipStreamPreservesExecutePermissionsAndModificationTime()
+      throws IOException {
+    final long time = ZipConstants.getFakeTime() / 1000 * 1000;
+
+    // Stored entries carry their sizes in the local header rather than in a data descriptor.
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("test.exe");
+      entry.setUnixMode((int) MorePosixFilePermissions.toMode(
+          PosixFilePermissions.fromString("r-x------")));
+      entry.setSize(DUMMY_FILE_CONTENTS.length);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setTime(time);
+      zip.putArchiveEntry(entry);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    try (InputStream input = Files.newInputStream(zipFile)) {
+      Unzip.extractZipStream(
+          input,
+          new ProjectFilesystem(extractFolder),
+          Paths.get(""));
+    }
+    Path exe = extractFolder.resolve("test.exe");
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(exe));
+    assertThat(
+        Files.getLastModifiedTime(exe).toMillis(),
+        Matchers.equalTo(time));
+    assertTrue(Files.isExecutable(exe));
+  }
+
+  @Test(expected = IOException.class)
+  public void testExtractTruncatedZipStreamFails() throws IOException {
+    try (Zip zip = new Zip(zipFile, true)) {
+      zip.add("1.bin", DUMMY_FILE_CONTENTS);
+    }
+    byte[] bytes = Files.readAllBytes(zipFile);
+    Unzip.extractZipStream(
+        new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 30)),
+        new ProjectFilesystem(tmpFolder.newFolder()),
+        Paths.get(""));
+  }
+
 }